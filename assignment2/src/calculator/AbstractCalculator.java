@@ -1,5 +1,10 @@
 package calculator;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
 /**
  * This abstract class is an implementation of the Calculator class and provides functionality for
  * calculators that work with non-negative numbers and can only add, multiply, or subtract with
@@ -37,6 +42,19 @@ abstract class AbstractCalculator implements Calculator {
   protected final boolean operatorIsEmpty;
   protected final boolean secondOpIsEmpty;
 
+  /* The cache that new states are interned in, or null if this calculator doesn't share its
+   * states with other calculators */
+  protected final StateCache cache;
+
+  /* The operands of a calculator with a LONG or BIG backend, which are kept here instead of in
+   * firstOp and secondOp; null for the INT backend */
+  protected final WideOperands wide;
+
+  /* The screen of this calculator, computed the first time getResult() is called. Since the
+   * state never changes, neither does the screen; threads that race on the first call may each
+   * compute it, but they all store an equal string */
+  private String screen;
+
   /**
    * Create a new instance of an AbstractCalculator. At first, every slot in the calculator
    * (first operand, operator, second operand) is treated as empty and would not be printed,
@@ -44,20 +62,53 @@ abstract class AbstractCalculator implements Calculator {
    * whatever is in a brand-new calculator cannot be the result of a previous operation.
    */
   protected AbstractCalculator() {
+    this((StateCache) null);
+  }
+
+  /**
+   * Create a new, empty instance of an AbstractCalculator whose later states are interned in the
+   * given cache, so that calculators in identical states are shared instead of being created
+   * again on every input.
+   *
+   * @param cache the cache to intern states in, or null to create a new calculator on every input
+   */
+  protected AbstractCalculator(StateCache cache) {
+    this(TransitionTable.EMPTY, '0', cache, null);
+  }
+
+  /**
+   * Create a new, empty instance of an AbstractCalculator whose operands are numbers of the given
+   * kind.
+   *
+   * @param backend the kind of numbers the operands hold
+   */
+  protected AbstractCalculator(NumericBackend backend) {
+    this(TransitionTable.EMPTY, '0', null,
+            (backend == NumericBackend.INT) ? null : WideOperands.empty(backend));
+  }
+
+  /* Constructor for calculators with a LONG or BIG backend, given their TransitionTable flags */
+  protected AbstractCalculator(WideOperands wide, char operator, int flags) {
+    this(flags, operator, null, wide);
+  }
+
+  private AbstractCalculator(int flags, char operator, StateCache cache, WideOperands wide) {
     this.firstOp = 0;
-    this.operator = '0';
+    this.operator = operator;
     this.secondOp = 0;
-    this.result = false;
-    firstOpIsEmpty = true;
-    operatorIsEmpty = true;
-    secondOpIsEmpty = true;
+    this.firstOpIsEmpty = (flags & TransitionTable.FIRST_EMPTY) != 0;
+    this.operatorIsEmpty = (flags & TransitionTable.OPERATOR_EMPTY) != 0;
+    this.secondOpIsEmpty = (flags & TransitionTable.SECOND_EMPTY) != 0;
+    this.result = (flags & TransitionTable.RESULT) != 0;
+    this.cache = cache;
+    this.wide = wide;
   }
 
   /* Constructor only meant to be called from member methods; clients can only create empty
    * calculators, but this constructor allows member methods to create calculators that
    * begin with their fields holding any value  */
   protected AbstractCalculator(int numOne, boolean firstEmpty, char operator, boolean operatorEmpty,
-                               int numTwo, boolean secondEmpty, boolean result) {
+                               int numTwo, boolean secondEmpty, boolean result, StateCache cache) {
     this.firstOp = numOne;
     this.operator = operator;
     this.secondOp = numTwo;
@@ -65,6 +116,8 @@ abstract class AbstractCalculator implements Calculator {
     this.secondOpIsEmpty = secondEmpty;
     this.operatorIsEmpty = operatorEmpty;
     this.result = result;
+    this.cache = cache;
+    this.wide = null;
   }
 
   /* factory method overridden by classes which extend AbstractCalculator */
@@ -72,6 +125,80 @@ abstract class AbstractCalculator implements Calculator {
                                          boolean operatorEmpty, int numTwo, boolean secondEmpty,
                                          boolean result);
 
+  /* factory method for calculators with a LONG or BIG backend, overridden by classes which extend
+   * AbstractCalculator */
+  protected abstract Calculator makeCalc(WideOperands operands, char operator, int flags);
+
+  /* Returns the calculator of this class already holding the given state if caching is turned on
+   * and the cache still has one, otherwise null */
+  protected Calculator cached(int numOne, boolean firstEmpty, char operator, boolean operatorEmpty,
+                              int numTwo, boolean secondEmpty, boolean result) {
+    if (cache == null) {
+      return null;
+    }
+    return cache.lookup(getClass(), numOne, firstEmpty, operator, operatorEmpty, numTwo,
+            secondEmpty, result);
+  }
+
+  /* Stores a newly created calculator in the cache (if caching is turned on) and returns it */
+  protected Calculator remember(AbstractCalculator calc) {
+    if (cache != null) {
+      cache.store(calc);
+    }
+    return calc;
+  }
+
+  /* Whether this calculator is of the given class and holds exactly the given state */
+  boolean holds(Class<?> type, int numOne, boolean firstEmpty, char operator,
+                boolean operatorEmpty, int numTwo, boolean secondEmpty, boolean result) {
+    return (getClass() == type) && (wide == null) && (firstOp == numOne)
+            && (firstOpIsEmpty == firstEmpty) && (this.operator == operator)
+            && (operatorIsEmpty == operatorEmpty) && (secondOp == numTwo)
+            && (secondOpIsEmpty == secondEmpty) && (this.result == result);
+  }
+
+  /* The flags of this calculator's state, as used by the TransitionTable */
+  int flags() {
+    return (firstOpIsEmpty ? TransitionTable.FIRST_EMPTY : 0)
+            | (operatorIsEmpty ? TransitionTable.OPERATOR_EMPTY : 0)
+            | (secondOpIsEmpty ? TransitionTable.SECOND_EMPTY : 0)
+            | (result ? TransitionTable.RESULT : 0);
+  }
+
+  /* The set of rules this calculator follows, as used by the TransitionTable */
+  int variant() {
+    return (this instanceof SmartCalculator) ? TransitionTable.SMART : TransitionTable.SIMPLE;
+  }
+
+  /* Creates a calculator of this class with the given state, given its flags as used by the
+   * TransitionTable */
+  Calculator makeCalc(int numOne, char operator, int numTwo, int flags) {
+    return makeCalc(numOne, (flags & TransitionTable.FIRST_EMPTY) != 0, operator,
+            (flags & TransitionTable.OPERATOR_EMPTY) != 0, numTwo,
+            (flags & TransitionTable.SECOND_EMPTY) != 0, (flags & TransitionTable.RESULT) != 0);
+  }
+
+  /**
+   * Return the kind of numbers the operands of this calculator hold.
+   *
+   * @return the numeric backend this calculator was created with
+   */
+  public NumericBackend getBackend() {
+    return (wide == null) ? NumericBackend.INT : wide.backend();
+  }
+
+  /* Hash of a calculator state; equal states of the same class always have the same hash */
+  static int hashState(Class<?> type, int numOne, boolean firstEmpty, char operator,
+                       boolean operatorEmpty, int numTwo, boolean secondEmpty, boolean result) {
+    int hash = type.hashCode();
+    hash = 31 * hash + numOne;
+    hash = 31 * hash + operator;
+    hash = 31 * hash + numTwo;
+    hash = 31 * hash + (firstEmpty ? 1 : 0) + (operatorEmpty ? 2 : 0) + (secondEmpty ? 4 : 0)
+            + (result ? 8 : 0);
+    return hash;
+  }
+
 
   /* Function that takes an original number and "addition", a digit which it will effectively
    * append to the end of the original number, then returns the result. If the result exceeds
@@ -79,38 +206,18 @@ abstract class AbstractCalculator implements Calculator {
    * user input too many digits into one of the calculator's operands.
    */
   protected int combineNums(int original, int addition) throws IllegalArgumentException {
-    try {
-      int newNum = Math.multiplyExact(original, 10);
-      newNum = Math.addExact(newNum, addition);
-      return newNum;
-    } catch (ArithmeticException e) {
+    long newNum = TransitionTable.append(original, addition);
+    if (newNum != (int) newNum) {
       throw new IllegalArgumentException("Operand is too large");
     }
+    return (int) newNum;
   }
 
   /* Executes the operation specified by the operator currently loaded into the calculator, then
    * returns the result. */
   protected int performOperation(int operand1, int operand2) {
-    int newNum = 0;
-    try {
-      switch (operator) {
-        case '+':
-          newNum = Math.addExact(operand1, operand2);
-          break;
-        case '-':
-          newNum = Math.subtractExact(operand1, operand2);
-          break;
-        case '*':
-          newNum = Math.multiplyExact(operand1, operand2);
-          break;
-        default:
-          newNum = -1;
-      }
-    } catch (ArithmeticException e) {
-      /* If operation exceeds max/min int values, set its result to 0 */
-      newNum = 0;
-    }
-    return newNum;
+    /* If operation exceeds max/min int values, its result is 0 */
+    return TransitionTable.operate(operator, operand1, operand2);
   }
 
   /* Store a number in the calculator when one is input. */
@@ -162,8 +269,51 @@ abstract class AbstractCalculator implements Calculator {
    *         it valid as the very first input.
    */
   public Calculator input(char button) throws IllegalArgumentException {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return apply(button);
+    }
+    long start = System.nanoTime();
+    boolean accepted = false;
+    try {
+      Calculator newCalc = apply(button);
+      accepted = true;
+      return newCalc;
+    } finally {
+      metrics.recordLatency(button, System.nanoTime() - start);
+      record(metrics, button, accepted);
+    }
+  }
+
+  /* Counts the transition the button makes from this state, given whether it was accepted */
+  private void record(CalculatorMetrics metrics, char button, boolean accepted) {
+    if (wide != null) {
+      /* a button the table accepts is only rejected by the wide operands if one of them would
+       * overflow */
+      metrics.record(variant(), wideAction(button), button, !accepted);
+    } else {
+      metrics.record(variant(), TransitionTable.action(variant(), flags(), firstOp, secondOp,
+              button), button, operator, firstOp, secondOp);
+    }
+  }
+
+  /* Counts presses of the button after the first one in a run that input(char, long) collapsed,
+   * which all make the same transition from this state */
+  private void recordRun(char button, long presses) {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if ((metrics != null) && (presses > 0)) {
+      int action = (wide != null) ? wideAction(button)
+              : TransitionTable.action(variant(), flags(), firstOp, secondOp, button);
+      metrics.recordRun(variant(), action, presses);
+    }
+  }
+
+  /* The input path of input(char), without instrumentation */
+  private Calculator apply(char button) throws IllegalArgumentException {
     Calculator newCalc = null;
-    if ((button >= '0') && (button <= '9')) {
+    if (wide != null) {
+      newCalc = inputWide(button);
+    } else if ((button >= '0') && (button <= '9')) {
       int asNumber = Character.getNumericValue(button);
       newCalc = handleNumber(asNumber);
     } else if ((button == '+') || (button == '-') || (button == '*')) {
@@ -182,28 +332,305 @@ abstract class AbstractCalculator implements Calculator {
     return newCalc;
   }
 
+  /**
+   * Input the same button a number of times in a row, with the same result as inputting it that
+   * many times one after the other. Runs are collapsed instead of being input one press at a
+   * time: once a press leaves the calculator in the same state, so will every later one, which
+   * covers runs of operators, 'C', '0' and the SimpleCalculator's '='. A run of '=' that repeats
+   * the last operation of a SmartCalculator is computed in closed form, including operations that
+   * overflow to 0 along the way. With the LONG and BIG backends, runs of digits are computed in
+   * closed form as well; with the BIG backend, a run whose result would have more than about
+   * half a billion bits is rejected instead.
+   *
+   * @param button the input to the calculator, representing a single button on a real calculator
+   * @param count  the number of times the button is pressed
+   * @return the calculator after all the presses
+   * @throws IllegalArgumentException if the count is negative, input(char) would throw for any
+   *         of the presses, or a run would make a BIG operand too large
+   */
+  @Override
+  public Calculator input(char button, long count) throws IllegalArgumentException {
+    if (count < 0) {
+      throw new IllegalArgumentException("Invalid count " + count);
+    }
+    AbstractCalculator calc = this;
+    int lastAction = TransitionTable.REJECT;
+    for (long done = 0; done < count; done++) {
+      if ((calc.wide == null) && (TransitionTable.action(calc.variant(), calc.flags(),
+              calc.firstOp, calc.secondOp, button) == TransitionTable.REPEAT)) {
+        /* every later press repeats the operation too, since the second operand stays negative */
+        calc.recordRun(button, count - done);
+        return calc.repeat(count - done);
+      }
+      if (calc.wide != null) {
+        int action = calc.wideAction(button);
+        if ((action == lastAction) && ((action == TransitionTable.REPEAT)
+                || (action == TransitionTable.APPEND_FIRST)
+                || (action == TransitionTable.APPEND_SECOND))) {
+          /* the press before made the same action, and left the operand it works on non-zero,
+           * or the second one negative, so every later press does too */
+          calc.recordRun(button, count - done);
+          return calc.wideRun(action, button, count - done);
+        }
+        lastAction = action;
+      }
+      AbstractCalculator next = (AbstractCalculator) calc.input(button);
+      if (next.equals(calc)) {
+        next.recordRun(button, count - done - 1);
+        return next;
+      }
+      calc = next;
+    }
+    return calc;
+  }
+
+  /* Returns the wide calculator after the given number of presses of the button, each of which
+   * makes the given action */
+  private Calculator wideRun(int action, char button, long count)
+          throws IllegalArgumentException {
+    WideOperands operands = wide.run(action, operator, button, count);
+    if (operands == null) {
+      throw new IllegalArgumentException("Invalid input '" + button + "' to calculator");
+    }
+    int meta = StateCodec.afterAction(StateCodec.meta(flags(), operator, false), action, button);
+    return makeCalc(operands, StateCodec.operator(meta), StateCodec.flags(meta));
+  }
+
+  /* Returns the calculator after the given number of '=' presses, each of which repeats the last
+   * operation with the remembered (negated) second operand */
+  private Calculator repeat(long count) {
+    int firstNum = TransitionTable.repeat(operator, firstOp, secondOp * -1, count);
+    int meta = StateCodec.afterAction(StateCodec.meta(flags(), operator, true),
+            TransitionTable.REPEAT, '=');
+    return makeCalc(firstNum, operator, secondOp, StateCodec.flags(meta));
+  }
+
+  /**
+   * Input a button following the same rules as input(char), but without ever throwing: whether
+   * the button was accepted, and if not, why, is returned along with the next calculator. The
+   * reason is found before anything is done, so a rejected button costs no exception.
+   *
+   * @param button the input to the calculator, representing a single button on a real calculator
+   * @return the calculator that input(char) would return, or this calculator if input(char) would
+   *     throw, together with the status of the input
+   */
+  @Override
+  public InputResult tryInput(char button) {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return tryApply(button);
+    }
+    long start = System.nanoTime();
+    InputResult result = tryApply(button);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    record(metrics, button, result.isAccepted());
+    return result;
+  }
+
+  /* The input path of tryInput(char), without instrumentation */
+  private InputResult tryApply(char button) {
+    if (wide != null) {
+      Calculator newCalc = inputWide(button);
+      return (newCalc != null) ? new InputResult(newCalc, InputStatus.OK)
+              : new InputResult(this, wideStatus(button));
+    }
+    InputStatus status = TransitionTable.status(variant(), flags(), firstOp, secondOp, button);
+    if (status != InputStatus.OK) {
+      return new InputResult(this, status);
+    }
+    return new InputResult(apply(button), status);
+  }
+
+  /* Input path of calculators with a LONG or BIG backend. The TransitionTable encodes the same
+   * rules as the handlers above, so the action for the button is looked up there and applied to
+   * the wide operands; returns null if the button is rejected */
+  private Calculator inputWide(char button) {
+    int action = wideAction(button);
+    if (action == TransitionTable.KEEP) {
+      return this;
+    } else if (action == TransitionTable.REJECT) {
+      return null;
+    }
+    WideOperands operands = wide.apply(action, operator, button);
+    if (operands == null) {
+      return null;
+    }
+    int meta = StateCodec.afterAction(StateCodec.meta(flags(), operator, false), action, button);
+    return makeCalc(operands, StateCodec.operator(meta), StateCodec.flags(meta));
+  }
+
+  private int wideAction(char button) {
+    int state = TransitionTable.stateClass(flags(), wide.secondNegative(), wide.bothZero());
+    return TransitionTable.action(variant(), state, TransitionTable.keyClass(button));
+  }
+
+  /* Returns why inputWide rejected the button */
+  private InputStatus wideStatus(char button) {
+    if (TransitionTable.keyClass(button) == TransitionTable.INVALID) {
+      return InputStatus.INVALID_KEY;
+    }
+    return (wideAction(button) == TransitionTable.REJECT) ? InputStatus.REJECTED_IN_STATE
+            : InputStatus.OPERAND_OVERFLOW;
+  }
+
+  /**
+   * Input a whole sequence of buttons, following the same rules as input(char) for each of them.
+   * The intermediate states are only kept in a mutable session, so the only calculator created is
+   * the one holding the final state.
+   *
+   * @param buttons the inputs to the calculator, in the order the buttons are pressed
+   * @return the calculator after the accepted inputs, and the position of the first button that
+   *     wasn't accepted, if any
+   */
+  @Override
+  public TapeResult input(CharSequence buttons) {
+    if (wide != null) {
+      return Calculator.super.input(buttons);
+    }
+    CalculatorSession session = new CalculatorSession(this);
+    int errorOffset = session.input(buttons);
+    return new TapeResult(session.toCalculator(), errorOffset);
+  }
+
+  /**
+   * Input part of an array of buttons, in the same way as input(CharSequence).
+   *
+   * @param buttons the array holding the inputs to the calculator
+   * @param offset  the position in the array of the first input
+   * @param length  the number of inputs to provide
+   * @return the calculator after the accepted inputs, and the position in the array of the first
+   *     button that wasn't accepted, if any
+   * @throws IndexOutOfBoundsException if the range is not inside the array
+   */
+  @Override
+  public TapeResult input(char[] buttons, int offset, int length)
+          throws IndexOutOfBoundsException {
+    if (wide != null) {
+      return Calculator.super.input(buttons, offset, length);
+    }
+    CalculatorSession session = new CalculatorSession(this);
+    int errorOffset = session.input(buttons, offset, length);
+    return new TapeResult(session.toCalculator(), errorOffset);
+  }
+
   /**
    * Print the current screen of the calculator. If the calculator is currently empty, print
-   * nothing.
+   * nothing. The screen is only computed on the first call; later calls return the same string.
    *
    * @return A string containing the contents of the calculator's screen - this could be anywhere
    *     from the empty string (for an empty calculator) to a single operand, to an operand and
    *     an operator, to two operands with an operator in between.
    */
   public String getResult() {
-    String screen = "";
+    String printed = screen;
+    if ((printed == null) && (wide != null)) {
+      StringBuilder chars = new StringBuilder();
+      wide.render(chars, operator, flags());
+      printed = chars.toString();
+      screen = printed;
+    } else if (printed == null) {
+      char[] chars = new char[screenLength()];
+      Screen.write(firstOp, operator, secondOp, flags(), chars, 0);
+      printed = new String(chars);
+      screen = printed;
+    }
+    return printed;
+  }
 
-    if (firstOpIsEmpty) {
-      return screen;
+  /**
+   * Return the number of characters on the current screen of the calculator, which is the length
+   * of the string getResult() returns.
+   *
+   * @return the number of characters on the screen
+   */
+  @Override
+  public int screenLength() {
+    if (wide != null) {
+      return getResult().length();
     }
-    screen += firstOp;
+    return Screen.length(firstOp, secondOp, flags());
+  }
 
-    if (!operatorIsEmpty) {
-      screen += operator;
-      if (!secondOpIsEmpty) {
-        screen += secondOp;
-      }
+  /**
+   * Write the current screen of the calculator into the given array, without creating any
+   * intermediate strings.
+   *
+   * @param dst    the array to write the screen into
+   * @param offset the position in the array of the screen's first character
+   * @return the number of characters written, which is the same as screenLength()
+   * @throws IndexOutOfBoundsException if the screen doesn't fit in the array at that position, in
+   *         which case nothing is written
+   */
+  @Override
+  public int render(char[] dst, int offset) throws IndexOutOfBoundsException {
+    if (wide != null) {
+      return Calculator.super.render(dst, offset);
+    }
+    return Screen.write(firstOp, operator, secondOp, flags(), dst, offset);
+  }
+
+  /**
+   * Write the current screen of the calculator as ASCII bytes at the position of the given
+   * buffer, and move the position past them.
+   *
+   * @param dst the buffer to write the screen into
+   * @return the number of bytes written, which is the same as screenLength()
+   * @throws BufferOverflowException if the screen doesn't fit in the buffer's remaining space, in
+   *         which case nothing is written
+   */
+  @Override
+  public int render(ByteBuffer dst) throws BufferOverflowException {
+    if (wide != null) {
+      return Calculator.super.render(dst);
+    }
+    return Screen.write(firstOp, operator, secondOp, flags(), dst);
+  }
+
+  /**
+   * Append the current screen of the calculator to the given Appendable, one character at a time.
+   *
+   * @param dst the Appendable to append the screen to
+   * @throws IOException if the Appendable fails to append a character
+   */
+  @Override
+  public void render(Appendable dst) throws IOException {
+    if (wide != null) {
+      Calculator.super.render(dst);
+      return;
+    }
+    Screen.write(firstOp, operator, secondOp, flags(), dst);
+  }
+
+  /**
+   * Two calculators are equal if they are of the same class and hold the same state, including
+   * values they keep but don't print, so that they will react identically to any further input.
+   *
+   * @param o the object to compare this calculator to
+   * @return true if the other object is a calculator of the same class in the same state
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof AbstractCalculator)) {
+      return false;
+    }
+    AbstractCalculator other = (AbstractCalculator) o;
+    if (wide != null) {
+      return (getClass() == other.getClass()) && (flags() == other.flags())
+              && (operator == other.operator) && wide.equals(other.wide);
+    }
+    return other.holds(getClass(), firstOp, firstOpIsEmpty, operator, operatorIsEmpty, secondOp,
+            secondOpIsEmpty, result);
+  }
+
+  @Override
+  public int hashCode() {
+    if (wide != null) {
+      return Objects.hash(getClass(), flags(), operator, wide);
     }
-    return screen;
+    return hashState(getClass(), firstOp, firstOpIsEmpty, operator, operatorIsEmpty, secondOp,
+            secondOpIsEmpty, result);
   }
 }
\ No newline at end of file
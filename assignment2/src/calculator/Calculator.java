@@ -1,5 +1,12 @@
 package calculator;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
 /**
  * This interface provides functionality to simulate a calculator. The interface allows users to
  * input numbers and operations one character at a time and display what would be on the current
@@ -14,9 +21,127 @@ public interface Calculator {
    */
   Calculator input(char button);
 
+  /**
+   * Provide the same character to the calculator as input a number of times in a row, as if the
+   * button were held down. The returned calculator is the same as after inputting the character
+   * that many times one after the other.
+   * @param button the input to the calculator, representing a single button on a real calculator.
+   * @param count the number of times the button is pressed.
+   * @return a calculator that has been updated based on all the inputs.
+   * @throws IllegalArgumentException if the count is negative, or any of the inputs isn't
+   *     accepted.
+   */
+  default Calculator input(char button, long count) {
+    if (count < 0) {
+      throw new IllegalArgumentException("Invalid count " + count);
+    }
+    Calculator calc = this;
+    for (long i = 0; i < count; i++) {
+      calc = calc.input(button);
+    }
+    return calc;
+  }
+
+  /**
+   * Provide a character to the calculator as input without throwing when it isn't accepted;
+   * instead, the returned result tells whether it was, and if not, why. Calculators that can't
+   * tell the reasons apart report every rejected character as REJECTED_IN_STATE.
+   * @param button the input to the calculator, representing a single button on a real calculator.
+   * @return the updated calculator, or this calculator if the input wasn't accepted, together
+   *     with the status of the input.
+   */
+  default InputResult tryInput(char button) {
+    try {
+      return new InputResult(input(button), InputStatus.OK);
+    } catch (IllegalArgumentException e) {
+      return new InputResult(this, InputStatus.REJECTED_IN_STATE);
+    }
+  }
+
+  /**
+   * Provide a whole sequence of characters to the calculator as input, one after the other. The
+   * sequence stops at the first character the calculator doesn't accept; instead of throwing, the
+   * returned result holds the calculator as it was right before that character, together with
+   * the character's position.
+   * @param buttons the inputs to the calculator, in the order the buttons are pressed.
+   * @return the calculator after the accepted inputs, and the position of the first character
+   *     that wasn't accepted, if any.
+   */
+  default TapeResult input(CharSequence buttons) {
+    Calculator calc = this;
+    for (int i = 0; i < buttons.length(); i++) {
+      try {
+        calc = calc.input(buttons.charAt(i));
+      } catch (IllegalArgumentException e) {
+        return new TapeResult(calc, i);
+      }
+    }
+    return new TapeResult(calc, -1);
+  }
+
+  /**
+   * Provide part of an array of characters to the calculator as input, one after the other, in
+   * the same way as input(CharSequence).
+   * @param buttons the array holding the inputs to the calculator.
+   * @param offset the position in the array of the first input.
+   * @param length the number of inputs to provide.
+   * @return the calculator after the accepted inputs, and the position in the array of the first
+   *     character that wasn't accepted, if any.
+   * @throws IndexOutOfBoundsException if the range is not inside the array.
+   */
+  default TapeResult input(char[] buttons, int offset, int length) {
+    return input(CharBuffer.wrap(buttons, offset, length)).shift(offset);
+  }
+
   /**
    * Print the current "screen" of the calculator.
    * @return a string containing the contents of the calculator's display.
    */
   String getResult();
+
+  /**
+   * Return the number of characters on the current "screen" of the calculator.
+   * @return the length of the string getResult() returns.
+   */
+  default int screenLength() {
+    return getResult().length();
+  }
+
+  /**
+   * Write the current "screen" of the calculator into the given array.
+   * @param dst the array to write the screen into.
+   * @param offset the position in the array of the screen's first character.
+   * @return the number of characters written.
+   * @throws IndexOutOfBoundsException if the screen doesn't fit in the array at that position, in
+   *     which case nothing is written.
+   */
+  default int render(char[] dst, int offset) {
+    String screen = getResult();
+    Objects.checkFromIndexSize(offset, screen.length(), dst.length);
+    screen.getChars(0, screen.length(), dst, offset);
+    return screen.length();
+  }
+
+  /**
+   * Write the current "screen" of the calculator as ASCII bytes at the position of the given
+   * buffer, moving the position past them.
+   * @param dst the buffer to write the screen into.
+   * @return the number of bytes written.
+   * @throws BufferOverflowException if the screen doesn't fit in the buffer's remaining space, in
+   *     which case nothing is written.
+   */
+  default int render(ByteBuffer dst) {
+    byte[] screen = getResult().getBytes(StandardCharsets.US_ASCII);
+    dst.put(screen);
+    return screen.length;
+  }
+
+  /**
+   * Append the current "screen" of the calculator to the given Appendable.
+   * @param dst the Appendable to append the screen to.
+   * @throws IOException if the Appendable fails to append the screen.
+   */
+  default void render(Appendable dst) throws IOException {
+    dst.append(getResult());
+  }
 }
\ No newline at end of file
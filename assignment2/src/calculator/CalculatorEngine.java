@@ -0,0 +1,174 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class represents a fixed number of independent calculator sessions, stored column by
+ * column instead of as one object per session: all first operands are in one int array, all
+ * second operands in another, and the operator, flags and rules of each session are packed into
+ * one byte (the StateCodec meta word, which fits in 7 bits). Sessions are numbered from 0 and
+ * each one follows the rules of either the SimpleCalculator or the SmartCalculator.
+ *
+ * <p>Buttons can be input to one session at a time or as a batch of (session, button) events,
+ * which are applied in order. Inputting buttons never creates objects; a button a session rejects
+ * leaves that session unchanged. An engine is not safe to use from several threads at once without
+ * outside synchronization.
+ */
+public final class CalculatorEngine {
+  private final int[] firstOps;
+
+  private final int[] secondOps;
+
+  private final byte[] metas;
+
+  /**
+   * Create an engine holding the given number of sessions, all of them empty and following the
+   * same rules.
+   *
+   * @param capacity the number of sessions
+   * @param smart    true if the sessions follow the rules of a SmartCalculator, false for those
+   *                 of a SimpleCalculator
+   * @throws IllegalArgumentException if the capacity is negative
+   */
+  public CalculatorEngine(int capacity, boolean smart) throws IllegalArgumentException {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Invalid number of sessions " + capacity);
+    }
+    this.firstOps = new int[capacity];
+    this.secondOps = new int[capacity];
+    this.metas = new byte[capacity];
+    Arrays.fill(metas, (byte) StateCodec.emptyMeta(smart));
+  }
+
+  /**
+   * Return the number of sessions in this engine.
+   *
+   * @return the number of sessions
+   */
+  public int capacity() {
+    return metas.length;
+  }
+
+  /**
+   * Empty the given session and make it follow the given rules.
+   *
+   * @param session the number of the session
+   * @param smart   true for the rules of a SmartCalculator, false for those of a SimpleCalculator
+   */
+  public void reset(int session, boolean smart) {
+    store(session, 0L, StateCodec.emptyMeta(smart));
+  }
+
+  /**
+   * Replace the state and rules of the given session by those of the given calculator.
+   *
+   * @param session the number of the session
+   * @param calc    the calculator to copy the state and rules of
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public void load(int session, Calculator calc) throws IllegalArgumentException {
+    store(session, StateCodec.operands(calc), StateCodec.meta(calc));
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of the given session.
+   *
+   * @param session the number of the session
+   * @return a SimpleCalculator or SmartCalculator in the same state as the session
+   */
+  public Calculator toCalculator(int session) {
+    return StateCodec.decode(operands(session), metas[session]);
+  }
+
+  /**
+   * Input a button to the given session, exactly as the input(char) method of a calculator in the
+   * same state would.
+   *
+   * @param session the number of the session
+   * @param button  the input, representing a single button on a real calculator
+   * @return true if the button was accepted, false if the session rejected it and is unchanged
+   */
+  public boolean input(int session, char button) {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return step(session, button, null);
+    }
+    long start = System.nanoTime();
+    boolean accepted = step(session, button, metrics);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    return accepted;
+  }
+
+  /* The input path of input(int, char); the button is counted in the given metrics, if any */
+  private boolean step(int session, char button, CalculatorMetrics metrics) {
+    long operands = operands(session);
+    int meta = metas[session];
+    if (metrics != null) {
+      metrics.record(operands, meta, button);
+    }
+    int next = StateCodec.nextMeta(operands, meta, button);
+    if (StateCodec.isRejected(next)) {
+      return false;
+    }
+    store(session, StateCodec.nextOperands(operands, meta, button), next);
+    return true;
+  }
+
+  /**
+   * Apply a batch of events in order, where event i inputs buttons[i] to session sessions[i].
+   *
+   * @param sessions the session of each event
+   * @param buttons  the button of each event
+   * @param offset   the position of the first event to apply
+   * @param length   the number of events to apply
+   * @return the number of events whose button was rejected by its session
+   * @throws IndexOutOfBoundsException if the range is not inside both arrays, or an event names
+   *         a session that doesn't exist
+   */
+  public int apply(int[] sessions, char[] buttons, int offset, int length)
+          throws IndexOutOfBoundsException {
+    Objects.checkFromIndexSize(offset, length, sessions.length);
+    Objects.checkFromIndexSize(offset, length, buttons.length);
+    int rejected = 0;
+    for (int i = offset; i < offset + length; i++) {
+      if (!input(sessions[i], buttons[i])) {
+        rejected++;
+      }
+    }
+    return rejected;
+  }
+
+  /**
+   * Append the screen of the given session to the given StringBuilder.
+   *
+   * @param session the number of the session
+   * @param screen  the StringBuilder to append the screen to
+   */
+  public void render(int session, StringBuilder screen) {
+    StateCodec.render(operands(session), metas[session], screen);
+  }
+
+  /**
+   * Print the screen of the given session, as getResult() would for a calculator in its state.
+   *
+   * @param session the number of the session
+   * @return a string containing the contents of the session's screen
+   */
+  public String getResult(int session) {
+    StringBuilder screen = new StringBuilder();
+    render(session, screen);
+    return screen.toString();
+  }
+
+  private long operands(int session) {
+    return StateCodec.operands(firstOps[session], secondOps[session]);
+  }
+
+  private void store(int session, long operands, int meta) {
+    firstOps[session] = StateCodec.firstOperand(operands);
+    secondOps[session] = StateCodec.secondOperand(operands);
+    metas[session] = (byte) meta;
+  }
+}
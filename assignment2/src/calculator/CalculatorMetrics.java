@@ -0,0 +1,363 @@
+package calculator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class counts what calculators do with the buttons input to them, so that it can be seen
+ * which transitions the time goes to. For each set of rules (SimpleCalculator or SmartCalculator)
+ * it counts the accepted buttons by the kind of transition they make, the rejected buttons by the
+ * reason they were rejected, and the operations whose result overflowed to 0. For each class of
+ * button (digit, '+', '-' or '*', '=', 'C', invalid) it keeps a histogram of how long inputting
+ * it took, in powers of two of nanoseconds.
+ *
+ * <p>Buttons are counted, and the time they take measured, where they are input: to a
+ * SimpleCalculator or SmartCalculator, a CalculatorSession, a SessionRegistry, an
+ * OffHeapSessionStore, a TieredSessionRegistry or a CalculatorEngine. The time includes finding
+ * the session and, for the stores, waiting for its lock. Buttons that are only replayed, such as
+ * a journal being recovered, a backup applying the events of its primary, a KeystrokeReplay or a
+ * script being run, are not counted, and neither are the steps of the StateCodec on its own.
+ *
+ * <p>Instrumentation is off until an instance is installed with install(CalculatorMetrics). While
+ * it is off, each of the places above costs one read of a volatile field and a branch that is
+ * never taken. Every counter is a LongAdder, so threads inputting to different sessions at once
+ * don't contend on a shared counter. The counters can be read one by one, printed in the
+ * Prometheus text format with writeText, or read over JMX once the metrics are registered with
+ * registerMBean.
+ */
+public final class CalculatorMetrics implements CalculatorMetricsMBean {
+  /**
+   * The name registerMBean() registers the metrics under.
+   */
+  public static final String OBJECT_NAME = "calculator:type=CalculatorMetrics";
+
+  /* The installed metrics, or null while instrumentation is off. The field is volatile so that
+   * loops already running, which the compiler could otherwise read it once for, see it change;
+   * a volatile read costs no more than a plain one on most processors */
+  static volatile CalculatorMetrics installed;
+
+  private static final String[] VARIANTS = {"simple", "smart"};
+
+  private static final String[] KEY_CLASSES = {"digit", "plus", "minus_or_times", "equals",
+      "clear", "invalid"};
+
+  /* Bucket i of a histogram counts latencies of at least 2^(i-1) and less than 2^i nanoseconds,
+   * bucket 0 counts latencies of 0, and the last bucket also counts everything longer */
+  private static final int BUCKETS = 40;
+
+  private static final int KINDS = TransitionKind.values().length;
+
+  private static final int STATUSES = InputStatus.values().length;
+
+  /* Indexed by variant and kind */
+  private final LongAdder[] transitions = adders(VARIANTS.length * KINDS);
+
+  /* Indexed by variant and status; the counters for OK are never used */
+  private final LongAdder[] rejections = adders(VARIANTS.length * STATUSES);
+
+  private final LongAdder[] resultOverflows = adders(VARIANTS.length);
+
+  /* Indexed by key class and bucket */
+  private final LongAdder[] latencies = adders(TransitionTable.KEY_CLASSES * BUCKETS);
+
+  private final LongAdder[] latencySums = adders(TransitionTable.KEY_CLASSES);
+
+  /**
+   * Create metrics with every counter and histogram at zero. They count nothing until they are
+   * installed.
+   */
+  public CalculatorMetrics() {
+  }
+
+  /**
+   * Turn instrumentation on, counting into the given metrics from then on, or turn it off.
+   * Metrics that were installed before stop counting but keep their counts.
+   *
+   * @param metrics the metrics to count into, or null to turn instrumentation off
+   */
+  public static void install(CalculatorMetrics metrics) {
+    installed = metrics;
+  }
+
+  /**
+   * Return the metrics that are counted into.
+   *
+   * @return the installed metrics, or null if instrumentation is off
+   */
+  public static CalculatorMetrics getInstalled() {
+    return installed;
+  }
+
+  private static LongAdder[] adders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  /* Counts a button input to a packed state */
+  void record(long operands, int meta, char button) {
+    int variant = StateCodec.variant(meta);
+    int firstOp = StateCodec.firstOperand(operands);
+    int secondOp = StateCodec.secondOperand(operands);
+    record(variant, TransitionTable.action(variant, StateCodec.flags(meta), firstOp, secondOp,
+            button), button, StateCodec.operator(meta), firstOp, secondOp);
+  }
+
+  /* Counts a button applied to a packed or INT backend state, with the operands and operator of
+   * that state, telling apart digits that would make an operand too large */
+  void record(int variant, int action, char button, char operator, int firstOp, int secondOp) {
+    boolean operandOverflow = false;
+    if (action == TransitionTable.APPEND_FIRST) {
+      long first = TransitionTable.append(firstOp, button - '0');
+      operandOverflow = first != (int) first;
+    } else if (action == TransitionTable.APPEND_SECOND) {
+      long second = TransitionTable.append(secondOp, button - '0');
+      operandOverflow = second != (int) second;
+    }
+    record(variant, action, button, operandOverflow);
+    if (TransitionTable.overflows(action, operator, firstOp, secondOp)) {
+      resultOverflows[variant].increment();
+    }
+  }
+
+  /* Counts a button applied to a state, given whether the action the TransitionTable gives for it
+   * is undone because the operands can't hold its result */
+  void record(int variant, int action, char button, boolean operandOverflow) {
+    if (action == TransitionTable.REJECT) {
+      InputStatus status = (TransitionTable.keyClass(button) == TransitionTable.INVALID)
+              ? InputStatus.INVALID_KEY : InputStatus.REJECTED_IN_STATE;
+      rejections[variant * STATUSES + status.ordinal()].increment();
+    } else if (operandOverflow) {
+      rejections[variant * STATUSES + InputStatus.OPERAND_OVERFLOW.ordinal()].increment();
+    } else {
+      transitions[variant * KINDS + TransitionKind.of(action).ordinal()].increment();
+    }
+  }
+
+  /* Counts a run of presses of the same button that all take the given, accepted action */
+  void recordRun(int variant, int action, long presses) {
+    transitions[variant * KINDS + TransitionKind.of(action).ordinal()].add(presses);
+  }
+
+  /* Adds the time it took to input the button to the histogram of its class */
+  void recordLatency(char button, long nanos) {
+    int keyClass = TransitionTable.keyClass(button);
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1);
+    latencies[keyClass * BUCKETS + bucket].increment();
+    latencySums[keyClass].add(nanos);
+  }
+
+  /**
+   * Return the number of accepted buttons counted that made a transition of the given kind.
+   *
+   * @param smart true for buttons input under the rules of the SmartCalculator, false for those of
+   *              the SimpleCalculator
+   * @param kind  the kind of transition
+   * @return the number of such buttons counted since creation or the last reset
+   */
+  public long getTransitionCount(boolean smart, TransitionKind kind) {
+    return transitions[variant(smart) * KINDS + kind.ordinal()].sum();
+  }
+
+  /**
+   * Return the number of buttons counted that were rejected for the given reason.
+   *
+   * @param smart  true for buttons input under the rules of the SmartCalculator, false for those
+   *               of the SimpleCalculator
+   * @param status the reason the buttons were rejected
+   * @return the number of such buttons counted since creation or the last reset
+   * @throws IllegalArgumentException if the status is OK, which is not a reason for rejecting
+   */
+  public long getRejectedCount(boolean smart, InputStatus status)
+          throws IllegalArgumentException {
+    if (status.isAccepted()) {
+      throw new IllegalArgumentException("OK is not a reason for rejecting a button");
+    }
+    return rejections[variant(smart) * STATUSES + status.ordinal()].sum();
+  }
+
+  /**
+   * Return the number of operations counted whose result overflowed to 0.
+   *
+   * @param smart true for operations performed under the rules of the SmartCalculator, false for
+   *              those of the SimpleCalculator
+   * @return the number of such operations counted since creation or the last reset
+   */
+  public long getResultOverflowCount(boolean smart) {
+    return resultOverflows[variant(smart)].sum();
+  }
+
+  /**
+   * Return the histogram of how long inputting buttons of the same class as the given one took.
+   * Element i counts the inputs that took at least 2^(i-1) and less than 2^i nanoseconds, element
+   * 0 those that took no measurable time, and the last element also those that took longer.
+   *
+   * @param button any button of the class, e.g. '5' for the histogram of every digit
+   * @return a new array holding the histogram
+   */
+  public long[] getLatencyHistogram(char button) {
+    int keyClass = TransitionTable.keyClass(button);
+    long[] histogram = new long[BUCKETS];
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      histogram[bucket] = latencies[keyClass * BUCKETS + bucket].sum();
+    }
+    return histogram;
+  }
+
+  @Override
+  public long getInputCount() {
+    long count = 0;
+    for (LongAdder transition : transitions) {
+      count += transition.sum();
+    }
+    return count + getRejectedCount();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    long count = 0;
+    for (LongAdder rejection : rejections) {
+      count += rejection.sum();
+    }
+    return count;
+  }
+
+  @Override
+  public long getResultOverflowCount() {
+    return getResultOverflowCount(false) + getResultOverflowCount(true);
+  }
+
+  @Override
+  public void reset() {
+    for (LongAdder[] adders : new LongAdder[][] {transitions, rejections, resultOverflows,
+        latencies, latencySums}) {
+      for (LongAdder adder : adders) {
+        adder.reset();
+      }
+    }
+  }
+
+  /**
+   * Append every counter and histogram to the given Appendable in the Prometheus text exposition
+   * format, so that they can be served as they are from a text endpoint. Histograms list their
+   * cumulative buckets up to the last one that isn't empty.
+   *
+   * @param out the Appendable to append the report to
+   * @throws IOException if the Appendable fails to append
+   */
+  public void writeText(Appendable out) throws IOException {
+    out.append("# TYPE calculator_transitions_total counter\n");
+    for (int variant = 0; variant < VARIANTS.length; variant++) {
+      for (TransitionKind kind : TransitionKind.values()) {
+        out.append("calculator_transitions_total{variant=\"").append(VARIANTS[variant])
+                .append("\",kind=\"").append(label(kind.name())).append("\"} ")
+                .append(String.valueOf(transitions[variant * KINDS + kind.ordinal()].sum()))
+                .append('\n');
+      }
+    }
+    out.append("# TYPE calculator_rejected_total counter\n");
+    for (int variant = 0; variant < VARIANTS.length; variant++) {
+      for (InputStatus status : InputStatus.values()) {
+        if (!status.isAccepted()) {
+          out.append("calculator_rejected_total{variant=\"").append(VARIANTS[variant])
+                  .append("\",status=\"").append(label(status.name())).append("\"} ")
+                  .append(String.valueOf(rejections[variant * STATUSES + status.ordinal()].sum()))
+                  .append('\n');
+        }
+      }
+    }
+    out.append("# TYPE calculator_result_overflows_total counter\n");
+    for (int variant = 0; variant < VARIANTS.length; variant++) {
+      out.append("calculator_result_overflows_total{variant=\"").append(VARIANTS[variant])
+              .append("\"} ").append(String.valueOf(resultOverflows[variant].sum())).append('\n');
+    }
+    out.append("# TYPE calculator_input_latency_nanoseconds histogram\n");
+    for (int keyClass = 0; keyClass < TransitionTable.KEY_CLASSES; keyClass++) {
+      writeHistogram(out, keyClass);
+    }
+  }
+
+  private void writeHistogram(Appendable out, int keyClass) throws IOException {
+    long[] counts = new long[BUCKETS];
+    int last = -1;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      counts[bucket] = latencies[keyClass * BUCKETS + bucket].sum();
+      if (counts[bucket] != 0) {
+        last = bucket;
+      }
+    }
+    String name = "calculator_input_latency_nanoseconds";
+    String key = "key=\"" + KEY_CLASSES[keyClass] + "\"";
+    long cumulative = 0;
+    /* the last bucket has no upper bound, so it is only listed as +Inf */
+    for (int bucket = 0; bucket <= Math.min(last, BUCKETS - 2); bucket++) {
+      cumulative += counts[bucket];
+      out.append(name).append("_bucket{").append(key).append(",le=\"")
+              .append(String.valueOf((1L << bucket) - 1)).append("\"} ")
+              .append(String.valueOf(cumulative)).append('\n');
+    }
+    if (last == BUCKETS - 1) {
+      cumulative += counts[last];
+    }
+    out.append(name).append("_bucket{").append(key).append(",le=\"+Inf\"} ")
+            .append(String.valueOf(cumulative)).append('\n');
+    out.append(name).append("_sum{").append(key).append("} ")
+            .append(String.valueOf(latencySums[keyClass].sum())).append('\n');
+    out.append(name).append("_count{").append(key).append("} ")
+            .append(String.valueOf(cumulative)).append('\n');
+  }
+
+  @Override
+  public String getText() {
+    StringBuilder text = new StringBuilder();
+    try {
+      writeText(text);
+    } catch (IOException e) {
+      /* a StringBuilder never fails to append */
+      throw new AssertionError(e);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Register these metrics with the platform MBean server under OBJECT_NAME, so that they can be
+   * read over JMX.
+   *
+   * @return the name the metrics were registered under
+   * @throws JMException if other metrics are already registered under that name
+   */
+  public ObjectName registerMBean() throws JMException {
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    return name;
+  }
+
+  /**
+   * Unregister the metrics registered under OBJECT_NAME from the platform MBean server.
+   *
+   * @throws JMException if no metrics are registered under that name
+   */
+  public static void unregisterMBean() throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+  }
+
+  private static int variant(boolean smart) {
+    return smart ? TransitionTable.SMART : TransitionTable.SIMPLE;
+  }
+
+  private static String label(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  @Override
+  public String toString() {
+    return "CalculatorMetrics(" + getInputCount() + " inputs, " + getRejectedCount()
+            + " rejected)";
+  }
+}
@@ -0,0 +1,40 @@
+package calculator;
+
+/**
+ * This interface is the management interface of CalculatorMetrics, through which its totals and
+ * its full text report can be read over JMX.
+ */
+public interface CalculatorMetricsMBean {
+  /**
+   * Return the number of buttons counted, accepted or not.
+   *
+   * @return the number of inputs counted since creation or the last reset
+   */
+  long getInputCount();
+
+  /**
+   * Return the number of buttons counted that were rejected, for any reason.
+   *
+   * @return the number of rejected inputs counted since creation or the last reset
+   */
+  long getRejectedCount();
+
+  /**
+   * Return the number of operations counted whose result overflowed to 0.
+   *
+   * @return the number of overflowing operations counted since creation or the last reset
+   */
+  long getResultOverflowCount();
+
+  /**
+   * Print every counter and histogram in the text format of CalculatorMetrics.writeText.
+   *
+   * @return the text report
+   */
+  String getText();
+
+  /**
+   * Set every counter and histogram back to zero.
+   */
+  void reset();
+}
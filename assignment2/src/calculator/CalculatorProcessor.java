@@ -0,0 +1,276 @@
+package calculator;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class connects a calculator to a reactive stream: it subscribes to a stream of buttons,
+ * inputs each of them to the calculator, and publishes the screens of the calculator to one
+ * subscriber as it asks for them. Buttons are requested from upstream in batches, whatever the
+ * subscriber's demand, and the processor only ever holds the latest calculator: when the subscriber
+ * falls behind, the screens it had no demand for are coalesced, and the next one it gets is the
+ * latest getResult(). Memory use is therefore bounded however slow the subscriber is.
+ *
+ * <p>A screen is published after every button that changes the calculator; a button the
+ * calculator rejects is skipped, as in a KeystrokeReplay. The final screen is never dropped: when
+ * the stream of buttons completes, the subscriber gets the latest screen it hasn't seen before it
+ * is completed, waiting for demand if need be. An error upstream is passed on at once.
+ *
+ * <p>The subscriber is signalled by tasks run on the processor's executor, never by more than one
+ * of them at a time.
+ */
+public final class CalculatorProcessor implements Flow.Processor<Character, String> {
+  /* The number of buttons requested from upstream at a time by default */
+  private static final int DEFAULT_BATCH = 64;
+
+  private final Executor executor;
+
+  private final int batch;
+
+  /* Only set by the upstream signals, which the Reactive Streams rules make serial; read by
+   * the subscriber when it cancels */
+  private volatile Flow.Subscription upstream;
+
+  private int received;
+
+  /* The rest is guarded by this processor's lock */
+  private Calculator calc;
+
+  /* Whether calc holds a screen the subscriber hasn't been sent */
+  private boolean dirty;
+
+  private long demand;
+
+  private boolean done;
+
+  private Throwable failure;
+
+  private Flow.Subscriber<? super String> subscriber;
+
+  private boolean subscribed;
+
+  private boolean cancelled;
+
+  private boolean terminated;
+
+  /* Whether a drain task is queued or running */
+  private boolean draining;
+
+  /**
+   * Create a processor that inputs buttons to the given calculator and signals its subscriber on
+   * the common ForkJoinPool, requesting 64 buttons at a time.
+   *
+   * @param start the calculator the buttons are input to
+   */
+  public CalculatorProcessor(Calculator start) {
+    this(start, ForkJoinPool.commonPool(), DEFAULT_BATCH);
+  }
+
+  /**
+   * Create a processor that inputs buttons to the given calculator and signals its subscriber on
+   * the given executor, requesting the given number of buttons at a time.
+   *
+   * @param start    the calculator the buttons are input to
+   * @param executor the executor that signals the subscriber
+   * @param batch    the number of buttons requested from upstream at a time
+   * @throws IllegalArgumentException if the batch size is not positive
+   */
+  public CalculatorProcessor(Calculator start, Executor executor, int batch)
+          throws IllegalArgumentException {
+    if (batch <= 0) {
+      throw new IllegalArgumentException("Invalid batch size " + batch);
+    }
+    this.calc = Objects.requireNonNull(start);
+    this.executor = Objects.requireNonNull(executor);
+    this.batch = batch;
+  }
+
+  /**
+   * Return the calculator after every button received so far.
+   *
+   * @return the latest calculator
+   */
+  public synchronized Calculator getCalculator() {
+    return calc;
+  }
+
+  /**
+   * Subscribe to the screens of the calculator. A processor has only one subscriber; any later
+   * one is failed with an IllegalStateException.
+   *
+   * @param subscriber the receiver of the screens
+   */
+  @Override
+  public void subscribe(Flow.Subscriber<? super String> subscriber) {
+    Objects.requireNonNull(subscriber);
+    boolean first;
+    synchronized (this) {
+      first = !subscribed;
+      subscribed = true;
+      /* hold off other drains until the subscriber has its subscription */
+      draining |= first;
+    }
+    if (!first) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("A CalculatorProcessor has one subscriber"));
+      return;
+    }
+    executor.execute(() -> {
+      subscriber.onSubscribe(new Downstream());
+      synchronized (this) {
+        this.subscriber = subscriber;
+      }
+      drain();
+    });
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    Objects.requireNonNull(subscription);
+    if (upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    synchronized (this) {
+      if (cancelled) {
+        subscription.cancel();
+        return;
+      }
+    }
+    subscription.request(batch);
+  }
+
+  @Override
+  public void onNext(Character button) {
+    Objects.requireNonNull(button);
+    synchronized (this) {
+      InputResult result = calc.tryInput(button);
+      if (result.isAccepted() && !result.getCalculator().equals(calc)) {
+        calc = result.getCalculator();
+        dirty = true;
+      }
+    }
+    /* ask for more once half a batch has been used up, so buttons keep flowing */
+    if (++received >= Math.max(1, batch / 2)) {
+      upstream.request(received);
+      received = 0;
+    }
+    schedule();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    Objects.requireNonNull(throwable);
+    synchronized (this) {
+      done = true;
+      failure = throwable;
+    }
+    schedule();
+  }
+
+  @Override
+  public void onComplete() {
+    synchronized (this) {
+      done = true;
+    }
+    schedule();
+  }
+
+  /* Starts a drain task unless one is already running or there is no subscriber yet */
+  private void schedule() {
+    synchronized (this) {
+      if (draining || (subscriber == null)) {
+        return;
+      }
+      draining = true;
+    }
+    executor.execute(this::drain);
+  }
+
+  /* Sends the subscriber everything it can be sent now: an error, the latest screen if it has
+   * demand, or completion once the final screen has been sent */
+  private void drain() {
+    while (true) {
+      Calculator next = null;
+      Throwable error = null;
+      synchronized (this) {
+        if (cancelled || terminated) {
+          draining = false;
+          return;
+        } else if (failure != null) {
+          error = failure;
+          terminated = true;
+        } else if (dirty && (demand > 0)) {
+          next = calc;
+          dirty = false;
+          if (demand != Long.MAX_VALUE) {
+            demand--;
+          }
+        } else if (done && !dirty) {
+          terminated = true;
+        } else {
+          draining = false;
+          return;
+        }
+      }
+      /* the screen is only rendered for the calculators that are actually sent */
+      if (next != null) {
+        subscriber.onNext(next.getResult());
+      } else if (error != null) {
+        subscriber.onError(error);
+      } else {
+        subscriber.onComplete();
+      }
+    }
+  }
+
+  private void cancelUpstream() {
+    Flow.Subscription subscription = upstream;
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  /* The subscription handed to the subscriber */
+  private final class Downstream implements Flow.Subscription {
+    @Override
+    public void request(long n) {
+      synchronized (CalculatorProcessor.this) {
+        if (n <= 0) {
+          failure = new IllegalArgumentException("Invalid demand " + n);
+        } else {
+          /* demand that adds up past Long.MAX_VALUE is unbounded */
+          demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+        }
+      }
+      if (n <= 0) {
+        cancelUpstream();
+      }
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (CalculatorProcessor.this) {
+        cancelled = true;
+      }
+      cancelUpstream();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CalculatorProcessor(" + calc.getResult() + ", demand " + demand + ")";
+  }
+}
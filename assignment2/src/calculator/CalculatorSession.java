@@ -0,0 +1,198 @@
+package calculator;
+
+import java.util.Objects;
+
+/**
+ * This class represents a mutable calculator session. A session holds the same state as a
+ * SimpleCalculator or SmartCalculator, packed into primitive fields by the StateCodec, and follows
+ * exactly the same rules when a button is input, but it updates itself in place instead of
+ * returning a new calculator, so inputting buttons and printing the screen into a caller-supplied
+ * StringBuilder creates no objects. Sessions can be created from, and turned back into, the
+ * immutable calculators.
+ *
+ * <p>A session is not safe to use from several threads at once without outside synchronization.
+ */
+public final class CalculatorSession {
+  /* The calculator this session was last loaded from; used as the factory when the session is
+   * turned back into an immutable calculator, so that it keeps its class and state cache */
+  private AbstractCalculator origin;
+
+  /* The state of the session, packed by the StateCodec */
+  private long operands;
+
+  private int meta;
+
+  /**
+   * Create a session that starts in the same state as the given calculator and follows the same
+   * rules for every later input.
+   *
+   * @param start the calculator whose state and rules the session starts with
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public CalculatorSession(Calculator start) throws IllegalArgumentException {
+    load(start);
+  }
+
+  /**
+   * Replace the whole state of this session, and the rules it follows, by those of the given
+   * calculator.
+   *
+   * @param calc the calculator to copy the state and rules of
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public void load(Calculator calc) throws IllegalArgumentException {
+    if (!(calc instanceof AbstractCalculator)) {
+      throw new IllegalArgumentException("Can't create a session from " + calc);
+    }
+    this.origin = (AbstractCalculator) calc;
+    this.operands = StateCodec.operands(calc);
+    this.meta = StateCodec.meta(calc);
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of this session. The calculator is
+   * of the same class as the one the session was loaded from, and shares its state cache.
+   *
+   * @return a calculator in the same state as this session
+   */
+  public Calculator toCalculator() {
+    return StateCodec.decode(origin, operands, meta);
+  }
+
+  /**
+   * Input a button to this session, updating it in place exactly as the input(char) method of
+   * the calculator it was loaded from would. A button that calculator would reject leaves the
+   * session unchanged.
+   *
+   * @param button the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   */
+  public boolean input(char button) {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return apply(button, null);
+    }
+    long start = System.nanoTime();
+    boolean accepted = apply(button, metrics);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    return accepted;
+  }
+
+  /* Inputs a button in the same way as input(char), for buttons that are being replayed rather
+   * than pressed, so they aren't counted in the CalculatorMetrics */
+  boolean replay(char button) {
+    return apply(button, null);
+  }
+
+  /* The input path of input(char); the button is counted in the given metrics, if any */
+  private boolean apply(char button, CalculatorMetrics metrics) {
+    if (metrics != null) {
+      metrics.record(operands, meta, button);
+    }
+    int next = StateCodec.nextMeta(operands, meta, button);
+    if (StateCodec.isRejected(next)) {
+      return false;
+    }
+    operands = StateCodec.nextOperands(operands, meta, button);
+    meta = next;
+    return true;
+  }
+
+  /**
+   * Input a button to this session in the same way as input(char), but return why a rejected
+   * button wasn't accepted instead of only whether it was.
+   *
+   * @param button the input to the session, representing a single button on a real calculator
+   * @return OK if the button was accepted, otherwise the reason it was rejected
+   */
+  public InputStatus tryInput(char button) {
+    if (input(button)) {
+      return InputStatus.OK;
+    }
+    return TransitionTable.status(StateCodec.variant(meta), StateCodec.flags(meta),
+            StateCodec.firstOperand(operands), StateCodec.secondOperand(operands), button);
+  }
+
+  /**
+   * Input a whole sequence of buttons to this session, one after the other. Inputting stops at
+   * the first button the session rejects, which leaves the session in the state right before it.
+   *
+   * @param buttons the inputs to the session, in the order the buttons are pressed
+   * @return the position of the first rejected button, or -1 if every button was accepted
+   */
+  public int input(CharSequence buttons) {
+    for (int i = 0; i < buttons.length(); i++) {
+      if (!input(buttons.charAt(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Input part of an array of buttons to this session, in the same way as input(CharSequence).
+   *
+   * @param buttons the array holding the inputs to the session
+   * @param offset  the position in the array of the first input
+   * @param length  the number of inputs to provide
+   * @return the position in the array of the first rejected button, or -1 if every button was
+   *     accepted
+   * @throws IndexOutOfBoundsException if the range is not inside the array
+   */
+  public int input(char[] buttons, int offset, int length) throws IndexOutOfBoundsException {
+    Objects.checkFromIndexSize(offset, length, buttons.length);
+    for (int i = offset; i < offset + length; i++) {
+      if (!input(buttons[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Append the current screen of this session to the given StringBuilder; this is the same text
+   * that getResult() would return.
+   *
+   * @param screen the StringBuilder to append the screen to
+   */
+  public void render(StringBuilder screen) {
+    StateCodec.render(operands, meta, screen);
+  }
+
+  /**
+   * Print the current screen of this session, as the getResult() method of an immutable
+   * calculator in the same state would.
+   *
+   * @return a string containing the contents of the session's screen
+   */
+  public String getResult() {
+    StringBuilder screen = new StringBuilder();
+    render(screen);
+    return screen.toString();
+  }
+
+  /* The packed operands of this session, for compiled scripts */
+  long packedOperands() {
+    return operands;
+  }
+
+  /* The packed meta word of this session, for compiled scripts */
+  int packedMeta() {
+    return meta;
+  }
+
+  /* Replaces the state of this session by a packed state following the same rules, for compiled
+   * scripts; a rejected mark on the meta word is dropped */
+  void load(long operands, int meta) {
+    this.operands = operands;
+    this.meta = StateCodec.unmarked(meta);
+  }
+
+  @Override
+  public String toString() {
+    return getResult();
+  }
+}
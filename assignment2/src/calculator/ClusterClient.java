@@ -0,0 +1,200 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class sends buttons to the calculator sessions of a cluster of ClusterNodes, routing every
+ * request straight to the node owning the session by its own copy of the HashRing, so a request
+ * takes one hop. When the cluster changes, the first node that no longer owns a session replies
+ * with its newer ring, which the client adopts before retrying; a node that is busy taking over a
+ * session, or can't be reached, is retried after a short wait, with a ring fetched from another
+ * node in the latter case. A button is never sent twice, though: if the connection fails once it
+ * has been sent, the node may or may not have input it, so the failure is reported instead.
+ *
+ * <p>A client keeps one connection to every node it has talked to, and may be used by any number
+ * of threads at once, one request at a time.
+ */
+public final class ClusterClient implements Closeable {
+  /* The most times a request is sent before giving up */
+  private static final int MAX_ATTEMPTS = 500;
+
+  private HashRing ring;
+
+  private final Map<String, ClusterConnection> connections = new HashMap<>();
+
+  /* The screen read by the last request for one */
+  private String screen;
+
+  private boolean closed;
+
+  /**
+   * Create a client of the cluster of the node at the given address, fetching the ring from it.
+   *
+   * @param seed the address of any node of the cluster
+   * @throws IOException if the node can't be reached
+   */
+  public ClusterClient(String seed) throws IOException {
+    this.ring = fetchRing(seed);
+  }
+
+  /**
+   * Return the ring this client routes by.
+   *
+   * @return the newest ring this client has seen
+   */
+  public synchronized HashRing getRing() {
+    return ring;
+  }
+
+  /**
+   * Input a button to a session, which its node adds in the starting state first if it doesn't
+   * hold it yet.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   * @throws IOException           if no node could take the request, or the connection to the
+   *                               node failed after the button was sent, in which case the
+   *                               button may or may not have been input
+   * @throws IllegalStateException if the client is closed
+   */
+  public synchronized boolean input(long sessionId, char button)
+          throws IOException, IllegalStateException {
+    return request(ClusterConnection.INPUT, sessionId, button) == ClusterConnection.ACCEPTED;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the cluster doesn't hold it
+   * @throws IOException           if no node could take the request
+   * @throws IllegalStateException if the client is closed
+   */
+  public synchronized String getResult(long sessionId) throws IOException, IllegalStateException {
+    return (request(ClusterConnection.RESULT, sessionId, '\0') == ClusterConnection.OK)
+            ? screen : null;
+  }
+
+  /**
+   * Close the connections to every node.
+   *
+   * @throws IOException if a connection can't be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    List<ClusterConnection> open = new ArrayList<>(connections.values());
+    connections.clear();
+    for (ClusterConnection connection : open) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ClusterClient(" + ring + ")";
+  }
+
+  /* Sends a request to the node owning the session until a node answers it, and returns the
+   * reply */
+  private int request(int kind, long sessionId, char button) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("The client is closed");
+    }
+    IOException failure = null;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      String node = ring.nodeFor(sessionId);
+      boolean sent = false;
+      try {
+        ClusterConnection connection = connection(node);
+        sent = true;
+        connection.out.writeByte(kind);
+        connection.out.writeLong(sessionId);
+        if (kind == ClusterConnection.INPUT) {
+          connection.out.writeChar(button);
+        }
+        connection.out.flush();
+        int reply = connection.in.readByte();
+        if (reply == ClusterConnection.MOVED) {
+          HashRing newer = ClusterConnection.readRing(connection.in);
+          if (newer.getEpoch() > ring.getEpoch()) {
+            ring = newer;
+            continue;
+          }
+          /* the node hasn't adopted this client's ring yet */
+        } else if (reply == ClusterConnection.OK) {
+          screen = connection.in.readUTF();
+          return reply;
+        } else if (reply != ClusterConnection.RETRY) {
+          return reply;
+        }
+      } catch (IOException e) {
+        failure = e;
+        drop(node);
+        refreshRing(node);
+        if (sent && (kind == ClusterConnection.INPUT)) {
+          /* the node may have input the button before failing, so sending it again could input
+           * it twice */
+          throw new IOException("The connection to " + node + " failed after a button was sent"
+                  + " to session " + sessionId, e);
+        }
+      }
+      ClusterNode.backOff(attempt);
+    }
+    throw new IOException("No node took the request for session " + sessionId, failure);
+  }
+
+  private ClusterConnection connection(String node) throws IOException {
+    ClusterConnection connection = connections.get(node);
+    if (connection == null) {
+      connection = new ClusterConnection(node);
+      connections.put(node, connection);
+    }
+    return connection;
+  }
+
+  private void drop(String node) {
+    ClusterConnection connection = connections.remove(node);
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        /* the connection is dropped either way */
+        return;
+      }
+    }
+  }
+
+  /* Fetches the ring from any node but the one that failed, keeping it if it is newer */
+  private void refreshRing(String failed) {
+    for (String node : ring.getNodes()) {
+      if (!node.equals(failed)) {
+        try {
+          HashRing fetched = fetchRing(node);
+          if (fetched.getEpoch() > ring.getEpoch()) {
+            ring = fetched;
+          }
+          return;
+        } catch (IOException e) {
+          /* try the next node */
+          continue;
+        }
+      }
+    }
+  }
+
+  private static HashRing fetchRing(String node) throws IOException {
+    try (ClusterConnection connection = new ClusterConnection(node)) {
+      connection.out.writeByte(ClusterConnection.RING);
+      connection.out.flush();
+      return ClusterConnection.readRing(connection.in);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection between a cluster client or node and a cluster node, over which requests are sent
+ * one at a time, each followed by its reply. The request and reply codes are shared by both ends.
+ * A connection is used by one thread at a time, which holds its lock for the whole exchange.
+ */
+final class ClusterConnection implements Closeable {
+  /* Requests: input a button, read a screen, read the ring, adopt a newer ring, hand over one
+   * session, hand over a batch of sessions, and pull every session the node now owns */
+  static final int INPUT = 1;
+
+  static final int RESULT = 2;
+
+  static final int RING = 3;
+
+  static final int SET_RING = 4;
+
+  static final int TAKE = 5;
+
+  static final int TAKE_BATCH = 6;
+
+  static final int MIGRATE = 7;
+
+  /* Replies */
+  static final int ACCEPTED = 1;
+
+  static final int REJECTED = 2;
+
+  static final int MOVED = 3;
+
+  static final int RETRY = 4;
+
+  static final int NONE = 5;
+
+  static final int OK = 6;
+
+  /* The most sessions handed over in one batch */
+  static final int MAX_BATCH = 1024;
+
+  final DataInputStream in;
+
+  final DataOutputStream out;
+
+  private final Socket socket;
+
+  /* Connects to the node at the given address */
+  ClusterConnection(String node) throws IOException {
+    this(new Socket(HashRing.host(node), HashRing.port(node)));
+  }
+
+  /* Wraps a socket accepted by a node */
+  ClusterConnection(Socket socket) throws IOException {
+    this.socket = socket;
+    socket.setTcpNoDelay(true);
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  static void writeRing(DataOutputStream out, HashRing ring) throws IOException {
+    out.writeLong(ring.getEpoch());
+    out.writeInt(ring.getNodes().size());
+    for (String node : ring.getNodes()) {
+      out.writeUTF(node);
+    }
+  }
+
+  static HashRing readRing(DataInputStream in) throws IOException {
+    long epoch = in.readLong();
+    int count = in.readInt();
+    if ((count <= 0) || (count > 0xFFFF)) {
+      throw new IOException("Damaged ring of " + count + " nodes");
+    }
+    List<String> nodes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      nodes.add(in.readUTF());
+    }
+    try {
+      return new HashRing(epoch, nodes);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Damaged ring", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
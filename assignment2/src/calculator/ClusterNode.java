@@ -0,0 +1,697 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is one node of a cluster of calculator sessions, holding the sessions a HashRing
+ * assigns to it in a SessionRegistry and serving ClusterClients over sockets. Clients route every
+ * request to the node owning the session by their own copy of the ring, so a request takes one
+ * hop; a node that doesn't own the session replies with its ring instead, and the client retries
+ * with it if it is newer.
+ *
+ * <p>When a node joins or leaves, the node making the change sends the old and new rings to
+ * every node, then has every node of the new ring pull the sessions it gained from their old
+ * owners, in batches of packed states. Buttons keep flowing meanwhile: a node asked for a session
+ * it gained but hasn't pulled yet pulls that session first. A session is only removed from its old
+ * owner once the new owner has acknowledged it, and the old owner answers for it with the new
+ * ring from the moment it adopted that ring, so a session is never lost or served by two nodes.
+ *
+ * <p>Changes of the cluster are made one at a time. A node only adopts a new ring if it routes by
+ * the ring the change was made from, and has pulled every session of the change before; a node
+ * that is behind makes the change wait. Every change asks the first node of the ring it was made
+ * from first, so of two changes made from the same ring, only one is adopted there, and the other
+ * is made again from the ring that node adopted.
+ *
+ * <p>A node serves every connection on a thread of its own, and may be used by any number of
+ * threads at once.
+ */
+public final class ClusterNode implements Closeable {
+  /* The most times a node that is behind is asked to adopt a ring before giving up */
+  private static final int MAX_ATTEMPTS = 1000;
+
+  private final SessionRegistry sessions;
+
+  private final String address;
+
+  private final ServerSocket server;
+
+  private HashRing ring;
+
+  /* The ring before the last change while sessions are still being pulled from its nodes, or
+   * null once every session this node gained has been pulled */
+  private HashRing previous;
+
+  /* The nodes of the previous ring that sessions still have to be pulled from */
+  private final Set<String> pending = new HashSet<>();
+
+  /* Connections to other nodes, for pulling sessions; each is locked for a whole exchange, and a
+   * node never waits for a connection's lock while holding its own */
+  private final Map<String, ClusterConnection> peers = new HashMap<>();
+
+  private final Set<ClusterConnection> served = new HashSet<>();
+
+  /* Whether this node is joining a cluster that may already route to it */
+  private boolean joining;
+
+  private boolean closed;
+
+  /**
+   * Create a node on its own, whose sessions start as the given calculator, serving on the given
+   * port of the loopback address.
+   *
+   * @param start the calculator every session starts as
+   * @param port  the port to serve on, or 0 for any free port
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IOException              if the port can't be listened on
+   */
+  public ClusterNode(Calculator start, int port) throws IllegalArgumentException, IOException {
+    this(start, "localhost", port);
+  }
+
+  /**
+   * Create a node on its own, whose sessions start as the given calculator, serving on the given
+   * host and port, which together make up its address in the ring.
+   *
+   * @param start the calculator every session starts as
+   * @param host  the host name or address to serve on, as other nodes and clients reach it
+   * @param port  the port to serve on, or 0 for any free port
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IOException              if the port can't be listened on
+   */
+  public ClusterNode(Calculator start, String host, int port)
+          throws IllegalArgumentException, IOException {
+    this.sessions = new SessionRegistry(start);
+    this.server = new ServerSocket(port, 50, InetAddress.getByName(host));
+    this.address = host + ":" + server.getLocalPort();
+    this.ring = new HashRing(Collections.singletonList(address));
+    Thread thread = new Thread(this::accept, "calculator-cluster-accept");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Return the address of this node.
+   *
+   * @return the host and port of this node, separated by a colon
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * Return the ring this node routes by.
+   *
+   * @return the newest ring this node has adopted
+   */
+  public synchronized HashRing getRing() {
+    return ring;
+  }
+
+  /**
+   * Return whether this node is still pulling sessions it gained in the last change of the
+   * cluster.
+   *
+   * @return true if sessions are still being pulled
+   */
+  public synchronized boolean isMigrating() {
+    return previous != null;
+  }
+
+  /**
+   * Return the number of sessions held by this node.
+   *
+   * @return the number of sessions
+   */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Print the current screen of every session held by this node.
+   *
+   * @return a new map from the id of every session held to its screen
+   */
+  public synchronized Map<Long, String> getResults() {
+    return sessions.getResults();
+  }
+
+  /**
+   * Join the cluster of the node at the given address, returning once every session this node
+   * takes over has been pulled.
+   *
+   * @param seed the address of any node of the cluster
+   * @throws IOException           if a node of the cluster can't be reached
+   * @throws IllegalStateException if this node is not on its own and empty, or is closed
+   */
+  public void join(String seed) throws IOException, IllegalStateException {
+    synchronized (this) {
+      checkUsable();
+      if (joining || (ring.getNodes().size() != 1) || (sessions.size() != 0)) {
+        throw new IllegalStateException("Only an empty node on its own can join a cluster");
+      }
+      joining = true;
+    }
+    try {
+      HashRing current;
+      try (ClusterConnection seedConnection = new ClusterConnection(seed)) {
+        seedConnection.out.writeByte(ClusterConnection.RING);
+        seedConnection.out.flush();
+        current = ClusterConnection.readRing(seedConnection.in);
+      }
+      while (current != null) {
+        current = change(current, current.with(address));
+      }
+    } finally {
+      synchronized (this) {
+        joining = false;
+      }
+    }
+  }
+
+  /**
+   * Leave the cluster, returning once every session of this node has been pulled by the others.
+   * The node then holds no sessions, and answers every request with the new ring until it is
+   * closed.
+   *
+   * @throws IOException           if a node of the cluster can't be reached
+   * @throws IllegalStateException if this node is on its own, or is closed
+   */
+  public void leave() throws IOException, IllegalStateException {
+    HashRing current;
+    synchronized (this) {
+      checkUsable();
+      if (!ring.contains(address) || (ring.getNodes().size() == 1)) {
+        throw new IllegalStateException("A node on its own can't leave");
+      }
+      current = ring;
+    }
+    while (current != null) {
+      current = change(current, current.without(address));
+    }
+  }
+
+  /**
+   * Stop serving, and close every connection.
+   *
+   * @throws IOException if the server socket can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    List<ClusterConnection> open;
+    synchronized (this) {
+      closed = true;
+      open = new ArrayList<>(served);
+      open.addAll(peers.values());
+      peers.clear();
+    }
+    server.close();
+    for (ClusterConnection connection : open) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ClusterNode(" + address + ", " + size() + " sessions)";
+  }
+
+  /* Sends the rings to every node of either, then has every node of the new ring pull the
+   * sessions it gained. Returns null once done, or, having changed nothing, the ring the first
+   * node of the ring before adopted instead, if another change came first */
+  private HashRing change(HashRing before, HashRing next) throws IOException {
+    /* the nodes of the ring before go in the order of their addresses, so that every change asks
+     * the same node first, with the joining node right after that one, as the cluster starts
+     * routing to it from then on */
+    List<String> everyNode = new ArrayList<>(before.getNodes());
+    for (String node : next.getNodes()) {
+      if (!before.contains(node)) {
+        everyNode.add(1, node);
+      }
+    }
+    boolean first = true;
+    for (String node : everyNode) {
+      HashRing newer = setRing(node, before, next);
+      if ((newer != null) && first) {
+        return newer;
+      }
+      if (newer != null) {
+        throw new IOException("Another change of the cluster reached " + node + " first");
+      }
+      first = false;
+    }
+    for (String node : next.getNodes()) {
+      if (node.equals(address)) {
+        migrate();
+      } else {
+        try (ClusterConnection connection = new ClusterConnection(node)) {
+          connection.out.writeByte(ClusterConnection.MIGRATE);
+          connection.out.flush();
+          expect(connection, ClusterConnection.OK);
+        }
+      }
+    }
+    return null;
+  }
+
+  /* Has a node adopt the next ring, waiting while it is behind; returns null once it has, or
+   * the ring it routes by if that is not the ring before */
+  private HashRing setRing(String node, HashRing before, HashRing next) throws IOException {
+    if (node.equals(address)) {
+      for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+        synchronized (this) {
+          int reply = adopt(before, next);
+          if (reply != ClusterConnection.RETRY) {
+            return (reply == ClusterConnection.OK) ? null : ring;
+          }
+        }
+        backOff(attempt);
+      }
+    } else {
+      try (ClusterConnection connection = new ClusterConnection(node)) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+          connection.out.writeByte(ClusterConnection.SET_RING);
+          ClusterConnection.writeRing(connection.out, before);
+          ClusterConnection.writeRing(connection.out, next);
+          connection.out.flush();
+          int reply = connection.in.readByte();
+          if (reply == ClusterConnection.OK) {
+            return null;
+          }
+          if (reply == ClusterConnection.MOVED) {
+            return ClusterConnection.readRing(connection.in);
+          }
+          if (reply != ClusterConnection.RETRY) {
+            throw new IOException("Unexpected reply " + reply);
+          }
+          backOff(attempt);
+        }
+      }
+    }
+    throw new IOException("The node " + node + " didn't catch up with the cluster");
+  }
+
+  /* Routes by the next ring from now on, pulling the sessions it gained from the nodes of the
+   * ring before, if this node routes by the ring before or is joining the cluster on its own.
+   * Returns OK if it does, MOVED if this node routes by another ring, or RETRY if it is behind,
+   * or still pulling the sessions it gained in the last change */
+  private int adopt(HashRing before, HashRing next) {
+    boolean alone = (ring.getNodes().size() == 1) && !before.contains(address);
+    if (!alone) {
+      if ((ring.getEpoch() > before.getEpoch())
+              || ((ring.getEpoch() == before.getEpoch()) && !ring.equals(before))) {
+        return ClusterConnection.MOVED;
+      }
+      if ((ring.getEpoch() < before.getEpoch()) || (previous != null)) {
+        return ClusterConnection.RETRY;
+      }
+    }
+    ring = next;
+    pending.clear();
+    if (next.contains(address)) {
+      pending.addAll(before.getNodes());
+      pending.remove(address);
+      /* a node keeps its points on the ring, so one that was already there only gains sessions
+       * from the nodes that left */
+      if (before.contains(address)) {
+        pending.removeAll(next.getNodes());
+      }
+    }
+    previous = pending.isEmpty() ? null : before;
+    return ClusterConnection.OK;
+  }
+
+  /* Pulls the sessions this node gained from every node they may still be held by */
+  private void migrate() throws IOException {
+    List<String> sources;
+    long epoch;
+    synchronized (this) {
+      sources = new ArrayList<>(pending);
+      epoch = ring.getEpoch();
+    }
+    long[] ids = new long[ClusterConnection.MAX_BATCH];
+    long[] operands = new long[ClusterConnection.MAX_BATCH];
+    int[] metas = new int[ClusterConnection.MAX_BATCH];
+    for (String source : sources) {
+      int attempts = 0;
+      while (true) {
+        ClusterConnection peer = peer(source);
+        int count;
+        try {
+          synchronized (peer) {
+            peer.out.writeByte(ClusterConnection.TAKE_BATCH);
+            peer.out.writeLong(epoch);
+            peer.out.writeUTF(address);
+            peer.out.flush();
+            int reply = peer.in.readByte();
+            count = (reply == ClusterConnection.OK) ? peer.in.readInt() : -1;
+            if ((count < -1) || (count > ClusterConnection.MAX_BATCH)) {
+              throw new IOException("Damaged batch of " + count + " sessions");
+            }
+            for (int i = 0; i < count; i++) {
+              ids[i] = peer.in.readLong();
+              operands[i] = peer.in.readLong();
+              metas[i] = peer.in.readInt();
+            }
+            synchronized (this) {
+              for (int i = 0; i < count; i++) {
+                sessions.putIfAbsent(ids[i], operands[i], metas[i]);
+              }
+              if (count == 0) {
+                pending.remove(source);
+                if (pending.isEmpty()) {
+                  previous = null;
+                }
+              }
+            }
+            if (count > 0) {
+              peer.out.writeByte(ClusterConnection.OK);
+              peer.out.flush();
+            }
+          }
+        } catch (IOException e) {
+          dropPeer(source, peer);
+          throw e;
+        }
+        if (count == 0) {
+          break;
+        }
+        if (count < 0) {
+          /* the source hasn't adopted the ring yet */
+          backOff(attempts++);
+        }
+      }
+    }
+  }
+
+  /* Returns the node a session this node gained still has to be pulled from, or null if the
+   * session is served from here */
+  private String sourceOf(long sessionId) {
+    if ((previous == null) || sessions.contains(sessionId)) {
+      return null;
+    }
+    String source = previous.nodeFor(sessionId);
+    return pending.contains(source) ? source : null;
+  }
+
+  /* Runs an action on a session this node owns, pulling it from its old owner first if needed,
+   * or replies with the ring if the node doesn't own the session */
+  private void withSession(long sessionId, DataOutputStream out, Action action)
+          throws IOException {
+    while (true) {
+      String source;
+      long epoch;
+      synchronized (this) {
+        if (joining && (ring.getNodes().size() == 1)) {
+          /* the cluster may already route to this node by a ring it hasn't adopted yet */
+          out.writeByte(ClusterConnection.RETRY);
+          return;
+        }
+        if (!ring.nodeFor(sessionId).equals(address)) {
+          out.writeByte(ClusterConnection.MOVED);
+          ClusterConnection.writeRing(out, ring);
+          return;
+        }
+        source = sourceOf(sessionId);
+        if (source == null) {
+          action.run();
+          return;
+        }
+        epoch = ring.getEpoch();
+      }
+      ClusterConnection peer = peer(source);
+      try {
+        synchronized (peer) {
+          synchronized (this) {
+            if ((ring.getEpoch() != epoch) || (sourceOf(sessionId) == null)) {
+              /* the ring changed, or the session was pulled meanwhile */
+              continue;
+            }
+          }
+          peer.out.writeByte(ClusterConnection.TAKE);
+          peer.out.writeLong(epoch);
+          peer.out.writeLong(sessionId);
+          peer.out.flush();
+          int reply = peer.in.readByte();
+          if (reply == ClusterConnection.RETRY) {
+            out.writeByte(ClusterConnection.RETRY);
+            return;
+          }
+          if (reply == ClusterConnection.OK) {
+            long operands = peer.in.readLong();
+            int meta = peer.in.readInt();
+            synchronized (this) {
+              sessions.putIfAbsent(sessionId, operands, meta);
+            }
+            peer.out.writeByte(ClusterConnection.OK);
+            peer.out.flush();
+          } else if (reply != ClusterConnection.NONE) {
+            throw new IOException("Unexpected reply " + reply);
+          }
+          synchronized (this) {
+            action.run();
+            return;
+          }
+        }
+      } catch (IOException e) {
+        dropPeer(source, peer);
+        throw e;
+      }
+    }
+  }
+
+  /* Hands over a session to the node now owning it, once that node acknowledges it */
+  private void take(ClusterConnection connection, long epoch, long sessionId)
+          throws IOException {
+    long operands;
+    int meta;
+    synchronized (this) {
+      Calculator calc = (epoch > ring.getEpoch()) || ring.nodeFor(sessionId).equals(address)
+              ? null : sessions.toCalculator(sessionId);
+      if (calc == null) {
+        connection.out.writeByte((epoch > ring.getEpoch()) ? ClusterConnection.RETRY
+                : ClusterConnection.NONE);
+        return;
+      }
+      operands = StateCodec.operands(calc);
+      meta = StateCodec.meta(calc);
+    }
+    connection.out.writeByte(ClusterConnection.OK);
+    connection.out.writeLong(operands);
+    connection.out.writeInt(meta);
+    connection.out.flush();
+    expect(connection, ClusterConnection.OK);
+    synchronized (this) {
+      sessions.remove(sessionId);
+    }
+  }
+
+  /* Hands over a batch of the sessions the given node now owns, once that node acknowledges
+   * them */
+  private void takeBatch(ClusterConnection connection, long epoch, String node)
+          throws IOException {
+    long[] ids = new long[ClusterConnection.MAX_BATCH];
+    long[] operands = new long[ClusterConnection.MAX_BATCH];
+    int[] metas = new int[ClusterConnection.MAX_BATCH];
+    int[] count = new int[1];
+    synchronized (this) {
+      if (epoch > ring.getEpoch()) {
+        connection.out.writeByte(ClusterConnection.RETRY);
+        return;
+      }
+      HashRing current = ring;
+      sessions.forEach((sessionId, packedOperands, meta) -> {
+        if ((count[0] < ids.length) && current.nodeFor(sessionId).equals(node)) {
+          ids[count[0]] = sessionId;
+          operands[count[0]] = packedOperands;
+          metas[count[0]++] = meta;
+        }
+      });
+    }
+    connection.out.writeByte(ClusterConnection.OK);
+    connection.out.writeInt(count[0]);
+    for (int i = 0; i < count[0]; i++) {
+      connection.out.writeLong(ids[i]);
+      connection.out.writeLong(operands[i]);
+      connection.out.writeInt(metas[i]);
+    }
+    if (count[0] > 0) {
+      connection.out.flush();
+      expect(connection, ClusterConnection.OK);
+      synchronized (this) {
+        for (int i = 0; i < count[0]; i++) {
+          sessions.remove(ids[i]);
+        }
+      }
+    }
+  }
+
+  private void accept() {
+    while (true) {
+      ClusterConnection connection;
+      try {
+        Socket socket = server.accept();
+        connection = new ClusterConnection(socket);
+      } catch (IOException e) {
+        /* the server socket was closed */
+        return;
+      }
+      boolean open;
+      synchronized (this) {
+        open = !closed;
+        if (open) {
+          served.add(connection);
+        }
+      }
+      if (!open) {
+        try {
+          connection.close();
+        } catch (IOException e) {
+          /* the connection is dropped either way */
+        }
+        return;
+      }
+      Thread thread = new Thread(() -> serve(connection), "calculator-cluster-serve");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /* Answers the requests on a connection until it is closed */
+  private void serve(ClusterConnection connection) {
+    try {
+      while (true) {
+        DataOutputStream out = connection.out;
+        int request = connection.in.readByte();
+        if (request == ClusterConnection.INPUT) {
+          long sessionId = connection.in.readLong();
+          char button = connection.in.readChar();
+          withSession(sessionId, out, () -> out.writeByte(sessions.input(sessionId, button)
+                  ? ClusterConnection.ACCEPTED : ClusterConnection.REJECTED));
+        } else if (request == ClusterConnection.RESULT) {
+          long sessionId = connection.in.readLong();
+          withSession(sessionId, out, () -> {
+            String screen = sessions.getResult(sessionId);
+            if (screen == null) {
+              out.writeByte(ClusterConnection.NONE);
+            } else {
+              out.writeByte(ClusterConnection.OK);
+              out.writeUTF(screen);
+            }
+          });
+        } else if (request == ClusterConnection.RING) {
+          ClusterConnection.writeRing(out, getRing());
+        } else if (request == ClusterConnection.SET_RING) {
+          HashRing before = ClusterConnection.readRing(connection.in);
+          HashRing next = ClusterConnection.readRing(connection.in);
+          HashRing current;
+          int reply;
+          synchronized (this) {
+            reply = adopt(before, next);
+            current = ring;
+          }
+          out.writeByte(reply);
+          if (reply == ClusterConnection.MOVED) {
+            ClusterConnection.writeRing(out, current);
+          }
+        } else if (request == ClusterConnection.TAKE) {
+          take(connection, connection.in.readLong(), connection.in.readLong());
+        } else if (request == ClusterConnection.TAKE_BATCH) {
+          takeBatch(connection, connection.in.readLong(), connection.in.readUTF());
+        } else if (request == ClusterConnection.MIGRATE) {
+          migrate();
+          out.writeByte(ClusterConnection.OK);
+        } else {
+          throw new IOException("Unknown request " + request);
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      /* the other end closed the connection, it failed, or this node was closed */
+      return;
+    } finally {
+      synchronized (this) {
+        served.remove(connection);
+      }
+      try {
+        connection.close();
+      } catch (IOException e) {
+        /* nothing more can be done about this connection */
+      }
+    }
+  }
+
+  /* Returns the connection to another node, connecting first if there is none */
+  private ClusterConnection peer(String node) throws IOException {
+    synchronized (this) {
+      checkUsable();
+      ClusterConnection peer = peers.get(node);
+      if (peer != null) {
+        return peer;
+      }
+    }
+    ClusterConnection peer = new ClusterConnection(node);
+    synchronized (this) {
+      ClusterConnection raced = peers.putIfAbsent(node, peer);
+      if (raced == null) {
+        return peer;
+      }
+    }
+    peer.close();
+    return peer(node);
+  }
+
+  private void dropPeer(String node, ClusterConnection peer) {
+    synchronized (this) {
+      peers.remove(node, peer);
+    }
+    try {
+      peer.close();
+    } catch (IOException e) {
+      /* the connection is dropped either way */
+      return;
+    }
+  }
+
+  private void checkUsable() throws IllegalStateException {
+    if (closed) {
+      throw new IllegalStateException("The node is closed");
+    }
+  }
+
+  private static void expect(ClusterConnection connection, int reply) throws IOException {
+    int actual = connection.in.readByte();
+    if (actual != reply) {
+      throw new IOException("Unexpected reply " + actual);
+    }
+  }
+
+  /* Waits a little longer after every failed attempt */
+  static void backOff(int attempts) throws InterruptedIOException {
+    try {
+      Thread.sleep(Math.min(1 + attempts, 20));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+
+  /* Something done to a session, which writes the reply to the request */
+  private interface Action {
+    void run() throws IOException;
+  }
+}
@@ -0,0 +1,322 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class represents a calculator that can also evaluate whole expressions at once, for
+ * clients that already hold the full text of an expression instead of single buttons. An
+ * expression is parsed once into a compact compiled form, and the compiled forms of recently
+ * evaluated expressions are kept in a cache shared by the calculator and every calculator created
+ * from it by input; evaluating an expression found in the cache creates no objects.
+ *
+ * <p>By default, operations are performed from left to right, and the calculator follows exactly
+ * the same rules as a SimpleCalculator: it accepts and rejects the same buttons, shows the same
+ * screens, and an expression evaluates to what a SimpleCalculator shows after it and '='. In
+ * precedence mode, multiplication is performed before addition and subtraction instead: a '*'
+ * after "2+3" keeps the addition pending, so the calculator shows "2+3*", and only performs it
+ * once the term after it is complete, as in "2+3*4=" giving 14. Any operation whose result exceeds
+ * the range of an int gives 0, as in the SimpleCalculator.
+ */
+public final class ExpressionCalculator implements Calculator {
+  /* The number of compiled expressions cached by default */
+  private static final int DEFAULT_CAPACITY = 256;
+
+  /* Flags of a state holding only a result */
+  private static final int RESULT_ONLY = TransitionTable.OPERATOR_EMPTY
+          | TransitionTable.SECOND_EMPTY | TransitionTable.RESULT;
+
+  private final boolean precedence;
+
+  private final TextCache<int[]> cache;
+
+  /* The state of the term being typed, packed by the StateCodec and following the rules of a
+   * SimpleCalculator; in left-to-right mode, this is the whole state */
+  private final long operands;
+
+  private final int meta;
+
+  /* The value and operator of an addition or subtraction that waits for the term after it, in
+   * precedence mode; the operator is '0' if there is none */
+  private final int pendingValue;
+
+  private final char pendingOperator;
+
+  /**
+   * Construct an empty ExpressionCalculator that performs operations from left to right, exactly
+   * like a SimpleCalculator.
+   */
+  public ExpressionCalculator() {
+    this(false);
+  }
+
+  /**
+   * Construct an empty ExpressionCalculator in the given mode, caching up to 256 compiled
+   * expressions.
+   *
+   * @param precedence true to multiply before adding and subtracting, false to perform operations
+   *                   from left to right
+   */
+  public ExpressionCalculator(boolean precedence) {
+    this(precedence, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Construct an empty ExpressionCalculator in the given mode, caching up to the given number of
+   * compiled expressions.
+   *
+   * @param precedence    true to multiply before adding and subtracting, false to perform
+   *                      operations from left to right
+   * @param cacheCapacity the largest number of compiled expressions kept
+   * @throws IllegalArgumentException if the capacity is not positive or too large
+   */
+  public ExpressionCalculator(boolean precedence, int cacheCapacity)
+          throws IllegalArgumentException {
+    this(precedence, new TextCache<>(cacheCapacity), 0L, StateCodec.emptyMeta(false), 0,
+            '0');
+  }
+
+  private ExpressionCalculator(boolean precedence, TextCache<int[]> cache, long operands,
+                               int meta, int pendingValue, char pendingOperator) {
+    this.precedence = precedence;
+    this.cache = cache;
+    this.operands = operands;
+    this.meta = meta;
+    this.pendingValue = pendingValue;
+    this.pendingOperator = pendingOperator;
+  }
+
+  /**
+   * Return whether this calculator multiplies before adding and subtracting.
+   *
+   * @return true in precedence mode, false if operations are performed from left to right
+   */
+  public boolean hasPrecedence() {
+    return precedence;
+  }
+
+  /**
+   * Evaluate a whole expression, independently of the state of this calculator but in its mode.
+   * An expression is a sequence of non-negative operands in decimal separated by the operators
+   * '+', '-' and '*', with no other characters in between; it may end with '=' if it holds at
+   * least one operation, since a SimpleCalculator only accepts '=' then.
+   *
+   * @param expression the text of the expression
+   * @return the value of the expression
+   * @throws IllegalArgumentException if the expression is malformed or an operand exceeds the
+   *         range of an int
+   */
+  public int evaluate(CharSequence expression) throws IllegalArgumentException {
+    int hash = TextCache.hash(expression);
+    int[] code = cache.lookup(expression, hash);
+    if (code == null) {
+      code = compile(expression);
+      cache.store(expression.toString(), hash, code);
+    }
+    return precedence ? evaluateWithPrecedence(code) : evaluateInOrder(code);
+  }
+
+  /**
+   * Provide a character to the calculator as input. In left-to-right mode, this has the same
+   * effect as it would on a SimpleCalculator in the same state.
+   *
+   * @param button the input to the calculator, representing a single button on a real calculator
+   * @return a new calculator that has been updated based on the provided button input
+   * @throws IllegalArgumentException when the inputted character is not a valid calculator button,
+   *         can't be input to the calculator in its current state, or makes an operand exceed the
+   *         range of an int
+   */
+  @Override
+  public Calculator input(char button) throws IllegalArgumentException {
+    ExpressionCalculator next = step(button);
+    if (next != null) {
+      return next;
+    }
+    if (status(button) == InputStatus.OPERAND_OVERFLOW) {
+      throw new IllegalArgumentException("Operand is too large");
+    }
+    throw new IllegalArgumentException("Invalid input '" + button + "' to calculator");
+  }
+
+  /**
+   * Provide a character to the calculator as input without throwing when it isn't accepted, telling
+   * apart the reasons for rejecting it in the same way as the SimpleCalculator.
+   *
+   * @param button the input to the calculator, representing a single button on a real calculator
+   * @return the calculator that input(char) would return, or this calculator if input(char) would
+   *     throw, together with the status of the input
+   */
+  @Override
+  public InputResult tryInput(char button) {
+    ExpressionCalculator next = step(button);
+    if (next != null) {
+      return new InputResult(next, InputStatus.OK);
+    }
+    return new InputResult(this, status(button));
+  }
+
+  /**
+   * Print the current "screen" of the calculator. In precedence mode, a pending addition or
+   * subtraction is shown before the term it waits for.
+   *
+   * @return a string containing the contents of the calculator's screen
+   */
+  @Override
+  public String getResult() {
+    StringBuilder screen = new StringBuilder();
+    if (pendingOperator != '0') {
+      screen.append(pendingValue).append(pendingOperator);
+    }
+    StateCodec.render(operands, meta, screen);
+    return screen.toString();
+  }
+
+  /**
+   * Two ExpressionCalculators are equal if they are in the same mode and hold the same state, so
+   * that they will react identically to any further input; their caches don't matter.
+   *
+   * @param o the object to compare this calculator to
+   * @return true if the other object is an ExpressionCalculator in the same mode and state
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ExpressionCalculator)) {
+      return false;
+    }
+    ExpressionCalculator other = (ExpressionCalculator) o;
+    return (precedence == other.precedence) && (operands == other.operands)
+            && (meta == other.meta) && (pendingValue == other.pendingValue)
+            && (pendingOperator == other.pendingOperator);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(precedence, operands, meta, pendingValue, pendingOperator);
+  }
+
+  /* Returns the calculator after the button, or null if the button is rejected */
+  private ExpressionCalculator step(char button) {
+    int flags = StateCodec.flags(meta);
+    int firstOp = StateCodec.firstOperand(operands);
+    int secondOp = StateCodec.secondOperand(operands);
+    if ((pendingOperator != '0') && ((button == '+') || (button == '-') || (button == '='))) {
+      /* the term is complete: perform it, then the pending operation */
+      if ((flags & TransitionTable.SECOND_EMPTY) != 0) {
+        return null;
+      }
+      int total = TransitionTable.operate(pendingOperator, pendingValue,
+              TransitionTable.operate(StateCodec.operator(meta), firstOp, secondOp));
+      int nextFlags = (button == '=') ? RESULT_ONLY : TransitionTable.SECOND_EMPTY;
+      char operator = (button == '=') ? '0' : button;
+      return next(StateCodec.operands(total, 0), StateCodec.meta(nextFlags, operator, false), 0,
+              '0');
+    }
+    if (precedence && (button == '*') && (flags == 0) && (StateCodec.operator(meta) != '*')) {
+      /* keep the addition or subtraction pending, and start a term with its second operand */
+      return next(StateCodec.operands(secondOp, 0),
+              StateCodec.meta(TransitionTable.SECOND_EMPTY, '*', false), firstOp,
+              StateCodec.operator(meta));
+    }
+    int nextMeta = StateCodec.nextMeta(operands, meta, button);
+    if (StateCodec.isRejected(nextMeta)) {
+      return null;
+    }
+    long nextOperands = StateCodec.nextOperands(operands, meta, button);
+    if (button == 'C') {
+      return next(nextOperands, nextMeta, 0, '0');
+    }
+    return next(nextOperands, nextMeta, pendingValue, pendingOperator);
+  }
+
+  private ExpressionCalculator next(long nextOperands, int nextMeta, int nextPendingValue,
+                                    char nextPendingOperator) {
+    return new ExpressionCalculator(precedence, cache, nextOperands, nextMeta, nextPendingValue,
+            nextPendingOperator);
+  }
+
+  /* Returns why the button is rejected; the pending operation never changes the reason */
+  private InputStatus status(char button) {
+    return TransitionTable.status(TransitionTable.SIMPLE, StateCodec.flags(meta),
+            StateCodec.firstOperand(operands), StateCodec.secondOperand(operands), button);
+  }
+
+  /* Compiles an expression into its operands and operators, alternating and starting with an
+   * operand; operators are stored as their characters */
+  private static int[] compile(CharSequence expression) throws IllegalArgumentException {
+    int length = expression.length();
+    if ((length > 0) && (expression.charAt(length - 1) == '=')) {
+      length--;
+    }
+    int[] code = new int[length];
+    int size = 0;
+    int i = 0;
+    while (true) {
+      int start = i;
+      int operand = 0;
+      while ((i < length) && (expression.charAt(i) >= '0') && (expression.charAt(i) <= '9')) {
+        long appended = TransitionTable.append(operand, expression.charAt(i) - '0');
+        if (appended != (int) appended) {
+          throw new IllegalArgumentException("Operand is too large");
+        }
+        operand = (int) appended;
+        i++;
+      }
+      if (i == start) {
+        throw malformed(expression, i);
+      }
+      code[size++] = operand;
+      if (i == length) {
+        break;
+      }
+      char operator = expression.charAt(i);
+      if ((operator != '+') && (operator != '-') && (operator != '*')) {
+        throw malformed(expression, i);
+      }
+      code[size++] = operator;
+      i++;
+    }
+    if ((size == 1) && (length < expression.length())) {
+      /* '=' without an operation */
+      throw malformed(expression, length);
+    }
+    return Arrays.copyOf(code, size);
+  }
+
+  private static IllegalArgumentException malformed(CharSequence expression, int position) {
+    if (position >= expression.length()) {
+      return new IllegalArgumentException("Expression \"" + expression + "\" ends early");
+    }
+    return new IllegalArgumentException("Invalid input '" + expression.charAt(position)
+            + "' at position " + position + " of expression \"" + expression + "\"");
+  }
+
+  private static int evaluateInOrder(int[] code) {
+    int value = code[0];
+    for (int i = 1; i < code.length; i += 2) {
+      value = TransitionTable.operate((char) code[i], value, code[i + 1]);
+    }
+    return value;
+  }
+
+  /* Multiplies each term before adding or subtracting it, performing the operations in the same
+   * order, with the same overflow to 0, as inputting the expression in precedence mode */
+  private static int evaluateWithPrecedence(int[] code) {
+    int sum = 0;
+    char sumOperator = '0';
+    int term = code[0];
+    for (int i = 1; i < code.length; i += 2) {
+      char operator = (char) code[i];
+      if (operator == '*') {
+        term = TransitionTable.operate('*', term, code[i + 1]);
+      } else {
+        sum = (sumOperator == '0') ? term : TransitionTable.operate(sumOperator, sum, term);
+        sumOperator = operator;
+        term = code[i + 1];
+      }
+    }
+    return (sumOperator == '0') ? term : TransitionTable.operate(sumOperator, sum, term);
+  }
+}
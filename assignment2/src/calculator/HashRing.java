@@ -0,0 +1,201 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * This class maps calculator sessions to the nodes of a cluster by consistent hashing. Every node
+ * is placed at many points of a ring of 64-bit hashes, and a session belongs to the node at the
+ * first point at or after the hash of its id, wrapping around, so that adding or removing a node
+ * only moves the sessions between it and its neighbours, about one in every number of nodes.
+ *
+ * <p>A ring is immutable and carries an epoch, which grows with every change of its nodes, so
+ * that nodes and clients can tell which of two rings is newer. Nodes are named by their address,
+ * as a host and port separated by a colon.
+ */
+public final class HashRing {
+  /* The number of points every node is placed at, which keeps the share of the sessions each node
+   * gets within a few percent of the average */
+  private static final int POINTS_PER_NODE = 160;
+
+  private final long epoch;
+
+  private final List<String> nodes;
+
+  /* The points of the ring in ascending order, and the index of the node at each of them */
+  private final long[] points;
+
+  private final int[] owners;
+
+  /**
+   * Create a ring of the given nodes, at the first epoch.
+   *
+   * @param nodes the addresses of the nodes
+   * @throws IllegalArgumentException if there are no nodes, or an address is not a host and port
+   *         separated by a colon
+   */
+  public HashRing(Collection<String> nodes) throws IllegalArgumentException {
+    this(1, nodes);
+  }
+
+  /* Creates a ring of the given nodes at the given epoch */
+  HashRing(long epoch, Collection<String> nodes) throws IllegalArgumentException {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A ring needs at least one node");
+    }
+    for (String node : nodes) {
+      port(node);
+    }
+    this.epoch = epoch;
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+    int count = this.nodes.size() * POINTS_PER_NODE;
+    long[] keyed = new long[count];
+    for (int node = 0; node < this.nodes.size(); node++) {
+      long seed = (long) this.nodes.get(node).hashCode() << 32;
+      for (int i = 0; i < POINTS_PER_NODE; i++) {
+        keyed[node * POINTS_PER_NODE + i] = mix(seed | i);
+      }
+    }
+    /* sort the points along with their nodes, breaking ties between equal points by node */
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> (keyed[a] != keyed[b]) ? Long.compare(keyed[a], keyed[b])
+            : Integer.compare(a, b));
+    this.points = new long[count];
+    this.owners = new int[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = keyed[order[i]];
+      owners[i] = order[i] / POINTS_PER_NODE;
+    }
+  }
+
+  /**
+   * Return the epoch of this ring.
+   *
+   * @return the epoch, which is larger for every ring derived from this one
+   */
+  public long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Return the nodes of this ring.
+   *
+   * @return an unmodifiable list of the addresses of the nodes, in order
+   */
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Return whether a node is part of this ring.
+   *
+   * @param node the address of the node
+   * @return true if the node is part of the ring
+   */
+  public boolean contains(String node) {
+    return Collections.binarySearch(nodes, node) >= 0;
+  }
+
+  /**
+   * Return the node a session belongs to.
+   *
+   * @param sessionId the id of the session
+   * @return the address of the node
+   */
+  public String nodeFor(long sessionId) {
+    long hash = mix(sessionId);
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return nodes.get(owners[(index == points.length) ? 0 : index]);
+  }
+
+  /**
+   * Create the ring at the next epoch with a node added.
+   *
+   * @param node the address of the node to add
+   * @return the new ring
+   * @throws IllegalArgumentException if the node is already part of this ring, or its address is
+   *         not a host and port separated by a colon
+   */
+  public HashRing with(String node) throws IllegalArgumentException {
+    if (contains(node)) {
+      throw new IllegalArgumentException("The ring already contains " + node);
+    }
+    List<String> grown = new ArrayList<>(nodes);
+    grown.add(node);
+    return new HashRing(epoch + 1, grown);
+  }
+
+  /**
+   * Create the ring at the next epoch with a node removed.
+   *
+   * @param node the address of the node to remove
+   * @return the new ring
+   * @throws IllegalArgumentException if the node is not part of this ring, or is its only node
+   */
+  public HashRing without(String node) throws IllegalArgumentException {
+    if (!contains(node)) {
+      throw new IllegalArgumentException("The ring doesn't contain " + node);
+    }
+    List<String> shrunk = new ArrayList<>(nodes);
+    shrunk.remove(node);
+    return new HashRing(epoch + 1, shrunk);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof HashRing)) {
+      return false;
+    }
+    HashRing other = (HashRing) obj;
+    return (epoch == other.epoch) && nodes.equals(other.nodes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(epoch) * 31 + nodes.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "HashRing(epoch " + epoch + ", nodes " + nodes + ")";
+  }
+
+  /* Returns the host of a node's address */
+  static String host(String node) {
+    return node.substring(0, node.lastIndexOf(':'));
+  }
+
+  /* Returns the port of a node's address */
+  static int port(String node) throws IllegalArgumentException {
+    int colon = node.lastIndexOf(':');
+    try {
+      int port = Integer.parseInt(node.substring(colon + 1));
+      if ((colon <= 0) || (port <= 0) || (port > 0xFFFF)) {
+        throw new IllegalArgumentException("Invalid node address " + node);
+      }
+      return port;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid node address " + node, e);
+    }
+  }
+
+  /* Spreads the bits of a value over all 64, so that nearby ids and points land far apart; this
+   * is the finalizer of MurmurHash3 */
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xFF51AFD7ED558CCDL;
+    value ^= value >>> 33;
+    value *= 0xC4CEB9FE1A85EC53L;
+    return value ^ (value >>> 33);
+  }
+}
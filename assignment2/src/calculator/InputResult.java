@@ -0,0 +1,57 @@
+package calculator;
+
+/**
+ * This class represents the outcome of inputting a single button to a calculator through the
+ * non-throwing tryInput(char) method: the calculator after the button, and the status telling
+ * whether the button was accepted. A rejected button leaves the calculator unchanged, so the
+ * result then holds the calculator the button was input to.
+ */
+public final class InputResult {
+  private final Calculator calculator;
+
+  private final InputStatus status;
+
+  /**
+   * Create a result holding the given calculator and status.
+   *
+   * @param calculator the calculator after the button, or the original one if it was rejected
+   * @param status     whether the button was accepted, and if not, why
+   */
+  public InputResult(Calculator calculator, InputStatus status) {
+    this.calculator = calculator;
+    this.status = status;
+  }
+
+  /**
+   * Return the calculator after the button, which is the calculator the button was input to if it
+   * was rejected.
+   *
+   * @return the calculator after the input
+   */
+  public Calculator getCalculator() {
+    return calculator;
+  }
+
+  /**
+   * Return whether the button was accepted, and if not, why.
+   *
+   * @return the status of the input
+   */
+  public InputStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * Return whether the button was accepted.
+   *
+   * @return true if the status is OK
+   */
+  public boolean isAccepted() {
+    return status.isAccepted();
+  }
+
+  @Override
+  public String toString() {
+    return calculator.getResult() + (isAccepted() ? "" : " (" + status + ")");
+  }
+}
@@ -0,0 +1,38 @@
+package calculator;
+
+/**
+ * This enum represents the outcome of inputting a single button to a calculator through the
+ * non-throwing tryInput(char) method: either the button was accepted, or the reason it wasn't.
+ */
+public enum InputStatus {
+  /**
+   * The button was accepted.
+   */
+  OK,
+
+  /**
+   * The character is not a button of the calculator at all.
+   */
+  INVALID_KEY,
+
+  /**
+   * The button exists, but can't be input to the calculator in its current state - e.g. '-' as
+   * the very first input to an empty SimpleCalculator.
+   */
+  REJECTED_IN_STATE,
+
+  /**
+   * The button is a digit that would make the operand it is appended to exceed the range of an
+   * integer.
+   */
+  OPERAND_OVERFLOW;
+
+  /**
+   * Return whether this status means that the button was accepted.
+   *
+   * @return true for OK, false otherwise
+   */
+  public boolean isAccepted() {
+    return this == OK;
+  }
+}
@@ -0,0 +1,579 @@
+package calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps calculator sessions durable across crashes: every button a session accepts is
+ * appended to a journal on disk before input returns, and the sessions are rebuilt from the
+ * journal when it is opened again. The sessions themselves live in a SessionRegistry.
+ *
+ * <p>Writes are batched with group commit: while one thread writes and forces the pending events
+ * to disk, the events of other threads pile up, and the next thread to commit writes all of them
+ * at once, so a burst of keystrokes shares one fsync. Each batch carries the sequence number of
+ * its first event and a CRC32, so a batch torn by a crash is recognized and cut off on recovery.
+ *
+ * <p>The journal is split into segment files, named after the sequence number of their first
+ * event. Each segment starts with a header naming the calculator every session starts as, so
+ * that a journal is never replayed under other rules than it was written with. A checkpoint
+ * writes a full snapshot of the sessions, named after the last event it covers, starts a new
+ * segment and deletes every older segment and snapshot. Recovery restores the latest snapshot
+ * and replays the events after it. Buttons that are rejected change nothing and are not
+ * journaled.
+ *
+ * <p>A journal may be used by any number of threads at once. Once writing to the disk has failed,
+ * the journal refuses any further input.
+ */
+public final class KeystrokeJournal implements Closeable {
+  private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+  private static final int MAGIC = 0x434A524E;
+
+  private static final int VERSION = 1;
+
+  /* A segment starts with the magic number, the version, and the operands and meta of the
+   * calculator every session starts as */
+  private static final int SEGMENT_HEADER = 20;
+
+  /* An event is the session id and the button as one ASCII byte */
+  private static final int EVENT = 9;
+
+  /* A batch starts with the length of its events, the sequence number of its first event, and
+   * the CRC32 of that sequence number and the events */
+  private static final int BATCH_HEADER = 16;
+
+  private final Path directory;
+
+  private final long segmentBytes;
+
+  private final SessionRegistry sessions;
+
+  private final long startOperands;
+
+  private final int startMeta;
+
+  /* The events waiting to be written, and a spare buffer to swap with them; both are only
+   * touched under this journal's lock, except by the committing thread for the batch it took */
+  private ByteBuffer pending = ByteBuffer.allocate(4096);
+
+  private ByteBuffer spare = ByteBuffer.allocate(4096);
+
+  private long pendingFirst;
+
+  private long lastSequence;
+
+  private long durableSequence;
+
+  private long commits;
+
+  /* Whether a thread is writing to the disk; only that thread touches the segment */
+  private boolean writing;
+
+  private FileChannel segment;
+
+  private long segmentSize;
+
+  private IOException failure;
+
+  private boolean closed;
+
+  /**
+   * Open the journal in the given directory, creating it if needed, with segments of up to 64MB.
+   * The sessions in the journal are recovered; new sessions start as the given calculator.
+   *
+   * @param directory the directory holding the segments and snapshots
+   * @param start     the calculator every new session starts as
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IOException              if the journal can't be read, is damaged, or was written
+   *                                  for sessions starting as another calculator
+   */
+  public KeystrokeJournal(Path directory, Calculator start)
+          throws IllegalArgumentException, IOException {
+    this(directory, start, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /**
+   * Open the journal in the given directory, creating it if needed, with segments of about the
+   * given size. The sessions in the journal are recovered; new sessions start as the given
+   * calculator.
+   *
+   * @param directory    the directory holding the segments and snapshots
+   * @param start        the calculator every new session starts as
+   * @param segmentBytes the size after which a new segment is started
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the segment size is not positive or larger
+   *         than 1GB
+   * @throws IOException              if the journal can't be read, is damaged, or was written
+   *                                  for sessions starting as another calculator
+   */
+  public KeystrokeJournal(Path directory, Calculator start, long segmentBytes)
+          throws IllegalArgumentException, IOException {
+    if ((segmentBytes <= 0) || (segmentBytes > (1L << 30))) {
+      throw new IllegalArgumentException("Invalid segment size " + segmentBytes);
+    }
+    this.sessions = new SessionRegistry(start);
+    this.startOperands = StateCodec.operands(start);
+    this.startMeta = StateCodec.unmarked(StateCodec.meta(start));
+    this.directory = Objects.requireNonNull(directory);
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    recover();
+    roll(lastSequence + 1);
+  }
+
+  /**
+   * Input a button to a session, adding it in the starting state first if the journal doesn't
+   * hold it yet, and return once the button is on disk. A button the session rejects leaves it
+   * unchanged and is not journaled.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   * @throws IOException           if the button can't be written to disk, or writing has failed
+   *                               before
+   * @throws IllegalStateException if the journal is closed
+   */
+  public boolean input(long sessionId, char button) throws IOException, IllegalStateException {
+    long sequence;
+    synchronized (this) {
+      checkUsable();
+      boolean known = sessions.contains(sessionId);
+      if (!sessions.input(sessionId, button)) {
+        /* a session is only recovered once it has accepted a button, so it is only kept then */
+        if (!known) {
+          sessions.remove(sessionId);
+        }
+        return false;
+      }
+      sequence = ++lastSequence;
+      if (pending.position() == 0) {
+        pendingFirst = sequence;
+      }
+      if (pending.remaining() < EVENT) {
+        pending = grow(pending);
+      }
+      pending.putLong(sessionId).put((byte) button);
+    }
+    commit(sequence);
+    return true;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the journal doesn't hold it
+   */
+  public synchronized String getResult(long sessionId) {
+    return sessions.getResult(sessionId);
+  }
+
+  /**
+   * Print the current screen of every session.
+   *
+   * @return a new map from the id of every session to its screen
+   */
+  public synchronized Map<Long, String> getResults() {
+    return sessions.getResults();
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the journal doesn't hold it
+   */
+  public synchronized Calculator toCalculator(long sessionId) {
+    return sessions.toCalculator(sessionId);
+  }
+
+  /**
+   * Return the number of sessions in the journal.
+   *
+   * @return the number of sessions a button has been input to
+   */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Return the sequence number of the last event, which is also the number of events journaled
+   * since the journal was first created.
+   *
+   * @return the sequence number of the last accepted button
+   */
+  public synchronized long getSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Return the number of times events have been forced to disk since the journal was opened;
+   * with group commit, this is usually far fewer than the number of events.
+   *
+   * @return the number of commits
+   */
+  public synchronized long getCommitCount() {
+    return commits;
+  }
+
+  /**
+   * Write a full snapshot of the sessions, then delete every segment and snapshot it makes
+   * unnecessary. Buttons input while the snapshot is taken wait for it.
+   *
+   * @throws IOException           if the snapshot can't be written or the old files can't be
+   *                               deleted, or writing has failed before
+   * @throws IllegalStateException if the journal is closed
+   */
+  public void checkpoint() throws IOException, IllegalStateException {
+    ByteBuffer batch;
+    long first;
+    long upTo;
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    synchronized (this) {
+      checkUsable();
+      awaitWriter();
+      sessions.writeSnapshot(snapshot);
+      writing = true;
+      first = pendingFirst;
+      upTo = lastSequence;
+      batch = takePending();
+    }
+    IOException error = null;
+    try {
+      writeBatch(batch, first);
+      Path file = directory.resolve(snapshotName(upTo));
+      Path temporary = directory.resolve(snapshotName(upTo) + ".tmp");
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        writeFully(channel, ByteBuffer.wrap(snapshot.toByteArray()));
+        channel.force(true);
+      }
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+              StandardCopyOption.REPLACE_EXISTING);
+      roll(upTo + 1);
+      for (Path old : list("snapshot-", ".snap")) {
+        if (sequenceOf(old) < upTo) {
+          Files.delete(old);
+        }
+      }
+      for (Path old : list("journal-", ".log")) {
+        if (sequenceOf(old) <= upTo) {
+          Files.delete(old);
+        }
+      }
+      syncDirectory();
+    } catch (IOException e) {
+      error = e;
+    }
+    finishWrite(batch, upTo, error);
+  }
+
+  /**
+   * Write the pending events to disk and close the journal.
+   *
+   * @throws IOException if the events can't be written or the segment can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    long sequence;
+    boolean failed;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      /* no button is accepted from now on, so the commit covers every accepted one */
+      closed = true;
+      sequence = lastSequence;
+      failed = (failure != null);
+    }
+    try {
+      if (!failed) {
+        commit(sequence);
+      }
+    } finally {
+      synchronized (this) {
+        awaitWriter();
+        segment.close();
+      }
+    }
+  }
+
+  /* Returns once the event with the given sequence number is on disk, writing the pending events
+   * if no other thread is writing already */
+  private void commit(long sequence) throws IOException {
+    ByteBuffer batch;
+    long first;
+    long last;
+    synchronized (this) {
+      while (durableSequence < sequence) {
+        if (failure != null) {
+          throw new IOException("Writing the journal failed", failure);
+        }
+        if (!writing) {
+          break;
+        }
+        awaitWriter();
+      }
+      if (durableSequence >= sequence) {
+        return;
+      }
+      writing = true;
+      first = pendingFirst;
+      last = lastSequence;
+      batch = takePending();
+    }
+    IOException error = null;
+    try {
+      writeBatch(batch, first);
+    } catch (IOException e) {
+      error = e;
+    }
+    finishWrite(batch, last, error);
+  }
+
+  /* Hands the batch buffer back, and records the outcome of a write */
+  private void finishWrite(ByteBuffer batch, long last, IOException error) throws IOException {
+    synchronized (this) {
+      writing = false;
+      batch.clear();
+      spare = batch;
+      if (error == null) {
+        durableSequence = Math.max(durableSequence, last);
+      } else if (failure == null) {
+        failure = error;
+      }
+      notifyAll();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /* Swaps the pending events with the spare buffer and returns them, ready to be written */
+  private ByteBuffer takePending() {
+    ByteBuffer batch = pending;
+    pending = spare;
+    spare = null;
+    batch.flip();
+    return batch;
+  }
+
+  /* Waits, holding this journal's lock, until no thread is writing */
+  private void awaitWriter() throws InterruptedIOException {
+    while (writing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the journal");
+      }
+    }
+  }
+
+  /* Appends the batch to the current segment, starting a new segment first if it would grow too
+   * large, and forces it to disk; only called by the writing thread */
+  private void writeBatch(ByteBuffer batch, long first) throws IOException {
+    if (!batch.hasRemaining()) {
+      return;
+    }
+    if ((segmentSize > SEGMENT_HEADER)
+            && (segmentSize + BATCH_HEADER + batch.remaining() > segmentBytes)) {
+      roll(first);
+    }
+    ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER);
+    header.putInt(batch.remaining()).putLong(first)
+            .putInt(checksum(first, batch.array(), 0, batch.remaining())).flip();
+    long length = BATCH_HEADER + batch.remaining();
+    writeFully(segment, header);
+    writeFully(segment, batch);
+    segment.force(false);
+    segmentSize += length;
+    synchronized (this) {
+      commits++;
+    }
+  }
+
+  /* Closes the current segment, if any, and starts a new one, with its header, whose first event
+   * will have the given sequence number */
+  private void roll(long first) throws IOException {
+    if (segment != null) {
+      segment.close();
+    }
+    segment = FileChannel.open(directory.resolve(segmentName(first)), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+    header.putInt(MAGIC).putInt(VERSION).putLong(startOperands).putInt(startMeta).flip();
+    writeFully(segment, header);
+    segment.force(false);
+    segmentSize = SEGMENT_HEADER;
+    syncDirectory();
+  }
+
+  /* Restores the latest snapshot and replays the events after it, cutting off a batch torn by a
+   * crash at the end of the last segment, and a last segment whose header is torn */
+  private void recover() throws IOException {
+    long base = 0;
+    List<Path> snapshots = list("snapshot-", ".snap");
+    if (!snapshots.isEmpty()) {
+      Path latest = snapshots.get(snapshots.size() - 1);
+      sessions.restore(new ByteArrayInputStream(Files.readAllBytes(latest)));
+      base = sequenceOf(latest);
+    }
+    lastSequence = base;
+    List<Path> segments = list("journal-", ".log");
+    for (int i = 0; i < segments.size(); i++) {
+      Path path = segments.get(i);
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+      if ((bytes.remaining() < SEGMENT_HEADER) && (i == segments.size() - 1)) {
+        /* the crash came before the header was written, so there are no events either */
+        Files.delete(path);
+        break;
+      }
+      checkHeader(bytes, path);
+      while (bytes.hasRemaining()) {
+        int start = bytes.position();
+        if (!replayBatch(bytes, base)) {
+          if (i < segments.size() - 1) {
+            throw new IOException("Damaged journal segment " + path);
+          }
+          try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(start);
+            channel.force(true);
+          }
+          break;
+        }
+      }
+    }
+    durableSequence = lastSequence;
+  }
+
+  /* Reads the header at the start of a segment, checking that it was written by this version for
+   * sessions starting as the calculator of this journal */
+  private void checkHeader(ByteBuffer bytes, Path path) throws IOException {
+    if ((bytes.remaining() < SEGMENT_HEADER) || (bytes.getInt() != MAGIC)) {
+      throw new IOException("Not a journal segment " + path);
+    }
+    int version = bytes.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported journal version " + version + " in " + path);
+    }
+    if ((bytes.getLong() != startOperands) || (bytes.getInt() != startMeta)) {
+      throw new IOException("The journal segment " + path
+              + " holds sessions starting as another calculator");
+    }
+  }
+
+  /* Replays the batch at the position of the buffer, skipping events the snapshot already
+   * covers; returns false, without replaying anything, if the batch is torn or damaged */
+  private boolean replayBatch(ByteBuffer bytes, long base) {
+    if (bytes.remaining() < BATCH_HEADER) {
+      return false;
+    }
+    int start = bytes.position();
+    int length = bytes.getInt(start);
+    long first = bytes.getLong(start + 4);
+    int crc = bytes.getInt(start + 12);
+    if ((length <= 0) || (length % EVENT != 0) || (length > bytes.remaining() - BATCH_HEADER)
+            || (crc != checksum(first, bytes.array(), start + BATCH_HEADER, length))
+            || ((first > base) && (first != lastSequence + 1))) {
+      return false;
+    }
+    for (int at = start + BATCH_HEADER; at < start + BATCH_HEADER + length; at += EVENT) {
+      long sequence = first + (at - start - BATCH_HEADER) / EVENT;
+      if (sequence > base) {
+        sessions.replay(bytes.getLong(at), (char) (bytes.get(at + 8) & 0xFF));
+        lastSequence = sequence;
+      }
+    }
+    bytes.position(start + BATCH_HEADER + length);
+    return true;
+  }
+
+  private void checkUsable() throws IOException, IllegalStateException {
+    if (closed) {
+      throw new IllegalStateException("The journal is closed");
+    }
+    if (failure != null) {
+      throw new IOException("Writing the journal failed", failure);
+    }
+  }
+
+  /* Returns the files in the directory with the given prefix and suffix, in the order of the
+   * sequence numbers in their names */
+  private List<Path> list(String prefix, String suffix) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+            prefix + "[0-9]*" + suffix)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    /* the numbers are zero-padded, so the names sort like them */
+    Collections.sort(files);
+    return files;
+  }
+
+  /* Forces the directory, so that files created or renamed in it survive a crash, on platforms
+   * where a directory can be opened */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      /* not supported on this platform; the file system orders the metadata itself */
+      return;
+    }
+  }
+
+  private static String segmentName(long first) {
+    return String.format("journal-%020d.log", first);
+  }
+
+  private static String snapshotName(long upTo) {
+    return String.format("snapshot-%020d.snap", upTo);
+  }
+
+  /* Returns the sequence number in the name of a segment or snapshot */
+  private static long sequenceOf(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+  }
+
+  private static int checksum(long first, byte[] events, int offset, int length) {
+    CRC32 crc = new CRC32();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (first >>> shift));
+    }
+    crc.update(events, offset, length);
+    return (int) crc.getValue();
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+    buffer.flip();
+    return larger.put(buffer);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class reads keystroke logs straight from the file through a memory mapping, so the heap
+ * used stays the same however big the file is and the I/O is left to the operating system's page
+ * cache. Records are parsed from the mapped bytes and handed to a sink one by one, without
+ * copying them into strings or char arrays first.
+ *
+ * <p>A log is a sequence of records, one per line, each holding a session id in decimal (which may
+ * be negative), a single space and the button, one ASCII character. Lines end with either "\n" or
+ * "\r\n", and the last line may have no ending. Since one mapping can't be larger than 2GB, the
+ * file is mapped one window at a time; a window always ends at the end of a record.
+ */
+public final class KeystrokeLogReader {
+  /* The default size of a window, in bytes */
+  private static final int DEFAULT_WINDOW = 1 << 30;
+
+  /**
+   * A receiver of the records of a log, in the order they appear in the file.
+   */
+  public interface Sink {
+    /**
+     * Receive one record.
+     *
+     * @param sessionId the session the button was input to
+     * @param button    the button that was input
+     */
+    void accept(long sessionId, char button);
+  }
+
+  private final Path path;
+
+  private final int window;
+
+  /**
+   * Create a reader of the log in the given file, mapping up to 1GB of it at a time.
+   *
+   * @param path the file holding the log
+   */
+  public KeystrokeLogReader(Path path) {
+    this(path, DEFAULT_WINDOW);
+  }
+
+  /**
+   * Create a reader of the log in the given file, mapping up to the given number of bytes of it at
+   * a time.
+   *
+   * @param path   the file holding the log
+   * @param window the largest number of bytes mapped at once
+   * @throws IllegalArgumentException if the window is not positive
+   */
+  public KeystrokeLogReader(Path path, int window) throws IllegalArgumentException {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Invalid window size " + window);
+    }
+    this.path = Objects.requireNonNull(path);
+    this.window = window;
+  }
+
+  /**
+   * Read the whole log, handing every record to the given sink in order.
+   *
+   * @param sink the receiver of the records
+   * @return the number of records read
+   * @throws IOException if the file can't be read, a record is malformed, or a record doesn't fit
+   *         in one window
+   */
+  public long read(Sink sink) throws IOException {
+    Objects.requireNonNull(sink);
+    long records = 0;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long start = 0;
+      while (start < size) {
+        int length = (int) Math.min(window, size - start);
+        boolean atEnd = (start + length == size);
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        int position = 0;
+        while (position < length) {
+          int next = parseRecord(bytes, position, atEnd, start, sink);
+          if (next < 0) {
+            break;
+          }
+          position = next;
+          records++;
+        }
+        if (position == 0) {
+          throw new IOException("Record at byte " + start + " doesn't fit in a window of "
+                  + window + " bytes");
+        }
+        start += position;
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Replay the whole log, where every session starts as the given calculator, and return the final
+   * screen of every session. A button a session rejects leaves it unchanged.
+   *
+   * @param start the calculator every session starts as
+   * @return the final screen of every session that appears in the log
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IOException              if the file can't be read or holds a malformed record
+   */
+  public Map<Long, String> replay(Calculator start) throws IllegalArgumentException, IOException {
+    SessionRegistry sessions = new SessionRegistry(start);
+    read(sessions::input);
+    return sessions.getResults();
+  }
+
+  /* Parses the record starting at the position of the window and hands it to the sink; returns the
+   * position right after the record, or -1 if the window ends before the record does. The base is
+   * the position of the window in the file, for error messages */
+  private static int parseRecord(ByteBuffer bytes, int position, boolean atEnd, long base,
+                                 Sink sink) throws IOException {
+    int limit = bytes.limit();
+    int i = position;
+    boolean negative = (bytes.get(i) == '-');
+    if (negative) {
+      i++;
+    }
+    /* accumulate the id as a negative number, so that Long.MIN_VALUE can be read */
+    long sessionId = 0;
+    int digits = 0;
+    while ((i < limit) && (bytes.get(i) >= '0') && (bytes.get(i) <= '9')) {
+      try {
+        sessionId = Math.subtractExact(Math.multiplyExact(sessionId, 10), bytes.get(i) - '0');
+      } catch (ArithmeticException e) {
+        throw malformed(base + position);
+      }
+      digits++;
+      i++;
+    }
+    if (!negative) {
+      if (sessionId == Long.MIN_VALUE) {
+        throw malformed(base + position);
+      }
+      sessionId = -sessionId;
+    }
+    if (i + 2 > limit) {
+      return incomplete(atEnd, base + position);
+    }
+    if ((digits == 0) || (bytes.get(i) != ' ')) {
+      throw malformed(base + position);
+    }
+    char button = (char) (bytes.get(i + 1) & 0xFF);
+    i += 2;
+    if (i == limit) {
+      /* a record without a line ending is complete only if it ends the file */
+      if (!atEnd) {
+        return -1;
+      }
+      sink.accept(sessionId, button);
+      return i;
+    }
+    if (bytes.get(i) == '\r') {
+      i++;
+      if (i == limit) {
+        return incomplete(atEnd, base + position);
+      }
+    }
+    if (bytes.get(i) != '\n') {
+      throw malformed(base + position);
+    }
+    sink.accept(sessionId, button);
+    return i + 1;
+  }
+
+  /* Handles a record the window ends in the middle of: returns -1 so that it is parsed again from
+   * the next window, unless there is no next window */
+  private static int incomplete(boolean atEnd, long offset) throws IOException {
+    if (atEnd) {
+      throw malformed(offset);
+    }
+    return -1;
+  }
+
+  private static IOException malformed(long offset) {
+    return new IOException("Malformed record at byte " + offset);
+  }
+}
@@ -0,0 +1,155 @@
+package calculator;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class replays logs of recorded keystrokes, where each event is a button pressed in one
+ * calculator session, and returns the final screen of every session. Events of different sessions
+ * are independent of each other, so the sessions are split into shards that are replayed in
+ * parallel; the events of each session are still applied in the order they were recorded.
+ *
+ * <p>Splitting the events into shards is itself done in parallel: the log is cut into chunks, the
+ * events of each chunk are counted per shard, and then every chunk copies the positions of its
+ * events into its own part of each shard's region. Since the chunks keep their order within every
+ * shard, so do the events of each session.
+ *
+ * <p>Every session starts in the state of the calculator given to the replay and follows its
+ * rules. An event whose button the session rejects leaves the session unchanged, just as the
+ * calculator it replays stayed unchanged when input(char) threw.
+ */
+public final class KeystrokeReplay {
+  /* The number of chunks a log is split into for sorting its events into shards */
+  private static final int CHUNKS = 4 * Runtime.getRuntime().availableProcessors();
+
+  private final Calculator start;
+
+  private final int shards;
+
+  private final Executor executor;
+
+  /**
+   * Create a replay whose sessions start as the given calculator, running on the common
+   * ForkJoinPool with a few shards per available core.
+   *
+   * @param start the calculator every session starts as
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public KeystrokeReplay(Calculator start) throws IllegalArgumentException {
+    this(start, 4 * ForkJoinPool.getCommonPoolParallelism(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Create a replay whose sessions start as the given calculator, split into the given number of
+   * shards and run by the given executor.
+   *
+   * @param start    the calculator every session starts as
+   * @param shards   the number of shards to split the sessions into
+   * @param executor the executor that runs the shards
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the number of shards is not positive
+   */
+  public KeystrokeReplay(Calculator start, int shards, Executor executor)
+          throws IllegalArgumentException {
+    /* fail early rather than in every shard */
+    StateCodec.meta(start);
+    if (shards <= 0) {
+      throw new IllegalArgumentException("Invalid number of shards " + shards);
+    }
+    this.start = start;
+    this.shards = shards;
+    this.executor = Objects.requireNonNull(executor);
+  }
+
+  /**
+   * Replay a whole log, where event i inputs buttons[i] to session sessionIds[i].
+   *
+   * @param sessionIds the session of each event
+   * @param buttons    the button of each event
+   * @return the final screen of every session that appears in the log
+   * @throws IllegalArgumentException if the arrays don't have the same length
+   */
+  public Map<Long, String> replay(long[] sessionIds, char[] buttons)
+          throws IllegalArgumentException {
+    if (sessionIds.length != buttons.length) {
+      throw new IllegalArgumentException("Got " + sessionIds.length + " sessions for "
+              + buttons.length + " buttons");
+    }
+    return replay(sessionIds, buttons, 0, buttons.length);
+  }
+
+  /**
+   * Replay part of a log, where event i inputs buttons[i] to session sessionIds[i].
+   *
+   * @param sessionIds the session of each event
+   * @param buttons    the button of each event
+   * @param offset     the position of the first event to replay
+   * @param length     the number of events to replay
+   * @return the final screen of every session that appears in that part of the log
+   * @throws IndexOutOfBoundsException if the range is not inside both arrays
+   */
+  public Map<Long, String> replay(long[] sessionIds, char[] buttons, int offset, int length)
+          throws IndexOutOfBoundsException {
+    Objects.checkFromIndexSize(offset, length, sessionIds.length);
+    Objects.checkFromIndexSize(offset, length, buttons.length);
+    /* the chunks only need to keep every processor busy, and the counts below take one int per
+     * chunk and shard, so their number doesn't grow with the number of shards */
+    int chunks = Math.max(1, Math.min(CHUNKS, length));
+    int chunkSize = (length + chunks - 1) / chunks;
+
+    /* count the events of every chunk that belong to every shard */
+    int[][] counts = new int[chunks][shards];
+    ParallelTasks.runAll(executor, chunks, chunk -> {
+      int[] count = counts[chunk];
+      int end = Math.min(length, (chunk + 1) * chunkSize);
+      for (int i = chunk * chunkSize; i < end; i++) {
+        count[shardOf(sessionIds[offset + i])]++;
+      }
+    });
+
+    /* turn the counts into the position where each chunk starts writing in each shard */
+    int[] shardStarts = new int[shards + 1];
+    int position = 0;
+    for (int shard = 0; shard < shards; shard++) {
+      shardStarts[shard] = position;
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        int count = counts[chunk][shard];
+        counts[chunk][shard] = position;
+        position += count;
+      }
+    }
+    shardStarts[shards] = position;
+
+    /* copy the positions of the events into their shards, keeping their order */
+    int[] order = new int[length];
+    ParallelTasks.runAll(executor, chunks, chunk -> {
+      int[] next = counts[chunk];
+      int end = Math.min(length, (chunk + 1) * chunkSize);
+      for (int i = chunk * chunkSize; i < end; i++) {
+        order[next[shardOf(sessionIds[offset + i])]++] = offset + i;
+      }
+    });
+
+    /* replay every shard on its own */
+    Map<Long, String> screens = new ConcurrentHashMap<>();
+    ParallelTasks.runAll(executor, shards, shard -> {
+      SessionRegistry sessions = new SessionRegistry(start);
+      for (int i = shardStarts[shard]; i < shardStarts[shard + 1]; i++) {
+        int event = order[i];
+        sessions.replay(sessionIds[event], buttons[event]);
+      }
+      screens.putAll(sessions.getResults());
+    });
+    return screens;
+  }
+
+  /* Returns the shard a session belongs to */
+  private int shardOf(long sessionId) {
+    long mixed = sessionId * 0x9E3779B97F4A7C15L;
+    return (int) ((mixed >>> 32) % shards);
+  }
+}
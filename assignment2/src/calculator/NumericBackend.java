@@ -0,0 +1,31 @@
+package calculator;
+
+/**
+ * This enum represents the kinds of numbers the operands of a calculator can hold. The backend is
+ * chosen when an empty calculator is created and is kept by every calculator that follows from
+ * it; the rules for inputting buttons are the same for all backends, only the range of the
+ * operands differs.
+ */
+public enum NumericBackend {
+  /**
+   * Operands are ints: a digit that would make an operand exceed the range of an int is rejected,
+   * and an operation whose result is out of that range gives 0. This is the backend of
+   * calculators created without one, and the only one whose states can be held by a StateCache,
+   * CalculatorSession, CalculatorEngine or StateCodec.
+   */
+  INT,
+
+  /**
+   * Operands are longs, and otherwise behave exactly as with INT: a digit that would make an
+   * operand exceed the range of a long is rejected, and an operation whose result is out of that
+   * range gives 0.
+   */
+  LONG,
+
+  /**
+   * Operands can be arbitrarily large, so no digit is rejected for making an operand too large
+   * and no operation overflows. Operands are kept as longs while they fit in 64 bits, and are only
+   * promoted to BigInteger once they outgrow them.
+   */
+  BIG
+}
@@ -0,0 +1,550 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * This class holds calculator sessions outside the Java heap, so that even a very large number of
+ * them adds nothing for the garbage collector to trace or copy. Every session lives in a
+ * fixed-width slot of a direct buffer: its id, its first and second operands, and its operator
+ * and flags, packed by the StateCodec. Inputting a button to a session follows the rules of the
+ * calculator the store was created with, exactly as a CalculatorSession would.
+ *
+ * <p>A store can be backed by a file, which it maps into memory; the sessions are then still
+ * there when the file is opened again, for instance after a restart. Changes reach the file when
+ * the operating system writes back the mapped pages, or at the latest when flush() or close() is
+ * called.
+ *
+ * <p>The slots are split into segments, each an open-addressing table with linear probing and
+ * its own lock, so any number of threads can use a store at once, and threads working on
+ * sessions in different segments don't wait for each other. The number of slots is fixed when the
+ * store is created; inputting a button to a new session when its segment is nearly full throws an
+ * IllegalStateException.
+ */
+public final class OffHeapSessionStore implements Closeable {
+  /* Layout of a slot: the session id, the packed operands, the packed meta word, and whether the
+   * slot is used, written last so that a slot is never seen used with half of its contents */
+  private static final int KEY = 0;
+
+  private static final int OPERANDS = 8;
+
+  private static final int META = 16;
+
+  private static final int USED = 20;
+
+  private static final int SLOT = 24;
+
+  /* Layout of the header of a file: a magic number, the format version, the number of segments,
+   * the number of slots in each, and the operands and meta of the calculator sessions start as */
+  private static final int MAGIC = 0x43414C43;
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER = 64;
+
+  private static final int MAX_SEGMENTS = 64;
+
+  /* A segment can't be larger than one buffer */
+  private static final int MAX_SLOTS = 1 << 26;
+
+  /* One table of slots, locked as a whole */
+  private static final class Segment {
+    private final ByteBuffer slots;
+
+    private final int mask;
+
+    private int size;
+
+    private Segment(ByteBuffer slots, int capacity) {
+      this.slots = slots;
+      this.mask = capacity - 1;
+    }
+  }
+
+  /* The backing file of a store, and its segments mapped into memory */
+  private static final class Mapping {
+    private final FileChannel file;
+
+    private final Segment[] segments;
+
+    private Mapping(FileChannel file, Segment[] segments) {
+      this.file = file;
+      this.segments = segments;
+    }
+  }
+
+  private final AbstractCalculator start;
+
+  private final long startOperands;
+
+  private final int startMeta;
+
+  private final Segment[] segments;
+
+  /* The channel of the backing file, or null for a store in memory only */
+  private final FileChannel file;
+
+  /**
+   * Create an empty store in memory, whose sessions start as the given calculator, with room for
+   * at least the given number of sessions.
+   *
+   * @param start    the calculator every session starts as
+   * @param capacity the number of sessions the store is sized for
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the capacity is not positive or too large
+   */
+  public OffHeapSessionStore(Calculator start, int capacity) throws IllegalArgumentException {
+    this(start, new Mapping(null, allocate(capacity)));
+  }
+
+  /**
+   * Open a store backed by the given file, whose new sessions start as the given calculator. If
+   * the file doesn't exist or is empty, it is created with room for at least the given number of
+   * sessions; otherwise, the sessions in it are kept, along with its size.
+   *
+   * @param start    the calculator every new session starts as
+   * @param capacity the number of sessions a new file is sized for
+   * @param path     the file holding the sessions
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the capacity is not positive or too large
+   * @throws IOException              if the file can't be opened or mapped, doesn't hold a store,
+   *         or holds sessions starting as another calculator
+   */
+  public OffHeapSessionStore(Calculator start, int capacity, Path path)
+          throws IllegalArgumentException, IOException {
+    this(start, map(start, capacity, path));
+  }
+
+  private OffHeapSessionStore(Calculator start, Mapping mapping) throws IllegalArgumentException {
+    this.startOperands = StateCodec.operands(start);
+    this.startMeta = StateCodec.meta(start);
+    this.start = (AbstractCalculator) start;
+    this.segments = mapping.segments;
+    this.file = mapping.file;
+  }
+
+  /**
+   * Return the number of sessions in this store.
+   *
+   * @return the number of sessions a button has been input to and that weren't removed since
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Return whether this store holds a session with the given id.
+   *
+   * @param sessionId the id of the session
+   * @return true if a button has been input to the session and it wasn't removed since
+   */
+  public boolean contains(long sessionId) {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      return find(segment, sessionId) >= 0;
+    }
+  }
+
+  /**
+   * Input a button to a session, updating it in place, and adding it in the starting state first
+   * if the store doesn't hold it yet. A button the session rejects leaves it unchanged.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   * @throws IllegalStateException if the session is new and its segment of the store is full
+   */
+  public boolean input(long sessionId, char button) throws IllegalStateException {
+    return tryInput(sessionId, button) == InputStatus.OK;
+  }
+
+  /**
+   * Input a button to a session in the same way as input(long, char), but return why a rejected
+   * button wasn't accepted instead of only whether it was.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return OK if the button was accepted, otherwise the reason it was rejected
+   * @throws IllegalStateException if the session is new and its segment of the store is full
+   */
+  public InputStatus tryInput(long sessionId, char button) throws IllegalStateException {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return apply(sessionId, button, null);
+    }
+    long start = System.nanoTime();
+    InputStatus status = apply(sessionId, button, metrics);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    return status;
+  }
+
+  /* The input path of tryInput(long, char); the button is counted in the given metrics, if any */
+  private InputStatus apply(long sessionId, char button, CalculatorMetrics metrics)
+          throws IllegalStateException {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      int slot = findOrInsert(segment, sessionId);
+      long operands = operands(segment, slot);
+      int meta = meta(segment, slot);
+      if (metrics != null) {
+        metrics.record(operands, meta, button);
+      }
+      int next = StateCodec.nextMeta(operands, meta, button);
+      if (StateCodec.isRejected(next)) {
+        return TransitionTable.status(StateCodec.variant(meta), StateCodec.flags(meta),
+                StateCodec.firstOperand(operands), StateCodec.secondOperand(operands), button);
+      }
+      set(segment, slot, StateCodec.nextOperands(operands, meta, button), next);
+      return InputStatus.OK;
+    }
+  }
+
+  /**
+   * Append the current screen of a session to the given StringBuilder.
+   *
+   * @param sessionId the id of the session
+   * @param screen    the StringBuilder to append the screen to
+   * @return true if the store holds the session, false if it doesn't, in which case nothing is
+   *     appended
+   */
+  public boolean render(long sessionId, StringBuilder screen) {
+    Segment segment = segmentOf(sessionId);
+    long operands;
+    int meta;
+    synchronized (segment) {
+      int slot = find(segment, sessionId);
+      if (slot < 0) {
+        return false;
+      }
+      operands = operands(segment, slot);
+      meta = meta(segment, slot);
+    }
+    StateCodec.render(operands, meta, screen);
+    return true;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the store doesn't hold it
+   */
+  public String getResult(long sessionId) {
+    StringBuilder screen = new StringBuilder();
+    return render(sessionId, screen) ? screen.toString() : null;
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session. The calculator is of
+   * the same class as the one the store was created with, and shares its state cache.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the store doesn't hold it
+   */
+  public Calculator toCalculator(long sessionId) {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      int slot = find(segment, sessionId);
+      if (slot < 0) {
+        return null;
+      }
+      return StateCodec.decode(start, operands(segment, slot), meta(segment, slot));
+    }
+  }
+
+  /**
+   * Remove a session; the next button input to it starts it over.
+   *
+   * @param sessionId the id of the session
+   * @return true if the store held the session
+   */
+  public boolean remove(long sessionId) {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      int slot = find(segment, sessionId);
+      if (slot < 0) {
+        return false;
+      }
+      removeAt(segment, slot);
+      return true;
+    }
+  }
+
+  /* Stores a session in the given packed state, replacing any state it had */
+  void put(long sessionId, long operands, int meta) throws IllegalStateException {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      set(segment, findOrInsert(segment, sessionId), operands, meta);
+    }
+  }
+
+  /* Removes a session, handing its packed state to the receiver first; returns false if the
+   * store has none */
+  boolean take(long sessionId, SessionRegistry.Visitor receiver) {
+    Segment segment = segmentOf(sessionId);
+    synchronized (segment) {
+      int slot = find(segment, sessionId);
+      if (slot < 0) {
+        return false;
+      }
+      receiver.visit(sessionId, operands(segment, slot), meta(segment, slot));
+      removeAt(segment, slot);
+      return true;
+    }
+  }
+
+  /**
+   * Hand every session to the given visitor, one segment at a time, in no particular order. Each
+   * segment is locked while its sessions are visited, so the visitor must not use the store.
+   *
+   * @param visitor the receiver of the sessions
+   */
+  public void forEach(SessionRegistry.Visitor visitor) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (int slot = 0; slot <= segment.mask; slot++) {
+          if (isUsed(segment, slot)) {
+            visitor.visit(key(segment, slot), operands(segment, slot), meta(segment, slot));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Write every change to the backing file, if the store has one.
+   */
+  public void flush() {
+    if (file == null) {
+      return;
+    }
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        ((MappedByteBuffer) segment.slots).force();
+      }
+    }
+  }
+
+  /**
+   * Write every change to the backing file and close it. A store in memory only just stays as it
+   * is; its memory is freed once the store is no longer reachable.
+   *
+   * @throws IOException if the file can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    if (file != null) {
+      flush();
+      file.close();
+    }
+  }
+
+  /* Returns whether the sessions with the given ids that this store doesn't hold yet could all be
+   * added to it */
+  boolean hasRoomFor(long[] sessionIds) {
+    int[] added = new int[segments.length];
+    for (long sessionId : sessionIds) {
+      if (!contains(sessionId)) {
+        added[segmentIndex(sessionId)]++;
+      }
+    }
+    for (int i = 0; i < segments.length; i++) {
+      synchronized (segments[i]) {
+        if (segments[i].size + added[i] > maxSize(segments[i])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private Segment segmentOf(long sessionId) {
+    return segments[segmentIndex(sessionId)];
+  }
+
+  private int segmentIndex(long sessionId) {
+    return (int) (mix(sessionId) >>> 58) & (segments.length - 1);
+  }
+
+  /* Returns the most sessions a segment holds, which keeps probe runs from growing too long, and
+   * slots free so that lookups always stop */
+  private static int maxSize(Segment segment) {
+    return segment.mask + 1 - ((segment.mask + 1) >>> 4);
+  }
+
+  /* Returns the slot a key is placed in when nothing collides with it; the segment is chosen by
+   * the top bits of the mixed key, and the slot by the bits below them */
+  private static int home(Segment segment, long sessionId) {
+    return (int) (mix(sessionId) >>> 26) & segment.mask;
+  }
+
+  private static long mix(long sessionId) {
+    return sessionId * 0x9E3779B97F4A7C15L;
+  }
+
+  private static boolean isUsed(Segment segment, int slot) {
+    return segment.slots.getInt(slot * SLOT + USED) != 0;
+  }
+
+  private static long key(Segment segment, int slot) {
+    return segment.slots.getLong(slot * SLOT + KEY);
+  }
+
+  private static long operands(Segment segment, int slot) {
+    return segment.slots.getLong(slot * SLOT + OPERANDS);
+  }
+
+  private static int meta(Segment segment, int slot) {
+    return segment.slots.getInt(slot * SLOT + META);
+  }
+
+  private static void set(Segment segment, int slot, long operands, int meta) {
+    segment.slots.putLong(slot * SLOT + OPERANDS, operands);
+    segment.slots.putInt(slot * SLOT + META, meta);
+  }
+
+  /* Returns the slot holding the session, or -1 if the segment has none */
+  private static int find(Segment segment, long sessionId) {
+    for (int slot = home(segment, sessionId); isUsed(segment, slot);
+         slot = (slot + 1) & segment.mask) {
+      if (key(segment, slot) == sessionId) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /* Returns the slot holding the session, adding it in the starting state if the segment has
+   * none */
+  private int findOrInsert(Segment segment, long sessionId) throws IllegalStateException {
+    int slot = home(segment, sessionId);
+    while (isUsed(segment, slot)) {
+      if (key(segment, slot) == sessionId) {
+        return slot;
+      }
+      slot = (slot + 1) & segment.mask;
+    }
+    if (segment.size + 1 > maxSize(segment)) {
+      throw new IllegalStateException("No room for session " + sessionId);
+    }
+    segment.slots.putLong(slot * SLOT + KEY, sessionId);
+    set(segment, slot, startOperands, startMeta);
+    segment.slots.putInt(slot * SLOT + USED, 1);
+    segment.size++;
+    return slot;
+  }
+
+  /* Empties the slot, then moves back every later entry of the same run that may now be placed
+   * closer to its home slot, as in the SessionMap */
+  private static void removeAt(Segment segment, int slot) {
+    int hole = slot;
+    for (int i = (slot + 1) & segment.mask; isUsed(segment, i); i = (i + 1) & segment.mask) {
+      int home = home(segment, key(segment, i));
+      if (((i - home) & segment.mask) >= ((i - hole) & segment.mask)) {
+        segment.slots.putLong(hole * SLOT + KEY, key(segment, i));
+        set(segment, hole, operands(segment, i), meta(segment, i));
+        hole = i;
+      }
+    }
+    segment.slots.putInt(hole * SLOT + USED, 0);
+    segment.size--;
+  }
+
+  /* Returns the number of segments for a store of the given capacity */
+  private static int segmentsFor(int capacity) throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    return Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, capacity / 1024)));
+  }
+
+  /* Returns the number of slots in each segment of a store of the given capacity */
+  private static int slotsFor(int capacity) throws IllegalArgumentException {
+    long wanted = Math.max(16, (long) capacity / segmentsFor(capacity) * 4 / 3 + 1);
+    if (wanted > MAX_SLOTS) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    int slots = Integer.highestOneBit((int) wanted);
+    return (slots < wanted) ? slots << 1 : slots;
+  }
+
+  /* Allocates the segments of a store in memory only */
+  private static Segment[] allocate(int capacity) throws IllegalArgumentException {
+    Segment[] segments = new Segment[segmentsFor(capacity)];
+    int slots = slotsFor(capacity);
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(ByteBuffer.allocateDirect(slots * SLOT), slots);
+    }
+    return segments;
+  }
+
+  /* Opens the file, writing the header of a new store if it is empty, and maps its segments */
+  private static Mapping map(Calculator start, int capacity, Path path)
+          throws IllegalArgumentException, IOException {
+    /* fail before touching the file */
+    long startOperands = StateCodec.operands(start);
+    int startMeta = StateCodec.unmarked(StateCodec.meta(start));
+    int segmentCount = segmentsFor(capacity);
+    int slots = slotsFor(capacity);
+    FileChannel channel = FileChannel.open(Objects.requireNonNull(path), StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      if (channel.size() == 0) {
+        header.putInt(MAGIC).putInt(VERSION).putInt(segmentCount).putInt(slots)
+                .putLong(startOperands).putInt(startMeta).clear();
+        channel.write(header, 0);
+      } else {
+        channel.read(header, 0);
+        header.flip();
+        if ((header.remaining() < HEADER) || (header.getInt() != MAGIC)
+                || (header.getInt() != VERSION)) {
+          throw new IOException(path + " doesn't hold a session store");
+        }
+        segmentCount = header.getInt();
+        slots = header.getInt();
+        if ((segmentCount <= 0) || (segmentCount > MAX_SEGMENTS) || (slots < 16)
+                || (slots > MAX_SLOTS) || (Integer.bitCount(segmentCount) != 1)
+                || (Integer.bitCount(slots) != 1)) {
+          throw new IOException(path + " has an invalid session store header");
+        }
+        if ((header.getLong() != startOperands) || (header.getInt() != startMeta)) {
+          throw new IOException(path + " holds sessions starting as another calculator");
+        }
+      }
+      Segment[] segments = new Segment[segmentCount];
+      long size = (long) slots * SLOT;
+      for (int i = 0; i < segmentCount; i++) {
+        segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, HEADER + i * size,
+                size), slots);
+        for (int slot = 0; slot < slots; slot++) {
+          if (isUsed(segments[i], slot)) {
+            segments[i].size++;
+          }
+        }
+      }
+      return new Mapping(channel, segments);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "OffHeapSessionStore(" + size() + " sessions in " + segments.length + " segments)";
+  }
+}
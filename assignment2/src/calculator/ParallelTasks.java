@@ -0,0 +1,37 @@
+package calculator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * This class runs numbered pieces of work on an executor and waits for all of them, for the
+ * classes of this package that split their work into independent parts.
+ */
+final class ParallelTasks {
+  /* A piece of work that is given its number */
+  interface Task {
+    void run(int number);
+  }
+
+  private ParallelTasks() {
+  }
+
+  /* Runs the task with every number from 0 up to the count on the executor, and waits for all of
+   * them to finish; a runtime exception thrown by any of them is rethrown */
+  static void runAll(Executor executor, int count, Task task) {
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+    for (int i = 0; i < count; i++) {
+      int number = i;
+      futures[i] = CompletableFuture.runAsync(() -> task.run(number), executor);
+    }
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds a copy of the calculator sessions of a ReplicationPrimary, applying the
+ * buttons the primary ships to its own sessions under the same rules, and acknowledging every
+ * batch it has applied. A backup that disconnects keeps its sessions and can connect again,
+ * possibly to another primary of the same history; the primary then catches it up from the
+ * sequence number it had reached, or with a full snapshot if the backup applied events the
+ * primary's history doesn't hold. The backup takes on the histories of the primary once its
+ * sessions are part of them.
+ *
+ * <p>When the primary fails, a backup can be promoted to a primary holding its sessions, which
+ * the other backups can connect to. A backup may be used by any number of threads at once.
+ */
+public final class ReplicationBackup implements Closeable {
+  private final SessionRegistry sessions;
+
+  private final int startMeta;
+
+  private long sequence;
+
+  /* The ids of the histories the sessions belong to, oldest first, and the sequence number each
+   * of them started at; empty until the first primary was connected to */
+  private long[] histories = new long[0];
+
+  private long[] historyBases = new long[0];
+
+  /* The histories of the primary connected to, taken on with its first snapshot if the backup
+   * has to be caught up with one */
+  private long[] offeredHistories;
+
+  private long[] offeredBases;
+
+  /* The connection to the primary, or null while disconnected */
+  private Socket socket;
+
+  private boolean closed;
+
+  private boolean promoted;
+
+  /**
+   * Create a disconnected backup with no sessions, whose sessions start as the given calculator.
+   *
+   * @param start the calculator every session starts as, which must be the same as the primary's
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public ReplicationBackup(Calculator start) throws IllegalArgumentException {
+    this.sessions = new SessionRegistry(start);
+    this.startMeta = StateCodec.meta(start);
+  }
+
+  /**
+   * Connect to a primary and start applying the events it ships, beginning with the first one
+   * this backup hasn't applied yet.
+   *
+   * @param host the host of the primary
+   * @param port the port the primary accepts backups on
+   * @throws IOException           if the primary can't be reached, or refuses this backup because
+   *                               it follows other rules, belongs to a history the primary
+   *                               doesn't descend from, or is ahead of the primary
+   * @throws IllegalStateException if the backup is already connected, or closed
+   */
+  public synchronized void connect(String host, int port)
+          throws IOException, IllegalStateException {
+    checkUsable();
+    if (socket != null) {
+      throw new IllegalStateException("The backup is already connected");
+    }
+    Socket connection = new Socket(host, port);
+    try {
+      connection.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(connection.getInputStream(), 1 << 16));
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(connection.getOutputStream()));
+      out.writeInt(ReplicationPrimary.MAGIC);
+      out.writeByte(ReplicationPrimary.VERSION);
+      out.writeInt(startMeta);
+      out.writeLong((histories.length == 0) ? 0 : histories[histories.length - 1]);
+      out.writeLong(sequence);
+      out.flush();
+      int answer = in.readByte();
+      if (answer == ReplicationPrimary.REFUSED) {
+        throw new IOException("The primary refused the backup");
+      }
+      int count = in.readInt();
+      if (((answer != ReplicationPrimary.EVENTS) && (answer != ReplicationPrimary.SNAPSHOT))
+              || (count <= 0) || (count > (1 << 16))) {
+        throw new IOException("Damaged handshake");
+      }
+      offeredHistories = new long[count];
+      offeredBases = new long[count];
+      for (int i = 0; i < count; i++) {
+        offeredHistories[i] = in.readLong();
+        offeredBases[i] = in.readLong();
+      }
+      if (answer == ReplicationPrimary.EVENTS) {
+        /* the sessions are already part of the primary's history */
+        histories = offeredHistories;
+        historyBases = offeredBases;
+      }
+      socket = connection;
+      Thread thread = new Thread(() -> receive(connection, in, out),
+              "calculator-replication-receive");
+      thread.setDaemon(true);
+      thread.start();
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Disconnect from the primary, keeping the sessions as they are.
+   */
+  public synchronized void disconnect() {
+    if (socket != null) {
+      drop(socket);
+    }
+  }
+
+  /**
+   * Return whether the backup is connected to a primary.
+   *
+   * @return true if the backup is connected
+   */
+  public synchronized boolean isConnected() {
+    return socket != null;
+  }
+
+  /**
+   * Return the sequence number of the last event applied.
+   *
+   * @return the sequence number of the last button applied, or of the snapshot last restored
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Wait until the event with the given sequence number has been applied.
+   *
+   * @param sequence the sequence number of the event
+   * @param timeout  the longest time to wait
+   * @param unit     the unit of the timeout
+   * @return true if the event has been applied, or false if the time ran out first
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized boolean awaitSequence(long sequence, long timeout, TimeUnit unit)
+          throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (this.sequence < sequence) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the backup doesn't hold it
+   * @throws IllegalStateException if the backup has been promoted
+   */
+  public synchronized String getResult(long sessionId) throws IllegalStateException {
+    checkNotPromoted();
+    return sessions.getResult(sessionId);
+  }
+
+  /**
+   * Print the current screen of every session.
+   *
+   * @return a new map from the id of every session to its screen
+   * @throws IllegalStateException if the backup has been promoted
+   */
+  public synchronized Map<Long, String> getResults() throws IllegalStateException {
+    checkNotPromoted();
+    return sessions.getResults();
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the backup doesn't hold it
+   * @throws IllegalStateException if the backup has been promoted
+   */
+  public synchronized Calculator toCalculator(long sessionId) throws IllegalStateException {
+    checkNotPromoted();
+    return sessions.toCalculator(sessionId);
+  }
+
+  /**
+   * Return the number of sessions in this backup.
+   *
+   * @return the number of sessions
+   * @throws IllegalStateException if the backup has been promoted
+   */
+  public synchronized int size() throws IllegalStateException {
+    checkNotPromoted();
+    return sessions.size();
+  }
+
+  /**
+   * Disconnect from the primary and create a primary holding this backup's sessions, at this
+   * backup's sequence number, accepting backups on the given port. The new primary starts a
+   * history of its own, descending from the histories of this backup. The backup is closed and
+   * hands its sessions over to the new primary.
+   *
+   * @param port the port for the new primary to accept backups on, or 0 for any free port
+   * @return the new primary
+   * @throws IOException           if the port can't be listened on, in which case the backup is
+   *                               left disconnected but usable
+   * @throws IllegalStateException if the backup is closed
+   */
+  public synchronized ReplicationPrimary promote(int port)
+          throws IOException, IllegalStateException {
+    checkUsable();
+    disconnect();
+    ReplicationPrimary primary = new ReplicationPrimary(sessions, startMeta, sequence, histories,
+            historyBases, port, ReplicationPrimary.DEFAULT_BACKLOG);
+    closed = true;
+    promoted = true;
+    return primary;
+  }
+
+  /**
+   * Disconnect from the primary for good; the sessions can still be read.
+   */
+  @Override
+  public synchronized void close() {
+    disconnect();
+    closed = true;
+  }
+
+  /* Applies the frames the primary ships until the connection is lost or dropped */
+  private void receive(Socket connection, DataInputStream in, DataOutputStream out) {
+    long[] ids = new long[ReplicationPrimary.MAX_BATCH];
+    char[] buttons = new char[ReplicationPrimary.MAX_BATCH];
+    try {
+      while (true) {
+        int kind = in.readByte();
+        long first = in.readLong();
+        int length = in.readInt();
+        long applied;
+        if (kind == ReplicationPrimary.SNAPSHOT) {
+          if (length < 0) {
+            throw new IOException("Damaged snapshot frame");
+          }
+          byte[] snapshot = new byte[length];
+          in.readFully(snapshot);
+          applied = applySnapshot(connection, first, snapshot);
+        } else if (kind == ReplicationPrimary.EVENTS) {
+          if ((length <= 0) || (length > ReplicationPrimary.MAX_BATCH)) {
+            throw new IOException("Damaged event frame");
+          }
+          for (int i = 0; i < length; i++) {
+            ids[i] = in.readLong();
+            buttons[i] = (char) (in.readByte() & 0xFF);
+          }
+          applied = applyEvents(connection, first, ids, buttons, length);
+        } else {
+          throw new IOException("Unknown frame " + kind);
+        }
+        out.writeLong(applied);
+        out.flush();
+      }
+    } catch (IOException e) {
+      /* the primary disconnected, sent something this backup can't apply, or was dropped */
+      synchronized (this) {
+        drop(connection);
+      }
+    }
+  }
+
+  private synchronized long applySnapshot(Socket connection, long first, byte[] snapshot)
+          throws IOException {
+    checkCurrent(connection);
+    sessions.restore(new ByteArrayInputStream(snapshot));
+    sequence = first;
+    histories = offeredHistories;
+    historyBases = offeredBases;
+    notifyAll();
+    return sequence;
+  }
+
+  private synchronized long applyEvents(Socket connection, long first, long[] ids,
+                                        char[] buttons, int count) throws IOException {
+    checkCurrent(connection);
+    if (first != sequence + 1) {
+      throw new IOException("Expected event " + (sequence + 1) + " but got " + first);
+    }
+    try {
+      for (int i = 0; i < count; i++) {
+        if (!sessions.replay(ids[i], buttons[i])) {
+          throw new IOException("The backup has diverged from the primary at event "
+                  + (sequence + 1));
+        }
+        sequence++;
+      }
+    } finally {
+      notifyAll();
+    }
+    return sequence;
+  }
+
+  /* Makes sure the connection wasn't dropped while a frame was read, so that a promoted or
+   * reconnected backup never applies a frame of an old connection */
+  private void checkCurrent(Socket connection) throws IOException {
+    if (socket != connection) {
+      throw new IOException("The connection was dropped");
+    }
+  }
+
+  /* Closes the given connection, holding this backup's lock */
+  private void drop(Socket connection) {
+    if (socket == connection) {
+      socket = null;
+      notifyAll();
+    }
+    try {
+      connection.close();
+    } catch (IOException e) {
+      /* nothing more can be done about this connection */
+      return;
+    }
+  }
+
+  private void checkUsable() throws IllegalStateException {
+    if (closed) {
+      throw new IllegalStateException("The backup is closed");
+    }
+  }
+
+  private void checkNotPromoted() throws IllegalStateException {
+    if (promoted) {
+      throw new IllegalStateException("The backup has been promoted");
+    }
+  }
+}
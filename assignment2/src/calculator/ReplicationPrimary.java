@@ -0,0 +1,495 @@
+package calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds calculator sessions like a SessionRegistry and ships every button they accept
+ * over sockets to any number of ReplicationBackups, which apply the same buttons to their own
+ * sessions under the same rules. If the primary fails, a backup can be promoted to take its place
+ * with the sessions as they were after the last button it received.
+ *
+ * <p>Every accepted button is an event with a sequence number. The primary keeps the latest events
+ * in a bounded backlog, and each backup has a thread that ships the events it hasn't received yet
+ * in batches, without waiting for the backup to acknowledge the previous ones. A backup reports
+ * the sequence number it has applied in the handshake; if the events after it have already left
+ * the backlog, because the backup is new, was disconnected for a while or fell too far behind,
+ * the primary catches it up with a full snapshot of the sessions instead, and carries on with the
+ * events after that.
+ *
+ * <p>Every primary starts a history of its own, with a random id, and carries the ids of the
+ * histories it descends from, along with the sequence numbers at which each of them was taken
+ * over by a promoted backup. A backup reports the history its sessions belong to in the
+ * handshake. Its events are only shipped on from its sequence number if they are part of this
+ * primary's history; a backup that went on applying events of an older primary after the backup
+ * promoted in its place stopped receiving them is caught up with a full snapshot instead, and a
+ * backup of a history this primary doesn't descend from is refused.
+ *
+ * <p>A primary may be used by any number of threads at once. Taking a snapshot for a backup
+ * holds up input until the snapshot has been written to memory.
+ */
+public final class ReplicationPrimary implements Closeable {
+  /* Shared with the ReplicationBackup */
+  static final int MAGIC = 0x43524550;
+
+  static final int VERSION = 2;
+
+  /* Answers to the handshake, besides SNAPSHOT and EVENTS for how the backup is caught up */
+  static final int REFUSED = 0;
+
+  static final int SNAPSHOT = 1;
+
+  static final int EVENTS = 2;
+
+  static final int MAX_BATCH = 4096;
+
+  static final int DEFAULT_BACKLOG = 1 << 16;
+
+  private final SessionRegistry sessions;
+
+  private final int startMeta;
+
+  /* The backlog of the latest events, indexed by their sequence numbers */
+  private final long[] ids;
+
+  private final byte[] buttons;
+
+  private final int mask;
+
+  /* The sequence number the sessions were at when this primary took them over */
+  private final long base;
+
+  /* The ids of the histories this primary descends from, oldest first and ending with its own,
+   * and the sequence number each of them started at */
+  private final long[] histories;
+
+  private final long[] historyBases;
+
+  private long lastSequence;
+
+  private final ServerSocket server;
+
+  private final List<Link> links = new ArrayList<>();
+
+  private boolean closed;
+
+  /**
+   * Create a primary with no sessions, whose sessions start as the given calculator, accepting
+   * backups on the given port and keeping a backlog of 65536 events.
+   *
+   * @param start the calculator every session starts as
+   * @param port  the port to accept backups on, or 0 for any free port
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IOException              if the port can't be listened on
+   */
+  public ReplicationPrimary(Calculator start, int port)
+          throws IllegalArgumentException, IOException {
+    this(start, port, DEFAULT_BACKLOG);
+  }
+
+  /**
+   * Create a primary with no sessions, whose sessions start as the given calculator, accepting
+   * backups on the given port and keeping a backlog of at least the given number of events.
+   *
+   * @param start   the calculator every session starts as
+   * @param port    the port to accept backups on, or 0 for any free port
+   * @param backlog the number of latest events to keep for backups that fall behind
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the backlog is not positive or too large
+   * @throws IOException              if the port can't be listened on
+   */
+  public ReplicationPrimary(Calculator start, int port, int backlog)
+          throws IllegalArgumentException, IOException {
+    this(new SessionRegistry(start), StateCodec.meta(start), 0, new long[0], new long[0], port,
+            backlog);
+  }
+
+  /* Takes over the given sessions, which are at the given sequence number of the last of the
+   * given histories, starting a new history from there */
+  ReplicationPrimary(SessionRegistry sessions, int startMeta, long sequence, long[] histories,
+                     long[] historyBases, int port, int backlog)
+          throws IllegalArgumentException, IOException {
+    if ((backlog <= 0) || (backlog > (1 << 24))) {
+      throw new IllegalArgumentException("Invalid backlog " + backlog);
+    }
+    int capacity = 1;
+    while (capacity < backlog) {
+      capacity <<= 1;
+    }
+    this.sessions = sessions;
+    this.startMeta = startMeta;
+    this.ids = new long[capacity];
+    this.buttons = new byte[capacity];
+    this.mask = capacity - 1;
+    this.base = sequence;
+    this.lastSequence = sequence;
+    int count = histories.length;
+    this.histories = Arrays.copyOf(histories, count + 1);
+    this.historyBases = Arrays.copyOf(historyBases, count + 1);
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0);
+    this.histories[count] = id;
+    this.historyBases[count] = sequence;
+    this.server = new ServerSocket(port);
+    start("calculator-replication-accept", this::accept);
+  }
+
+  /**
+   * Return the port backups connect to.
+   *
+   * @return the port this primary listens on
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Input a button to a session, adding it in the starting state first if the primary doesn't
+   * hold it yet, and queue it for the backups. A button the session rejects leaves it unchanged
+   * and is not shipped.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   * @throws IllegalStateException if the primary is closed
+   */
+  public synchronized boolean input(long sessionId, char button) throws IllegalStateException {
+    if (closed) {
+      throw new IllegalStateException("The primary is closed");
+    }
+    boolean known = sessions.contains(sessionId);
+    if (!sessions.input(sessionId, button)) {
+      /* a backup only learns of a session once it has accepted a button, so it is only kept then */
+      if (!known) {
+        sessions.remove(sessionId);
+      }
+      return false;
+    }
+    int index = (int) ++lastSequence & mask;
+    ids[index] = sessionId;
+    buttons[index] = (byte) button;
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the primary doesn't hold it
+   */
+  public synchronized String getResult(long sessionId) {
+    return sessions.getResult(sessionId);
+  }
+
+  /**
+   * Print the current screen of every session.
+   *
+   * @return a new map from the id of every session to its screen
+   */
+  public synchronized Map<Long, String> getResults() {
+    return sessions.getResults();
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the primary doesn't hold it
+   */
+  public synchronized Calculator toCalculator(long sessionId) {
+    return sessions.toCalculator(sessionId);
+  }
+
+  /**
+   * Return the number of sessions in this primary.
+   *
+   * @return the number of sessions a button has been accepted by
+   */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Return the sequence number of the last event.
+   *
+   * @return the sequence number of the last accepted button
+   */
+  public synchronized long getSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Return the number of backups currently connected.
+   *
+   * @return the number of backups that completed the handshake and haven't disconnected since
+   */
+  public synchronized int getBackupCount() {
+    return links.size();
+  }
+
+  /**
+   * Wait until every connected backup has applied the event with the given sequence number.
+   *
+   * @param sequence the sequence number of the event
+   * @param timeout  the longest time to wait
+   * @param unit     the unit of the timeout
+   * @return true if every backup connected at the end has applied the event, which is trivially
+   *     the case without backups, or false if the time ran out first
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized boolean awaitReplicated(long sequence, long timeout, TimeUnit unit)
+          throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!isReplicated(sequence)) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Stop accepting backups and disconnect the connected ones; the sessions can still be read.
+   *
+   * @throws IOException if the server socket can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    List<Link> open;
+    synchronized (this) {
+      closed = true;
+      open = new ArrayList<>(links);
+      notifyAll();
+    }
+    for (Link link : open) {
+      link.drop();
+    }
+    server.close();
+  }
+
+  private boolean isReplicated(long sequence) {
+    for (Link link : links) {
+      if (link.acknowledged < sequence) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Returns how a backup at the given sequence number of the given history, 0 if it has none,
+   * is caught up: with the events after its sequence number if it hasn't applied any events
+   * since its history and this primary's parted, with a snapshot if it has, or not at all if
+   * its history is not one this primary descends from or it claims events this primary never
+   * had */
+  private int catchUp(long history, long sequence) {
+    if (sequence == 0) {
+      return EVENTS;
+    }
+    int last = histories.length - 1;
+    for (int i = last; i >= 0; i--) {
+      if (histories[i] == history) {
+        if (sequence <= ((i == last) ? lastSequence : historyBases[i + 1])) {
+          return EVENTS;
+        }
+        return (i == last) ? REFUSED : SNAPSHOT;
+      }
+    }
+    return REFUSED;
+  }
+
+  /* Returns the sequence number of the oldest event still in the backlog */
+  private long firstRetained() {
+    return Math.max(base + 1, lastSequence - mask);
+  }
+
+  private void accept() {
+    while (true) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        /* the server socket was closed */
+        return;
+      }
+      Link link = new Link(socket);
+      start("calculator-replication-ship", link::ship);
+    }
+  }
+
+  private static void start(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /* The connection to one backup, with a thread shipping events to it and another reading its
+   * acknowledgements; the fields are guarded by the primary's lock */
+  private final class Link {
+    private final Socket socket;
+
+    private long shipped;
+
+    private long acknowledged;
+
+    private boolean open = true;
+
+    private Link(Socket socket) {
+      this.socket = socket;
+    }
+
+    private void ship() {
+      try {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        if (!handshake(in, out)) {
+          return;
+        }
+        start("calculator-replication-ack", () -> readAcknowledgements(in));
+        long[] batchIds = new long[MAX_BATCH];
+        byte[] batchButtons = new byte[MAX_BATCH];
+        while (true) {
+          byte[] snapshot = null;
+          long first;
+          int count = 0;
+          synchronized (ReplicationPrimary.this) {
+            while (open && !closed && (shipped == lastSequence)) {
+              ReplicationPrimary.this.wait();
+            }
+            if (!open || closed) {
+              return;
+            }
+            if (shipped < firstRetained() - 1) {
+              ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+              sessions.writeSnapshot(bytes);
+              snapshot = bytes.toByteArray();
+              first = lastSequence;
+              shipped = lastSequence;
+            } else {
+              first = shipped + 1;
+              count = (int) Math.min(MAX_BATCH, lastSequence - shipped);
+              for (int i = 0; i < count; i++) {
+                int index = (int) (first + i) & mask;
+                batchIds[i] = ids[index];
+                batchButtons[i] = buttons[index];
+              }
+              shipped += count;
+            }
+          }
+          /* write outside the lock, so that a slow backup holds up nobody but itself */
+          if (snapshot != null) {
+            out.writeByte(SNAPSHOT);
+            out.writeLong(first);
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+          } else {
+            out.writeByte(EVENTS);
+            out.writeLong(first);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+              out.writeLong(batchIds[i]);
+              out.writeByte(batchButtons[i]);
+            }
+          }
+          out.flush();
+        }
+      } catch (IOException | InterruptedException e) {
+        /* the backup disconnected, or the primary was closed */
+        return;
+      } finally {
+        drop();
+      }
+    }
+
+    /* Reads the backup's hello and answers it with how the backup is caught up and, unless it
+     * is refused, the histories of this primary; a backup is refused if it follows other rules,
+     * belongs to a history this primary doesn't descend from, or claims events this primary
+     * never had */
+    private boolean handshake(DataInputStream in, DataOutputStream out) throws IOException {
+      boolean valid = (in.readInt() == MAGIC) & (in.readByte() == VERSION)
+              & (in.readInt() == startMeta);
+      long history = in.readLong();
+      long sequence = in.readLong();
+      int answer;
+      synchronized (ReplicationPrimary.this) {
+        answer = (valid && !closed && (sequence >= 0)) ? catchUp(history, sequence) : REFUSED;
+        if (answer == EVENTS) {
+          shipped = sequence;
+          acknowledged = sequence;
+        } else if (answer == SNAPSHOT) {
+          /* whatever the backup has applied since the histories parted is replaced */
+          shipped = -1;
+          acknowledged = -1;
+        }
+        if (answer != REFUSED) {
+          links.add(this);
+        }
+      }
+      out.writeByte(answer);
+      if (answer != REFUSED) {
+        out.writeInt(histories.length);
+        for (int i = 0; i < histories.length; i++) {
+          out.writeLong(histories[i]);
+          out.writeLong(historyBases[i]);
+        }
+      }
+      out.flush();
+      return answer != REFUSED;
+    }
+
+    private void readAcknowledgements(DataInputStream in) {
+      try {
+        while (true) {
+          long sequence = in.readLong();
+          synchronized (ReplicationPrimary.this) {
+            acknowledged = sequence;
+            ReplicationPrimary.this.notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        /* the backup disconnected */
+        return;
+      } finally {
+        drop();
+      }
+    }
+
+    private void drop() {
+      synchronized (ReplicationPrimary.this) {
+        if (!open) {
+          return;
+        }
+        open = false;
+        links.remove(this);
+        ReplicationPrimary.this.notifyAll();
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        /* nothing more can be done about this connection */
+        return;
+      }
+    }
+  }
+}
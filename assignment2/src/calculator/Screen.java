@@ -0,0 +1,140 @@
+package calculator;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * This class writes the screen of a calculator state straight into a caller-supplied destination,
+ * converting operands to digits itself rather than going through intermediate strings. The state
+ * is given as its operands, operator and TransitionTable flags; the text is always the same as
+ * getResult() returns for that state.
+ */
+final class Screen {
+  private Screen() {
+  }
+
+  /* Returns the number of characters on the screen of the given state */
+  static int length(int firstOp, int secondOp, int flags) {
+    if ((flags & TransitionTable.FIRST_EMPTY) != 0) {
+      return 0;
+    }
+    int length = digits(firstOp);
+    if ((flags & TransitionTable.OPERATOR_EMPTY) == 0) {
+      length++;
+      if ((flags & TransitionTable.SECOND_EMPTY) == 0) {
+        length += digits(secondOp);
+      }
+    }
+    return length;
+  }
+
+  /* Writes the screen into the array starting at the offset, and returns the number of characters
+   * written; throws an IndexOutOfBoundsException, without writing anything, if they don't fit */
+  static int write(int firstOp, char operator, int secondOp, int flags, char[] dst, int offset) {
+    int length = length(firstOp, secondOp, flags);
+    Objects.checkFromIndexSize(offset, length, dst.length);
+    if (length == 0) {
+      return 0;
+    }
+    int position = writeInt(firstOp, dst, offset);
+    if ((flags & TransitionTable.OPERATOR_EMPTY) == 0) {
+      dst[position++] = operator;
+      if ((flags & TransitionTable.SECOND_EMPTY) == 0) {
+        writeInt(secondOp, dst, position);
+      }
+    }
+    return length;
+  }
+
+  /* Writes the screen as ASCII bytes at the buffer's position, and returns the number of bytes
+   * written; throws a BufferOverflowException, without writing anything, if they don't fit */
+  static int write(int firstOp, char operator, int secondOp, int flags, ByteBuffer dst) {
+    int length = length(firstOp, secondOp, flags);
+    if (dst.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    if (length == 0) {
+      return 0;
+    }
+    writeInt(firstOp, dst);
+    if ((flags & TransitionTable.OPERATOR_EMPTY) == 0) {
+      dst.put((byte) operator);
+      if ((flags & TransitionTable.SECOND_EMPTY) == 0) {
+        writeInt(secondOp, dst);
+      }
+    }
+    return length;
+  }
+
+  /* Appends the screen to the given Appendable one character at a time */
+  static void write(int firstOp, char operator, int secondOp, int flags, Appendable dst)
+          throws IOException {
+    if ((flags & TransitionTable.FIRST_EMPTY) != 0) {
+      return;
+    }
+    writeInt(firstOp, dst);
+    if ((flags & TransitionTable.OPERATOR_EMPTY) == 0) {
+      dst.append(operator);
+      if ((flags & TransitionTable.SECOND_EMPTY) == 0) {
+        writeInt(secondOp, dst);
+      }
+    }
+  }
+
+  /* Returns the number of characters needed to print the number, including a minus sign */
+  static int digits(int number) {
+    long magnitude = Math.abs((long) number);
+    int digits = (number < 0) ? 2 : 1;
+    while (magnitude >= 10) {
+      magnitude /= 10;
+      digits++;
+    }
+    return digits;
+  }
+
+  /* Writes the number into the array at the offset and returns the position right after it */
+  private static int writeInt(int number, char[] dst, int offset) {
+    int end = offset + digits(number);
+    long magnitude = Math.abs((long) number);
+    int position = end;
+    do {
+      dst[--position] = (char) ('0' + (magnitude % 10));
+      magnitude /= 10;
+    } while (magnitude != 0);
+    if (number < 0) {
+      dst[--position] = '-';
+    }
+    return end;
+  }
+
+  private static void writeInt(int number, ByteBuffer dst) {
+    long magnitude = Math.abs((long) number);
+    if (number < 0) {
+      dst.put((byte) '-');
+    }
+    for (long power = highestPower(magnitude); power > 0; power /= 10) {
+      dst.put((byte) ('0' + (magnitude / power) % 10));
+    }
+  }
+
+  private static void writeInt(int number, Appendable dst) throws IOException {
+    long magnitude = Math.abs((long) number);
+    if (number < 0) {
+      dst.append('-');
+    }
+    for (long power = highestPower(magnitude); power > 0; power /= 10) {
+      dst.append((char) ('0' + (magnitude / power) % 10));
+    }
+  }
+
+  /* Returns the highest power of ten that is not greater than the magnitude (1 for zero) */
+  private static long highestPower(long magnitude) {
+    long power = 1;
+    while (power * 10 <= magnitude) {
+      power *= 10;
+    }
+    return power;
+  }
+}
@@ -0,0 +1,289 @@
+package calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class writes the class files of compiled keystroke scripts. Each one is a final class
+ * implementing ScriptCompiler.CompiledScript, whose run method either steps a session through the
+ * buttons of the script as straight-line code, with one call to StateCodec.nextMeta and one to
+ * StateCodec.nextOperands per button and the button itself as a constant, or loads a constant
+ * state into the session. The code has no branches, so the class files need no stack map frames.
+ */
+final class ScriptBytecode {
+  /* The most buttons a class file can step through, so that the code of its run method stays
+   * under the 64KB limit of the class file format */
+  static final int MAX_BUTTONS = 2000;
+
+  private static final int VERSION = 52;
+
+  private static final String CLASS_NAME = "calculator/CompiledScriptSteps";
+
+  private static final String INTERFACE_NAME = "calculator/ScriptCompiler$CompiledScript";
+
+  private static final String SESSION = "calculator/CalculatorSession";
+
+  private static final String CODEC = "calculator/StateCodec";
+
+  /* Constant pool tags */
+  private static final int UTF8 = 1;
+
+  private static final int INTEGER = 3;
+
+  private static final int LONG = 5;
+
+  private static final int CLASS = 7;
+
+  private static final int METHOD_REF = 10;
+
+  private static final int NAME_AND_TYPE = 12;
+
+  /* Opcodes */
+  private static final int ICONST_0 = 0x03;
+
+  private static final int BIPUSH = 0x10;
+
+  private static final int SIPUSH = 0x11;
+
+  private static final int LDC_W = 0x13;
+
+  private static final int LDC2_W = 0x14;
+
+  private static final int ILOAD = 0x15;
+
+  private static final int LLOAD_2 = 0x20;
+
+  private static final int ALOAD_0 = 0x2a;
+
+  private static final int ALOAD_1 = 0x2b;
+
+  private static final int ISTORE = 0x36;
+
+  private static final int LSTORE_2 = 0x41;
+
+  private static final int RETURN = 0xb1;
+
+  private static final int INVOKEVIRTUAL = 0xb6;
+
+  private static final int INVOKESPECIAL = 0xb7;
+
+  private static final int INVOKESTATIC = 0xb8;
+
+  /* Local variables of the run method: this, the session, the operands (two slots), the meta
+   * word and the next meta word */
+  private static final int META = 4;
+
+  private static final int NEXT_META = 5;
+
+  private static final int LOCALS = 6;
+
+  private static final int STACK = 4;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+
+  private int poolCount = 1;
+
+  private ScriptBytecode() {
+  }
+
+  /* Returns a class file whose run method steps the session through the given buttons, of which
+   * there can be at most MAX_BUTTONS */
+  static byte[] steps(CharSequence buttons) {
+    ScriptBytecode writer = new ScriptBytecode();
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    code.write(ALOAD_1);
+    writer.invoke(code, INVOKEVIRTUAL, SESSION, "packedOperands", "()J");
+    code.write(LSTORE_2);
+    code.write(ALOAD_1);
+    writer.invoke(code, INVOKEVIRTUAL, SESSION, "packedMeta", "()I");
+    writeLocal(code, ISTORE, META);
+    for (int i = 0; i < buttons.length(); i++) {
+      char button = buttons.charAt(i);
+      /* the next meta word and operands are both computed from the current state */
+      code.write(LLOAD_2);
+      writeLocal(code, ILOAD, META);
+      writer.push(code, button);
+      writer.invoke(code, INVOKESTATIC, CODEC, "nextMeta", "(JIC)I");
+      writeLocal(code, ISTORE, NEXT_META);
+      code.write(LLOAD_2);
+      writeLocal(code, ILOAD, META);
+      writer.push(code, button);
+      writer.invoke(code, INVOKESTATIC, CODEC, "nextOperands", "(JIC)J");
+      code.write(LSTORE_2);
+      writeLocal(code, ILOAD, NEXT_META);
+      writeLocal(code, ISTORE, META);
+    }
+    code.write(ALOAD_1);
+    code.write(LLOAD_2);
+    writeLocal(code, ILOAD, META);
+    writer.invoke(code, INVOKEVIRTUAL, SESSION, "load", "(JI)V");
+    code.write(RETURN);
+    return writer.classFile(code.toByteArray());
+  }
+
+  /* Returns a class file whose run method loads the given state into the session */
+  static byte[] constant(long operands, int meta) {
+    ScriptBytecode writer = new ScriptBytecode();
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    code.write(ALOAD_1);
+    code.write(LDC2_W);
+    writeShort(code, writer.constant(LONG, Long.toString(operands), operands));
+    writer.push(code, meta);
+    writer.invoke(code, INVOKEVIRTUAL, SESSION, "load", "(JI)V");
+    code.write(RETURN);
+    return writer.classFile(code.toByteArray());
+  }
+
+  /* Returns the whole class file, given the code of the run method */
+  private byte[] classFile(byte[] runCode) {
+    ByteArrayOutputStream constructor = new ByteArrayOutputStream();
+    constructor.write(ALOAD_0);
+    invoke(constructor, INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    constructor.write(RETURN);
+
+    /* every constant has to be in the pool before the pool is written */
+    int thisClass = classRef(CLASS_NAME);
+    int superClass = classRef("java/lang/Object");
+    int scriptInterface = classRef(INTERFACE_NAME);
+    int codeName = utf8("Code");
+    int constructorName = utf8("<init>");
+    int constructorType = utf8("()V");
+    int runName = utf8("run");
+    int runType = utf8("(L" + SESSION + ";)V");
+
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    writeInt(file, 0xCAFEBABE);
+    writeShort(file, 0);
+    writeShort(file, VERSION);
+    writeShort(file, poolCount);
+    file.writeBytes(pool.toByteArray());
+    /* public final super */
+    writeShort(file, 0x0031);
+    writeShort(file, thisClass);
+    writeShort(file, superClass);
+    writeShort(file, 1);
+    writeShort(file, scriptInterface);
+    /* no fields, two methods, no attributes */
+    writeShort(file, 0);
+    writeShort(file, 2);
+    writeMethod(file, constructorName, constructorType, codeName, 1, 1,
+            constructor.toByteArray());
+    writeMethod(file, runName, runType, codeName, STACK, LOCALS, runCode);
+    writeShort(file, 0);
+    return file.toByteArray();
+  }
+
+  /* Writes a public method with the given code and no exception handlers */
+  private static void writeMethod(ByteArrayOutputStream file, int name, int type, int codeName,
+                                  int maxStack, int maxLocals, byte[] code) {
+    writeShort(file, 0x0001);
+    writeShort(file, name);
+    writeShort(file, type);
+    writeShort(file, 1);
+    writeShort(file, codeName);
+    writeInt(file, 12 + code.length);
+    writeShort(file, maxStack);
+    writeShort(file, maxLocals);
+    writeInt(file, code.length);
+    file.writeBytes(code);
+    writeShort(file, 0);
+    writeShort(file, 0);
+  }
+
+  /* Writes the instruction that pushes the given int constant */
+  private void push(ByteArrayOutputStream code, int value) {
+    if ((value >= 0) && (value <= 5)) {
+      code.write(ICONST_0 + value);
+    } else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+      code.write(BIPUSH);
+      code.write(value);
+    } else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+      code.write(SIPUSH);
+      writeShort(code, value);
+    } else {
+      code.write(LDC_W);
+      writeShort(code, constant(INTEGER, Integer.toString(value), value));
+    }
+  }
+
+  private void invoke(ByteArrayOutputStream code, int opcode, String owner, String name,
+                      String type) {
+    code.write(opcode);
+    writeShort(code, methodRef(owner, name, type));
+  }
+
+  private static void writeLocal(ByteArrayOutputStream code, int opcode, int local) {
+    code.write(opcode);
+    code.write(local);
+  }
+
+  private int utf8(String value) {
+    Integer index = poolIndexes.get("U" + value);
+    if (index == null) {
+      index = poolCount++;
+      poolIndexes.put("U" + value, index);
+      pool.write(UTF8);
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeShort(pool, bytes.length);
+      pool.writeBytes(bytes);
+    }
+    return index;
+  }
+
+  private int classRef(String name) {
+    int nameIndex = utf8(name);
+    return entry("C" + name, CLASS, nameIndex, -1);
+  }
+
+  private int methodRef(String owner, String name, String type) {
+    int ownerIndex = classRef(owner);
+    int nameAndType = entry("N" + name + type, NAME_AND_TYPE, utf8(name), utf8(type));
+    return entry("M" + owner + "." + name + type, METHOD_REF, ownerIndex, nameAndType);
+  }
+
+  /* Returns the index of a pool entry made of one or two indexes, adding it if it is new */
+  private int entry(String key, int tag, int first, int second) {
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      index = poolCount++;
+      poolIndexes.put(key, index);
+      pool.write(tag);
+      writeShort(pool, first);
+      if (second >= 0) {
+        writeShort(pool, second);
+      }
+    }
+    return index;
+  }
+
+  /* Returns the index of an int or long constant, adding it if it is new; a long takes up two
+   * slots of the pool */
+  private int constant(int tag, String key, long value) {
+    Integer index = poolIndexes.get(tag + key);
+    if (index == null) {
+      index = poolCount;
+      poolCount += (tag == LONG) ? 2 : 1;
+      poolIndexes.put(tag + key, index);
+      pool.write(tag);
+      if (tag == LONG) {
+        writeInt(pool, (int) (value >>> 32));
+      }
+      writeInt(pool, (int) value);
+    }
+    return index;
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value >>> 16);
+    writeShort(out, value);
+  }
+}
@@ -0,0 +1,211 @@
+package calculator;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs keystroke scripts, fixed sequences of buttons that are input to calculators
+ * again and again, and compiles the ones that are run often into classes of their own. A compiled
+ * script is a hidden class, defined at runtime through MethodHandles.Lookup.defineHiddenClass,
+ * whose code steps a packed state through the buttons of the script as straight-line code, with
+ * every button a constant; it works on any starting state following the rules it was compiled
+ * for.
+ *
+ * <p>Since 'C' empties a calculator whatever state it is in, everything after the last 'C' of a
+ * script can be computed when it is compiled: such a script compiles to a class that simply loads
+ * the final state, and the buttons before that 'C' are never run at all.
+ *
+ * <p>Scripts are looked up by their text and the rules they run with, through a TextCache,
+ * so running a script that is already known neither copies its text nor waits on a lock shared by
+ * every thread. A script is interpreted one button at a time until it has been run a given number
+ * of times, and is then compiled. The number of scripts remembered is bounded; when it is
+ * exceeded, the script that was run least recently is forgotten, and its class can be unloaded.
+ * Scripts without a 'C' that are too long to compile are always interpreted.
+ *
+ * <p>Like a KeystrokeReplay, a script skips the buttons that are rejected, leaving the state
+ * unchanged, and goes on with the next one. A ScriptCompiler may be shared by any number of
+ * threads.
+ */
+public final class ScriptCompiler {
+  /* A compiled script; implemented by the generated classes */
+  interface CompiledScript {
+    void run(CalculatorSession session);
+  }
+
+  /* A script that has been run, and its class once it has been compiled */
+  private static final class Entry {
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private volatile CompiledScript compiled;
+  }
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private final int capacity;
+
+  private final int threshold;
+
+  /* The scripts run with the rules of a SimpleCalculator and a SmartCalculator */
+  private final TextCache<Entry> simpleScripts;
+
+  private final TextCache<Entry> smartScripts;
+
+  /**
+   * Create a compiler that remembers up to 1024 scripts for each set of rules, and compiles a
+   * script the 16th time it is run.
+   */
+  public ScriptCompiler() {
+    this(1024, 16);
+  }
+
+  /**
+   * Create a compiler that remembers up to the given number of scripts for each set of rules, and
+   * compiles a script once it has been run the given number of times.
+   *
+   * @param capacity  the largest number of scripts remembered for each set of rules
+   * @param threshold the number of runs after which a script is compiled; 1 compiles every
+   *                  script the first time it is run
+   * @throws IllegalArgumentException if the capacity or threshold is not positive
+   */
+  public ScriptCompiler(int capacity, int threshold) throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Invalid compile threshold " + threshold);
+    }
+    this.capacity = capacity;
+    this.threshold = threshold;
+    this.simpleScripts = new TextCache<>(capacity);
+    this.smartScripts = new TextCache<>(capacity);
+  }
+
+  /**
+   * Run a script on the given calculator, and return the calculator after it.
+   *
+   * @param start  the calculator to input the script to
+   * @param script the buttons of the script, in the order they are pressed
+   * @return a calculator of the same class as the given one, after every accepted button
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public Calculator run(Calculator start, CharSequence script) throws IllegalArgumentException {
+    CalculatorSession session = new CalculatorSession(start);
+    run(session, script);
+    return session.toCalculator();
+  }
+
+  /**
+   * Run a script on the given session, updating it in place.
+   *
+   * @param session the session to input the script to
+   * @param script  the buttons of the script, in the order they are pressed
+   */
+  public void run(CalculatorSession session, CharSequence script) {
+    CompiledScript compiled = lookup(StateCodec.isSmart(session.packedMeta()), script);
+    if (compiled != null) {
+      compiled.run(session);
+    } else {
+      interpret(session, script, 0);
+    }
+  }
+
+  /**
+   * Compile a script right away, rather than waiting for it to be run often enough.
+   *
+   * @param script the buttons of the script, in the order they are pressed
+   * @param smart  true for the rules of a SmartCalculator, false for those of a SimpleCalculator
+   * @return true if the script is compiled, false if it is too long to compile
+   */
+  public boolean compile(CharSequence script, boolean smart) {
+    Entry entry = entry(smart, script);
+    if (entry.compiled == null) {
+      entry.compiled = define(script, smart);
+    }
+    return entry.compiled != null;
+  }
+
+  /**
+   * Return whether a script is currently compiled.
+   *
+   * @param script the buttons of the script, in the order they are pressed
+   * @param smart  true for the rules of a SmartCalculator, false for those of a SimpleCalculator
+   * @return true if the script has been compiled and not forgotten since
+   */
+  public boolean isCompiled(CharSequence script, boolean smart) {
+    Entry entry = scripts(smart).lookup(script, TextCache.hash(script));
+    return (entry != null) && (entry.compiled != null);
+  }
+
+  /* Counts a run of the script, compiles it if it just got hot, and returns its class if it has
+   * one. Runs stop being counted once the script is hot, so the count never wraps around */
+  private CompiledScript lookup(boolean smart, CharSequence script) {
+    Entry entry = entry(smart, script);
+    CompiledScript compiled = entry.compiled;
+    if ((compiled == null) && (entry.runs.get() < threshold)
+            && (entry.runs.incrementAndGet() == threshold)) {
+      compiled = define(script, smart);
+      entry.compiled = compiled;
+    }
+    return compiled;
+  }
+
+  /* Returns the entry of the script, adding one if the script isn't remembered; only a new
+   * script's text is copied */
+  private Entry entry(boolean smart, CharSequence script) {
+    TextCache<Entry> scripts = scripts(smart);
+    int hash = TextCache.hash(script);
+    Entry entry = scripts.lookup(script, hash);
+    if (entry == null) {
+      entry = scripts.store(script.toString(), hash, new Entry());
+    }
+    return entry;
+  }
+
+  private TextCache<Entry> scripts(boolean smart) {
+    return smart ? smartScripts : simpleScripts;
+  }
+
+  /* Compiles the script into a new hidden class, or returns null if it is too long */
+  private static CompiledScript define(CharSequence script, boolean smart) {
+    byte[] classFile;
+    int clear = lastClear(script);
+    if (clear >= 0) {
+      CalculatorSession folded = new CalculatorSession(smart ? new SmartCalculator()
+              : new SimpleCalculator());
+      interpret(folded, script, clear + 1);
+      classFile = ScriptBytecode.constant(folded.packedOperands(), folded.packedMeta());
+    } else if (script.length() <= ScriptBytecode.MAX_BUTTONS) {
+      classFile = ScriptBytecode.steps(script);
+    } else {
+      return null;
+    }
+    try {
+      Class<?> type = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+      return (CompiledScript) type.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Can't define the class of a compiled script", e);
+    }
+  }
+
+  /* Inputs the buttons of the script from the given position on, skipping rejected ones */
+  private static void interpret(CalculatorSession session, CharSequence script, int from) {
+    for (int i = from; i < script.length(); i++) {
+      session.replay(script.charAt(i));
+    }
+  }
+
+  private static int lastClear(CharSequence script) {
+    for (int i = script.length() - 1; i >= 0; i--) {
+      if (script.charAt(i) == 'C') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return "ScriptCompiler(capacity " + capacity + ", threshold " + threshold + ")";
+  }
+}
@@ -0,0 +1,221 @@
+package calculator;
+
+import java.util.Arrays;
+
+/**
+ * This class is an open-addressing hash map from session ids to packed calculator states, as
+ * packed by the StateCodec. Keys and values live in three parallel primitive arrays, so a session
+ * costs no boxed key, map node or calculator object: 20 bytes per slot, and the map is kept at
+ * most three quarters full. Collisions are resolved by linear probing, and removal shifts the
+ * following entries back instead of leaving tombstones.
+ *
+ * <p>Every session also has a dirty mark, set whenever it is inserted or its state is replaced and
+ * cleared on request, so that the sessions that changed since some point can be found, and a
+ * 22-bit stamp that the user of the map is free to use, such as for the time of last use; the
+ * stamp is cleared whenever the state is replaced.
+ *
+ * <p>Entries are addressed by their slot. A slot stays valid until the next insertion or removal,
+ * either of which may move entries around.
+ */
+final class SessionMap {
+  /* The meta word of a free slot; real meta words only use the low 8 bits */
+  private static final int FREE = -1;
+
+  /* Set on the stored meta word of a session whose state changed since it was last marked clean */
+  private static final int DIRTY = 1 << 30;
+
+  /* The bits of the stored meta word holding the stamp, between the real meta word and the dirty
+   * mark */
+  static final int STAMP_MASK = (1 << 22) - 1;
+
+  private static final int STAMP_SHIFT = 8;
+
+  private static final int STAMP = STAMP_MASK << STAMP_SHIFT;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+
+  private long[] operands;
+
+  private int[] metas;
+
+  private int mask;
+
+  /* The number of bits the mixed key is shifted right by to give its home slot */
+  private int shift;
+
+  private int size;
+
+  /* Creates an empty map that can hold the given number of sessions without growing */
+  SessionMap(int expected) throws IllegalArgumentException {
+    if ((expected < 0) || (expected > (1 << 29))) {
+      throw new IllegalArgumentException("Invalid number of sessions " + expected);
+    }
+    int wanted = Math.max(MIN_CAPACITY, expected + expected / 3 + 1);
+    int capacity = Integer.highestOneBit(wanted);
+    if (capacity < wanted) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /* Returns the number of sessions in the map */
+  int size() {
+    return size;
+  }
+
+  /* Returns the number of slots, for iterating over them */
+  int capacity() {
+    return metas.length;
+  }
+
+  /* Returns the slot holding the session, or -1 if the map has none with that id */
+  int find(long key) {
+    for (int slot = home(key); metas[slot] != FREE; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /* Returns the slot holding the session, adding it with the given state if the map has none
+   * with that id */
+  int findOrInsert(long key, long initialOperands, int initialMeta) {
+    int slot = home(key);
+    while (metas[slot] != FREE) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size + 1 > metas.length - (metas.length >>> 2)) {
+      grow(metas.length * 2);
+      return findOrInsert(key, initialOperands, initialMeta);
+    }
+    keys[slot] = key;
+    operands[slot] = initialOperands;
+    metas[slot] = initialMeta | DIRTY;
+    size++;
+    return slot;
+  }
+
+  /* Removes the session with the given id; returns false if the map has none */
+  boolean remove(long key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return false;
+    }
+    removeAt(slot);
+    return true;
+  }
+
+  /* Grows the map so that it can hold the given number of sessions without growing again */
+  void ensureCapacity(int expected) {
+    int capacity = metas.length;
+    while ((expected > capacity - (capacity >>> 2)) && (capacity < (1 << 30))) {
+      capacity <<= 1;
+    }
+    if (capacity > metas.length) {
+      grow(capacity);
+    }
+  }
+
+  /* Removes every session, keeping the current capacity */
+  void clear() {
+    Arrays.fill(metas, FREE);
+    size = 0;
+  }
+
+  /* Returns whether the slot holds a session */
+  boolean isOccupied(int slot) {
+    return metas[slot] != FREE;
+  }
+
+  long key(int slot) {
+    return keys[slot];
+  }
+
+  long operands(int slot) {
+    return operands[slot];
+  }
+
+  int meta(int slot) {
+    return metas[slot] & ~(DIRTY | STAMP);
+  }
+
+  /* Replaces the state of the session in the slot, marking it dirty */
+  void set(int slot, long newOperands, int newMeta) {
+    operands[slot] = newOperands;
+    metas[slot] = newMeta | DIRTY;
+  }
+
+  /* Returns whether the session in the slot changed since it was last marked clean */
+  boolean isDirty(int slot) {
+    return (metas[slot] & DIRTY) != 0;
+  }
+
+  void markClean(int slot) {
+    metas[slot] &= ~DIRTY;
+  }
+
+  int stamp(int slot) {
+    return (metas[slot] & STAMP) >>> STAMP_SHIFT;
+  }
+
+  /* Replaces the stamp of the session in the slot with the low bits of the given one */
+  void setStamp(int slot, int stamp) {
+    metas[slot] = (metas[slot] & ~STAMP) | ((stamp & STAMP_MASK) << STAMP_SHIFT);
+  }
+
+  /* Empties the slot, then moves back every later entry of the same run that may now be placed
+   * closer to its home slot, so that lookups never stop early at the hole */
+  private void removeAt(int slot) {
+    int hole = slot;
+    for (int i = (slot + 1) & mask; metas[i] != FREE; i = (i + 1) & mask) {
+      int home = home(keys[i]);
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        keys[hole] = keys[i];
+        operands[hole] = operands[i];
+        metas[hole] = metas[i];
+        hole = i;
+      }
+    }
+    metas[hole] = FREE;
+    size--;
+  }
+
+  private void grow(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldOperands = operands;
+    int[] oldMetas = metas;
+    allocate(capacity);
+    for (int i = 0; i < oldMetas.length; i++) {
+      if (oldMetas[i] != FREE) {
+        int slot = home(oldKeys[i]);
+        while (metas[slot] != FREE) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        operands[slot] = oldOperands[i];
+        metas[slot] = oldMetas[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    operands = new long[capacity];
+    metas = new int[capacity];
+    Arrays.fill(metas, FREE);
+    mask = capacity - 1;
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  /* Returns the slot a key is placed in when nothing collides with it; keys are mixed first so
+   * that ids that are close together spread over the whole table */
+  private int home(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+}
@@ -0,0 +1,409 @@
+package calculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class holds any number of calculator sessions, each identified by a long id, and inputs
+ * buttons to them in place. Sessions are stored in a primitive open-addressing map, packed by the
+ * StateCodec, so a session costs a few dozen bytes instead of the boxed key, map node and
+ * calculator object of a HashMap from ids to calculators, and inputting a button to a session
+ * creates no objects.
+ *
+ * <p>Every session starts in the state of the calculator the registry was created with, the
+ * first time a button is input to it, and follows that calculator's rules exactly as a
+ * CalculatorSession would. A registry is not safe to use from several threads at once without
+ * outside synchronization.
+ *
+ * <p>A registry can be saved to and restored from snapshots in the format of the SnapshotWriter.
+ * After a full snapshot has been written or restored, the registry keeps track of the sessions
+ * that change or are removed, so that the next snapshots can be incremental and only hold those.
+ */
+public final class SessionRegistry {
+  /**
+   * A receiver of the sessions of a registry, with their packed states.
+   */
+  public interface Visitor {
+    /**
+     * Receive one session.
+     *
+     * @param sessionId the id of the session
+     * @param operands  the packed operands of the session, as packed by the StateCodec
+     * @param meta      the packed meta word of the session, as packed by the StateCodec
+     */
+    void visit(long sessionId, long operands, int meta);
+  }
+
+  /* The calculator every session starts as; also the factory for turning sessions back into
+   * immutable calculators, so that they keep its class and state cache */
+  private final AbstractCalculator start;
+
+  private final long startOperands;
+
+  private final int startMeta;
+
+  private SessionMap sessions;
+
+  /* The ids of the sessions removed since the last snapshot, or null if changes aren't tracked
+   * because there hasn't been a full snapshot yet */
+  private SessionMap removed;
+
+  /**
+   * Create an empty registry whose sessions start as the given calculator.
+   *
+   * @param start the calculator every session starts as
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public SessionRegistry(Calculator start) throws IllegalArgumentException {
+    this(start, 0);
+  }
+
+  /**
+   * Create an empty registry whose sessions start as the given calculator, with room for the
+   * given number of sessions before it has to grow.
+   *
+   * @param start    the calculator every session starts as
+   * @param expected the number of sessions the registry is expected to hold
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the number of sessions is negative or too
+   *         large
+   */
+  public SessionRegistry(Calculator start, int expected) throws IllegalArgumentException {
+    this.startOperands = StateCodec.operands(start);
+    this.startMeta = StateCodec.meta(start);
+    this.start = (AbstractCalculator) start;
+    this.sessions = new SessionMap(expected);
+  }
+
+  /**
+   * Return the number of sessions in this registry.
+   *
+   * @return the number of sessions a button has been input to and that weren't removed since
+   */
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Return whether this registry holds a session with the given id.
+   *
+   * @param sessionId the id of the session
+   * @return true if a button has been input to the session and it wasn't removed since
+   */
+  public boolean contains(long sessionId) {
+    return sessions.find(sessionId) >= 0;
+  }
+
+  /**
+   * Input a button to a session, updating it in place, and adding it in the starting state first
+   * if the registry doesn't hold it yet. A button the session rejects leaves it unchanged.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   */
+  public boolean input(long sessionId, char button) {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return apply(sessionId, button, null);
+    }
+    long start = System.nanoTime();
+    boolean accepted = apply(sessionId, button, metrics);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    return accepted;
+  }
+
+  /* Inputs a button to a session in the same way as input(long, char), for events that are being
+   * replayed rather than pressed, so they aren't counted in the CalculatorMetrics */
+  boolean replay(long sessionId, char button) {
+    return apply(sessionId, button, null);
+  }
+
+  /* The input path of input(long, char); the button is counted in the given metrics, if any */
+  private boolean apply(long sessionId, char button, CalculatorMetrics metrics) {
+    int slot = sessions.findOrInsert(sessionId, startOperands, startMeta);
+    long operands = sessions.operands(slot);
+    int meta = sessions.meta(slot);
+    if (metrics != null) {
+      metrics.record(operands, meta, button);
+    }
+    int next = StateCodec.nextMeta(operands, meta, button);
+    if (StateCodec.isRejected(next)) {
+      return false;
+    }
+    sessions.set(slot, StateCodec.nextOperands(operands, meta, button), next);
+    return true;
+  }
+
+  /**
+   * Input a button to a session in the same way as input(long, char), but return why a rejected
+   * button wasn't accepted instead of only whether it was.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return OK if the button was accepted, otherwise the reason it was rejected
+   */
+  public InputStatus tryInput(long sessionId, char button) {
+    if (input(sessionId, button)) {
+      return InputStatus.OK;
+    }
+    int slot = sessions.find(sessionId);
+    long operands = sessions.operands(slot);
+    int meta = sessions.meta(slot);
+    return TransitionTable.status(StateCodec.variant(meta), StateCodec.flags(meta),
+            StateCodec.firstOperand(operands), StateCodec.secondOperand(operands), button);
+  }
+
+  /**
+   * Append the current screen of a session to the given StringBuilder.
+   *
+   * @param sessionId the id of the session
+   * @param screen    the StringBuilder to append the screen to
+   * @return true if the registry holds the session, false if it doesn't, in which case nothing is
+   *     appended
+   */
+  public boolean render(long sessionId, StringBuilder screen) {
+    int slot = sessions.find(sessionId);
+    if (slot < 0) {
+      return false;
+    }
+    StateCodec.render(sessions.operands(slot), sessions.meta(slot), screen);
+    return true;
+  }
+
+  /**
+   * Print the current screen of a session.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the registry doesn't hold it
+   */
+  public String getResult(long sessionId) {
+    StringBuilder screen = new StringBuilder();
+    return render(sessionId, screen) ? screen.toString() : null;
+  }
+
+  /**
+   * Print the current screen of every session.
+   *
+   * @return a new map from the id of every session in this registry to its screen
+   */
+  public Map<Long, String> getResults() {
+    Map<Long, String> screens = new HashMap<>();
+    StringBuilder screen = new StringBuilder();
+    forEach((sessionId, operands, meta) -> {
+      screen.setLength(0);
+      StateCodec.render(operands, meta, screen);
+      screens.put(sessionId, screen.toString());
+    });
+    return screens;
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session. The calculator is of
+   * the same class as the one the registry was created with, and shares its state cache.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the registry doesn't hold
+   *     it
+   */
+  public Calculator toCalculator(long sessionId) {
+    int slot = sessions.find(sessionId);
+    if (slot < 0) {
+      return null;
+    }
+    return StateCodec.decode(start, sessions.operands(slot), sessions.meta(slot));
+  }
+
+  /**
+   * Remove a session; the next button input to it starts it over.
+   *
+   * @param sessionId the id of the session
+   * @return true if the registry held the session
+   */
+  public boolean remove(long sessionId) {
+    if (!sessions.remove(sessionId)) {
+      return false;
+    }
+    if (removed != null) {
+      removed.findOrInsert(sessionId, 0L, 0);
+    }
+    return true;
+  }
+
+  /**
+   * Remove every session.
+   */
+  public void clear() {
+    if (removed != null) {
+      for (int slot = 0; slot < sessions.capacity(); slot++) {
+        if (sessions.isOccupied(slot)) {
+          removed.findOrInsert(sessions.key(slot), 0L, 0);
+        }
+      }
+    }
+    sessions.clear();
+  }
+
+  /**
+   * Write a full snapshot of every session to the given stream, which is left open. From then on,
+   * the registry tracks its changes for incremental snapshots.
+   *
+   * @param out the stream to write the snapshot to
+   * @throws IOException if the snapshot can't be written, in which case nothing is marked as saved
+   */
+  public void writeSnapshot(OutputStream out) throws IOException {
+    SnapshotWriter writer = new SnapshotWriter(out, false, sessions.size());
+    for (int slot = 0; slot < sessions.capacity(); slot++) {
+      if (sessions.isOccupied(slot)) {
+        writer.write(sessions.key(slot), sessions.operands(slot), sessions.meta(slot));
+      }
+    }
+    writer.finish();
+    markSaved();
+  }
+
+  /**
+   * Write an incremental snapshot to the given stream, which is left open: the sessions that
+   * were removed, then those that changed, since the last snapshot was written or restored.
+   * Restoring the last full snapshot and every incremental one after it, in order, gives back
+   * the sessions of this registry.
+   *
+   * @param out the stream to write the snapshot to
+   * @throws IOException           if the snapshot can't be written, in which case nothing is
+   *                               marked as saved
+   * @throws IllegalStateException if no full snapshot has been written or restored yet
+   */
+  public void writeIncrementalSnapshot(OutputStream out)
+          throws IOException, IllegalStateException {
+    if (removed == null) {
+      throw new IllegalStateException("No full snapshot to build on");
+    }
+    int changed = 0;
+    for (int slot = 0; slot < sessions.capacity(); slot++) {
+      if (sessions.isOccupied(slot) && sessions.isDirty(slot)) {
+        changed++;
+      }
+    }
+    SnapshotWriter writer = new SnapshotWriter(out, true, changed);
+    for (int slot = 0; slot < removed.capacity(); slot++) {
+      if (removed.isOccupied(slot)) {
+        writer.writeRemoved(removed.key(slot));
+      }
+    }
+    for (int slot = 0; slot < sessions.capacity(); slot++) {
+      if (sessions.isOccupied(slot) && sessions.isDirty(slot)) {
+        writer.write(sessions.key(slot), sessions.operands(slot), sessions.meta(slot));
+      }
+    }
+    writer.finish();
+    markSaved();
+  }
+
+  /**
+   * Restore a snapshot read from the given stream, which is left open. A full snapshot replaces
+   * every session of this registry; an incremental one is applied on top of them. The registry
+   * only changes once the whole snapshot has been read and checked, and the restored sessions
+   * count as saved for the next incremental snapshot.
+   *
+   * @param in the stream to read the snapshot from
+   * @return the number of records in the snapshot
+   * @throws IOException if the snapshot can't be read, is damaged, or holds sessions following
+   *                     other rules than those of this registry, in which case the registry is
+   *                     unchanged
+   */
+  public long restore(InputStream in) throws IOException {
+    SnapshotReader reader = new SnapshotReader(in);
+    SessionMap restored = new SessionMap((int) Math.min(reader.expectedSessions(), 1 << 29));
+    SessionMap restoredRemovals = new SessionMap(0);
+    boolean smart = StateCodec.isSmart(startMeta);
+    boolean[] foreign = new boolean[1];
+    long records = reader.read(new SnapshotReader.Sink() {
+      @Override
+      public void session(long sessionId, long operands, int meta) {
+        foreign[0] |= (StateCodec.isSmart(meta) != smart);
+        restored.set(restored.findOrInsert(sessionId, operands, meta), operands, meta);
+        restoredRemovals.remove(sessionId);
+      }
+
+      @Override
+      public void removed(long sessionId) {
+        restored.remove(sessionId);
+        restoredRemovals.findOrInsert(sessionId, 0L, 0);
+      }
+    });
+    if (foreign[0]) {
+      throw new IOException("The snapshot holds sessions following other rules");
+    }
+    if (!reader.isIncremental()) {
+      sessions = restored;
+    } else {
+      for (int slot = 0; slot < restoredRemovals.capacity(); slot++) {
+        if (restoredRemovals.isOccupied(slot)) {
+          sessions.remove(restoredRemovals.key(slot));
+        }
+      }
+      sessions.ensureCapacity(sessions.size() + restored.size());
+      for (int slot = 0; slot < restored.capacity(); slot++) {
+        if (restored.isOccupied(slot)) {
+          sessions.set(sessions.findOrInsert(restored.key(slot), 0L, 0),
+                  restored.operands(slot), restored.meta(slot));
+        }
+      }
+    }
+    /* only what was restored counts as saved; changes made before an incremental restore don't */
+    for (int slot = 0; slot < restored.capacity(); slot++) {
+      if (restored.isOccupied(slot)) {
+        sessions.markClean(sessions.find(restored.key(slot)));
+      }
+    }
+    if ((removed == null) || !reader.isIncremental()) {
+      removed = new SessionMap(0);
+    } else {
+      for (int slot = 0; slot < restoredRemovals.capacity(); slot++) {
+        if (restoredRemovals.isOccupied(slot)) {
+          removed.remove(restoredRemovals.key(slot));
+        }
+      }
+    }
+    return records;
+  }
+
+  /* Adds a session in the given packed state unless the registry already holds it, in which case
+   * the session held is the newer one; for sessions handed over between cluster nodes */
+  boolean putIfAbsent(long sessionId, long operands, int meta) {
+    if (sessions.find(sessionId) >= 0) {
+      return false;
+    }
+    sessions.set(sessions.findOrInsert(sessionId, operands, meta), operands, meta);
+    return true;
+  }
+
+  /* Marks every session as saved, and starts tracking changes if it hadn't */
+  private void markSaved() {
+    for (int slot = 0; slot < sessions.capacity(); slot++) {
+      if (sessions.isOccupied(slot)) {
+        sessions.markClean(slot);
+      }
+    }
+    removed = new SessionMap(0);
+  }
+
+  /**
+   * Hand every session to the given visitor, in no particular order. The visitor must not add or
+   * remove sessions.
+   *
+   * @param visitor the receiver of the sessions
+   */
+  public void forEach(Visitor visitor) {
+    for (int slot = 0; slot < sessions.capacity(); slot++) {
+      if (sessions.isOccupied(slot)) {
+        visitor.visit(sessions.key(slot), sessions.operands(slot), sessions.meta(slot));
+      }
+    }
+  }
+}
@@ -17,9 +17,33 @@ public class SimpleCalculator extends AbstractCalculator {
     super();
   }
 
+  /**
+   * Construct an empty SimpleCalculator whose later states are shared through the given cache:
+   * any input that leads to a state already in the cache returns the calculator stored there
+   * instead of creating a new one.
+   *
+   * @param cache the cache to intern this calculator's states in
+   */
+  public SimpleCalculator(StateCache cache) {
+    super(cache);
+  }
+
+  /**
+   * Construct an empty SimpleCalculator whose operands are numbers of the given kind.
+   *
+   * @param backend the kind of numbers the operands hold
+   */
+  public SimpleCalculator(NumericBackend backend) {
+    super(backend);
+  }
+
+  private SimpleCalculator(WideOperands operands, char operator, int flags) {
+    super(operands, operator, flags);
+  }
+
   private SimpleCalculator(int numOne, boolean firstEmpty, char operator, boolean operatorEmpty,
-                           int numTwo, boolean secondEmpty, boolean result) {
-    super(numOne, firstEmpty, operator, operatorEmpty, numTwo, secondEmpty, result);
+                           int numTwo, boolean secondEmpty, boolean result, StateCache cache) {
+    super(numOne, firstEmpty, operator, operatorEmpty, numTwo, secondEmpty, result, cache);
   }
 
   /* factory method for use by AbstractCalculator class */
@@ -27,8 +51,18 @@ public class SimpleCalculator extends AbstractCalculator {
   protected Calculator makeCalc(int numOne, boolean firstEmpty, char operator,
                                 boolean operatorEmpty, int numTwo, boolean secondEmpty,
                                 boolean result) {
-    return new SimpleCalculator(numOne, firstEmpty, operator, operatorEmpty, numTwo,
+    Calculator existing = cached(numOne, firstEmpty, operator, operatorEmpty, numTwo,
             secondEmpty, result);
+    if (existing != null) {
+      return existing;
+    }
+    return remember(new SimpleCalculator(numOne, firstEmpty, operator, operatorEmpty, numTwo,
+            secondEmpty, result, cache));
+  }
+
+  @Override
+  protected Calculator makeCalc(WideOperands operands, char operator, int flags) {
+    return new SimpleCalculator(operands, operator, flags);
   }
 
   /*
@@ -16,17 +16,50 @@ public class SmartCalculator extends AbstractCalculator {
     super();
   }
 
+  /**
+   * Creates an empty SmartCalculator whose later states are shared through the given cache, so
+   * that inputs leading to a state already in the cache return the calculator stored there.
+   *
+   * @param cache the cache to intern this calculator's states in
+   */
+  public SmartCalculator(StateCache cache) {
+    super(cache);
+  }
+
+  /**
+   * Creates an empty SmartCalculator whose operands are numbers of the given kind.
+   *
+   * @param backend the kind of numbers the operands hold
+   */
+  public SmartCalculator(NumericBackend backend) {
+    super(backend);
+  }
+
+  private SmartCalculator(WideOperands operands, char operator, int flags) {
+    super(operands, operator, flags);
+  }
+
   private SmartCalculator(int numOne, boolean firstEmpty, char operator, boolean operatorEmpty,
-                          int numTwo, boolean secondEmpty, boolean result) {
-    super(numOne, firstEmpty, operator, operatorEmpty, numTwo, secondEmpty, result);
+                          int numTwo, boolean secondEmpty, boolean result, StateCache cache) {
+    super(numOne, firstEmpty, operator, operatorEmpty, numTwo, secondEmpty, result, cache);
   }
 
   @Override
   protected Calculator makeCalc(int numOne, boolean firstEmpty, char operator,
                                 boolean operatorEmpty, int numTwo, boolean secondEmpty,
                                 boolean result) {
-    return new SmartCalculator(numOne, firstEmpty, operator, operatorEmpty, numTwo,
+    Calculator existing = cached(numOne, firstEmpty, operator, operatorEmpty, numTwo,
             secondEmpty, result);
+    if (existing != null) {
+      return existing;
+    }
+    return remember(new SmartCalculator(numOne, firstEmpty, operator, operatorEmpty, numTwo,
+            secondEmpty, result, cache));
+  }
+
+  @Override
+  protected Calculator makeCalc(WideOperands operands, char operator, int flags) {
+    return new SmartCalculator(operands, operator, flags);
   }
 
   /* The SmartCalculator accepts the '+' as the first input, any operator after the first/second
@@ -0,0 +1,200 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * This class reads snapshots of calculator sessions written by a SnapshotWriter, handing their
+ * records to a sink one at a time as they are parsed from the stream. The whole snapshot is
+ * checked as it is read: a snapshot of another version, a truncated one, or one whose records
+ * don't match the count and checksum of its trailer fails with an IOException, after the records
+ * before the damage have been handed on. The reader reads the stream ahead in large blocks, so it
+ * may consume bytes past the end of the snapshot.
+ */
+public final class SnapshotReader implements Closeable {
+  /**
+   * A receiver of the records of a snapshot, in the order they were written.
+   */
+  public interface Sink {
+    /**
+     * Receive the state of one session.
+     *
+     * @param sessionId the id of the session
+     * @param operands  the packed operands of the session, as packed by the StateCodec
+     * @param meta      the packed meta word of the session, as packed by the StateCodec
+     */
+    void session(long sessionId, long operands, int meta);
+
+    /**
+     * Receive the removal of a session, which only incremental snapshots hold.
+     *
+     * @param sessionId the id of the session
+     */
+    void removed(long sessionId);
+  }
+
+  private final InputStream in;
+
+  private final byte[] buffer = new byte[8192];
+
+  private int position;
+
+  private int limit;
+
+  /* The position in the buffer up to which the checksum has been computed */
+  private int checked;
+
+  private final CRC32 checksum = new CRC32();
+
+  private final boolean incremental;
+
+  private final long expected;
+
+  private boolean done;
+
+  /**
+   * Start reading a snapshot from the given stream, reading its header.
+   *
+   * @param in the stream to read the snapshot from
+   * @throws IOException if the header can't be read, or is not that of a snapshot of this version
+   */
+  public SnapshotReader(InputStream in) throws IOException {
+    this.in = Objects.requireNonNull(in);
+    if (getInt() != SnapshotWriter.MAGIC) {
+      throw new IOException("Not a calculator snapshot");
+    }
+    int version = getByte();
+    if (version != SnapshotWriter.VERSION) {
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    int kind = getByte();
+    if ((kind != SnapshotWriter.FULL) && (kind != SnapshotWriter.INCREMENTAL)) {
+      throw new IOException("Unknown snapshot kind " + kind);
+    }
+    this.incremental = (kind == SnapshotWriter.INCREMENTAL);
+    this.expected = getVarLong();
+    /* the header is not part of the checksum, even if the buffer was filled while reading it */
+    checksum.reset();
+    checked = position;
+  }
+
+  /**
+   * Return whether the snapshot is incremental.
+   *
+   * @return true for an incremental snapshot, false for a full one
+   */
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * Return the number of sessions the writer expected the snapshot to hold, for sizing tables.
+   *
+   * @return the expected number of sessions, or 0 if the writer didn't know it
+   */
+  public long expectedSessions() {
+    return expected;
+  }
+
+  /**
+   * Read every record of the snapshot and hand it to the given sink, then check the trailer. A
+   * snapshot can only be read once.
+   *
+   * @param sink the receiver of the records
+   * @return the number of records read
+   * @throws IOException           if the stream can't be read, or the snapshot is damaged or
+   *                               truncated
+   * @throws IllegalStateException if the snapshot has already been read
+   */
+  public long read(Sink sink) throws IOException, IllegalStateException {
+    Objects.requireNonNull(sink);
+    if (done) {
+      throw new IllegalStateException("The snapshot has already been read");
+    }
+    done = true;
+    long records = 0;
+    while (true) {
+      int tag = getByte();
+      if (tag == SnapshotWriter.END) {
+        break;
+      } else if (tag == SnapshotWriter.SESSION) {
+        long sessionId = unzigzag(getVarLong());
+        long first = unzigzag(getVarLong());
+        long second = unzigzag(getVarLong());
+        int meta = getByte();
+        if ((first != (int) first) || (second != (int) second)
+                || ((meta & ~SnapshotWriter.META_BITS) != 0)) {
+          throw new IOException("Damaged session record " + records);
+        }
+        sink.session(sessionId, StateCodec.operands((int) first, (int) second), meta);
+      } else if ((tag == SnapshotWriter.REMOVED) && incremental) {
+        sink.removed(unzigzag(getVarLong()));
+      } else {
+        throw new IOException("Damaged record " + records);
+      }
+      records++;
+    }
+    /* the end tag is not part of the checksum */
+    checksum.update(buffer, checked, position - 1 - checked);
+    checked = position;
+    int expectedCrc = (int) checksum.getValue();
+    long count = getVarLong();
+    int crc = getInt();
+    if ((count != records) || (crc != expectedCrc)) {
+      throw new IOException("Snapshot doesn't match its trailer");
+    }
+    return records;
+  }
+
+  /**
+   * Close the stream.
+   *
+   * @throws IOException if the stream can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private int getByte() throws IOException {
+    if (position == limit) {
+      fill();
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  private int getInt() throws IOException {
+    return (getByte() << 24) | (getByte() << 16) | (getByte() << 8) | getByte();
+  }
+
+  private long getVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int next = getByte();
+      value |= (long) (next & 0x7F) << shift;
+      if ((next & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Damaged number in snapshot");
+  }
+
+  /* Refills the buffer from the stream, adding the bytes read so far to the checksum first */
+  private void fill() throws IOException {
+    checksum.update(buffer, checked, position - checked);
+    int read = in.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      throw new IOException("Snapshot is truncated");
+    }
+    position = 0;
+    limit = read;
+    checked = 0;
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
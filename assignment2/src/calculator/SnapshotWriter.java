@@ -0,0 +1,215 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * This class writes snapshots of calculator sessions to a stream, one session at a time, so that
+ * a snapshot of any number of sessions can be written without holding it in memory. A snapshot is
+ * either full, holding every session, or incremental, holding only the sessions that changed and
+ * the ids of the sessions that were removed since an earlier snapshot; a SnapshotReader reads
+ * both kinds back.
+ *
+ * <p>The format is versioned and compact. A header holds a magic number, the version, the kind of
+ * snapshot and the number of sessions expected, which lets a reader size its tables up front.
+ * Every record then starts with a tag byte: a session holds its id and its two operands as
+ * variable-length zigzag numbers, followed by its meta word in one byte, which usually comes to
+ * fewer than ten bytes; a removal holds only the id. The snapshot ends with a trailer holding the
+ * number of records and a CRC32 of all of them, so that a truncated or damaged snapshot is never
+ * mistaken for a complete one.
+ */
+public final class SnapshotWriter implements Closeable {
+  /* Shared with the SnapshotReader */
+  static final int MAGIC = 0x43534E50;
+
+  static final int VERSION = 1;
+
+  static final int FULL = 0;
+
+  static final int INCREMENTAL = 1;
+
+  static final int END = 0;
+
+  static final int SESSION = 1;
+
+  static final int REMOVED = 2;
+
+  /* The meta bits a snapshot keeps: flags, operator and rules, without the rejected mark */
+  static final int META_BITS = 0x7F;
+
+  /* The most bytes a record can take: a tag, a 10-byte id, two 5-byte operands and a meta byte */
+  private static final int MAX_RECORD = 22;
+
+  private final OutputStream out;
+
+  private final boolean incremental;
+
+  private final byte[] buffer = new byte[8192];
+
+  private int position;
+
+  private final CRC32 checksum = new CRC32();
+
+  private long records;
+
+  private boolean finished;
+
+  /**
+   * Start writing a snapshot to the given stream.
+   *
+   * @param out         the stream to write the snapshot to
+   * @param incremental true for an incremental snapshot, false for a full one
+   * @param expected    the number of sessions the snapshot is expected to hold, or 0 if unknown
+   * @throws IOException              if the header can't be written
+   * @throws IllegalArgumentException if the expected number of sessions is negative
+   */
+  public SnapshotWriter(OutputStream out, boolean incremental, long expected)
+          throws IOException, IllegalArgumentException {
+    if (expected < 0) {
+      throw new IllegalArgumentException("Invalid number of sessions " + expected);
+    }
+    this.out = Objects.requireNonNull(out);
+    this.incremental = incremental;
+    putInt(MAGIC);
+    buffer[position++] = VERSION;
+    buffer[position++] = (byte) (incremental ? INCREMENTAL : FULL);
+    putVarLong(expected);
+    /* the header is not part of the checksum */
+    out.write(buffer, 0, position);
+    position = 0;
+  }
+
+  /**
+   * Write the state of one session, packed by the StateCodec.
+   *
+   * @param sessionId the id of the session
+   * @param operands  the packed operands of the session
+   * @param meta      the packed meta word of the session; a rejected mark is dropped
+   * @throws IOException           if the record can't be written
+   * @throws IllegalStateException if the snapshot has been finished
+   */
+  public void write(long sessionId, long operands, int meta)
+          throws IOException, IllegalStateException {
+    ensureRoom();
+    buffer[position++] = SESSION;
+    putVarLong(zigzag(sessionId));
+    putVarLong(zigzag(StateCodec.firstOperand(operands)));
+    putVarLong(zigzag(StateCodec.secondOperand(operands)));
+    buffer[position++] = (byte) (meta & META_BITS);
+    records++;
+  }
+
+  /**
+   * Write the state of one session held by an immutable calculator.
+   *
+   * @param sessionId the id of the session
+   * @param calc      the calculator holding the state of the session
+   * @throws IOException              if the record can't be written
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   * @throws IllegalStateException    if the snapshot has been finished
+   */
+  public void write(long sessionId, Calculator calc)
+          throws IOException, IllegalArgumentException, IllegalStateException {
+    write(sessionId, StateCodec.operands(calc), StateCodec.meta(calc));
+  }
+
+  /**
+   * Write the removal of a session, in an incremental snapshot.
+   *
+   * @param sessionId the id of the session
+   * @throws IOException           if the record can't be written
+   * @throws IllegalStateException if the snapshot is a full one, or has been finished
+   */
+  public void writeRemoved(long sessionId) throws IOException, IllegalStateException {
+    if (!incremental) {
+      throw new IllegalStateException("A full snapshot has no removals");
+    }
+    ensureRoom();
+    buffer[position++] = REMOVED;
+    putVarLong(zigzag(sessionId));
+    records++;
+  }
+
+  /**
+   * Return the number of records written so far.
+   *
+   * @return the number of sessions and removals written
+   */
+  public long count() {
+    return records;
+  }
+
+  /**
+   * Write the trailer that ends the snapshot, and flush the stream, leaving it open. Nothing can
+   * be written after this.
+   *
+   * @throws IOException if the trailer can't be written
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    flushBuffer();
+    finished = true;
+    buffer[position++] = END;
+    putVarLong(records);
+    putInt((int) checksum.getValue());
+    out.write(buffer, 0, position);
+    position = 0;
+    out.flush();
+  }
+
+  /**
+   * Finish the snapshot if it isn't already, and close the stream.
+   *
+   * @throws IOException if the trailer can't be written or the stream can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void ensureRoom() throws IOException, IllegalStateException {
+    if (finished) {
+      throw new IllegalStateException("The snapshot has been finished");
+    }
+    if (position + MAX_RECORD > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    checksum.update(buffer, 0, position);
+    out.write(buffer, 0, position);
+    position = 0;
+  }
+
+  private void putInt(int value) {
+    buffer[position++] = (byte) (value >>> 24);
+    buffer[position++] = (byte) (value >>> 16);
+    buffer[position++] = (byte) (value >>> 8);
+    buffer[position++] = (byte) value;
+  }
+
+  /* Writes seven bits at a time, lowest first, with the top bit of every byte but the last set */
+  private void putVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  /* Maps numbers of small magnitude, negative or not, to small unsigned numbers */
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+}
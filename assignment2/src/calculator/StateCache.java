@@ -0,0 +1,70 @@
+package calculator;
+
+/**
+ * This class represents a bounded cache of calculator states. Calculators created with a
+ * StateCache look up every state they are about to create in it first, and return the calculator
+ * already stored there if one holds an identical state (same class, operands, operator, flags and
+ * result marker); since calculators are immutable, such calculators can safely be shared.
+ *
+ * <p>The cache has a fixed number of slots and every state can only live in one of them, chosen
+ * by its hash. When a new state is stored in a slot that is already taken, the older state is
+ * evicted. Lookups never create objects, so states that are found in the cache cost no
+ * allocation at all. A StateCache may be shared by any number of calculators and threads.
+ */
+public final class StateCache {
+  private final AbstractCalculator[] slots;
+
+  private final int mask;
+
+  /**
+   * Create an empty cache that can hold at least the given number of calculator states at once.
+   *
+   * @param capacity the minimum number of states the cache can hold
+   * @throws IllegalArgumentException if the capacity is not positive or too large
+   */
+  public StateCache(int capacity) throws IllegalArgumentException {
+    if ((capacity <= 0) || (capacity > (1 << 30))) {
+      throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AbstractCalculator[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Return the number of states this cache can hold at once.
+   *
+   * @return the number of slots in this cache
+   */
+  public int capacity() {
+    return slots.length;
+  }
+
+  /* Returns the cached calculator of the given class holding the given state, or null if the
+   * cache doesn't currently have one */
+  AbstractCalculator lookup(Class<?> type, int numOne, boolean firstEmpty, char operator,
+                            boolean operatorEmpty, int numTwo, boolean secondEmpty,
+                            boolean result) {
+    int hash = AbstractCalculator.hashState(type, numOne, firstEmpty, operator, operatorEmpty,
+            numTwo, secondEmpty, result);
+    AbstractCalculator candidate = slots[index(hash)];
+    if ((candidate != null) && candidate.holds(type, numOne, firstEmpty, operator,
+            operatorEmpty, numTwo, secondEmpty, result)) {
+      return candidate;
+    }
+    return null;
+  }
+
+  /* Stores the given calculator in its slot, evicting whatever state was there before */
+  void store(AbstractCalculator calc) {
+    slots[index(calc.hashCode())] = calc;
+  }
+
+  /* Spreads the high bits of the hash into the low ones, which are the ones used as the index */
+  private int index(int hash) {
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
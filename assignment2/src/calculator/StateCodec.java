@@ -0,0 +1,338 @@
+package calculator;
+
+/**
+ * This class packs the state of a SimpleCalculator or SmartCalculator into two primitives, and
+ * steps packed states through the calculators' rules without creating any objects. Only
+ * calculators with the INT NumericBackend can be packed.
+ *
+ * <p>The two operands are packed into one long, the first operand in the high 32 bits and the
+ * second in the low 32 bits. Everything else is packed into one int, the meta word: the four flags
+ * of the state in bits 0-3 (first operand empty, operator empty, second operand empty, result), the
+ * operator in bits 4-5, the rules (0 for SimpleCalculator, 1 for SmartCalculator) in bit 6, and in
+ * bit 7 whether the button that led to this state was rejected.
+ *
+ * <p>Since a button changes both words, stepping is split in two pure functions that take the
+ * current state and a button: nextMeta returns the next meta word and nextOperands the next
+ * operands. A caller should check the meta word for a rejected button, and can skip computing the
+ * operands if it was.
+ */
+public final class StateCodec {
+  private static final int OPERATOR_SHIFT = 4;
+
+  private static final int OPERATOR_MASK = 3 << OPERATOR_SHIFT;
+
+  private static final int SMART = 1 << 6;
+
+  private static final int REJECTED = 1 << 7;
+
+  /* The operators in the order of their codes; an operator that was never set is '0' */
+  private static final String OPERATORS = "0+-*";
+
+  /* Flags of a state holding only a first operand, and of one holding only a result */
+  private static final int FIRST_ONLY = TransitionTable.OPERATOR_EMPTY
+          | TransitionTable.SECOND_EMPTY;
+
+  private static final int RESULT_ONLY = FIRST_ONLY | TransitionTable.RESULT;
+
+  /* Factories for turning packed states back into calculators */
+  private static final AbstractCalculator SIMPLE_PROTOTYPE = new SimpleCalculator();
+
+  private static final AbstractCalculator SMART_PROTOTYPE = new SmartCalculator();
+
+  private StateCodec() {
+  }
+
+  /**
+   * Return the meta word of an empty calculator following the given rules. The operands of an
+   * empty calculator are 0.
+   *
+   * @param smart true for the rules of a SmartCalculator, false for those of a SimpleCalculator
+   * @return the meta word of an empty calculator
+   */
+  public static int emptyMeta(boolean smart) {
+    return TransitionTable.EMPTY | (smart ? SMART : 0);
+  }
+
+  /**
+   * Return the packed operands of the given calculator.
+   *
+   * @param calc the calculator to pack
+   * @return the first operand in the high 32 bits, the second operand in the low 32 bits
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public static long operands(Calculator calc) throws IllegalArgumentException {
+    AbstractCalculator source = packable(calc);
+    return operands(source.firstOp, source.secondOp);
+  }
+
+  /**
+   * Return the packed meta word of the given calculator.
+   *
+   * @param calc the calculator to pack
+   * @return the flags, operator and rules of the calculator, packed as described above
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public static int meta(Calculator calc) throws IllegalArgumentException {
+    AbstractCalculator source = packable(calc);
+    return meta(source.flags(), source.operator,
+            source.variant() == TransitionTable.SMART);
+  }
+
+  /**
+   * Create an immutable calculator holding the given packed state.
+   *
+   * @param operands the packed operands
+   * @param meta     the packed meta word
+   * @return a SimpleCalculator or SmartCalculator, depending on the rules in the meta word
+   */
+  public static Calculator decode(long operands, int meta) {
+    return decode(isSmart(meta) ? SMART_PROTOTYPE : SIMPLE_PROTOTYPE, operands, meta);
+  }
+
+  /**
+   * Pack two operands into one long.
+   *
+   * @param firstOp  the first operand
+   * @param secondOp the second operand
+   * @return the first operand in the high 32 bits, the second operand in the low 32 bits
+   */
+  public static long operands(int firstOp, int secondOp) {
+    return ((long) firstOp << 32) | (secondOp & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Return the first operand of packed operands.
+   *
+   * @param operands the packed operands
+   * @return the first operand
+   */
+  public static int firstOperand(long operands) {
+    return (int) (operands >> 32);
+  }
+
+  /**
+   * Return the second operand of packed operands.
+   *
+   * @param operands the packed operands
+   * @return the second operand
+   */
+  public static int secondOperand(long operands) {
+    return (int) operands;
+  }
+
+  /**
+   * Return the operator held in a meta word; an operator that was never set is '0'.
+   *
+   * @param meta the packed meta word
+   * @return the operator, one of '0', '+', '-' and '*'
+   */
+  public static char operator(int meta) {
+    return OPERATORS.charAt((meta & OPERATOR_MASK) >>> OPERATOR_SHIFT);
+  }
+
+  /**
+   * Return whether a meta word holds the rules of a SmartCalculator.
+   *
+   * @param meta the packed meta word
+   * @return true for a SmartCalculator, false for a SimpleCalculator
+   */
+  public static boolean isSmart(int meta) {
+    return (meta & SMART) != 0;
+  }
+
+  /**
+   * Return whether the button that led to a meta word was rejected. The rest of a rejected meta
+   * word is the same as before the button.
+   *
+   * @param meta the meta word returned by nextMeta
+   * @return true if the button was invalid or not allowed in the state it was input in
+   */
+  public static boolean isRejected(int meta) {
+    return (meta & REJECTED) != 0;
+  }
+
+  /**
+   * Return the meta word after inputting a button to a packed state. If the button is rejected,
+   * the returned meta word is the given one marked as rejected; otherwise it is not marked.
+   *
+   * @param operands the packed operands of the current state
+   * @param meta     the packed meta word of the current state
+   * @param button   the input, representing a single button on a real calculator
+   * @return the meta word of the next state
+   */
+  public static int nextMeta(long operands, int meta, char button) {
+    int firstOp = firstOperand(operands);
+    int secondOp = secondOperand(operands);
+    int action = TransitionTable.action(variant(meta), flags(meta), firstOp, secondOp, button);
+    if (((action == TransitionTable.APPEND_FIRST)
+            && !fits(TransitionTable.append(firstOp, button - '0')))
+            || ((action == TransitionTable.APPEND_SECOND)
+            && !fits(TransitionTable.append(secondOp, button - '0')))) {
+      return meta | REJECTED;
+    }
+    return afterAction(meta, action, button);
+  }
+
+  /**
+   * Return the operands after inputting a button to a packed state. If the button is rejected,
+   * the operands are returned unchanged.
+   *
+   * @param operands the packed operands of the current state
+   * @param meta     the packed meta word of the current state
+   * @param button   the input, representing a single button on a real calculator
+   * @return the packed operands of the next state
+   */
+  public static long nextOperands(long operands, int meta, char button) {
+    int firstOp = firstOperand(operands);
+    int secondOp = secondOperand(operands);
+    char operator = operator(meta);
+    switch (TransitionTable.action(variant(meta), flags(meta), firstOp, secondOp, button)) {
+      case TransitionTable.START_FIRST:
+        return operands(button - '0', 0);
+      case TransitionTable.APPEND_FIRST:
+        long first = TransitionTable.append(firstOp, button - '0');
+        return fits(first) ? operands((int) first, 0) : operands;
+      case TransitionTable.START_SECOND:
+        return operands(firstOp, button - '0');
+      case TransitionTable.APPEND_SECOND:
+        long second = TransitionTable.append(secondOp, button - '0');
+        return fits(second) ? operands(firstOp, (int) second) : operands;
+      case TransitionTable.SET_OPERATOR:
+        return operands(firstOp, 0);
+      case TransitionTable.PERFORM_SET_OPERATOR:
+        return operands(TransitionTable.operate(operator, firstOp, secondOp), 0);
+      case TransitionTable.SMART_PERFORM_SET_OPERATOR:
+        return operands(TransitionTable.operate(operator, firstOp, secondOp), '0');
+      case TransitionTable.CLEAR_ALL:
+      case TransitionTable.ZERO_RESULT:
+        return 0L;
+      case TransitionTable.PERFORM_RESULT:
+        return operands(TransitionTable.operate(operator, firstOp, secondOp), 0);
+      case TransitionTable.REPEAT:
+        return operands(TransitionTable.operate(operator, firstOp, secondOp * -1), secondOp);
+      case TransitionTable.PERFORM_REMEMBER:
+        return operands(TransitionTable.operate(operator, firstOp, secondOp), secondOp * -1);
+      case TransitionTable.SELF_OPERATE:
+        return operands(TransitionTable.operate(operator, firstOp, firstOp), firstOp * -1);
+      default:
+        return operands;
+    }
+  }
+
+  /**
+   * Append the screen of a packed state to the given StringBuilder; this is the same text that
+   * getResult() would return for a calculator in that state.
+   *
+   * @param operands the packed operands
+   * @param meta     the packed meta word
+   * @param screen   the StringBuilder to append the screen to
+   */
+  public static void render(long operands, int meta, StringBuilder screen) {
+    if ((meta & TransitionTable.FIRST_EMPTY) != 0) {
+      return;
+    }
+    screen.append(firstOperand(operands));
+    if ((meta & TransitionTable.OPERATOR_EMPTY) == 0) {
+      screen.append(operator(meta));
+      if ((meta & TransitionTable.SECOND_EMPTY) == 0) {
+        screen.append(secondOperand(operands));
+      }
+    }
+  }
+
+  /* Returns the meta word after the given TransitionTable action for the given button, whatever
+   * the operands are; a REJECT action marks the meta word as rejected */
+  static int afterAction(int meta, int action, char button) {
+    int unmarked = unmarked(meta);
+    switch (action) {
+      case TransitionTable.KEEP:
+        return unmarked;
+      case TransitionTable.START_FIRST:
+      case TransitionTable.APPEND_FIRST:
+        return with(unmarked, FIRST_ONLY, '0');
+      case TransitionTable.START_SECOND:
+      case TransitionTable.APPEND_SECOND:
+        return withFlags(unmarked, 0);
+      case TransitionTable.SET_OPERATOR:
+      case TransitionTable.PERFORM_SET_OPERATOR:
+      case TransitionTable.SMART_PERFORM_SET_OPERATOR:
+        return with(unmarked, TransitionTable.SECOND_EMPTY, button);
+      case TransitionTable.CLEAR_ALL:
+        return with(unmarked, TransitionTable.EMPTY, '0');
+      case TransitionTable.PERFORM_RESULT:
+      case TransitionTable.ZERO_RESULT:
+        return with(unmarked, RESULT_ONLY, '0');
+      case TransitionTable.REPEAT:
+      case TransitionTable.PERFORM_REMEMBER:
+      case TransitionTable.SELF_OPERATE:
+        return withFlags(unmarked, RESULT_ONLY);
+      default:
+        return meta | REJECTED;
+    }
+  }
+
+  /* Creates a calculator holding the given packed state through the factory method of the given
+   * calculator, which should follow the same rules as the meta word */
+  static Calculator decode(AbstractCalculator factory, long operands, int meta) {
+    return factory.makeCalc(firstOperand(operands), operator(meta), secondOperand(operands),
+            flags(meta));
+  }
+
+  /* Returns the meta word without the mark of a rejected button */
+  static int unmarked(int meta) {
+    return meta & ~REJECTED;
+  }
+
+  /* Returns the TransitionTable flags held in a meta word */
+  static int flags(int meta) {
+    return meta & TransitionTable.FLAGS;
+  }
+
+  /* Returns the TransitionTable variant held in a meta word */
+  static int variant(int meta) {
+    return isSmart(meta) ? TransitionTable.SMART : TransitionTable.SIMPLE;
+  }
+
+  /* Packs the given flags, operator and rules into a meta word */
+  static int meta(int flags, char operator, boolean smart) {
+    return with(smart ? SMART : 0, flags, operator);
+  }
+
+  /* Returns the meta word with its flags and operator replaced */
+  private static int with(int meta, int flags, char operator) {
+    return (meta & SMART) | flags | (code(operator) << OPERATOR_SHIFT);
+  }
+
+  /* Returns the meta word with its flags replaced, keeping its operator */
+  private static int withFlags(int meta, int flags) {
+    return (meta & (SMART | OPERATOR_MASK)) | flags;
+  }
+
+  /* Returns the 2-bit code of an operator */
+  private static int code(char operator) {
+    switch (operator) {
+      case '+':
+        return 1;
+      case '-':
+        return 2;
+      case '*':
+        return 3;
+      default:
+        return 0;
+    }
+  }
+
+  private static boolean fits(long operand) {
+    return operand == (int) operand;
+  }
+
+  private static AbstractCalculator packable(Calculator calc) throws IllegalArgumentException {
+    if (!(calc instanceof AbstractCalculator)
+            || (((AbstractCalculator) calc).getBackend() != NumericBackend.INT)) {
+      throw new IllegalArgumentException("Can't pack the state of " + calc);
+    }
+    return (AbstractCalculator) calc;
+  }
+}
@@ -0,0 +1,218 @@
+package calculator;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class evaluates one very long tape of buttons on several cores at once, giving the same
+ * final calculator, and the same screens at any requested checkpoints, as inputting the buttons
+ * one after the other would. As everywhere else buttons are replayed, a button the calculator
+ * rejects leaves it unchanged.
+ *
+ * <p>The tape is cut into segments. A calculator's next state depends on the values of its
+ * operands, not only on a finite set of state classes, so a segment generally can't be evaluated
+ * before the state it starts in is known; a 'C' button is the exception, since it always empties
+ * the calculator. Every segment is therefore summarized in parallel by evaluating it from its
+ * first 'C' onward, starting from an empty calculator. The summaries are then stitched together
+ * in order: a segment with a 'C' simply hands on its summarized state, and only a segment without
+ * one (or the part before the first 'C' of a segment, when a checkpoint falls inside it) has to be
+ * evaluated from the state the previous segment ended in. Tapes that are cleared now and then are
+ * therefore evaluated almost entirely in parallel.
+ */
+public final class TapeEvaluator {
+  /* Segments shorter than this aren't worth handing to another thread */
+  private static final int MIN_SEGMENT = 4096;
+
+  private final int segments;
+
+  private final Executor executor;
+
+  /**
+   * Create an evaluator that cuts tapes into a few segments per available core and runs them on
+   * the common ForkJoinPool.
+   */
+  public TapeEvaluator() {
+    this(4 * ForkJoinPool.getCommonPoolParallelism(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Create an evaluator that cuts tapes into at most the given number of segments and runs them
+   * on the given executor.
+   *
+   * @param segments the largest number of segments to cut a tape into
+   * @param executor the executor that summarizes the segments
+   * @throws IllegalArgumentException if the number of segments is not positive
+   */
+  public TapeEvaluator(int segments, Executor executor) throws IllegalArgumentException {
+    if (segments <= 0) {
+      throw new IllegalArgumentException("Invalid number of segments " + segments);
+    }
+    this.segments = segments;
+    this.executor = Objects.requireNonNull(executor);
+  }
+
+  /**
+   * Input every button of the tape to the given calculator and return the final calculator.
+   *
+   * @param start the calculator to input the tape to
+   * @param tape  the buttons, in the order they are pressed
+   * @return the calculator after the whole tape
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend
+   */
+  public Calculator evaluate(Calculator start, CharSequence tape) throws IllegalArgumentException {
+    return evaluate(start, tape, new int[0], new String[0]);
+  }
+
+  /**
+   * Input every button of the tape to the given calculator, recording the screen at every
+   * checkpoint, and return the final calculator. Checkpoint p is the state after the first p
+   * buttons of the tape, so checkpoint 0 is the starting calculator and checkpoint
+   * tape.length() the final one.
+   *
+   * @param start       the calculator to input the tape to
+   * @param tape        the buttons, in the order they are pressed
+   * @param checkpoints the checkpoints to record, in ascending order
+   * @param screens     the array to store the screen at every checkpoint in, at the same position
+   *                    as the checkpoint
+   * @return the calculator after the whole tape
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, or the checkpoints are not ascending
+   *         positions in the tape, or there isn't a screen for each of them
+   */
+  public Calculator evaluate(Calculator start, CharSequence tape, int[] checkpoints,
+                             String[] screens) throws IllegalArgumentException {
+    checkArguments(start, tape, checkpoints, screens);
+    AbstractCalculator factory = (AbstractCalculator) start;
+    int length = tape.length();
+    int count = Math.max(1, Math.min(segments, length / MIN_SEGMENT));
+    int segmentSize = Math.max(1, (length + count - 1) / count);
+
+    /* summarize every segment from its first 'C' onward */
+    int[] resets = new int[count];
+    long[] endOperands = new long[count];
+    int[] endMetas = new int[count];
+    int emptyMeta = StateCodec.emptyMeta(factory.variant() == TransitionTable.SMART);
+    ParallelTasks.runAll(executor, count, segment -> {
+      int begin = segment * segmentSize;
+      int end = Math.min(length, begin + segmentSize);
+      int reset = begin;
+      while ((reset < end) && (tape.charAt(reset) != 'C')) {
+        reset++;
+      }
+      if (reset == end) {
+        resets[segment] = -1;
+        return;
+      }
+      resets[segment] = reset;
+      Segment summary = new Segment(0L, emptyMeta);
+      summary.record(reset + 1, checkpoints, screens);
+      summary.run(tape, reset + 1, end, checkpoints, screens);
+      endOperands[segment] = summary.operands;
+      endMetas[segment] = summary.meta;
+    });
+
+    /* stitch the summaries together in order */
+    Segment state = new Segment(StateCodec.operands(start), StateCodec.meta(start));
+    state.record(0, checkpoints, screens);
+    for (int segment = 0; segment < count; segment++) {
+      int begin = segment * segmentSize;
+      int end = Math.min(length, begin + segmentSize);
+      if (resets[segment] < 0) {
+        state.run(tape, begin, end, checkpoints, screens);
+      } else {
+        if (hasCheckpoint(checkpoints, begin + 1, resets[segment])) {
+          state.run(tape, begin, resets[segment], checkpoints, screens);
+        }
+        state.operands = endOperands[segment];
+        state.meta = endMetas[segment];
+      }
+    }
+    return StateCodec.decode(factory, state.operands, state.meta);
+  }
+
+  /* Checks the arguments of evaluate */
+  private static void checkArguments(Calculator start, CharSequence tape, int[] checkpoints,
+                                     String[] screens) throws IllegalArgumentException {
+    StateCodec.meta(start);
+    if (screens.length < checkpoints.length) {
+      throw new IllegalArgumentException("No room for the screens of " + checkpoints.length
+              + " checkpoints");
+    }
+    for (int i = 0; i < checkpoints.length; i++) {
+      if ((checkpoints[i] < 0) || (checkpoints[i] > tape.length())
+              || ((i > 0) && (checkpoints[i] < checkpoints[i - 1]))) {
+        throw new IllegalArgumentException("Invalid checkpoint " + checkpoints[i]);
+      }
+    }
+  }
+
+  /* Whether any checkpoint falls in the range from first to last, inclusive */
+  private static boolean hasCheckpoint(int[] checkpoints, int first, int last) {
+    int i = firstCheckpoint(checkpoints, first);
+    return (i < checkpoints.length) && (checkpoints[i] <= last);
+  }
+
+  /* Returns the position of the first checkpoint that is not before the given one */
+  private static int firstCheckpoint(int[] checkpoints, int from) {
+    int low = 0;
+    int high = checkpoints.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (checkpoints[middle] < from) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /* A packed calculator state that is stepped through part of a tape */
+  private static final class Segment {
+    private long operands;
+
+    private int meta;
+
+    private Segment(long operands, int meta) {
+      this.operands = operands;
+      this.meta = meta;
+    }
+
+    /* Inputs the buttons from begin up to end, recording the screen at every checkpoint after
+     * one of them */
+    private void run(CharSequence tape, int begin, int end, int[] checkpoints, String[] screens) {
+      int next = firstCheckpoint(checkpoints, begin + 1);
+      long ops = operands;
+      int state = meta;
+      for (int i = begin; i < end; i++) {
+        char button = tape.charAt(i);
+        int nextState = StateCodec.nextMeta(ops, state, button);
+        if (!StateCodec.isRejected(nextState)) {
+          ops = StateCodec.nextOperands(ops, state, button);
+          state = nextState;
+        }
+        while ((next < checkpoints.length) && (checkpoints[next] == i + 1)) {
+          screens[next++] = screen(ops, state);
+        }
+      }
+      operands = ops;
+      meta = state;
+    }
+
+    /* Records the current screen at every checkpoint at the given position */
+    private void record(int position, int[] checkpoints, String[] screens) {
+      for (int i = firstCheckpoint(checkpoints, position);
+           (i < checkpoints.length) && (checkpoints[i] == position); i++) {
+        screens[i] = screen(operands, meta);
+      }
+    }
+
+    private static String screen(long operands, int meta) {
+      StringBuilder screen = new StringBuilder();
+      StateCodec.render(operands, meta, screen);
+      return screen.toString();
+    }
+  }
+}
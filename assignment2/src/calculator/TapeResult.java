@@ -0,0 +1,67 @@
+package calculator;
+
+/**
+ * This class represents the outcome of inputting a whole sequence of buttons to a calculator at
+ * once: the calculator after every button that was accepted, and the position of the first button
+ * that wasn't, if there was one. Inputting stops at that button, so none of the buttons after it
+ * are applied.
+ */
+public final class TapeResult {
+  private final Calculator calculator;
+
+  private final int errorOffset;
+
+  /**
+   * Create a result holding the given calculator and the position of the first rejected button.
+   *
+   * @param calculator  the calculator after all the accepted buttons
+   * @param errorOffset the position of the first button that wasn't accepted, or -1 if every
+   *                    button was accepted
+   */
+  public TapeResult(Calculator calculator, int errorOffset) {
+    this.calculator = calculator;
+    this.errorOffset = errorOffset;
+  }
+
+  /**
+   * Return the calculator after all the buttons that were accepted.
+   *
+   * @return the calculator right before the first rejected button, or after the last button if
+   *     all of them were accepted
+   */
+  public Calculator getCalculator() {
+    return calculator;
+  }
+
+  /**
+   * Return the position of the first button that the calculator didn't accept.
+   *
+   * @return the position of the first rejected button, or -1 if every button was accepted
+   */
+  public int getErrorOffset() {
+    return errorOffset;
+  }
+
+  /**
+   * Return whether every button was accepted.
+   *
+   * @return true if no button was rejected
+   */
+  public boolean isComplete() {
+    return errorOffset < 0;
+  }
+
+  /* Moves the error offset by the given amount, for results of inputs taken from the middle of
+   * an array */
+  TapeResult shift(int amount) {
+    if ((errorOffset < 0) || (amount == 0)) {
+      return this;
+    }
+    return new TapeResult(calculator, errorOffset + amount);
+  }
+
+  @Override
+  public String toString() {
+    return calculator.getResult() + (isComplete() ? "" : " (stopped at " + errorOffset + ")");
+  }
+}
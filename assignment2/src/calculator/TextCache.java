@@ -0,0 +1,184 @@
+package calculator;
+
+/**
+ * This class is a bounded cache of compiled text, such as the expressions of an
+ * ExpressionCalculator or the scripts of a ScriptCompiler, keyed by the text and evicting what was
+ * used least recently once it is full. Unlike a map keyed by strings, it can be looked up with any
+ * CharSequence without copying it into a string first, so a lookup that finds its text creates no
+ * objects at all.
+ *
+ * <p>A cache may be shared by any number of threads. It is split into segments by the hash of
+ * the text, each with its own lock, its own share of the capacity and its own order of use, so
+ * that threads looking up different texts rarely wait for each other, even when every lookup
+ * finds its text. Small caches have a single segment, and so evict exactly the text used least
+ * recently.
+ *
+ * @param <V> the type of the compiled form of the text
+ */
+final class TextCache<V> {
+  /* The most segments a cache is split into, and the fewest texts each segment holds */
+  private static final int MAX_SEGMENTS = 16;
+
+  private static final int MIN_SEGMENT_CAPACITY = 64;
+
+  /* A cached text; entries are chained in their bucket, and all the entries of a segment are also
+   * on a circular list in the order they were used, most recently used first */
+  private static final class Entry<V> {
+    private final String text;
+
+    private final int hash;
+
+    private final V value;
+
+    private Entry<V> next;
+
+    private Entry<V> before;
+
+    private Entry<V> after;
+
+    private Entry(String text, int hash, V value) {
+      this.text = text;
+      this.hash = hash;
+      this.value = value;
+    }
+  }
+
+  /* Part of the cache, guarded by its own lock */
+  private static final class Segment<V> {
+    private final Entry<V>[] buckets;
+
+    private final int mask;
+
+    private final int capacity;
+
+    private int size;
+
+    /* The head of the list of entries in the order they were used; holds no text itself */
+    private final Entry<V> order = new Entry<>(null, 0, null);
+
+    @SuppressWarnings("unchecked")
+    private Segment(int capacity) {
+      int buckets = Integer.highestOneBit(capacity);
+      if (buckets < capacity) {
+        buckets <<= 1;
+      }
+      this.buckets = (Entry<V>[]) new Entry<?>[buckets];
+      this.mask = buckets - 1;
+      this.capacity = capacity;
+      order.before = order;
+      order.after = order;
+    }
+
+    private synchronized V lookup(CharSequence text, int hash) {
+      Entry<V> entry = find(text, hash);
+      if (entry == null) {
+        return null;
+      }
+      unlink(entry);
+      linkFirst(entry);
+      return entry.value;
+    }
+
+    private synchronized V store(String text, int hash, V value) {
+      Entry<V> existing = find(text, hash);
+      if (existing != null) {
+        /* another thread stored it first */
+        return existing.value;
+      }
+      Entry<V> entry = new Entry<>(text, hash, value);
+      int bucket = hash & mask;
+      entry.next = buckets[bucket];
+      buckets[bucket] = entry;
+      linkFirst(entry);
+      if (++size > capacity) {
+        evict(order.before);
+      }
+      return value;
+    }
+
+    private Entry<V> find(CharSequence text, int hash) {
+      for (Entry<V> entry = buckets[hash & mask]; entry != null; entry = entry.next) {
+        if ((entry.hash == hash) && entry.text.contentEquals(text)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    private void evict(Entry<V> entry) {
+      unlink(entry);
+      int bucket = entry.hash & mask;
+      if (buckets[bucket] == entry) {
+        buckets[bucket] = entry.next;
+      } else {
+        Entry<V> previous = buckets[bucket];
+        while (previous.next != entry) {
+          previous = previous.next;
+        }
+        previous.next = entry.next;
+      }
+      size--;
+    }
+
+    private void linkFirst(Entry<V> entry) {
+      entry.before = order;
+      entry.after = order.after;
+      order.after.before = entry;
+      order.after = entry;
+    }
+
+    private void unlink(Entry<V> entry) {
+      entry.before.after = entry.after;
+      entry.after.before = entry.before;
+    }
+  }
+
+  private final Segment<V>[] segments;
+
+  /* Creates an empty cache holding up to the given number of texts */
+  @SuppressWarnings("unchecked")
+  TextCache(int capacity) throws IllegalArgumentException {
+    if ((capacity <= 0) || (capacity > (1 << 30))) {
+      throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+    }
+    int count = Integer.highestOneBit(
+            Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_CAPACITY)));
+    this.segments = (Segment<V>[]) new Segment<?>[count];
+    for (int i = 0; i < count; i++) {
+      /* the first segments take what doesn't divide evenly */
+      segments[i] = new Segment<>(capacity / count + ((i < capacity % count) ? 1 : 0));
+    }
+  }
+
+  /* Returns the hash of the text, the same as the hash code of a string holding it, without
+   * creating that string */
+  static int hash(CharSequence text) {
+    if (text instanceof String) {
+      return text.hashCode();
+    }
+    int hash = 0;
+    for (int i = 0; i < text.length(); i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    return hash;
+  }
+
+  /* Returns the compiled form of the text, marking it as the most recently used in its segment,
+   * or null if the cache doesn't hold it */
+  V lookup(CharSequence text, int hash) {
+    return segmentOf(hash).lookup(text, hash);
+  }
+
+  /* Stores the compiled form of the text as the most recently used in its segment, evicting the
+   * least recently used text of the segment if it is full. Returns the compiled form the cache
+   * holds afterwards, which is the one another thread stored if it got there first */
+  V store(String text, int hash, V value) {
+    return segmentOf(hash).store(text, hash, value);
+  }
+
+  /* The buckets of a segment are picked by the low bits of the hash, so the segment is picked by
+   * mixed high bits */
+  private Segment<V> segmentOf(int hash) {
+    return segments[((hash * 0x9E3779B9) >>> 16) & (segments.length - 1)];
+  }
+}
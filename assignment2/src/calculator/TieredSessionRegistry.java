@@ -0,0 +1,477 @@
+package calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds calculator sessions in two tiers: sessions in use live on the heap, packed in
+ * SessionMaps, and sessions that have been idle for a while are spilled to an OffHeapSessionStore,
+ * usually backed by a file, where they cost no heap and are paged in by the operating system
+ * only when touched. A button input to a spilled session pages it back onto the heap first, so
+ * the tiers are invisible to the user of the registry, apart from the time a page-in takes.
+ *
+ * <p>The heap tier is split into stripes, each with its own lock, so threads working on sessions
+ * in different stripes don't wait for each other, and no lock is shared by every input. Every
+ * session remembers the tick of a coarse clock at which it was last used. A background thread
+ * advances the clock and sweeps the stripes one at a time, spilling the sessions that have been
+ * idle for the timeout. The heap tier can also be given a limit; a stripe over its share of the
+ * limit spills a session right away, chosen by a CLOCK hand that passes over the sessions used
+ * in the current tick, as an approximation of the least recently used one.
+ *
+ * <p>Closing the registry spills every session, so that a registry backed by a file holds every
+ * session again when it is opened with that file. The store has a fixed size; spilling a session
+ * to a full store throws an IllegalStateException.
+ */
+public final class TieredSessionRegistry implements Closeable {
+  private static final int STRIPES = 64;
+
+  /* The number of clock ticks in the idle timeout; a session is idle for between this many and
+   * one more ticks before it is spilled */
+  private static final int TICKS_PER_TIMEOUT = 8;
+
+  /* One stripe of the heap tier, locked as a whole */
+  private static final class Stripe {
+    private final SessionMap sessions = new SessionMap(0);
+
+    /* The slot the CLOCK hand looks at next */
+    private int hand;
+  }
+
+  private final long startOperands;
+
+  private final int startMeta;
+
+  private final AbstractCalculator start;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private final int stripeLimit;
+
+  private final OffHeapSessionStore cold;
+
+  private final long tickNanos;
+
+  private final long origin = System.nanoTime();
+
+  private volatile int tick;
+
+  private volatile boolean closed;
+
+  private final Thread sweeper;
+
+  /**
+   * Create a registry whose sessions start as the given calculator, spilling sessions idle for
+   * the given timeout to a store in the given file, with no limit on the sessions on the heap.
+   *
+   * @param start       the calculator every new session starts as
+   * @param idleTimeout the time a session is unused for before it is spilled
+   * @param unit        the unit of the timeout
+   * @param path        the file holding the spilled sessions, or null for a store in memory
+   *                    outside the heap
+   * @param capacity    the number of sessions a new store is sized for
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, the timeout is not positive, or the capacity is
+   *         not positive or too large
+   * @throws IOException              if the file can't be opened or mapped, doesn't hold a store,
+   *         or holds sessions starting as another calculator
+   */
+  public TieredSessionRegistry(Calculator start, long idleTimeout, TimeUnit unit, Path path,
+                               int capacity) throws IllegalArgumentException, IOException {
+    this(start, idleTimeout, unit, Integer.MAX_VALUE, path, capacity);
+  }
+
+  /**
+   * Create a registry whose sessions start as the given calculator, spilling sessions idle for
+   * the given timeout, or the least recently used ones once more than the given number are on the
+   * heap, to a store in the given file. Spilled sessions already in the file are kept.
+   *
+   * @param start       the calculator every new session starts as
+   * @param idleTimeout the time a session is unused for before it is spilled
+   * @param unit        the unit of the timeout
+   * @param maxHot      the most sessions kept on the heap, roughly, as every stripe keeps its
+   *                    share of them
+   * @param path        the file holding the spilled sessions, or null for a store in memory
+   *                    outside the heap
+   * @param capacity    the number of sessions a new store is sized for
+   * @throws IllegalArgumentException if the calculator is not a SimpleCalculator or
+   *         SmartCalculator with the INT backend, the timeout or the number of sessions on the
+   *         heap is not positive, or the capacity is not positive or too large
+   * @throws IOException              if the file can't be opened or mapped, doesn't hold a store,
+   *         or holds sessions starting as another calculator
+   */
+  public TieredSessionRegistry(Calculator start, long idleTimeout, TimeUnit unit, int maxHot,
+                               Path path, int capacity)
+          throws IllegalArgumentException, IOException {
+    if (idleTimeout <= 0) {
+      throw new IllegalArgumentException("Invalid idle timeout " + idleTimeout);
+    }
+    if (maxHot <= 0) {
+      throw new IllegalArgumentException("Invalid number of sessions " + maxHot);
+    }
+    this.startOperands = StateCodec.operands(start);
+    this.startMeta = StateCodec.meta(start);
+    this.start = (AbstractCalculator) start;
+    this.cold = (path == null) ? new OffHeapSessionStore(start, capacity)
+            : new OffHeapSessionStore(start, capacity, path);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.stripeLimit = Math.max(1, maxHot / STRIPES);
+    this.tickNanos = Math.max(1, unit.toNanos(idleTimeout) / TICKS_PER_TIMEOUT);
+    this.sweeper = new Thread(this::sweep, "calculator-tiered-sweep");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Return the number of sessions in this registry, on the heap or spilled.
+   *
+   * @return the number of sessions a button has been input to and that weren't removed since
+   */
+  public int size() {
+    return getHotSize() + cold.size();
+  }
+
+  /**
+   * Return the number of sessions on the heap.
+   *
+   * @return the number of sessions that haven't been spilled, or were paged back in
+   */
+  public int getHotSize() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.sessions.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Return the number of spilled sessions.
+   *
+   * @return the number of sessions in the store
+   */
+  public int getColdSize() {
+    return cold.size();
+  }
+
+  /**
+   * Return whether this registry holds a session with the given id, on the heap or spilled.
+   *
+   * @param sessionId the id of the session
+   * @return true if a button has been input to the session and it wasn't removed since
+   */
+  public boolean contains(long sessionId) {
+    Stripe stripe = stripeOf(sessionId);
+    synchronized (stripe) {
+      return (stripe.sessions.find(sessionId) >= 0) || cold.contains(sessionId);
+    }
+  }
+
+  /**
+   * Input a button to a session, paging it in first if it was spilled, or adding it in the
+   * starting state if the registry doesn't hold it yet. A button the session rejects leaves it
+   * unchanged, but still counts as a use.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return true if the button was accepted, false if it was invalid or not allowed in the
+   *     session's current state, including digits that would make an operand too large
+   * @throws IllegalStateException if a session has to be spilled and the store is full, or the
+   *                               registry is closed
+   */
+  public boolean input(long sessionId, char button) throws IllegalStateException {
+    return tryInput(sessionId, button) == InputStatus.OK;
+  }
+
+  /**
+   * Input a button to a session in the same way as input(long, char), but return why a rejected
+   * button wasn't accepted instead of only whether it was.
+   *
+   * @param sessionId the id of the session
+   * @param button    the input to the session, representing a single button on a real calculator
+   * @return OK if the button was accepted, otherwise the reason it was rejected
+   * @throws IllegalStateException if a session has to be spilled and the store is full, or the
+   *                               registry is closed
+   */
+  public InputStatus tryInput(long sessionId, char button) throws IllegalStateException {
+    CalculatorMetrics metrics = CalculatorMetrics.installed;
+    if (metrics == null) {
+      return apply(sessionId, button, null);
+    }
+    long start = System.nanoTime();
+    InputStatus status = apply(sessionId, button, metrics);
+    metrics.recordLatency(button, System.nanoTime() - start);
+    return status;
+  }
+
+  /* The input path of tryInput(long, char); the button is counted in the given metrics, if any */
+  private InputStatus apply(long sessionId, char button, CalculatorMetrics metrics)
+          throws IllegalStateException {
+    Stripe stripe = stripeOf(sessionId);
+    synchronized (stripe) {
+      if (closed) {
+        throw new IllegalStateException("The registry is closed");
+      }
+      SessionMap sessions = stripe.sessions;
+      int slot = sessions.find(sessionId);
+      if (slot < 0) {
+        slot = pageIn(stripe, sessionId);
+      }
+      long operands = sessions.operands(slot);
+      int meta = sessions.meta(slot);
+      if (metrics != null) {
+        metrics.record(operands, meta, button);
+      }
+      int next = StateCodec.nextMeta(operands, meta, button);
+      InputStatus status = InputStatus.OK;
+      if (StateCodec.isRejected(next)) {
+        status = TransitionTable.status(StateCodec.variant(meta), StateCodec.flags(meta),
+                StateCodec.firstOperand(operands), StateCodec.secondOperand(operands), button);
+      } else {
+        sessions.set(slot, StateCodec.nextOperands(operands, meta, button), next);
+      }
+      sessions.setStamp(slot, tick);
+      return status;
+    }
+  }
+
+  /**
+   * Print the current screen of a session, reading it from the store without paging it in if it
+   * was spilled.
+   *
+   * @param sessionId the id of the session
+   * @return the contents of the session's screen, or null if the registry doesn't hold it
+   */
+  public String getResult(long sessionId) {
+    Stripe stripe = stripeOf(sessionId);
+    synchronized (stripe) {
+      int slot = stripe.sessions.find(sessionId);
+      if (slot < 0) {
+        return cold.getResult(sessionId);
+      }
+      StringBuilder screen = new StringBuilder();
+      StateCodec.render(stripe.sessions.operands(slot), stripe.sessions.meta(slot), screen);
+      return screen.toString();
+    }
+  }
+
+  /**
+   * Create an immutable calculator holding the current state of a session. The calculator is of
+   * the same class as the one the registry was created with, and shares its state cache.
+   *
+   * @param sessionId the id of the session
+   * @return a calculator in the same state as the session, or null if the registry doesn't hold
+   *     it
+   */
+  public Calculator toCalculator(long sessionId) {
+    Stripe stripe = stripeOf(sessionId);
+    synchronized (stripe) {
+      int slot = stripe.sessions.find(sessionId);
+      if (slot < 0) {
+        return cold.toCalculator(sessionId);
+      }
+      return StateCodec.decode(start, stripe.sessions.operands(slot), stripe.sessions.meta(slot));
+    }
+  }
+
+  /**
+   * Remove a session, on the heap or spilled; the next button input to it starts it over.
+   *
+   * @param sessionId the id of the session
+   * @return true if the registry held the session
+   */
+  public boolean remove(long sessionId) {
+    Stripe stripe = stripeOf(sessionId);
+    synchronized (stripe) {
+      return stripe.sessions.remove(sessionId) || cold.remove(sessionId);
+    }
+  }
+
+  /**
+   * Spill every session on the heap that has been idle for the timeout now, instead of waiting
+   * for the background thread.
+   *
+   * @return the number of sessions spilled
+   * @throws IllegalStateException if the store is full
+   */
+  public int evictIdle() throws IllegalStateException {
+    advanceClock();
+    int spilled = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        spilled += spillIdle(stripe);
+      }
+    }
+    return spilled;
+  }
+
+  /**
+   * Stop the background thread, spill every session on the heap, and close the store, writing it
+   * to its file if it has one. If the store has no room for the sessions on the heap, nothing is
+   * spilled and the registry stays open, so that sessions can be removed before closing it again.
+   *
+   * @throws IOException           if the file can't be closed
+   * @throws IllegalStateException if the store has no room for the sessions on the heap
+   */
+  @Override
+  public void close() throws IOException, IllegalStateException {
+    if (!markClosed(0)) {
+      return;
+    }
+    sweeper.interrupt();
+    try {
+      sweeper.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      for (Stripe stripe : stripes) {
+        synchronized (stripe) {
+          SessionMap sessions = stripe.sessions;
+          for (int slot = 0; slot < sessions.capacity(); slot++) {
+            if (sessions.isOccupied(slot)) {
+              cold.put(sessions.key(slot), sessions.operands(slot), sessions.meta(slot));
+            }
+          }
+          sessions.clear();
+        }
+      }
+    } finally {
+      cold.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TieredSessionRegistry(" + getHotSize() + " hot, " + getColdSize() + " cold)";
+  }
+
+  /* SessionMap places a key by the high bits of its product with the golden ratio, so the stripe
+   * is picked by the low bits of another mix of the id; picking it by those same high bits would
+   * pile the sessions of a stripe into one corner of its table */
+  private Stripe stripeOf(long sessionId) {
+    long mixed = (sessionId ^ (sessionId >>> 30)) * 0xBF58476D1CE4E5B9L;
+    mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+    return stripes[(int) (mixed ^ (mixed >>> 31)) & (STRIPES - 1)];
+  }
+
+  /* Adds the session to the stripe, with its spilled state if it has one, and spills another
+   * session if the stripe is over its limit; returns the slot of the session */
+  private int pageIn(Stripe stripe, long sessionId) throws IllegalStateException {
+    SessionMap sessions = stripe.sessions;
+    if (sessions.size() >= stripeLimit) {
+      spillOne(stripe);
+    }
+    int slot = sessions.findOrInsert(sessionId, startOperands, startMeta);
+    cold.take(sessionId, (id, operands, meta) -> sessions.set(slot, operands, meta));
+    return slot;
+  }
+
+  /* Spills the first session the CLOCK hand finds that wasn't used in the current tick, or the
+   * one the hand started at if every session was */
+  private void spillOne(Stripe stripe) throws IllegalStateException {
+    SessionMap sessions = stripe.sessions;
+    int mask = sessions.capacity() - 1;
+    int current = tick & SessionMap.STAMP_MASK;
+    int fallback = -1;
+    for (int i = 0; i <= mask; i++) {
+      int slot = stripe.hand;
+      stripe.hand = (slot + 1) & mask;
+      if (sessions.isOccupied(slot)) {
+        if (sessions.stamp(slot) != current) {
+          spill(sessions, slot);
+          return;
+        }
+        if (fallback < 0) {
+          fallback = slot;
+        }
+      }
+    }
+    if (fallback >= 0) {
+      spill(sessions, fallback);
+    }
+  }
+
+  /* Spills the sessions of the stripe that have been idle for the timeout; a removal may move a
+   * later session into the slot just emptied, so that slot is looked at again */
+  private int spillIdle(Stripe stripe) throws IllegalStateException {
+    SessionMap sessions = stripe.sessions;
+    int current = tick;
+    int spilled = 0;
+    int slot = 0;
+    while (slot < sessions.capacity()) {
+      if (sessions.isOccupied(slot)
+              && (((current - sessions.stamp(slot)) & SessionMap.STAMP_MASK)
+              >= TICKS_PER_TIMEOUT)) {
+        spill(sessions, slot);
+        spilled++;
+      } else {
+        slot++;
+      }
+    }
+    return spilled;
+  }
+
+  private void spill(SessionMap sessions, int slot) throws IllegalStateException {
+    long sessionId = sessions.key(slot);
+    cold.put(sessionId, sessions.operands(slot), sessions.meta(slot));
+    sessions.remove(sessionId);
+  }
+
+  private void advanceClock() {
+    tick = (int) ((System.nanoTime() - origin) / tickNanos);
+  }
+
+  /* Takes the lock of every stripe from the given one on, so that no session can be input, paged
+   * in or spilled, then marks the registry closed if the store has room for every session on the
+   * heap; returns false if it was closed already */
+  private boolean markClosed(int from) throws IllegalStateException {
+    if (from < STRIPES) {
+      synchronized (stripes[from]) {
+        return markClosed(from + 1);
+      }
+    }
+    if (closed) {
+      return false;
+    }
+    long[] hot = new long[getHotSize()];
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      SessionMap sessions = stripe.sessions;
+      for (int slot = 0; slot < sessions.capacity(); slot++) {
+        if (sessions.isOccupied(slot)) {
+          hot[count++] = sessions.key(slot);
+        }
+      }
+    }
+    if (!cold.hasRoomFor(hot)) {
+      throw new IllegalStateException("No room in the store for the " + hot.length
+              + " sessions on the heap");
+    }
+    closed = true;
+    return true;
+  }
+
+  /* Advances the clock every tick, but at most every millisecond, and sweeps the stripes */
+  private void sweep() {
+    long period = Math.max(tickNanos, TimeUnit.MILLISECONDS.toNanos(1));
+    while (!closed) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(period);
+      } catch (InterruptedException e) {
+        /* closed */
+        return;
+      }
+      try {
+        evictIdle();
+      } catch (IllegalStateException e) {
+        /* the store is full; sessions stay on the heap until there is room */
+        continue;
+      }
+    }
+  }
+}
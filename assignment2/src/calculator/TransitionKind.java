@@ -0,0 +1,59 @@
+package calculator;
+
+/**
+ * This enum represents the kinds of transitions an accepted button makes a calculator go through,
+ * as counted by CalculatorMetrics. Each kind groups the rules of the SimpleCalculator and
+ * SmartCalculator that do the same sort of work.
+ */
+public enum TransitionKind {
+  /**
+   * The button left the state as it was - e.g. '+' as the first input to an empty
+   * SmartCalculator, or '=' after a result on a SimpleCalculator.
+   */
+  KEEP,
+
+  /**
+   * The digit started a new operand.
+   */
+  DIGIT_START,
+
+  /**
+   * The digit was appended to an operand.
+   */
+  DIGIT_APPEND,
+
+  /**
+   * The operator went into the operator slot without performing an operation.
+   */
+  OPERATOR_SET,
+
+  /**
+   * The operator performed the loaded operation and went after its result, chaining operations.
+   */
+  OPERATOR_CHAIN,
+
+  /**
+   * The '=' performed the loaded operation, or operated the first operand with itself.
+   */
+  EQUALS_PERFORM,
+
+  /**
+   * The '=' repeated the last operation of a SmartCalculator.
+   */
+  EQUALS_REPEAT,
+
+  /**
+   * The 'C' emptied every slot.
+   */
+  CLEAR;
+
+  /* The kind of every TransitionTable action, indexed by the action; null for REJECT */
+  private static final TransitionKind[] OF_ACTION = {null, KEEP, DIGIT_START, DIGIT_APPEND,
+      DIGIT_START, DIGIT_APPEND, OPERATOR_SET, OPERATOR_CHAIN, OPERATOR_CHAIN, CLEAR,
+      EQUALS_PERFORM, EQUALS_PERFORM, EQUALS_REPEAT, EQUALS_PERFORM, EQUALS_PERFORM};
+
+  /* Returns the kind of the given TransitionTable action, or null for REJECT */
+  static TransitionKind of(int action) {
+    return OF_ACTION[action];
+  }
+}
@@ -0,0 +1,387 @@
+package calculator;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the rules of the SimpleCalculator and SmartCalculator as one precomputed
+ * table. Instead of walking the chains of conditions in handleNumber, handleOperator and
+ * handleEquals, a button is looked up by the class of the calculator's state and the class of the
+ * button, which gives the action to take; the action says how the operands, operator and flags
+ * change.
+ *
+ * <p>The state class is made of the flags of a calculator (which slots are empty and whether the
+ * first operand is a result) plus the two facts about its values that the SmartCalculator's rules
+ * for '=' look at: whether the second operand is negative, and whether both operands are zero.
+ */
+final class TransitionTable {
+  /* Variants of calculator rules */
+  static final int SIMPLE = 0;
+
+  static final int SMART = 1;
+
+  /* Flags of a calculator's state, set when the matching slot is treated as empty or when the
+   * first operand is the result of a previous operation */
+  static final int FIRST_EMPTY = 1;
+
+  static final int OPERATOR_EMPTY = 2;
+
+  static final int SECOND_EMPTY = 4;
+
+  static final int RESULT = 8;
+
+  static final int FLAGS = FIRST_EMPTY | OPERATOR_EMPTY | SECOND_EMPTY | RESULT;
+
+  /* Flags of an empty calculator */
+  static final int EMPTY = FIRST_EMPTY | OPERATOR_EMPTY | SECOND_EMPTY;
+
+  /* Facts about the operand values that are part of the state class along with the flags */
+  private static final int SECOND_NEGATIVE = 16;
+
+  private static final int BOTH_ZERO = 32;
+
+  private static final int STATE_CLASSES = 64;
+
+  /* Classes of buttons; the SmartCalculator treats '+' differently from the other operators */
+  static final int DIGIT = 0;
+
+  static final int PLUS = 1;
+
+  static final int MINUS_OR_TIMES = 2;
+
+  static final int EQUALS = 3;
+
+  static final int CLEAR = 4;
+
+  static final int INVALID = 5;
+
+  static final int KEY_CLASSES = 6;
+
+  /* Actions; each one is named after what it does to the calculator's state */
+  static final int REJECT = 0;
+
+  /* leave the state as it is */
+  static final int KEEP = 1;
+
+  /* the digit starts a brand-new first operand */
+  static final int START_FIRST = 2;
+
+  /* the digit is appended to the first operand */
+  static final int APPEND_FIRST = 3;
+
+  /* the digit is the first digit of the second operand */
+  static final int START_SECOND = 4;
+
+  /* the digit is appended to the second operand */
+  static final int APPEND_SECOND = 5;
+
+  /* the operator goes in the operator slot, after the first operand */
+  static final int SET_OPERATOR = 6;
+
+  /* the loaded operation is performed, and the operator goes after its result */
+  static final int PERFORM_SET_OPERATOR = 7;
+
+  /* same as PERFORM_SET_OPERATOR, but the empty second operand holds the value of the character
+   * '0' instead of 0, exactly like SmartCalculator.handleOperator leaves it */
+  static final int SMART_PERFORM_SET_OPERATOR = 8;
+
+  /* every slot is emptied */
+  static final int CLEAR_ALL = 9;
+
+  /* the loaded operation is performed and its result is the only thing left */
+  static final int PERFORM_RESULT = 10;
+
+  /* the result is zero, as any operation between zeroes is */
+  static final int ZERO_RESULT = 11;
+
+  /* the operation is repeated with the remembered (negated) second operand */
+  static final int REPEAT = 12;
+
+  /* the loaded operation is performed and the second operand is remembered, negated */
+  static final int PERFORM_REMEMBER = 13;
+
+  /* the first operand is operated with itself and remembered, negated */
+  static final int SELF_OPERATE = 14;
+
+  private static final byte[] KEYS = new byte[128];
+
+  private static final byte[] ACTIONS = new byte[2 * STATE_CLASSES * KEY_CLASSES];
+
+  static {
+    Arrays.fill(KEYS, (byte) INVALID);
+    for (char digit = '0'; digit <= '9'; digit++) {
+      KEYS[digit] = DIGIT;
+    }
+    KEYS['+'] = PLUS;
+    KEYS['-'] = MINUS_OR_TIMES;
+    KEYS['*'] = MINUS_OR_TIMES;
+    KEYS['='] = EQUALS;
+    KEYS['C'] = CLEAR;
+
+    for (int state = 0; state < STATE_CLASSES; state++) {
+      for (int key = 0; key < KEY_CLASSES; key++) {
+        ACTIONS[index(SIMPLE, state, key)] = (byte) simpleRule(state, key);
+        ACTIONS[index(SMART, state, key)] = (byte) smartRule(state, key);
+      }
+    }
+  }
+
+  private TransitionTable() {
+  }
+
+  /* Returns the class of the given button */
+  static int keyClass(char button) {
+    return button < 128 ? KEYS[button] : INVALID;
+  }
+
+  /* Returns the class of a state with the given flags and operands */
+  static int stateClass(int flags, int firstOp, int secondOp) {
+    return stateClass(flags, secondOp < 0, (firstOp | secondOp) == 0);
+  }
+
+  /* Returns the class of a state with the given flags and facts about its operands */
+  static int stateClass(int flags, boolean secondNegative, boolean bothZero) {
+    int state = flags;
+    if (secondNegative) {
+      state |= SECOND_NEGATIVE;
+    }
+    if (bothZero) {
+      state |= BOTH_ZERO;
+    }
+    return state;
+  }
+
+  /* Returns the action a calculator with the given rules takes for a button of the given class
+   * in a state of the given class */
+  static int action(int variant, int stateClass, int keyClass) {
+    return ACTIONS[index(variant, stateClass, keyClass)];
+  }
+
+  /* Returns the action for the given button in the given state */
+  static int action(int variant, int flags, int firstOp, int secondOp, char button) {
+    return ACTIONS[index(variant, stateClass(flags, firstOp, secondOp), keyClass(button))];
+  }
+
+  /* Returns the status of inputting the given button in the given state, telling apart the
+   * reasons for rejecting it */
+  static InputStatus status(int variant, int flags, int firstOp, int secondOp, char button) {
+    int key = keyClass(button);
+    switch (action(variant, stateClass(flags, firstOp, secondOp), key)) {
+      case REJECT:
+        return (key == INVALID) ? InputStatus.INVALID_KEY : InputStatus.REJECTED_IN_STATE;
+      case APPEND_FIRST:
+        return fits(append(firstOp, button - '0')) ? InputStatus.OK
+                : InputStatus.OPERAND_OVERFLOW;
+      case APPEND_SECOND:
+        return fits(append(secondOp, button - '0')) ? InputStatus.OK
+                : InputStatus.OPERAND_OVERFLOW;
+      default:
+        return InputStatus.OK;
+    }
+  }
+
+  /* Returns the original number with the digit appended to it, as a long so that the caller can
+   * tell whether it still fits in an int operand */
+  static long append(int original, int digit) {
+    return original * 10L + digit;
+  }
+
+  /* Performs the operation, giving 0 if the result doesn't fit in an int and -1 for an operator
+   * that was never set; overflow is detected without exceptions */
+  static int operate(char operator, int operand1, int operand2) {
+    long newNum = exact(operator, operand1, operand2);
+    if (newNum != (int) newNum) {
+      /* If operation exceeds max/min int values, set its result to 0 */
+      return 0;
+    }
+    return (int) newNum;
+  }
+
+  /* Returns whether the operation the given action performs in the given state overflows, which
+   * makes its result 0; false for actions that perform no operation */
+  static boolean overflows(int action, char operator, int firstOp, int secondOp) {
+    switch (action) {
+      case PERFORM_SET_OPERATOR:
+      case SMART_PERFORM_SET_OPERATOR:
+      case PERFORM_RESULT:
+      case PERFORM_REMEMBER:
+        return !fits(exact(operator, firstOp, secondOp));
+      case REPEAT:
+        return !fits(exact(operator, firstOp, secondOp * -1));
+      case SELF_OPERATE:
+        return !fits(exact(operator, firstOp, firstOp));
+      default:
+        return false;
+    }
+  }
+
+  /* Performs the operation without any limit on its result, giving -1 for an operator that was
+   * never set */
+  private static long exact(char operator, int operand1, int operand2) {
+    switch (operator) {
+      case '+':
+        return (long) operand1 + operand2;
+      case '-':
+        return (long) operand1 - operand2;
+      case '*':
+        return (long) operand1 * operand2;
+      default:
+        return -1;
+    }
+  }
+
+  /* Returns the first operand after the operation with the given operand is performed count
+   * times in a row, each time giving 0 if the result doesn't fit in an int, as a run of REPEAT
+   * actions does; the result is computed directly instead of one operation at a time */
+  static int repeat(char operator, int firstOp, int operand, long count) {
+    if (count == 0) {
+      return firstOp;
+    }
+    switch (operator) {
+      case '+':
+        return repeatAdd(firstOp, operand, count);
+      case '-':
+        return repeatAdd(firstOp, -(long) operand, count);
+      case '*':
+        return repeatMultiply(firstOp, operand, count);
+      default:
+        return -1;
+    }
+  }
+
+  /* Adds the step count times. The sum moves towards one end of the int range until it overflows
+   * to 0, and from then on it cycles from 0 to the last multiple of the step before that end */
+  private static int repeatAdd(int firstOp, long step, long count) {
+    if (step == 0) {
+      return firstOp;
+    }
+    long end = (step > 0) ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+    long magnitude = Math.abs(step);
+    /* the number of steps that fit before the first overflow */
+    long fitting = Math.abs(end - firstOp) / magnitude;
+    if (count <= fitting) {
+      return (int) (firstOp + count * step);
+    }
+    long cycle = Math.abs(end) / magnitude + 1;
+    return (int) (((count - fitting - 1) % cycle) * step);
+  }
+
+  /* Multiplies by the factor count times. Unless the factor is -1, 0 or 1, the magnitude grows on
+   * every step, so the product fits in an int after the last step exactly when it fits after every
+   * step; otherwise it overflowed to 0 at some step and stayed 0 */
+  private static int repeatMultiply(int firstOp, int factor, long count) {
+    if ((firstOp == 0) || (factor == 1)) {
+      return firstOp;
+    } else if (factor == 0) {
+      return 0;
+    } else if (factor == -1) {
+      if (firstOp == Integer.MIN_VALUE) {
+        return 0;
+      }
+      return ((count % 2) == 0) ? firstOp : -firstOp;
+    }
+    /* exponentiation by squaring, with magnitudes capped just past the int range */
+    long power = 1;
+    long base = factor;
+    for (long remaining = count; remaining > 0; remaining >>>= 1) {
+      if ((remaining & 1) != 0) {
+        power = capped(power * base);
+      }
+      base = capped(base * base);
+    }
+    long product = firstOp * power;
+    return fits(product) ? (int) product : 0;
+  }
+
+  /* Caps the magnitude of a number at one more than the magnitude of Integer.MIN_VALUE, keeping
+   * its sign, so that products of capped numbers never overflow a long */
+  private static long capped(long number) {
+    long cap = (1L << 31) + 1;
+    return Math.max(-cap, Math.min(cap, number));
+  }
+
+  private static boolean fits(long operand) {
+    return operand == (int) operand;
+  }
+
+  private static int index(int variant, int stateClass, int keyClass) {
+    return (variant * STATE_CLASSES + stateClass) * KEY_CLASSES + keyClass;
+  }
+
+  private static boolean has(int state, int flag) {
+    return (state & flag) != 0;
+  }
+
+  /* AbstractCalculator.handleNumber */
+  private static int numberRule(int state) {
+    if (has(state, RESULT) || has(state, FIRST_EMPTY)) {
+      return START_FIRST;
+    } else if (has(state, OPERATOR_EMPTY)) {
+      return APPEND_FIRST;
+    } else if (!has(state, SECOND_EMPTY)) {
+      return APPEND_SECOND;
+    }
+    return START_SECOND;
+  }
+
+  /* The rules of SimpleCalculator */
+  private static int simpleRule(int state, int key) {
+    switch (key) {
+      case DIGIT:
+        return numberRule(state);
+      case PLUS:
+      case MINUS_OR_TIMES:
+        if (!has(state, SECOND_EMPTY)) {
+          return PERFORM_SET_OPERATOR;
+        } else if (!has(state, FIRST_EMPTY) && has(state, OPERATOR_EMPTY)) {
+          return SET_OPERATOR;
+        }
+        return REJECT;
+      case EQUALS:
+        if (has(state, RESULT)) {
+          return KEEP;
+        } else if (!has(state, SECOND_EMPTY)) {
+          return PERFORM_RESULT;
+        }
+        return REJECT;
+      case CLEAR:
+        return CLEAR_ALL;
+      default:
+        return REJECT;
+    }
+  }
+
+  /* The rules of SmartCalculator */
+  private static int smartRule(int state, int key) {
+    switch (key) {
+      case DIGIT:
+        return numberRule(state);
+      case PLUS:
+      case MINUS_OR_TIMES:
+        if (has(state, RESULT)) {
+          return SET_OPERATOR;
+        } else if (!has(state, SECOND_EMPTY)) {
+          return SMART_PERFORM_SET_OPERATOR;
+        } else if (!has(state, FIRST_EMPTY)) {
+          return SET_OPERATOR;
+        } else if (key == PLUS) {
+          return KEEP;
+        }
+        return REJECT;
+      case EQUALS:
+        if (has(state, BOTH_ZERO)) {
+          return ZERO_RESULT;
+        } else if (has(state, SECOND_NEGATIVE)) {
+          return REPEAT;
+        } else if (!has(state, SECOND_EMPTY)) {
+          return PERFORM_REMEMBER;
+        } else if (!has(state, OPERATOR_EMPTY)) {
+          return SELF_OPERATE;
+        }
+        return REJECT;
+      case CLEAR:
+        return CLEAR_ALL;
+      default:
+        return REJECT;
+    }
+  }
+}
@@ -0,0 +1,395 @@
+package calculator;
+
+import java.math.BigInteger;
+import java.util.Objects;
+
+/**
+ * This class holds the operands of a calculator with a LONG or BIG NumericBackend. Operands are
+ * kept in longs; only with the BIG backend, and only once its value outgrows 64 bits, is an
+ * operand kept as a BigInteger instead. While both operands fit in longs, the actions are applied
+ * with long arithmetic that detects overflow without exceptions, and BigInteger arithmetic is only
+ * used when a BIG result doesn't fit.
+ *
+ * <p>The actions are the TransitionTable's, applied in the same way as the StateCodec applies
+ * them to packed int operands, including the values the SmartCalculator keeps in its empty second
+ * operand.
+ */
+final class WideOperands {
+  /* Returned by the long arithmetic when a BIG result doesn't fit in a long */
+  private static final WideOperands PROMOTE = new WideOperands(NumericBackend.BIG, 0, null, 0,
+          null);
+
+  private static final BigInteger MINUS_ONE = BigInteger.ONE.negate();
+
+  /* The most bits a run computed in closed form may give a BIG operand, well within what a
+   * BigInteger can hold */
+  private static final int MAX_RUN_BITS = Integer.MAX_VALUE / 4;
+
+  private final NumericBackend backend;
+
+  /* Each operand is held in the long, unless its BigInteger is not null */
+  private final long first;
+
+  private final BigInteger bigFirst;
+
+  private final long second;
+
+  private final BigInteger bigSecond;
+
+  private WideOperands(NumericBackend backend, long first, BigInteger bigFirst, long second,
+                       BigInteger bigSecond) {
+    this.backend = backend;
+    this.first = first;
+    this.bigFirst = bigFirst;
+    this.second = second;
+    this.bigSecond = bigSecond;
+  }
+
+  /* Returns the operands of an empty calculator with the given backend */
+  static WideOperands empty(NumericBackend backend) {
+    return new WideOperands(backend, 0, null, 0, null);
+  }
+
+  NumericBackend backend() {
+    return backend;
+  }
+
+  /* Whether the second operand is negative, as used by the TransitionTable */
+  boolean secondNegative() {
+    return (bigSecond != null) ? (bigSecond.signum() < 0) : (second < 0);
+  }
+
+  /* Whether both operands are zero, as used by the TransitionTable */
+  boolean bothZero() {
+    return (bigFirst == null) && (bigSecond == null) && (first == 0) && (second == 0);
+  }
+
+  /* Returns the operands after the given TransitionTable action, which must not be REJECT, for
+   * the given operator and button; returns null if a digit would make a LONG operand too large */
+  WideOperands apply(int action, char operator, char button) {
+    if ((bigFirst == null) && (bigSecond == null)) {
+      WideOperands next = applySmall(action, operator, button - '0');
+      if (next != PROMOTE) {
+        return next;
+      }
+    }
+    return applyBig(action, operator, button - '0');
+  }
+
+  /* Returns the operands after the given number of presses of the button that each make the
+   * given action, one of APPEND_FIRST, APPEND_SECOND and REPEAT, computed in closed form; returns
+   * null if a digit would make a LONG operand too large. Throws if a BIG operand would grow too
+   * large to be held */
+  WideOperands run(int action, char operator, char button, long count)
+          throws IllegalArgumentException {
+    BigInteger one = big(first, bigFirst);
+    BigInteger two = big(second, bigSecond);
+    if (action == TransitionTable.REPEAT) {
+      /* the LONG backend negates the remembered operand with wraparound, as the int one does */
+      BigInteger operand = (backend == NumericBackend.BIG) ? two.negate()
+              : BigInteger.valueOf(-second);
+      if (backend == NumericBackend.BIG) {
+        return of(repeat(operator, one, operand, count), two);
+      }
+      long repeated = (operator == '*') ? repeatMultiply(first, operand.longValue(), count)
+              : repeatAdd(first, (operator == '+') ? operand : operand.negate(), count);
+      return small(repeated, second);
+    }
+    BigInteger appended = appended((action == TransitionTable.APPEND_FIRST) ? one : two,
+            button - '0', count);
+    if ((backend == NumericBackend.LONG) && (appended.bitLength() >= Long.SIZE)) {
+      return null;
+    }
+    return (action == TransitionTable.APPEND_FIRST) ? of(appended, BigInteger.ZERO)
+            : of(one, appended);
+  }
+
+  /* Appends the screen of a calculator holding these operands with the given operator and
+   * TransitionTable flags */
+  void render(StringBuilder screen, char operator, int flags) {
+    if ((flags & TransitionTable.FIRST_EMPTY) != 0) {
+      return;
+    }
+    appendOperand(screen, first, bigFirst);
+    if ((flags & TransitionTable.OPERATOR_EMPTY) == 0) {
+      screen.append(operator);
+      if ((flags & TransitionTable.SECOND_EMPTY) == 0) {
+        appendOperand(screen, second, bigSecond);
+      }
+    }
+  }
+
+  /* Applies the action with long arithmetic; on overflow, a LONG result is 0 (or the digit is
+   * rejected), and a BIG one is PROMOTE */
+  private WideOperands applySmall(int action, char operator, int digit) {
+    switch (action) {
+      case TransitionTable.START_FIRST:
+        return small(digit, 0);
+      case TransitionTable.APPEND_FIRST:
+        return appendOverflows(first, digit) ? overflowed(null) : small(first * 10 + digit, 0);
+      case TransitionTable.START_SECOND:
+        return small(first, digit);
+      case TransitionTable.APPEND_SECOND:
+        return appendOverflows(second, digit) ? overflowed(null)
+                : small(first, second * 10 + digit);
+      case TransitionTable.SET_OPERATOR:
+        return small(first, 0);
+      case TransitionTable.PERFORM_SET_OPERATOR:
+      case TransitionTable.PERFORM_RESULT:
+        return performed(operator, first, second, 0);
+      case TransitionTable.SMART_PERFORM_SET_OPERATOR:
+        return performed(operator, first, second, '0');
+      case TransitionTable.CLEAR_ALL:
+      case TransitionTable.ZERO_RESULT:
+        return small(0, 0);
+      case TransitionTable.REPEAT:
+        if (negationOverflows(second)) {
+          return PROMOTE;
+        }
+        return performed(operator, first, -second, second);
+      case TransitionTable.PERFORM_REMEMBER:
+        if (negationOverflows(second)) {
+          return PROMOTE;
+        }
+        return performed(operator, first, second, -second);
+      case TransitionTable.SELF_OPERATE:
+        if (negationOverflows(first)) {
+          return PROMOTE;
+        }
+        return performed(operator, first, first, -first);
+      default:
+        return this;
+    }
+  }
+
+  /* Applies the action with BigInteger arithmetic, for the BIG backend only */
+  private WideOperands applyBig(int action, char operator, int digit) {
+    BigInteger one = big(first, bigFirst);
+    BigInteger two = big(second, bigSecond);
+    switch (action) {
+      case TransitionTable.START_FIRST:
+        return small(digit, 0);
+      case TransitionTable.APPEND_FIRST:
+        return of(append(one, digit), BigInteger.ZERO);
+      case TransitionTable.START_SECOND:
+        return of(one, BigInteger.valueOf(digit));
+      case TransitionTable.APPEND_SECOND:
+        return of(one, append(two, digit));
+      case TransitionTable.SET_OPERATOR:
+        return of(one, BigInteger.ZERO);
+      case TransitionTable.PERFORM_SET_OPERATOR:
+      case TransitionTable.PERFORM_RESULT:
+        return of(operate(operator, one, two), BigInteger.ZERO);
+      case TransitionTable.SMART_PERFORM_SET_OPERATOR:
+        return of(operate(operator, one, two), BigInteger.valueOf('0'));
+      case TransitionTable.CLEAR_ALL:
+      case TransitionTable.ZERO_RESULT:
+        return small(0, 0);
+      case TransitionTable.REPEAT:
+        return of(operate(operator, one, two.negate()), two);
+      case TransitionTable.PERFORM_REMEMBER:
+        return of(operate(operator, one, two), two.negate());
+      case TransitionTable.SELF_OPERATE:
+        return of(operate(operator, one, one), one.negate());
+      default:
+        return this;
+    }
+  }
+
+  /* Returns the operands after performing the operation, keeping the given second operand */
+  private WideOperands performed(char operator, long operand1, long operand2, long kept) {
+    if (operationOverflows(operator, operand1, operand2)) {
+      return overflowed(small(0, kept));
+    }
+    return small(operate(operator, operand1, operand2), kept);
+  }
+
+  /* Returns what an overflowing LONG action gives, or PROMOTE for the BIG backend */
+  private WideOperands overflowed(WideOperands asLong) {
+    return (backend == NumericBackend.BIG) ? PROMOTE : asLong;
+  }
+
+  /* Whether negating the number can't be done in a long by the BIG backend; the LONG backend
+   * wraps around, as the int operands do */
+  private boolean negationOverflows(long number) {
+    return (backend == NumericBackend.BIG) && (number == Long.MIN_VALUE);
+  }
+
+  private WideOperands small(long newFirst, long newSecond) {
+    return new WideOperands(backend, newFirst, null, newSecond, null);
+  }
+
+  /* Creates BIG operands, keeping the ones that fit in a long as longs */
+  private WideOperands of(BigInteger newFirst, BigInteger newSecond) {
+    boolean firstFits = newFirst.bitLength() < Long.SIZE;
+    boolean secondFits = newSecond.bitLength() < Long.SIZE;
+    return new WideOperands(backend, firstFits ? newFirst.longValue() : 0,
+            firstFits ? null : newFirst, secondFits ? newSecond.longValue() : 0,
+            secondFits ? null : newSecond);
+  }
+
+  private static BigInteger big(long number, BigInteger big) {
+    return (big != null) ? big : BigInteger.valueOf(number);
+  }
+
+  private static void appendOperand(StringBuilder screen, long number, BigInteger big) {
+    if (big != null) {
+      screen.append(big);
+    } else {
+      screen.append(number);
+    }
+  }
+
+  /* Whether appending the digit to the number doesn't fit in a long */
+  private static boolean appendOverflows(long number, int digit) {
+    return (number > (Long.MAX_VALUE - digit) / 10) || (number < Long.MIN_VALUE / 10);
+  }
+
+  /* Whether the operation doesn't fit in a long */
+  private static boolean operationOverflows(char operator, long operand1, long operand2) {
+    long newNum;
+    switch (operator) {
+      case '+':
+        newNum = operand1 + operand2;
+        return ((operand1 ^ newNum) & (operand2 ^ newNum)) < 0;
+      case '-':
+        newNum = operand1 - operand2;
+        return ((operand1 ^ operand2) & (operand1 ^ newNum)) < 0;
+      case '*':
+        return Math.multiplyHigh(operand1, operand2) != ((operand1 * operand2) >> 63);
+      default:
+        return false;
+    }
+  }
+
+  /* Same as TransitionTable.operate, for operations that fit in a long */
+  private static long operate(char operator, long operand1, long operand2) {
+    switch (operator) {
+      case '+':
+        return operand1 + operand2;
+      case '-':
+        return operand1 - operand2;
+      case '*':
+        return operand1 * operand2;
+      default:
+        return -1;
+    }
+  }
+
+  private static BigInteger operate(char operator, BigInteger operand1, BigInteger operand2) {
+    switch (operator) {
+      case '+':
+        return operand1.add(operand2);
+      case '-':
+        return operand1.subtract(operand2);
+      case '*':
+        return operand1.multiply(operand2);
+      default:
+        return MINUS_ONE;
+    }
+  }
+
+  private static BigInteger append(BigInteger number, int digit) {
+    return number.multiply(BigInteger.TEN).add(BigInteger.valueOf(digit));
+  }
+
+  /* Returns the number with the digit appended count times, which is
+   * number * 10^count + digit * (10^count - 1) / 9 */
+  private BigInteger appended(BigInteger number, int digit, long count)
+          throws IllegalArgumentException {
+    if ((backend == NumericBackend.LONG) && (count > 20)) {
+      /* anything but 0 is too large for a long after that many digits, and 0 stays 0 */
+      count = 20;
+    }
+    if (count > MAX_RUN_BITS / 4) {
+      throw new IllegalArgumentException("Too many digits in a row: " + count);
+    }
+    BigInteger power = BigInteger.TEN.pow((int) count);
+    return number.multiply(power).add(power.subtract(BigInteger.ONE)
+            .multiply(BigInteger.valueOf(digit)).divide(BigInteger.valueOf(9)));
+  }
+
+  /* Returns the first operand after the operation with the operand is repeated count times,
+   * without overflow */
+  private static BigInteger repeat(char operator, BigInteger first, BigInteger operand,
+                                   long count) throws IllegalArgumentException {
+    switch (operator) {
+      case '+':
+        return first.add(operand.multiply(BigInteger.valueOf(count)));
+      case '-':
+        return first.subtract(operand.multiply(BigInteger.valueOf(count)));
+      case '*':
+        if ((first.signum() == 0) || (operand.abs().compareTo(BigInteger.ONE) <= 0)) {
+          /* the product is first, 0, or first with its sign flipped on every step */
+          return (operand.signum() == 0) ? BigInteger.ZERO
+                  : (operand.signum() > 0) || (count % 2 == 0) ? first : first.negate();
+        }
+        if (count > MAX_RUN_BITS / (operand.abs().bitLength() - 1)) {
+          throw new IllegalArgumentException("Product too large after " + count + " steps");
+        }
+        return first.multiply(operand.pow((int) count));
+      default:
+        return MINUS_ONE;
+    }
+  }
+
+  /* Adds the step count times in a long, as TransitionTable.repeat does in an int: the sum moves
+   * towards one end of the range until it overflows to 0, and from then on it cycles from 0 to
+   * the last multiple of the step before that end */
+  private static long repeatAdd(long first, BigInteger step, long count) {
+    if (step.signum() == 0) {
+      return first;
+    }
+    BigInteger end = BigInteger.valueOf((step.signum() > 0) ? Long.MAX_VALUE : Long.MIN_VALUE);
+    BigInteger magnitude = step.abs();
+    BigInteger steps = BigInteger.valueOf(count);
+    /* the number of steps that fit before the first overflow */
+    BigInteger fitting = end.subtract(BigInteger.valueOf(first)).abs().divide(magnitude);
+    if (steps.compareTo(fitting) <= 0) {
+      return BigInteger.valueOf(first).add(step.multiply(steps)).longValue();
+    }
+    BigInteger cycle = end.abs().divide(magnitude).add(BigInteger.ONE);
+    return steps.subtract(fitting).subtract(BigInteger.ONE).mod(cycle).multiply(step)
+            .longValue();
+  }
+
+  /* Multiplies by the factor count times in a long, as TransitionTable.repeat does in an int:
+   * unless the factor is -1, 0 or 1, the magnitude grows on every step, so the product fits after
+   * the last step exactly when it fits after every step */
+  private static long repeatMultiply(long first, long factor, long count) {
+    if ((first == 0) || (factor == 1)) {
+      return first;
+    } else if (factor == 0) {
+      return 0;
+    } else if (factor == -1) {
+      if (first == Long.MIN_VALUE) {
+        return 0;
+      }
+      return ((count % 2) == 0) ? first : -first;
+    } else if (count >= Long.SIZE) {
+      return 0;
+    }
+    BigInteger product = BigInteger.valueOf(first)
+            .multiply(BigInteger.valueOf(factor).pow((int) count));
+    return (product.bitLength() < Long.SIZE) ? product.longValue() : 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof WideOperands)) {
+      return false;
+    }
+    WideOperands other = (WideOperands) o;
+    return (backend == other.backend) && (first == other.first) && (second == other.second)
+            && Objects.equals(bigFirst, other.bigFirst)
+            && Objects.equals(bigSecond, other.bigSecond);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(backend, first, bigFirst, second, bigSecond);
+  }
+}
@@ -1,9 +1,20 @@
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import calculator.Calculator;
+import calculator.InputResult;
+import calculator.InputStatus;
+import calculator.TapeResult;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -1396,4 +1407,255 @@ abstract class AbstractCalculatorTest {
     myCalc = myCalc.input('=');
     assertEquals("0", myCalc.getResult());
   }
+
+  /* Inputting a tape at once should give the same calculator as inputting its buttons one at a
+   * time, up to the first button that is rejected */
+  @Test
+  public void tapeMatchesSingleInputs() {
+    String keys = "0123456789+-*=C";
+    for (int tape = 0; tape < 200; tape++) {
+      StringBuilder buttons = new StringBuilder();
+      int length = randomNumber(30, 0);
+      for (int i = 0; i < length; i++) {
+        buttons.append(keys.charAt(randomNumber(keys.length() - 1, 0)));
+      }
+      Calculator expected = makeTestCalc();
+      int expectedOffset = -1;
+      for (int i = 0; i < buttons.length(); i++) {
+        try {
+          expected = expected.input(buttons.charAt(i));
+        } catch (IllegalArgumentException e) {
+          expectedOffset = i;
+          break;
+        }
+      }
+      TapeResult tapeResult = makeTestCalc().input(buttons);
+      assertEquals(expectedOffset, tapeResult.getErrorOffset());
+      assertEquals(expected, tapeResult.getCalculator());
+      assertEquals(expected.getResult(), tapeResult.getCalculator().getResult());
+    }
+  }
+
+  @Test
+  public void tapeStopsAtFirstRejectedButton() {
+    TapeResult tapeResult = myCalc.input("12+x3");
+    assertFalse(tapeResult.isComplete());
+    assertEquals(3, tapeResult.getErrorOffset());
+    assertEquals("12+", tapeResult.getCalculator().getResult());
+  }
+
+  @Test
+  public void tapeStopsAtOperandOverflow() {
+    TapeResult tapeResult = myCalc.input("2147483648+1");
+    assertEquals(9, tapeResult.getErrorOffset());
+    assertEquals("214748364", tapeResult.getCalculator().getResult());
+  }
+
+  @Test
+  public void emptyTapeLeavesCalculatorAlone() {
+    TapeResult tapeResult = myCalc.input("7").getCalculator().input("");
+    assertTrue(tapeResult.isComplete());
+    assertEquals("7", tapeResult.getCalculator().getResult());
+  }
+
+  @Test
+  public void arrayTapeReportsArrayPosition() {
+    char[] buttons = "xx40*2=?x".toCharArray();
+    TapeResult tapeResult = myCalc.input(buttons, 2, 6);
+    assertEquals(7, tapeResult.getErrorOffset());
+    assertEquals("80", tapeResult.getCalculator().getResult());
+    assertTrue(myCalc.input(buttons, 2, 5).isComplete());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void arrayTapeOutOfBounds() {
+    myCalc.input("12+3".toCharArray(), 2, 3);
+  }
+
+  /* Every way of rendering the screen should give the same text as getResult() */
+  private void checkRender(Calculator calc) throws IOException {
+    String expected = calc.getResult();
+    assertEquals(expected.length(), calc.screenLength());
+
+    char[] chars = new char[expected.length() + 4];
+    assertEquals(expected.length(), calc.render(chars, 2));
+    assertEquals(expected, new String(chars, 2, expected.length()));
+
+    ByteBuffer bytes = ByteBuffer.allocate(expected.length() + 1);
+    bytes.put((byte) '>');
+    assertEquals(expected.length(), calc.render(bytes));
+    assertEquals(">" + expected, new String(bytes.array(), 0, bytes.position(),
+            StandardCharsets.US_ASCII));
+
+    StringBuilder appended = new StringBuilder("screen ");
+    calc.render(appended);
+    assertEquals("screen " + expected, appended.toString());
+  }
+
+  @Test
+  public void renderMatchesGetResult() throws IOException {
+    String keys = "0123456789+-*=C";
+    for (int tape = 0; tape < 200; tape++) {
+      Calculator calc = makeTestCalc();
+      checkRender(calc);
+      int length = randomNumber(30, 1);
+      for (int i = 0; i < length; i++) {
+        try {
+          calc = calc.input(keys.charAt(randomNumber(keys.length() - 1, 0)));
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+        checkRender(calc);
+      }
+    }
+  }
+
+  @Test
+  public void renderExtremeOperands() throws IOException {
+    Calculator calc = makeTestCalc().input("0-2147483647-1=").getCalculator();
+    assertEquals("-2147483648", calc.getResult());
+    checkRender(calc);
+    checkRender(makeTestCalc().input("2147483647*2147483647").getCalculator());
+    checkRender(makeTestCalc().input("0*0").getCalculator());
+  }
+
+  @Test
+  public void renderTooSmallArrayWritesNothing() {
+    Calculator calc = makeTestCalc().input("123+45").getCalculator();
+    char[] chars = new char[6];
+    try {
+      calc.render(chars, 1);
+      fail("screen shouldn't fit");
+    } catch (IndexOutOfBoundsException e) {
+      assertEquals(0, chars[0]);
+      assertEquals(0, chars[1]);
+    }
+    assertEquals(6, calc.render(chars, 0));
+  }
+
+  @Test
+  public void renderTooSmallBufferWritesNothing() {
+    Calculator calc = makeTestCalc().input("123+45").getCalculator();
+    ByteBuffer bytes = ByteBuffer.allocate(5);
+    try {
+      calc.render(bytes);
+      fail("screen shouldn't fit");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, bytes.position());
+    }
+  }
+
+  @Test
+  public void screenIsComputedOnce() {
+    Calculator calc = makeTestCalc().input("81*3").getCalculator();
+    String screen = calc.getResult();
+    assertEquals("81*3", screen);
+    assertSame(screen, calc.getResult());
+    assertEquals("81*3=", calc.getResult() + "=");
+    assertEquals("243", calc.input('=').getResult());
+  }
+
+  /* tryInput should accept exactly the buttons input accepts, giving the same calculator, and
+   * otherwise leave the calculator alone and tell why */
+  @Test
+  public void tryInputMatchesInput() {
+    String keys = "0123456789+-*=Cx/ ";
+    for (int tape = 0; tape < 200; tape++) {
+      Calculator calc = makeTestCalc();
+      int length = randomNumber(30, 1);
+      for (int i = 0; i < length; i++) {
+        char button = keys.charAt(randomNumber(keys.length() - 1, 0));
+        InputResult tried = calc.tryInput(button);
+        Calculator expected;
+        try {
+          expected = calc.input(button);
+        } catch (IllegalArgumentException e) {
+          assertFalse(tried.isAccepted());
+          assertSame(calc, tried.getCalculator());
+          if ("0123456789+-*=C".indexOf(button) < 0) {
+            assertEquals(InputStatus.INVALID_KEY, tried.getStatus());
+          } else {
+            assertTrue(tried.getStatus() != InputStatus.INVALID_KEY);
+          }
+          continue;
+        }
+        assertEquals(InputStatus.OK, tried.getStatus());
+        assertEquals(expected, tried.getCalculator());
+        calc = expected;
+      }
+    }
+  }
+
+  @Test
+  public void tryInputReportsInvalidKey() {
+    InputResult tried = myCalc.input("12+").getCalculator().tryInput('/');
+    assertEquals(InputStatus.INVALID_KEY, tried.getStatus());
+    assertEquals("12+", tried.getCalculator().getResult());
+  }
+
+  @Test
+  public void tryInputReportsOperandOverflow() {
+    Calculator calc = myCalc.input("2147483647").getCalculator();
+    assertEquals(InputStatus.OPERAND_OVERFLOW, calc.tryInput('0').getStatus());
+    calc = calc.input("+214748364").getCalculator();
+    assertEquals(InputStatus.OPERAND_OVERFLOW, calc.tryInput('8').getStatus());
+    InputResult tried = calc.tryInput('7');
+    assertTrue(tried.isAccepted());
+    assertEquals("2147483647+2147483647", tried.getCalculator().getResult());
+  }
+
+  /* Inputting a button a number of times at once should give the same calculator as inputting it
+   * that many times one after the other */
+  @Test
+  public void inputCountMatchesRepeatedInput() {
+    String keys = "0123456789+-*=C";
+    for (int tape = 0; tape < 200; tape++) {
+      Calculator calc = makeTestCalc();
+      int length = randomNumber(12, 0);
+      for (int i = 0; i < length; i++) {
+        try {
+          calc = calc.input(keys.charAt(randomNumber(keys.length() - 1, 0)));
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+      }
+      char button = keys.charAt(randomNumber(keys.length() - 1, 0));
+      int count = randomNumber(40, 0);
+      Calculator expected = calc;
+      try {
+        for (int i = 0; i < count; i++) {
+          expected = expected.input(button);
+        }
+      } catch (IllegalArgumentException e) {
+        expected = null;
+      }
+      try {
+        assertEquals(expected, calc.input(button, count));
+      } catch (IllegalArgumentException e) {
+        assertEquals(null, expected);
+      }
+    }
+  }
+
+  @Test
+  public void inputCountCollapsesFixedPoints() {
+    assertEquals("0", myCalc.input('0', Long.MAX_VALUE).getResult());
+    assertEquals("", myCalc.input('C', Long.MAX_VALUE).getResult());
+  }
+
+  @Test
+  public void zeroCountLeavesCalculatorAlone() {
+    Calculator calc = myCalc.input("12+").getCalculator();
+    assertSame(calc, calc.input('=', 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeCountRejected() {
+    myCalc.input('1', -1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void digitRunOverflowRejected() {
+    myCalc.input('7', 11);
+  }
 }
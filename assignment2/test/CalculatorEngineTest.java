@@ -0,0 +1,102 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.CalculatorEngine;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the CalculatorEngine class, whose sessions must behave exactly like separate
+ * immutable calculators.
+ */
+public class CalculatorEngineTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  @Test
+  public void newSessionsAreEmpty() {
+    CalculatorEngine engine = new CalculatorEngine(3, true);
+    assertEquals(3, engine.capacity());
+    for (int i = 0; i < 3; i++) {
+      assertEquals("", engine.getResult(i));
+      assertEquals(new SmartCalculator(), engine.toCalculator(i));
+    }
+  }
+
+  @Test
+  public void sessionsAreIndependent() {
+    CalculatorEngine engine = new CalculatorEngine(2, false);
+    assertTrue(engine.input(0, '4'));
+    assertTrue(engine.input(1, '9'));
+    assertTrue(engine.input(0, '+'));
+    assertFalse(engine.input(1, '='));
+    assertEquals("4+", engine.getResult(0));
+    assertEquals("9", engine.getResult(1));
+  }
+
+  @Test
+  public void batchesMatchCalculators() {
+    Random random = new Random(23);
+    int sessions = 50;
+    CalculatorEngine engine = new CalculatorEngine(sessions, false);
+    Calculator[] calcs = new Calculator[sessions];
+    for (int i = 0; i < sessions; i++) {
+      boolean smart = (i % 2) == 1;
+      engine.reset(i, smart);
+      calcs[i] = smart ? new SmartCalculator() : new SimpleCalculator();
+    }
+    int[] ids = new int[5000];
+    char[] buttons = new char[ids.length];
+    int expectedRejected = 0;
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = random.nextInt(sessions);
+      buttons[i] = KEYS.charAt(random.nextInt(KEYS.length()));
+      try {
+        calcs[ids[i]] = calcs[ids[i]].input(buttons[i]);
+      } catch (IllegalArgumentException e) {
+        expectedRejected++;
+      }
+    }
+    assertEquals(expectedRejected, engine.apply(ids, buttons, 0, ids.length));
+    StringBuilder screen = new StringBuilder();
+    for (int i = 0; i < sessions; i++) {
+      assertEquals(calcs[i], engine.toCalculator(i));
+      screen.setLength(0);
+      engine.render(i, screen);
+      assertEquals(calcs[i].getResult(), screen.toString());
+    }
+  }
+
+  @Test
+  public void loadCopiesCalculator() {
+    CalculatorEngine engine = new CalculatorEngine(1, false);
+    engine.load(0, new SmartCalculator().input("6*7").getCalculator());
+    assertTrue(engine.input(0, '='));
+    assertTrue(engine.input(0, '='));
+    assertEquals("294", engine.getResult(0));
+  }
+
+  @Test
+  public void batchRangeIsApplied() {
+    CalculatorEngine engine = new CalculatorEngine(1, false);
+    int[] ids = {0, 0, 0, 0, 0};
+    char[] buttons = "12+34".toCharArray();
+    assertEquals(0, engine.apply(ids, buttons, 1, 3));
+    assertEquals("2+3", engine.getResult(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void unknownSessionRejected() {
+    new CalculatorEngine(2, false).input(2, '1');
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeCapacityRejected() {
+    new CalculatorEngine(-1, false);
+  }
+}
@@ -0,0 +1,276 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import calculator.Calculator;
+import calculator.CalculatorEngine;
+import calculator.CalculatorMetrics;
+import calculator.CalculatorSession;
+import calculator.InputStatus;
+import calculator.KeystrokeReplay;
+import calculator.NumericBackend;
+import calculator.ScriptCompiler;
+import calculator.SessionRegistry;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.StateCodec;
+import calculator.TapeEvaluator;
+import calculator.TransitionKind;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the CalculatorMetrics class, which must count every button once, by the
+ * transition it makes, whichever path it is input through, and count nothing while it is off.
+ */
+public class CalculatorMetricsTest {
+  @After
+  public void uninstall() {
+    CalculatorMetrics.install(null);
+  }
+
+  private static long latencies(CalculatorMetrics metrics, char button) {
+    long count = 0;
+    for (long bucket : metrics.getLatencyHistogram(button)) {
+      count += bucket;
+    }
+    return count;
+  }
+
+  @Test
+  public void nothingIsCountedWhileOff() {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    assertNull(CalculatorMetrics.getInstalled());
+    new SmartCalculator().input("12+3==").getCalculator().input('*');
+    new SessionRegistry(new SimpleCalculator()).input(1, '5');
+    assertEquals(0, metrics.getInputCount());
+    CalculatorMetrics.install(metrics);
+    assertSame(metrics, CalculatorMetrics.getInstalled());
+    new SimpleCalculator().input('5');
+    CalculatorMetrics.install(null);
+    new SimpleCalculator().input('5');
+    assertEquals(1, metrics.getInputCount());
+  }
+
+  @Test
+  public void transitionsOfSmartCalculator() {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    Calculator calc = new SmartCalculator();
+    for (char button : "71+8===*2+".toCharArray()) {
+      calc = calc.input(button);
+    }
+    assertEquals("190+", calc.getResult());
+    assertEquals(3, metrics.getTransitionCount(true, TransitionKind.DIGIT_START));
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.DIGIT_APPEND));
+    assertEquals(2, metrics.getTransitionCount(true, TransitionKind.OPERATOR_SET));
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.OPERATOR_CHAIN));
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.EQUALS_PERFORM));
+    assertEquals(2, metrics.getTransitionCount(true, TransitionKind.EQUALS_REPEAT));
+    assertEquals(0, metrics.getTransitionCount(false, TransitionKind.DIGIT_START));
+    assertEquals(10, metrics.getInputCount());
+    assertEquals(4, latencies(metrics, '0'));
+    assertEquals(2, latencies(metrics, '+'));
+    assertEquals(1, latencies(metrics, '-'));
+    assertEquals(3, latencies(metrics, '='));
+  }
+
+  @Test
+  public void everyPathCountsTheSame() {
+    String buttons = "12+34*5=C9-=x7";
+    CalculatorMetrics viaCalculator = new CalculatorMetrics();
+    CalculatorMetrics.install(viaCalculator);
+    Calculator calc = new SmartCalculator();
+    for (char button : buttons.toCharArray()) {
+      calc = calc.tryInput(button).getCalculator();
+    }
+    CalculatorMetrics viaSession = new CalculatorMetrics();
+    CalculatorMetrics.install(viaSession);
+    CalculatorSession session = new CalculatorSession(new SmartCalculator());
+    for (char button : buttons.toCharArray()) {
+      session.tryInput(button);
+    }
+    CalculatorMetrics viaRegistry = new CalculatorMetrics();
+    CalculatorMetrics.install(viaRegistry);
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    for (char button : buttons.toCharArray()) {
+      registry.tryInput(7, button);
+    }
+    CalculatorMetrics viaWide = new CalculatorMetrics();
+    CalculatorMetrics.install(viaWide);
+    Calculator wide = new SmartCalculator(NumericBackend.LONG);
+    for (char button : buttons.toCharArray()) {
+      wide = wide.tryInput(button).getCalculator();
+    }
+    for (CalculatorMetrics metrics : List.of(viaSession, viaRegistry, viaWide)) {
+      for (TransitionKind kind : TransitionKind.values()) {
+        assertEquals(kind.name(), viaCalculator.getTransitionCount(true, kind),
+                metrics.getTransitionCount(true, kind));
+      }
+      assertEquals(1, metrics.getRejectedCount(true, InputStatus.INVALID_KEY));
+      assertEquals(buttons.length(), metrics.getInputCount());
+      assertEquals(1, latencies(metrics, 'x'));
+    }
+  }
+
+  @Test
+  public void engineCountsAndReplaysDoNot() {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    CalculatorEngine engine = new CalculatorEngine(4, true);
+    assertEquals(1, engine.apply(new int[] {0, 0, 0, 1}, "5*=x".toCharArray(), 0, 4));
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.OPERATOR_SET));
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.EQUALS_PERFORM));
+    assertEquals(1, metrics.getRejectedCount(true, InputStatus.INVALID_KEY));
+    assertEquals(4, metrics.getInputCount());
+    assertEquals(4, latencies(metrics, '5') + latencies(metrics, '*') + latencies(metrics, '=')
+            + latencies(metrics, 'x'));
+    metrics.reset();
+    long operands = 0L;
+    int meta = StateCodec.emptyMeta(true);
+    for (char button : "12+3=".toCharArray()) {
+      meta = StateCodec.nextMeta(operands, meta, button);
+    }
+    new KeystrokeReplay(new SmartCalculator()).replay(new long[] {1, 2, 1}, "1+2".toCharArray());
+    new ScriptCompiler(8, 1).run(new SmartCalculator(), "12*3=");
+    new ScriptCompiler(8, 100).run(new SimpleCalculator(), "12*3=");
+    new TapeEvaluator().evaluate(new SmartCalculator(), "9*9=C1");
+    assertEquals(0, metrics.getInputCount());
+  }
+
+  @Test
+  public void runningLoopSeesInstall() throws InterruptedException {
+    CalculatorEngine engine = new CalculatorEngine(1, false);
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread loop = new Thread(() -> {
+      while (!stop.get()) {
+        engine.input(0, '1');
+        engine.input(0, 'C');
+      }
+    });
+    loop.start();
+    try {
+      Thread.sleep(200);
+      CalculatorMetrics metrics = new CalculatorMetrics();
+      CalculatorMetrics.install(metrics);
+      for (int i = 0; (i < 500) && (metrics.getInputCount() == 0); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(metrics.getInputCount() > 0);
+      CalculatorMetrics.install(null);
+      Thread.sleep(50);
+      long counted = metrics.getInputCount();
+      Thread.sleep(100);
+      assertEquals(counted, metrics.getInputCount());
+    } finally {
+      stop.set(true);
+      loop.join();
+    }
+  }
+
+  @Test
+  public void rejectionsAndOverflows() {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    Calculator simple = new SimpleCalculator();
+    assertEquals(InputStatus.REJECTED_IN_STATE, simple.tryInput('-').getStatus());
+    assertEquals(InputStatus.INVALID_KEY, simple.tryInput('?').getStatus());
+    simple = simple.input("2147483647").getCalculator();
+    try {
+      simple.input('0');
+      throw new AssertionError("An operand too large was accepted");
+    } catch (IllegalArgumentException e) {
+      assertEquals(1, metrics.getRejectedCount(false, InputStatus.OPERAND_OVERFLOW));
+    }
+    assertEquals(1, metrics.getRejectedCount(false, InputStatus.REJECTED_IN_STATE));
+    assertEquals(1, metrics.getRejectedCount(false, InputStatus.INVALID_KEY));
+    assertEquals(3, metrics.getRejectedCount());
+    assertEquals(0, metrics.getResultOverflowCount());
+    Calculator smart = new SmartCalculator().input("2147483647+1=").getCalculator();
+    assertEquals("0", smart.getResult());
+    assertEquals(1, metrics.getResultOverflowCount(true));
+    assertEquals(0, metrics.getResultOverflowCount(false));
+    assertEquals(1, metrics.getResultOverflowCount());
+  }
+
+  @Test
+  public void collapsedRunsAreCounted() {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    Calculator smart = new SmartCalculator().input("2+3").getCalculator();
+    assertEquals("3002", smart.input('=', 1000).getResult());
+    assertEquals(1, metrics.getTransitionCount(true, TransitionKind.EQUALS_PERFORM));
+    assertEquals(999, metrics.getTransitionCount(true, TransitionKind.EQUALS_REPEAT));
+    new SimpleCalculator().input('7').input('C', 5);
+    assertEquals(5, metrics.getTransitionCount(false, TransitionKind.CLEAR));
+    assertEquals(1006 + 3, metrics.getInputCount());
+  }
+
+  @Test
+  public void threadsCountEveryButton() throws InterruptedException {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        CalculatorSession session = new CalculatorSession(new SmartCalculator());
+        for (int i = 0; i < 10000; i++) {
+          session.input("1+2=C".charAt(i % 5));
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, metrics.getInputCount());
+    assertEquals(16000, metrics.getTransitionCount(true, TransitionKind.DIGIT_START));
+    assertEquals(8000, metrics.getTransitionCount(true, TransitionKind.CLEAR));
+    assertEquals(16000, latencies(metrics, '1'));
+    metrics.reset();
+    assertEquals(0, metrics.getInputCount());
+    assertEquals(0, latencies(metrics, '1'));
+  }
+
+  @Test
+  public void textAndJmxExport() throws Exception {
+    CalculatorMetrics metrics = new CalculatorMetrics();
+    CalculatorMetrics.install(metrics);
+    new SmartCalculator().input("5*5==").getCalculator().tryInput('x');
+    String text = metrics.getText();
+    assertTrue(text, text.contains(
+            "calculator_transitions_total{variant=\"smart\",kind=\"equals_repeat\"} 1\n"));
+    assertTrue(text, text.contains(
+            "calculator_rejected_total{variant=\"smart\",status=\"invalid_key\"} 1\n"));
+    assertTrue(text, text.contains(
+            "calculator_input_latency_nanoseconds_count{key=\"digit\"} 2\n"));
+    assertTrue(text, text.contains(
+            "calculator_input_latency_nanoseconds_bucket{key=\"equals\",le=\"+Inf\"} 2\n"));
+    ObjectName name = metrics.registerMBean();
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(6L, server.getAttribute(name, "InputCount"));
+      assertEquals(1L, server.getAttribute(name, "RejectedCount"));
+      assertEquals(text, server.getAttribute(name, "Text"));
+      server.invoke(name, "reset", new Object[0], new String[0]);
+      assertEquals(0L, server.getAttribute(name, "InputCount"));
+    } finally {
+      CalculatorMetrics.unregisterMBean();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void okIsNotARejection() {
+    new CalculatorMetrics().getRejectedCount(true, InputStatus.OK);
+  }
+}
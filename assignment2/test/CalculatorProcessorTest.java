@@ -0,0 +1,226 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import calculator.CalculatorProcessor;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the CalculatorProcessor class, which must publish the latest screen whenever
+ * its subscriber asks for one, and never drop the final screen.
+ */
+public class CalculatorProcessorTest {
+  /* A subscriber that records everything it receives and only requests when told to */
+  private static final class Recorder implements Flow.Subscriber<String> {
+    private final List<String> screens = new ArrayList<>();
+
+    private Flow.Subscription subscription;
+
+    private Throwable error;
+
+    private boolean complete;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(String screen) {
+      screens.add(screen);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      complete = true;
+    }
+  }
+
+  /* An upstream subscription that records the demand and cancellation it receives */
+  private static final class Upstream implements Flow.Subscription {
+    private final List<Long> requests = new ArrayList<>();
+
+    private boolean cancelled;
+
+    @Override
+    public void request(long n) {
+      requests.add(n);
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private CalculatorProcessor processor;
+
+  private Recorder recorder;
+
+  private Upstream upstream;
+
+  /* Creates a processor on the calling thread, subscribed to both sides */
+  private void connect(int batch) {
+    processor = new CalculatorProcessor(new SimpleCalculator(), Runnable::run, batch);
+    recorder = new Recorder();
+    upstream = new Upstream();
+    processor.subscribe(recorder);
+    processor.onSubscribe(upstream);
+  }
+
+  private void send(String buttons) {
+    for (int i = 0; i < buttons.length(); i++) {
+      processor.onNext(buttons.charAt(i));
+    }
+  }
+
+  @Test
+  public void everyScreenWithUnboundedDemand() {
+    connect(64);
+    recorder.subscription.request(Long.MAX_VALUE);
+    send("12+3=");
+    assertEquals(List.of("1", "12", "12+", "12+3", "15"), recorder.screens);
+    assertFalse(recorder.complete);
+  }
+
+  @Test
+  public void slowSubscriberGetsLatestScreen() {
+    connect(64);
+    send("12+3");
+    assertTrue(recorder.screens.isEmpty());
+    recorder.subscription.request(1);
+    send("=");
+    recorder.subscription.request(5);
+    assertEquals(List.of("12+3", "15"), recorder.screens);
+    send("*2=");
+    assertEquals(List.of("12+3", "15", "15*", "15*2", "30"), recorder.screens);
+  }
+
+  @Test
+  public void finalScreenNotDropped() {
+    connect(64);
+    send("7*6=");
+    processor.onComplete();
+    assertFalse(recorder.complete);
+    recorder.subscription.request(1);
+    assertEquals(List.of("42"), recorder.screens);
+    assertTrue(recorder.complete);
+    assertEquals("42", processor.getCalculator().getResult());
+  }
+
+  @Test
+  public void rejectedButtonsSkipped() {
+    connect(64);
+    recorder.subscription.request(10);
+    send("=+5/+=+2");
+    assertEquals(List.of("5", "5+", "5+2"), recorder.screens);
+  }
+
+  @Test
+  public void upstreamRequestedInBatches() {
+    connect(4);
+    send("1234");
+    assertEquals(List.of(4L, 2L, 2L), upstream.requests);
+  }
+
+  @Test
+  public void cancelReachesUpstream() {
+    connect(4);
+    recorder.subscription.cancel();
+    assertTrue(upstream.cancelled);
+    send("1");
+    assertTrue(recorder.screens.isEmpty());
+  }
+
+  @Test
+  public void upstreamErrorPassedOn() {
+    connect(4);
+    send("1");
+    processor.onError(new IllegalStateException("stream broke"));
+    assertTrue(recorder.error instanceof IllegalStateException);
+    assertTrue(recorder.screens.isEmpty());
+  }
+
+  @Test
+  public void invalidDemandFails() {
+    connect(4);
+    recorder.subscription.request(0);
+    assertTrue(recorder.error instanceof IllegalArgumentException);
+    assertTrue(upstream.cancelled);
+  }
+
+  @Test
+  public void secondSubscriberFails() {
+    connect(4);
+    Recorder second = new Recorder();
+    processor.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+    assertNull(recorder.error);
+  }
+
+  @Test
+  public void publisherToSlowSubscriber() throws InterruptedException {
+    StringBuilder buttons = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      buttons.append("1+2=");
+    }
+    buttons.append("9*9=");
+    CountDownLatch finished = new CountDownLatch(1);
+    List<String> screens = new ArrayList<>();
+    CalculatorProcessor smart = new CalculatorProcessor(new SmartCalculator());
+    smart.subscribe(new Flow.Subscriber<String>() {
+      private Flow.Subscription subscription;
+
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+      }
+
+      @Override
+      public void onNext(String screen) {
+        screens.add(screen);
+        subscription.request(1);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        finished.countDown();
+      }
+
+      @Override
+      public void onComplete() {
+        finished.countDown();
+      }
+    });
+    try (SubmissionPublisher<Character> publisher = new SubmissionPublisher<>()) {
+      publisher.subscribe(smart);
+      for (int i = 0; i < buttons.length(); i++) {
+        publisher.submit(buttons.charAt(i));
+      }
+    }
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    assertEquals("81", screens.get(screens.size() - 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badBatchRejected() {
+    new CalculatorProcessor(new SimpleCalculator(), Runnable::run, 0);
+  }
+}
@@ -0,0 +1,156 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.CalculatorSession;
+import calculator.InputStatus;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.StateCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the CalculatorSession class, which must follow the exact same rules as the
+ * immutable calculators it is created from.
+ */
+public class CalculatorSessionTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  /* Inputs random keys to an immutable calculator and a session side by side, and checks that
+   * they accept the same keys and always end up in the same state */
+  private void compareRandomTapes(boolean smart, long seed) {
+    Random random = new Random(seed);
+    for (int tape = 0; tape < 300; tape++) {
+      Calculator calc = smart ? new SmartCalculator() : new SimpleCalculator();
+      CalculatorSession session = new CalculatorSession(calc);
+      for (int i = 0; i < 60; i++) {
+        char key;
+        if (random.nextInt(20) == 0) {
+          key = (char) random.nextInt(128);
+        } else {
+          key = KEYS.charAt(random.nextInt(KEYS.length()));
+        }
+        boolean accepted = true;
+        try {
+          calc = calc.input(key);
+        } catch (IllegalArgumentException e) {
+          accepted = false;
+        }
+        assertEquals("key " + key + " after " + calc.getResult(), accepted, session.input(key));
+        assertEquals(calc.getResult(), session.getResult());
+        assertEquals(calc, session.toCalculator());
+      }
+    }
+  }
+
+  @Test
+  public void simpleSessionMatchesSimpleCalculator() {
+    compareRandomTapes(false, 3);
+  }
+
+  @Test
+  public void smartSessionMatchesSmartCalculator() {
+    compareRandomTapes(true, 5);
+  }
+
+  @Test
+  public void sessionStartsFromCalculatorState() {
+    Calculator calc = new SmartCalculator().input('1').input('2').input('+');
+    CalculatorSession session = new CalculatorSession(calc);
+    assertEquals("12+", session.getResult());
+    assertTrue(session.input('='));
+    assertEquals("24", session.getResult());
+    assertTrue(session.input('='));
+    assertEquals("36", session.getResult());
+  }
+
+  @Test
+  public void toCalculatorKeepsClass() {
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    session.input('4');
+    session.input('+');
+    Calculator calc = session.toCalculator();
+    assertTrue(calc instanceof SimpleCalculator);
+    assertEquals("4+", calc.getResult());
+    assertEquals("9", calc.input('5').input('=').getResult());
+  }
+
+  @Test
+  public void toCalculatorUsesStateCache() {
+    StateCache cache = new StateCache(64);
+    Calculator calc = new SmartCalculator(cache).input('7');
+    CalculatorSession session = new CalculatorSession(new SmartCalculator(cache));
+    session.input('7');
+    assertSame(calc, session.toCalculator());
+  }
+
+  @Test
+  public void loadReplacesStateAndRules() {
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    assertFalse(session.input('+'));
+    session.load(new SmartCalculator());
+    assertTrue(session.input('+'));
+    session.input('3');
+    session.load(new SimpleCalculator().input('8'));
+    assertEquals("8", session.getResult());
+  }
+
+  @Test
+  public void rejectedInputLeavesStateUnchanged() {
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    String digits = "2147483647";
+    for (int i = 0; i < digits.length(); i++) {
+      assertTrue(session.input(digits.charAt(i)));
+    }
+    assertFalse(session.input('0'));
+    assertFalse(session.input('='));
+    assertFalse(session.input('x'));
+    assertEquals("2147483647", session.getResult());
+  }
+
+  @Test
+  public void tryInputTellsWhyButtonWasRejected() {
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    assertEquals(InputStatus.REJECTED_IN_STATE, session.tryInput('-'));
+    assertEquals(-1, session.input("2147483647"));
+    assertEquals(InputStatus.OPERAND_OVERFLOW, session.tryInput('0'));
+    assertEquals(InputStatus.REJECTED_IN_STATE, session.tryInput('='));
+    assertEquals(InputStatus.INVALID_KEY, session.tryInput('x'));
+    assertEquals(InputStatus.OK, session.tryInput('+'));
+    assertEquals("2147483647+", session.getResult());
+  }
+
+  @Test
+  public void renderAppendsScreen() {
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    StringBuilder screen = new StringBuilder("screen: ");
+    session.render(screen);
+    assertEquals("screen: ", screen.toString());
+    session.input('1');
+    session.input('5');
+    session.input('*');
+    session.input('3');
+    session.render(screen);
+    assertEquals("screen: 15*3", screen.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void otherCalculatorsRejected() {
+    new CalculatorSession(new Calculator() {
+      @Override
+      public Calculator input(char button) {
+        return this;
+      }
+
+      @Override
+      public String getResult() {
+        return "";
+      }
+    });
+  }
+}
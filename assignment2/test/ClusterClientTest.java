@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.io.IOException;
+
+import calculator.ClusterClient;
+import calculator.ClusterNode;
+import calculator.SimpleCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the ClusterClient class, which must follow the ring of the cluster as it
+ * changes, even when it learns of the change late.
+ */
+public class ClusterClientTest {
+  @Test
+  public void staleClientFollowsRing() throws IOException {
+    try (ClusterNode first = new ClusterNode(new SimpleCalculator(), 0);
+         ClusterNode second = new ClusterNode(new SimpleCalculator(), 0);
+         ClusterClient client = new ClusterClient(first.getAddress())) {
+      for (long sessionId = 0; sessionId < 50; sessionId++) {
+        assertTrue(client.input(sessionId, '3'));
+      }
+      assertEquals(1, client.getRing().getEpoch());
+      second.join(first.getAddress());
+      assertEquals(1, client.getRing().getEpoch());
+      for (long sessionId = 0; sessionId < 50; sessionId++) {
+        assertTrue(client.input(sessionId, '+'));
+        assertEquals("3+", client.getResult(sessionId));
+      }
+      assertEquals(second.getRing(), client.getRing());
+    }
+  }
+
+  @Test
+  public void rejectedAndUnknownSessions() throws IOException {
+    try (ClusterNode node = new ClusterNode(new SimpleCalculator(), 0);
+         ClusterClient client = new ClusterClient(node.getAddress())) {
+      assertNull(client.getResult(8));
+      assertFalse(client.input(8, '*'));
+      assertTrue(client.input(8, '2'));
+      assertFalse(client.input(8, '='));
+      assertEquals("2", client.getResult(8));
+    }
+  }
+
+  @Test
+  public void buttonIsNotSentAgainAfterFailure() throws IOException {
+    ClusterClient client;
+    try (ClusterNode node = new ClusterNode(new SimpleCalculator(), 0)) {
+      client = new ClusterClient(node.getAddress());
+      assertTrue(client.input(4, '2'));
+    }
+    try {
+      client.input(4, '3');
+      fail("A button was sent again after the connection failed");
+    } catch (IOException e) {
+      /* reported at once, rather than after every attempt */
+      assertTrue(e.getMessage(), e.getMessage().contains("after a button was sent"));
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void inputAfterClose() throws IOException {
+    try (ClusterNode node = new ClusterNode(new SimpleCalculator(), 0)) {
+      ClusterClient client = new ClusterClient(node.getAddress());
+      client.close();
+      client.input(1, '1');
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void unreachableSeed() throws IOException {
+    int port;
+    try (ClusterNode node = new ClusterNode(new SimpleCalculator(), 0)) {
+      port = Integer.parseInt(node.getAddress().substring(node.getAddress().indexOf(':') + 1));
+    }
+    new ClusterClient("localhost:" + port).close();
+  }
+}
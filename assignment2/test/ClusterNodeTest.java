@@ -0,0 +1,275 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import calculator.ClusterClient;
+import calculator.ClusterNode;
+import calculator.SessionRegistry;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the ClusterNode class, whose sessions must keep following the rules of a
+ * single registry while nodes join and leave under load, in this JVM or across several.
+ */
+public class ClusterNodeTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private static final int SESSIONS = 2000;
+
+  /**
+   * Run a node in its own JVM: join the cluster of the node whose address is given as the only
+   * argument, if any, and print the node's address. Then leave the cluster when a line reading
+   * "leave" comes in, printing the number of sessions left afterwards, and close on the end of
+   * the input.
+   */
+  public static final class NodeMain {
+    public static void main(String[] args) throws Exception {
+      try (ClusterNode node = new ClusterNode(new SmartCalculator(), 0);
+           BufferedReader in = new BufferedReader(
+                   new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+        if (args.length > 0) {
+          node.join(args[0]);
+        }
+        System.out.println(node.getAddress());
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.equals("leave")) {
+            node.leave();
+            System.out.println(node.size());
+          }
+        }
+      }
+    }
+  }
+
+  /* Inputs random buttons to random sessions of the cluster and of a reference registry, from
+   * another thread, until stopped */
+  private static final class Load {
+    private final SessionRegistry reference = new SessionRegistry(new SmartCalculator());
+
+    private final AtomicBoolean stop = new AtomicBoolean();
+
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    private final Thread thread;
+
+    private int inputs;
+
+    private Load(String seed) {
+      thread = new Thread(() -> {
+        Random random = new Random(1);
+        try (ClusterClient client = new ClusterClient(seed)) {
+          while (!stop.get() || (inputs < 3000)) {
+            long sessionId = random.nextInt(SESSIONS);
+            char button = KEYS.charAt(random.nextInt(KEYS.length()));
+            assertEquals(reference.input(sessionId, button), client.input(sessionId, button));
+            inputs++;
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      });
+      thread.start();
+    }
+
+    private void stop() throws InterruptedException {
+      stop.set(true);
+      thread.join();
+    }
+
+    private void check(String seed) throws IOException {
+      if (error.get() != null) {
+        throw new AssertionError(error.get());
+      }
+      try (ClusterClient client = new ClusterClient(seed)) {
+        for (long sessionId = 0; sessionId < SESSIONS; sessionId++) {
+          assertEquals(reference.getResult(sessionId), client.getResult(sessionId));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void nodesJoinAndLeaveUnderLoad() throws Exception {
+    try (ClusterNode first = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode second = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode third = new ClusterNode(new SmartCalculator(), 0)) {
+      Load load = new Load(first.getAddress());
+      Thread.sleep(100);
+      second.join(first.getAddress());
+      Thread.sleep(100);
+      third.join(second.getAddress());
+      assertEquals(3, first.getRing().getNodes().size());
+      assertEquals(first.getRing(), third.getRing());
+      Thread.sleep(100);
+      first.leave();
+      assertEquals(0, first.size());
+      assertFalse(second.isMigrating());
+      load.stop();
+      load.check(second.getAddress());
+      assertEquals(load.reference.size(), second.size() + third.size());
+      assertTrue(second.size() > 0);
+      assertTrue(third.size() > 0);
+    }
+  }
+
+  @Test
+  public void nodesHoldOnlyTheirSessions() throws Exception {
+    try (ClusterNode first = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode second = new ClusterNode(new SmartCalculator(), 0)) {
+      try (ClusterClient client = new ClusterClient(first.getAddress())) {
+        for (long sessionId = 0; sessionId < 100; sessionId++) {
+          assertTrue(client.input(sessionId, '7'));
+        }
+        assertEquals(100, first.size());
+        second.join(first.getAddress());
+        assertEquals(100, first.size() + second.size());
+        for (Map.Entry<Long, String> entry : second.getResults().entrySet()) {
+          assertEquals(second.getAddress(), second.getRing().nodeFor(entry.getKey()));
+          assertEquals("7", entry.getValue());
+        }
+        assertNull(client.getResult(100));
+        assertEquals("7", client.getResult(99));
+      }
+    }
+  }
+
+  @Test
+  public void concurrentChangesAreMadeOneAtATime() throws Exception {
+    try (ClusterNode first = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode second = new ClusterNode(new SmartCalculator(), 0);
+         ClusterClient client = new ClusterClient(first.getAddress())) {
+      for (long sessionId = 0; sessionId < 500; sessionId++) {
+        assertTrue(client.input(sessionId, '4'));
+      }
+      second.join(first.getAddress());
+      List<ClusterNode> joining = new ArrayList<>();
+      List<Thread> threads = new ArrayList<>();
+      AtomicReference<Throwable> error = new AtomicReference<>();
+      try {
+        for (int i = 0; i < 3; i++) {
+          ClusterNode node = new ClusterNode(new SmartCalculator(), 0);
+          joining.add(node);
+          threads.add(new Thread(() -> {
+            try {
+              node.join(first.getAddress());
+            } catch (Throwable e) {
+              error.set(e);
+            }
+          }));
+        }
+        threads.add(new Thread(() -> {
+          try {
+            second.leave();
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }));
+        for (Thread thread : threads) {
+          thread.start();
+        }
+        for (Thread thread : threads) {
+          thread.join();
+        }
+        if (error.get() != null) {
+          throw new AssertionError(error.get());
+        }
+        /* every change was made from the ring the one before it made */
+        assertEquals(6, first.getRing().getEpoch());
+        assertEquals(4, first.getRing().getNodes().size());
+        assertEquals(0, second.size());
+        int held = first.size();
+        for (ClusterNode node : joining) {
+          assertEquals(first.getRing(), node.getRing());
+          held += node.size();
+        }
+        assertEquals(500, held);
+        for (long sessionId = 0; sessionId < 500; sessionId++) {
+          assertEquals("4", client.getResult(sessionId));
+        }
+      } finally {
+        for (ClusterNode node : joining) {
+          node.close();
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void nodeOnItsOwnCannotLeave() throws IOException {
+    try (ClusterNode node = new ClusterNode(new SmartCalculator(), 0)) {
+      node.leave();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void nodeInClusterCannotJoinAnother() throws IOException {
+    try (ClusterNode first = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode second = new ClusterNode(new SmartCalculator(), 0);
+         ClusterNode other = new ClusterNode(new SmartCalculator(), 0)) {
+      second.join(first.getAddress());
+      second.join(other.getAddress());
+    }
+  }
+
+  private static Process startNode(String... seed) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+            + "java";
+    List<String> command = new ArrayList<>(List.of(java, "-cp",
+            System.getProperty("java.class.path"), NodeMain.class.getName()));
+    command.addAll(List.of(seed));
+    return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+  }
+
+  private static BufferedReader output(Process process) {
+    return new BufferedReader(
+            new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void nodesInOtherJvms() throws Exception {
+    List<Process> processes = new ArrayList<>();
+    try {
+      Process first = startNode();
+      processes.add(first);
+      String seed = output(first).readLine();
+      Process second = startNode(seed);
+      processes.add(second);
+      BufferedReader secondOutput = output(second);
+      String secondAddress = secondOutput.readLine();
+      Load load = new Load(seed);
+      Thread.sleep(200);
+      Process third = startNode(secondAddress);
+      processes.add(third);
+      String thirdAddress = output(third).readLine();
+      PrintStream secondInput = new PrintStream(second.getOutputStream(), true, "UTF-8");
+      secondInput.println("leave");
+      assertEquals("0", secondOutput.readLine());
+      load.stop();
+      load.check(thirdAddress);
+    } finally {
+      for (Process process : processes) {
+        process.getOutputStream().close();
+      }
+      for (Process process : processes) {
+        assertEquals(0, process.waitFor());
+      }
+    }
+  }
+}
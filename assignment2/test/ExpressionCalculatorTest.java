@@ -0,0 +1,215 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import calculator.Calculator;
+import calculator.ExpressionCalculator;
+import calculator.InputStatus;
+import calculator.SimpleCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the ExpressionCalculator class, which must follow the rules of the
+ * SimpleCalculator from left to right, and evaluate whole expressions to the same values as
+ * inputting them one button at a time.
+ */
+public class ExpressionCalculatorTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  /* Makes a random well-formed expression with the given number of operands, some of them large
+   * enough that operations overflow */
+  private String randomExpression(Random random, int operands) {
+    StringBuilder expression = new StringBuilder();
+    for (int i = 0; i < operands; i++) {
+      if (i > 0) {
+        expression.append("+-*".charAt(random.nextInt(3)));
+      }
+      expression.append(random.nextBoolean() ? random.nextInt(100)
+              : random.nextInt(Integer.MAX_VALUE));
+    }
+    return expression.toString();
+  }
+
+  /* Inputs every button of the text, one at a time */
+  private Calculator inputAll(Calculator calc, CharSequence buttons) {
+    for (int i = 0; i < buttons.length(); i++) {
+      calc = calc.input(buttons.charAt(i));
+    }
+    return calc;
+  }
+
+  @Test
+  public void inputMatchesSimpleCalculator() {
+    Random random = new Random(1);
+    for (int run = 0; run < 200; run++) {
+      Calculator simple = new SimpleCalculator();
+      Calculator expression = new ExpressionCalculator();
+      for (int i = 0; i < 40; i++) {
+        char button = (random.nextInt(20) == 0) ? '/' : KEYS.charAt(random.nextInt(
+                KEYS.length()));
+        if ((simple.screenLength() > 8) && (button >= '0') && (button <= '9')) {
+          button = 'C';
+        }
+        InputStatus expected = simple.tryInput(button).getStatus();
+        InputStatus actual = expression.tryInput(button).getStatus();
+        assertEquals(expected, actual);
+        if (expected.isAccepted()) {
+          simple = simple.input(button);
+          expression = expression.input(button);
+        }
+        assertEquals(simple.getResult(), expression.getResult());
+      }
+    }
+  }
+
+  @Test
+  public void evaluateMatchesSimpleCalculator() {
+    Random random = new Random(2);
+    ExpressionCalculator calc = new ExpressionCalculator();
+    for (int i = 0; i < 500; i++) {
+      String expression = randomExpression(random, 2 + random.nextInt(6)) + "=";
+      assertEquals(inputAll(new SimpleCalculator(), expression).getResult(),
+              String.valueOf(calc.evaluate(expression)));
+    }
+  }
+
+  @Test
+  public void evaluateMatchesPrecedenceInput() {
+    Random random = new Random(3);
+    ExpressionCalculator calc = new ExpressionCalculator(true);
+    for (int i = 0; i < 500; i++) {
+      String expression = randomExpression(random, 2 + random.nextInt(6)) + "=";
+      assertEquals(inputAll(calc, expression).getResult(),
+              String.valueOf(calc.evaluate(expression)));
+    }
+  }
+
+  @Test
+  public void precedenceMultipliesFirst() {
+    assertEquals(20, new ExpressionCalculator().evaluate("2+3*4"));
+    ExpressionCalculator calc = new ExpressionCalculator(true);
+    assertTrue(calc.hasPrecedence());
+    assertEquals(14, calc.evaluate("2+3*4"));
+    assertEquals(-58, calc.evaluate("2-3*4*5="));
+    assertEquals(7, calc.evaluate("7"));
+    assertEquals(1, calc.evaluate("1+65536*65536"));
+  }
+
+  @Test
+  public void precedenceScreens() {
+    Calculator calc = new ExpressionCalculator(true);
+    calc = inputAll(calc, "2+3*");
+    assertEquals("2+3*", calc.getResult());
+    calc = inputAll(calc, "4*5");
+    assertEquals("2+12*5", calc.getResult());
+    calc = calc.input('-');
+    assertEquals("62-", calc.getResult());
+    calc = inputAll(calc, "1=");
+    assertEquals("61", calc.getResult());
+    assertEquals("", inputAll(new ExpressionCalculator(true), "2+3*4C").getResult());
+  }
+
+  @Test
+  public void precedenceRejectsIncompleteTerm() {
+    Calculator calc = inputAll(new ExpressionCalculator(true), "2+3*");
+    assertEquals(InputStatus.REJECTED_IN_STATE, calc.tryInput('+').getStatus());
+    assertEquals(InputStatus.REJECTED_IN_STATE, calc.tryInput('=').getStatus());
+    assertEquals(InputStatus.INVALID_KEY, calc.tryInput('/').getStatus());
+    try {
+      calc.input('=');
+      fail("'=' after '*' was accepted");
+    } catch (IllegalArgumentException e) {
+      assertEquals("2+3*", calc.getResult());
+    }
+  }
+
+  @Test
+  public void evaluateAnyCharSequence() {
+    ExpressionCalculator calc = new ExpressionCalculator(false, 1);
+    StringBuilder expression = new StringBuilder("12+30");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(42, calc.evaluate(expression));
+      assertEquals(42, calc.evaluate("12+30"));
+      assertEquals(6, calc.evaluate("2*3="));
+    }
+    expression.append("*2");
+    assertEquals(84, calc.evaluate(expression));
+  }
+
+  @Test
+  public void threadsShareTheCache() throws InterruptedException {
+    Random random = new Random(9);
+    String[] expressions = new String[3000];
+    int[] values = new int[expressions.length];
+    ExpressionCalculator reference = new ExpressionCalculator(true, 1);
+    for (int i = 0; i < expressions.length; i++) {
+      expressions[i] = randomExpression(random, 1 + random.nextInt(6));
+      values[i] = reference.evaluate(expressions[i]);
+    }
+    ExpressionCalculator shared = new ExpressionCalculator(true, 1000);
+    List<Thread> threads = new ArrayList<>();
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    for (int t = 0; t < 8; t++) {
+      long seed = t;
+      Thread thread = new Thread(() -> {
+        Random own = new Random(seed);
+        try {
+          for (int i = 0; i < 50000; i++) {
+            int expression = own.nextInt(expressions.length);
+            assertEquals(values[expression], shared.evaluate(expressions[expression]));
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(null, error.get());
+  }
+
+  @Test
+  public void equalCalculatorsShareNoCache() {
+    assertEquals(new ExpressionCalculator(false, 1).input('5'),
+            new ExpressionCalculator().input('5'));
+    assertFalse(new ExpressionCalculator(true).equals(new ExpressionCalculator(false)));
+    assertEquals(new ExpressionCalculator().hashCode(), new ExpressionCalculator().hashCode());
+  }
+
+  @Test
+  public void malformedExpressionsRejected() {
+    ExpressionCalculator calc = new ExpressionCalculator();
+    String[] malformed = {"", "=", "5=", "1+", "+1", "1++2", "1 + 2", "1/2", "3==", "2147483648"};
+    for (String expression : malformed) {
+      try {
+        calc.evaluate(expression);
+        fail("\"" + expression + "\" was evaluated");
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+    }
+    assertEquals(Integer.MAX_VALUE, calc.evaluate("2147483647"));
+  }
+
+  @Test
+  public void operandOverflowRejected() {
+    Calculator calc = inputAll(new ExpressionCalculator(), "214748364");
+    assertEquals(InputStatus.OPERAND_OVERFLOW, calc.tryInput('8').getStatus());
+    assertEquals("2147483647", calc.input('7').getResult());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badCapacityRejected() {
+    new ExpressionCalculator(true, 0);
+  }
+}
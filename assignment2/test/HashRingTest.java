@@ -0,0 +1,109 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import calculator.HashRing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the HashRing class, which must spread sessions evenly and move as few of them
+ * as possible when a node joins or leaves.
+ */
+public class HashRingTest {
+  private static final List<String> NODES = Arrays.asList("localhost:7001", "localhost:7002",
+          "localhost:7003", "localhost:7004");
+
+  @Test
+  public void sessionsAreSpreadEvenly() {
+    HashRing ring = new HashRing(NODES);
+    Map<String, Integer> counts = new HashMap<>();
+    int sessions = 100000;
+    for (long sessionId = 0; sessionId < sessions; sessionId++) {
+      counts.merge(ring.nodeFor(sessionId), 1, Integer::sum);
+    }
+    assertEquals(NODES.size(), counts.size());
+    for (int count : counts.values()) {
+      assertTrue(String.valueOf(count), Math.abs(count - sessions / NODES.size()) < sessions / 20);
+    }
+  }
+
+  @Test
+  public void joiningNodeOnlyTakesSessions() {
+    HashRing ring = new HashRing(NODES);
+    HashRing grown = ring.with("localhost:7005");
+    int moved = 0;
+    for (long sessionId = -50000; sessionId < 50000; sessionId++) {
+      String before = ring.nodeFor(sessionId);
+      String after = grown.nodeFor(sessionId);
+      if (!before.equals(after)) {
+        assertEquals("localhost:7005", after);
+        moved++;
+      }
+    }
+    /* about a fifth of the sessions move */
+    assertTrue(String.valueOf(moved), (moved > 15000) && (moved < 25000));
+  }
+
+  @Test
+  public void leavingNodeOnlyGivesSessions() {
+    HashRing ring = new HashRing(NODES);
+    HashRing shrunk = ring.without("localhost:7002");
+    for (long sessionId = 0; sessionId < 50000; sessionId++) {
+      String before = ring.nodeFor(sessionId * 0x100000001L);
+      if (!before.equals("localhost:7002")) {
+        assertEquals(before, shrunk.nodeFor(sessionId * 0x100000001L));
+      }
+    }
+    assertFalse(shrunk.contains("localhost:7002"));
+  }
+
+  @Test
+  public void epochsGrowWithChanges() {
+    HashRing ring = new HashRing(NODES);
+    assertEquals(1, ring.getEpoch());
+    HashRing grown = ring.with("localhost:7005");
+    assertEquals(2, grown.getEpoch());
+    assertEquals(3, grown.without("localhost:7001").getEpoch());
+    assertNotEquals(ring, grown);
+    assertEquals(ring, new HashRing(Arrays.asList("localhost:7004", "localhost:7003",
+            "localhost:7002", "localhost:7001")));
+    assertEquals(NODES, ring.getNodes());
+  }
+
+  @Test
+  public void orderOfNodesDoesNotMatter() {
+    HashRing ring = new HashRing(NODES);
+    HashRing reversed = new HashRing(Arrays.asList("localhost:7004", "localhost:7003",
+            "localhost:7002", "localhost:7001"));
+    for (long sessionId = 0; sessionId < 1000; sessionId++) {
+      assertEquals(ring.nodeFor(sessionId), reversed.nodeFor(sessionId));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noNodes() {
+    new HashRing(Arrays.asList());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addressWithoutPort() {
+    new HashRing(Arrays.asList("localhost"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void joiningTwice() {
+    new HashRing(NODES).with("localhost:7001");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void lastNodeLeaving() {
+    new HashRing(Arrays.asList("localhost:7001")).without("localhost:7001");
+  }
+}
@@ -0,0 +1,354 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import calculator.KeystrokeJournal;
+import calculator.SessionRegistry;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the KeystrokeJournal class, whose sessions must survive being closed and
+ * reopened, checkpoints, and batches torn by a crash.
+ */
+public class KeystrokeJournalTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private Path directory;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("journal");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    for (Path file : files("*")) {
+      Files.delete(file);
+    }
+    Files.delete(directory);
+  }
+
+  private List<Path> files(String glob) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /* Inputs random buttons to random sessions of both */
+  private void inputRandomly(KeystrokeJournal journal, SessionRegistry registry, long seed,
+                             int count) throws IOException {
+    Random random = new Random(seed);
+    for (int i = 0; i < count; i++) {
+      long sessionId = random.nextInt(200) * 17L - 100;
+      char button = KEYS.charAt(random.nextInt(KEYS.length()));
+      boolean known = registry.contains(sessionId);
+      boolean accepted = registry.input(sessionId, button);
+      if (!accepted && !known) {
+        registry.remove(sessionId);
+      }
+      assertEquals(accepted, journal.input(sessionId, button));
+    }
+  }
+
+  @Test
+  public void reopenRecoversSessions() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      inputRandomly(journal, registry, 1, 5000);
+      assertEquals(registry.getResults(), journal.getResults());
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals(registry.getResults(), journal.getResults());
+      assertEquals(registry.size(), journal.size());
+      inputRandomly(journal, registry, 2, 5000);
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals(registry.getResults(), journal.getResults());
+    }
+  }
+
+  @Test
+  public void rejectedButtonsAreNotJournaled() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      assertFalse(journal.input(5, '+'));
+      assertNull(journal.getResult(5));
+      assertEquals(0, journal.getSequence());
+      assertTrue(journal.input(5, '4'));
+      assertFalse(journal.input(5, '='));
+      assertEquals(1, journal.getSequence());
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      assertEquals(1, journal.getSequence());
+      assertEquals("4", journal.getResult(5));
+      assertEquals(new SimpleCalculator().input('4'), journal.toCalculator(5));
+    }
+  }
+
+  @Test
+  public void segmentsRollAndCheckpointDeletesThem() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator(), 256)) {
+      inputRandomly(journal, registry, 3, 2000);
+      assertTrue(files("journal-*.log").size() > 10);
+      journal.checkpoint();
+      assertEquals(1, files("journal-*.log").size());
+      assertEquals(1, files("snapshot-*.snap").size());
+      inputRandomly(journal, registry, 4, 500);
+      journal.checkpoint();
+      assertEquals(1, files("snapshot-*.snap").size());
+      inputRandomly(journal, registry, 5, 500);
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator(), 256)) {
+      assertEquals(registry.getResults(), journal.getResults());
+      assertEquals(registry.size(), journal.size());
+    }
+  }
+
+  @Test
+  public void checkpointWithoutNewEvents() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      journal.checkpoint();
+      journal.input(1, '7');
+      journal.checkpoint();
+      journal.checkpoint();
+      assertEquals(1, files("journal-*.log").size());
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals("7", journal.getResult(1));
+      assertEquals(1, journal.getSequence());
+    }
+  }
+
+  @Test
+  public void tornBatchIsCutOff() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      journal.input(1, '1');
+      journal.input(1, '+');
+      journal.input(1, '2');
+    }
+    Path segment = files("journal-*.log").get(0);
+    long size = Files.size(segment);
+    /* a batch header promising more events than were written */
+    Files.write(segment, new byte[] {0, 0, 0, 18, 0, 0, 0, 0, 0, 0, 0, 4, 1, 2, 3, 4, 0, 0},
+            StandardOpenOption.APPEND);
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals("1+2", journal.getResult(1));
+      assertEquals(3, journal.getSequence());
+      assertEquals(size, Files.size(segment));
+      journal.input(1, '=');
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals("3", journal.getResult(1));
+    }
+  }
+
+  @Test
+  public void damagedOlderSegmentFails() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator(), 64)) {
+      for (int i = 0; i < 20; i++) {
+        journal.input(i, '5');
+      }
+    }
+    Path first = files("journal-*.log").get(0);
+    byte[] bytes = Files.readAllBytes(first);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(first, bytes);
+    try {
+      new KeystrokeJournal(directory, new SmartCalculator(), 64).close();
+      fail("A damaged segment before the last one was accepted");
+    } catch (IOException e) {
+      /* expected */
+    }
+  }
+
+  @Test
+  public void concurrentInputsShareCommits() throws Exception {
+    int threads = 8;
+    int perThread = 300;
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      List<Thread> workers = new ArrayList<>();
+      List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+      for (int t = 0; t < threads; t++) {
+        long sessionId = t;
+        Thread worker = new Thread(() -> {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              journal.input(sessionId, (i % 3 == 2) ? '+' : '1');
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        });
+        workers.add(worker);
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      assertTrue(errors.isEmpty());
+      assertEquals(threads * perThread, journal.getSequence());
+      assertTrue(journal.getCommitCount() < threads * perThread);
+    }
+    /* each thread waits for its button to be on disk before the next, so a batch holding several
+     * events holds them from several threads */
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(files("journal-*.log").get(0)));
+    bytes.position(20);
+    int shared = 0;
+    while (bytes.hasRemaining()) {
+      int length = bytes.getInt();
+      bytes.position(bytes.position() + 12);
+      Set<Long> sessionIds = new HashSet<>();
+      for (int at = 0; at < length; at += 9) {
+        sessionIds.add(bytes.getLong());
+        bytes.get();
+      }
+      assertEquals(length / 9, sessionIds.size());
+      if (sessionIds.size() > 1) {
+        shared++;
+      }
+    }
+    assertTrue(shared > 0);
+    /* the sessions are independent, so the order the threads ran in doesn't matter */
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < perThread; i++) {
+        registry.input(t, (i % 3 == 2) ? '+' : '1');
+      }
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      Map<Long, String> results = journal.getResults();
+      assertEquals(registry.getResults(), results);
+    }
+  }
+
+  @Test
+  public void closeDuringInputsKeepsEveryAcceptedButton() throws Exception {
+    int threads = 4;
+    long[] accepted = new long[threads];
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator());
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int index = t;
+      Thread worker = new Thread(() -> {
+        try {
+          /* every button starts a session of its own, so the sessions recovered count them */
+          for (long sessionId = index * 1000000000L; ; sessionId++) {
+            assertTrue(journal.input(sessionId, '7'));
+            accepted[index]++;
+          }
+        } catch (IllegalStateException e) {
+          /* closed */
+          return;
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    Thread.sleep(50);
+    journal.close();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+    long total = 0;
+    for (long count : accepted) {
+      total += count;
+    }
+    try (KeystrokeJournal reopened = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      assertEquals(total, reopened.size());
+      assertEquals(total, reopened.getSequence());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void inputAfterClose() throws IOException {
+    KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator());
+    journal.close();
+    journal.close();
+    journal.input(1, '1');
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidSegmentSize() throws IOException {
+    new KeystrokeJournal(directory, new SmartCalculator(), 0);
+  }
+
+  @Test(expected = IOException.class)
+  public void otherRulesInSnapshotFail() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      journal.input(1, '1');
+      journal.checkpoint();
+    }
+    new KeystrokeJournal(directory, new SimpleCalculator()).close();
+  }
+
+  @Test
+  public void otherRulesInSegmentFail() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      for (char button : "2*3==".toCharArray()) {
+        journal.input(1, button);
+      }
+      assertEquals("6", journal.getResult(1));
+    }
+    try {
+      new KeystrokeJournal(directory, new SmartCalculator()).close();
+      fail("A segment written for other rules was replayed");
+    } catch (IOException e) {
+      /* expected */
+    }
+    try {
+      new KeystrokeJournal(directory, new SimpleCalculator().input('5')).close();
+      fail("A segment written for another starting state was replayed");
+    } catch (IOException e) {
+      /* expected */
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SimpleCalculator())) {
+      assertEquals("6", journal.getResult(1));
+    }
+  }
+
+  @Test
+  public void tornSegmentHeaderIsDropped() throws IOException {
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      journal.input(1, '4');
+    }
+    /* a crash right after the next segment was created */
+    Files.write(directory.resolve(String.format("journal-%020d.log", 2)), new byte[] {0x43, 0x4A});
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals("4", journal.getResult(1));
+      journal.input(1, '2');
+    }
+    try (KeystrokeJournal journal = new KeystrokeJournal(directory, new SmartCalculator())) {
+      assertEquals("42", journal.getResult(1));
+    }
+  }
+}
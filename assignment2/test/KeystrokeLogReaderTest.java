@@ -0,0 +1,134 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import calculator.KeystrokeLogReader;
+import calculator.KeystrokeReplay;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A test class for the KeystrokeLogReader class, which parses keystroke logs from memory-mapped
+ * files.
+ */
+public class KeystrokeLogReaderTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("keystrokes", ".log");
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private void write(String log) throws IOException {
+    Files.write(file, log.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /* Reads the log and returns its records as "id button" strings */
+  private List<String> records(int window) throws IOException {
+    List<String> records = new ArrayList<>();
+    long count = new KeystrokeLogReader(file, window).read((sessionId, button) ->
+            records.add(sessionId + " " + button));
+    assertEquals(records.size(), count);
+    return records;
+  }
+
+  @Test
+  public void recordsAreParsedInOrder() throws IOException {
+    write("1 2\n-5 +\r\n9223372036854775807 =\n-9223372036854775808 C");
+    List<String> expected = List.of("1 2", "-5 +", "9223372036854775807 =",
+            "-9223372036854775808 C");
+    assertEquals(expected, records(1 << 20));
+  }
+
+  @Test
+  public void recordsSpanningWindowsAreParsedOnce() throws IOException {
+    StringBuilder log = new StringBuilder();
+    List<String> expected = new ArrayList<>();
+    Random random = new Random(3);
+    for (int i = 0; i < 2000; i++) {
+      String record = (random.nextInt(200000) - 100000) + " "
+              + KEYS.charAt(random.nextInt(KEYS.length()));
+      expected.add(record);
+      log.append(record).append(random.nextBoolean() ? "\n" : "\r\n");
+    }
+    write(log.toString());
+    for (int window : new int[] {10, 16, 37, 4096, 1 << 20}) {
+      assertEquals(expected, records(window));
+    }
+  }
+
+  @Test
+  public void replayMatchesInMemoryReplay() throws IOException {
+    Random random = new Random(5);
+    long[] sessionIds = new long[50000];
+    char[] buttons = new char[sessionIds.length];
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < sessionIds.length; i++) {
+      sessionIds[i] = random.nextInt(300) * 104729L;
+      buttons[i] = KEYS.charAt(random.nextInt(KEYS.length()));
+      log.append(sessionIds[i]).append(' ').append(buttons[i]).append('\n');
+    }
+    write(log.toString());
+    Map<Long, String> expected = new KeystrokeReplay(new SmartCalculator()).replay(sessionIds,
+            buttons);
+    assertEquals(expected, new KeystrokeLogReader(file, 4096).replay(new SmartCalculator()));
+  }
+
+  @Test
+  public void emptyFileHasNoRecords() throws IOException {
+    write("");
+    assertEquals(List.of(), records(16));
+  }
+
+  @Test(expected = IOException.class)
+  public void missingSpaceRejected() throws IOException {
+    write("12 3\n45+\n");
+    records(1 << 20);
+  }
+
+  @Test(expected = IOException.class)
+  public void missingIdRejected() throws IOException {
+    write(" 3\n");
+    records(1 << 20);
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedLastRecordRejected() throws IOException {
+    write("12 3\n45");
+    records(1 << 20);
+  }
+
+  @Test(expected = IOException.class)
+  public void idOverflowRejected() throws IOException {
+    write("9223372036854775808 1\n");
+    records(1 << 20);
+  }
+
+  @Test(expected = IOException.class)
+  public void recordLongerThanWindowRejected() throws IOException {
+    write("123456789 1\n");
+    records(8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidWindowRejected() {
+    new KeystrokeLogReader(file, 0);
+  }
+}
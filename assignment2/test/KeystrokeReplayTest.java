@@ -0,0 +1,133 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import calculator.Calculator;
+import calculator.KeystrokeReplay;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the KeystrokeReplay class, whose parallel replay must give the same screens as
+ * inputting every event to its own calculator one after the other.
+ */
+public class KeystrokeReplayTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private long[] sessionIds;
+
+  private char[] buttons;
+
+  /* Makes a random log of the given number of events over the given number of sessions */
+  private void makeLog(int events, int sessions, long seed) {
+    Random random = new Random(seed);
+    sessionIds = new long[events];
+    buttons = new char[events];
+    for (int i = 0; i < events; i++) {
+      sessionIds[i] = random.nextInt(sessions) * 7919L - 1000;
+      buttons[i] = KEYS.charAt(random.nextInt(KEYS.length()));
+    }
+  }
+
+  /* Replays the log one event at a time */
+  private Map<Long, String> replaySequentially(Calculator start) {
+    Map<Long, Calculator> calcs = new HashMap<>();
+    for (int i = 0; i < buttons.length; i++) {
+      Calculator calc = calcs.getOrDefault(sessionIds[i], start);
+      try {
+        calc = calc.input(buttons[i]);
+      } catch (IllegalArgumentException e) {
+        doNothing();
+      }
+      calcs.put(sessionIds[i], calc);
+    }
+    Map<Long, String> screens = new HashMap<>();
+    for (Map.Entry<Long, Calculator> entry : calcs.entrySet()) {
+      screens.put(entry.getKey(), entry.getValue().getResult());
+    }
+    return screens;
+  }
+
+  /* for style reasons - put in catch blocks that would otherwise be empty */
+  private void doNothing() {
+    return;
+  }
+
+  @Test
+  public void simpleReplayMatchesSequential() {
+    makeLog(200000, 3000, 1);
+    Calculator start = new SimpleCalculator();
+    assertEquals(replaySequentially(start), new KeystrokeReplay(start).replay(sessionIds,
+            buttons));
+  }
+
+  @Test
+  public void smartReplayMatchesSequential() {
+    makeLog(200000, 3000, 2);
+    Calculator start = new SmartCalculator();
+    assertEquals(replaySequentially(start), new KeystrokeReplay(start).replay(sessionIds,
+            buttons));
+  }
+
+  @Test
+  public void replayOnOwnExecutor() {
+    makeLog(50000, 100, 3);
+    Calculator start = new SmartCalculator().input("5+").getCalculator();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertEquals(replaySequentially(start),
+              new KeystrokeReplay(start, 7, executor).replay(sessionIds, buttons));
+      assertEquals(replaySequentially(start),
+              new KeystrokeReplay(start, 1, executor).replay(sessionIds, buttons));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void manyMoreShardsThanProcessors() {
+    makeLog(200000, 50000, 4);
+    Calculator start = new SimpleCalculator();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      assertEquals(replaySequentially(start),
+              new KeystrokeReplay(start, 100000, executor).replay(sessionIds, buttons));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void replayPartOfLog() {
+    sessionIds = new long[] {1, 2, 1, 1, 2, 1};
+    buttons = "9842=3".toCharArray();
+    Map<Long, String> screens = new KeystrokeReplay(new SimpleCalculator())
+            .replay(sessionIds, buttons, 1, 4);
+    assertEquals(2, screens.size());
+    assertEquals("42", screens.get(1L));
+    assertEquals("8", screens.get(2L));
+  }
+
+  @Test
+  public void emptyLogHasNoSessions() {
+    assertTrue(new KeystrokeReplay(new SimpleCalculator()).replay(new long[0], new char[0])
+            .isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mismatchedLogRejected() {
+    new KeystrokeReplay(new SimpleCalculator()).replay(new long[2], new char[3]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noShardsRejected() {
+    new KeystrokeReplay(new SimpleCalculator(), 0, Runnable::run);
+  }
+}
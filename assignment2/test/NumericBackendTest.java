@@ -0,0 +1,225 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.CalculatorSession;
+import calculator.InputResult;
+import calculator.InputStatus;
+import calculator.NumericBackend;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the numeric backends of the calculators, which only change the range of the
+ * operands and never the rules for inputting buttons.
+ */
+public class NumericBackendTest {
+  private Calculator simple(NumericBackend backend) {
+    return new SimpleCalculator(backend);
+  }
+
+  private Calculator smart(NumericBackend backend) {
+    return new SmartCalculator(backend);
+  }
+
+  /* Inputs the whole tape, which every button of must be accepted */
+  private String screen(Calculator calc, String tape) {
+    return calc.input(tape).getCalculator().getResult();
+  }
+
+  /* While operands stay small, every backend should accept and reject the same buttons and show
+   * the same screens */
+  private void checkSameAsInt(boolean isSmart) {
+    String keys = "0123456789+-=C";
+    Random random = new Random(isSmart ? 1 : 2);
+    for (int tape = 0; tape < 300; tape++) {
+      Calculator[] calcs = new Calculator[NumericBackend.values().length];
+      for (NumericBackend backend : NumericBackend.values()) {
+        calcs[backend.ordinal()] = isSmart ? smart(backend) : simple(backend);
+      }
+      for (int i = 0; i < 25; i++) {
+        /* no more digits once the screen gets long, so that no operand nears the range of an int */
+        int firstKey = (calcs[0].screenLength() < 6) ? 0 : 10;
+        char button = keys.charAt(firstKey + random.nextInt(keys.length() - firstKey));
+        InputStatus expected = calcs[0].tryInput(button).getStatus();
+        for (int j = 0; j < calcs.length; j++) {
+          assertEquals(expected, calcs[j].tryInput(button).getStatus());
+          calcs[j] = calcs[j].tryInput(button).getCalculator();
+          assertEquals(calcs[0].getResult(), calcs[j].getResult());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void simpleBackendsAgreeOnSmallOperands() {
+    checkSameAsInt(false);
+  }
+
+  @Test
+  public void smartBackendsAgreeOnSmallOperands() {
+    checkSameAsInt(true);
+  }
+
+  @Test
+  public void defaultBackendIsInt() {
+    assertEquals(NumericBackend.INT, new SimpleCalculator().getBackend());
+    assertEquals(new SmartCalculator(), new SmartCalculator(NumericBackend.INT));
+    SimpleCalculator calc = (SimpleCalculator) simple(NumericBackend.BIG).input('1');
+    assertEquals(NumericBackend.BIG, calc.getBackend());
+  }
+
+  @Test
+  public void longOperandsGoPastInt() {
+    assertEquals("2147483648", screen(simple(NumericBackend.LONG), "2147483647+1="));
+    assertEquals("4611686014132420609",
+            screen(simple(NumericBackend.LONG), "2147483647*2147483647="));
+    Calculator calc = simple(NumericBackend.LONG).input("9223372036854775807").getCalculator();
+    assertEquals("9223372036854775807", calc.getResult());
+    assertEquals(InputStatus.OPERAND_OVERFLOW, calc.tryInput('0').getStatus());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void longOperandTooLarge() {
+    simple(NumericBackend.LONG).input("9223372036854775807").getCalculator().input('0');
+  }
+
+  @Test
+  public void longOverflowGivesZero() {
+    assertEquals("0", screen(simple(NumericBackend.LONG), "9223372036854775807+1="));
+    assertEquals("0", screen(smart(NumericBackend.LONG), "4294967296*="));
+    assertEquals("-9223372036854775808",
+            screen(simple(NumericBackend.LONG), "0-9223372036854775807-1="));
+  }
+
+  @Test
+  public void bigOperandsNeverOverflow() {
+    assertEquals("9223372036854775808",
+            screen(simple(NumericBackend.BIG), "9223372036854775807+1="));
+    assertEquals("123456789012345678901234567890",
+            screen(simple(NumericBackend.BIG), "123456789012345678901234567890"));
+    assertEquals("18446744073709551616", screen(smart(NumericBackend.BIG), "4294967296*="));
+    assertEquals("79228162514264337593543950336",
+            screen(smart(NumericBackend.BIG), "4294967296*=="));
+    assertEquals("-9223372036854775809",
+            screen(smart(NumericBackend.BIG), "0-9223372036854775807-2="));
+  }
+
+  @Test
+  public void bigResultsShrinkBackToLongs() {
+    Calculator calc = simple(NumericBackend.BIG).input("99999999999999999999-99999999999999999998=")
+            .getCalculator();
+    assertEquals("1", calc.getResult());
+    assertEquals(simple(NumericBackend.BIG).input("0+1=").getCalculator(), calc);
+    assertEquals("2", calc.input("+1=").getCalculator().getResult());
+  }
+
+  @Test
+  public void smartRepeatsWithBigOperands() {
+    Calculator calc = smart(NumericBackend.BIG).input("10000000000000000000+1=")
+            .getCalculator();
+    assertEquals("10000000000000000001", calc.getResult());
+    assertEquals("10000000000000000003", calc.input("==").getCalculator().getResult());
+    calc = smart(NumericBackend.BIG).input("1-10000000000000000000==").getCalculator();
+    assertEquals("-19999999999999999999", calc.getResult());
+  }
+
+  @Test
+  public void wideCalculatorsRenderAndCompare() {
+    Calculator calc = smart(NumericBackend.BIG).input("18446744073709551616*3").getCalculator();
+    char[] chars = new char[calc.screenLength()];
+    assertEquals(22, calc.render(chars, 0));
+    assertEquals("18446744073709551616*3", new String(chars));
+    assertEquals(calc, smart(NumericBackend.BIG).input("18446744073709551616*3")
+            .getCalculator());
+    assertEquals(calc.hashCode(), smart(NumericBackend.BIG).input("18446744073709551616*3")
+            .getCalculator().hashCode());
+    assertFalse(calc.equals(simple(NumericBackend.BIG).input("18446744073709551616*3")
+            .getCalculator()));
+    assertFalse(smart(NumericBackend.LONG).input("12").equals(smart(NumericBackend.BIG)
+            .input("12")));
+    assertFalse(smart(NumericBackend.INT).input("12").equals(smart(NumericBackend.BIG)
+            .input("12")));
+  }
+
+  @Test
+  public void wideTapeStopsAtRejectedButton() {
+    assertEquals(3, simple(NumericBackend.BIG).input("12+-3").getErrorOffset());
+    assertTrue(simple(NumericBackend.BIG).input("12+3").isComplete());
+    assertEquals(InputStatus.INVALID_KEY,
+            simple(NumericBackend.BIG).tryInput('x').getStatus());
+    assertEquals(InputStatus.REJECTED_IN_STATE,
+            simple(NumericBackend.LONG).tryInput('=').getStatus());
+  }
+
+  /* Checks that holding the button down gives the same calculator as pressing it one by one,
+   * until a press is rejected, from which on holding it is rejected too */
+  private void checkHeld(Calculator calc, char button) {
+    Calculator pressed = calc;
+    for (int count = 0; count <= 100; count++) {
+      String held = calc.getResult() + " held " + button + " " + count;
+      if (pressed == null) {
+        try {
+          calc.input(button, count);
+          fail(held + " was accepted");
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+      }
+      assertEquals(held, pressed, calc.input(button, count));
+      InputResult next = pressed.tryInput(button);
+      pressed = next.isAccepted() ? next.getCalculator() : null;
+    }
+  }
+
+  @Test
+  public void wideHeldButtonsMatchOneByOne() {
+    for (NumericBackend backend : new NumericBackend[] {NumericBackend.LONG, NumericBackend.BIG}) {
+      for (String tape : new String[] {"1+100000=", "5-99999=", "9223372036854775000+7=",
+          "0-9223372036854775807-1=", "3*7=", "0-1*2=", "2*=", "6*0-1=", "7", "12+3", "0-5="}) {
+        Calculator calc = smart(backend).input(tape).getCalculator();
+        checkHeld(calc, '=');
+        checkHeld(calc, '7');
+        checkHeld(calc, '0');
+      }
+    }
+  }
+
+  @Test
+  public void wideRunsAreComputedInClosedForm() {
+    String sevens = smart(NumericBackend.BIG).input('7', 400000).getResult();
+    assertEquals(400000, sevens.length());
+    assertEquals(-1, sevens.replace('7', ' ').trim().indexOf(' '));
+    assertEquals("12+" + "9".repeat(1000),
+            simple(NumericBackend.BIG).input("12+9").getCalculator().input('9', 999)
+                    .getResult());
+    Calculator calc = smart(NumericBackend.LONG).input("1+3=").getCalculator();
+    assertEquals(String.valueOf(4 + 3 * 200000000L), calc.input('=', 200000000).getResult());
+    calc = smart(NumericBackend.BIG).input("1+3=").getCalculator();
+    assertEquals("15000000000000000004", calc.input('=', 5000000000000000000L).getResult());
+    calc = smart(NumericBackend.BIG).input("1*2=").getCalculator();
+    /* 2^100001 has 30104 digits */
+    assertEquals(30104, calc.input('=', 100000).getResult().length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void longDigitRunOverflowRejected() {
+    simple(NumericBackend.LONG).input('7', 1000000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bigRunTooLargeRejected() {
+    smart(NumericBackend.BIG).input("2*=").getCalculator().input('=', Long.MAX_VALUE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sessionsOnlyTakeIntBackend() {
+    new CalculatorSession(simple(NumericBackend.LONG));
+  }
+}
@@ -0,0 +1,172 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import calculator.InputStatus;
+import calculator.OffHeapSessionStore;
+import calculator.SessionRegistry;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the OffHeapSessionStore class, whose sessions must follow the same rules as
+ * those of a SessionRegistry, whether they live in memory or in a mapped file.
+ */
+public class OffHeapSessionStoreTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("sessions", ".store");
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /* Inputs random buttons to random sessions of both, removing some along the way */
+  private void inputRandomly(OffHeapSessionStore store, SessionRegistry registry, long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < 100000; i++) {
+      long sessionId = random.nextInt(3000) * 31L - 500;
+      if (random.nextInt(40) == 0) {
+        assertEquals(registry.remove(sessionId), store.remove(sessionId));
+        continue;
+      }
+      char button = KEYS.charAt(random.nextInt(KEYS.length()));
+      assertEquals(registry.tryInput(sessionId, button), store.tryInput(sessionId, button));
+    }
+  }
+
+  private void assertSameSessions(SessionRegistry registry, OffHeapSessionStore store) {
+    assertEquals(registry.size(), store.size());
+    registry.forEach((sessionId, operands, meta) -> {
+      assertEquals(registry.getResult(sessionId), store.getResult(sessionId));
+      assertEquals(registry.toCalculator(sessionId), store.toCalculator(sessionId));
+    });
+    store.forEach((sessionId, operands, meta) -> assertTrue(registry.contains(sessionId)));
+  }
+
+  @Test
+  public void sessionsMatchRegistry() {
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    OffHeapSessionStore store = new OffHeapSessionStore(new SmartCalculator(), 5000);
+    inputRandomly(store, registry, 1);
+    assertSameSessions(registry, store);
+  }
+
+  @Test
+  public void sessionsSurviveReopening() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    try (OffHeapSessionStore store = new OffHeapSessionStore(new SimpleCalculator(), 5000,
+            file)) {
+      inputRandomly(store, registry, 2);
+    }
+    try (OffHeapSessionStore store = new OffHeapSessionStore(new SimpleCalculator(), 1, file)) {
+      assertSameSessions(registry, store);
+      store.input(-500, 'C');
+      store.input(-500, '8');
+      store.flush();
+    }
+    try (OffHeapSessionStore store = new OffHeapSessionStore(new SimpleCalculator(), 1, file)) {
+      assertEquals("8", store.getResult(-500));
+    }
+  }
+
+  @Test
+  public void concurrentSessions() throws InterruptedException {
+    OffHeapSessionStore store = new OffHeapSessionStore(new SimpleCalculator(), 100000);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      long first = t * 10000L;
+      threads.add(new Thread(() -> {
+        for (int round = 0; round < 5; round++) {
+          for (long id = first; id < first + 10000; id++) {
+            store.input(id, (round % 2 == 0) ? '1' : '+');
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, store.size());
+    for (long id = 0; id < 40000; id++) {
+      assertEquals("2", store.getResult(id).substring(0, 1));
+    }
+    assertEquals("2+1", store.getResult(123));
+  }
+
+  @Test
+  public void missingSessions() {
+    OffHeapSessionStore store = new OffHeapSessionStore(new SmartCalculator(), 10);
+    assertNull(store.getResult(4));
+    assertNull(store.toCalculator(4));
+    assertFalse(store.contains(4));
+    assertFalse(store.remove(4));
+    assertEquals(InputStatus.INVALID_KEY, store.tryInput(4, '/'));
+    assertTrue(store.contains(4));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void fullStoreRejectsNewSessions() {
+    OffHeapSessionStore store = new OffHeapSessionStore(new SimpleCalculator(), 10);
+    for (long id = 0; id < 1000; id++) {
+      store.input(id, '1');
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void foreignFileRejected() throws IOException {
+    Files.write(file, "not a session store, just some text that is long enough for a header"
+            .getBytes(StandardCharsets.US_ASCII));
+    new OffHeapSessionStore(new SimpleCalculator(), 10, file);
+  }
+
+  @Test
+  public void otherStartRejected() throws IOException {
+    OffHeapSessionStore store = new OffHeapSessionStore(new SmartCalculator(), 10, file);
+    store.input(1, '5');
+    store.close();
+    try {
+      new OffHeapSessionStore(new SimpleCalculator(), 10, file);
+      fail("a store of smart sessions was opened as simple ones");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("another calculator"));
+    }
+    try {
+      new OffHeapSessionStore(new SmartCalculator().input('7'), 10, file);
+      fail("a store of sessions starting at 0 was opened as starting at 7");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("another calculator"));
+    }
+    store = new OffHeapSessionStore(new SmartCalculator(), 10, file);
+    assertEquals("5", store.getResult(1));
+    store.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badCapacityRejected() {
+    new OffHeapSessionStore(new SimpleCalculator(), 0);
+  }
+}
@@ -0,0 +1,136 @@
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import calculator.ReplicationBackup;
+import calculator.ReplicationPrimary;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the ReplicationBackup class, which must take over from a failed primary with
+ * the sessions it had received, and serve the other backups from there.
+ */
+public class ReplicationBackupTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private static void inputRandomly(ReplicationPrimary primary, long seed, int count) {
+    Random random = new Random(seed);
+    for (int i = 0; i < count; i++) {
+      primary.input(random.nextInt(100), KEYS.charAt(random.nextInt(KEYS.length())));
+    }
+  }
+
+  @Test
+  public void promotedBackupTakesOver() throws Exception {
+    ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+    try (ReplicationBackup first = new ReplicationBackup(new SmartCalculator());
+         ReplicationBackup second = new ReplicationBackup(new SmartCalculator())) {
+      first.connect("localhost", primary.getPort());
+      second.connect("localhost", primary.getPort());
+      inputRandomly(primary, 1, 3000);
+      assertTrue(primary.awaitReplicated(primary.getSequence(), 30, TimeUnit.SECONDS));
+      long sequence = primary.getSequence();
+      primary.close();
+      try (ReplicationPrimary successor = first.promote(0)) {
+        assertEquals(sequence, successor.getSequence());
+        assertEquals(primary.getResults(), successor.getResults());
+        assertTrue(second.awaitSequence(sequence, 30, TimeUnit.SECONDS));
+        second.disconnect();
+        second.connect("localhost", successor.getPort());
+        inputRandomly(successor, 2, 3000);
+        assertTrue(second.awaitSequence(successor.getSequence(), 30, TimeUnit.SECONDS));
+        assertEquals(successor.getResults(), second.getResults());
+      }
+    }
+  }
+
+  @Test
+  public void backupAheadOfPromotedOneIsCaughtUpWithSnapshot() throws Exception {
+    ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+    try (ReplicationBackup second = new ReplicationBackup(new SmartCalculator());
+         ReplicationBackup third = new ReplicationBackup(new SmartCalculator())) {
+      second.connect("localhost", primary.getPort());
+      third.connect("localhost", primary.getPort());
+      assertTrue(primary.input(1, '2'));
+      assertTrue(primary.input(1, '*'));
+      assertTrue(primary.awaitReplicated(2, 30, TimeUnit.SECONDS));
+      second.disconnect();
+      /* only the third backup receives events 3 and 4 before the primary fails */
+      assertTrue(primary.input(1, '3'));
+      assertTrue(primary.input(1, '='));
+      assertTrue(third.awaitSequence(4, 30, TimeUnit.SECONDS));
+      assertEquals("6", third.getResult(1));
+      primary.close();
+      third.disconnect();
+      try (ReplicationPrimary successor = second.promote(0)) {
+        assertEquals(2, successor.getSequence());
+        assertTrue(successor.input(1, '5'));
+        assertTrue(successor.input(1, '='));
+        assertTrue(successor.input(2, '7'));
+        third.connect("localhost", successor.getPort());
+        assertTrue(successor.awaitReplicated(successor.getSequence(), 30, TimeUnit.SECONDS));
+        assertEquals(5, third.getSequence());
+        assertEquals("10", third.getResult(1));
+        assertEquals(successor.getResults(), third.getResults());
+        /* from here on, the third backup belongs to the successor's history */
+        third.disconnect();
+        assertTrue(successor.input(2, '+'));
+        third.connect("localhost", successor.getPort());
+        assertTrue(third.awaitSequence(6, 30, TimeUnit.SECONDS));
+        assertEquals(successor.getResults(), third.getResults());
+      }
+    }
+  }
+
+  @Test
+  public void promotedBackupCanNoLongerBeRead() throws Exception {
+    ReplicationBackup backup = new ReplicationBackup(new SmartCalculator());
+    backup.promote(0).close();
+    try {
+      backup.getResults();
+      fail("A promoted backup was read");
+    } catch (IllegalStateException e) {
+      /* expected */
+    }
+    try {
+      backup.connect("localhost", 1);
+      fail("A promoted backup connected");
+    } catch (IllegalStateException e) {
+      /* expected */
+    }
+  }
+
+  @Test
+  public void backupKeepsSessionsWhenPrimaryFails() throws Exception {
+    try (ReplicationBackup backup = new ReplicationBackup(new SmartCalculator())) {
+      try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0)) {
+        backup.connect("localhost", primary.getPort());
+        assertTrue(primary.input(4, '6'));
+        assertTrue(backup.awaitSequence(1, 30, TimeUnit.SECONDS));
+      }
+      for (int i = 0; i < 3000 && backup.isConnected(); i++) {
+        Thread.sleep(10);
+      }
+      assertFalse(backup.isConnected());
+      assertEquals("6", backup.getResult(4));
+      assertEquals(new SmartCalculator().input('6'), backup.toCalculator(4));
+      assertEquals(1, backup.size());
+      assertFalse(backup.awaitSequence(2, 10, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void connectTwice() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+         ReplicationBackup backup = new ReplicationBackup(new SmartCalculator())) {
+      backup.connect("localhost", primary.getPort());
+      backup.connect("localhost", primary.getPort());
+    }
+  }
+}
@@ -0,0 +1,199 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import calculator.ReplicationBackup;
+import calculator.ReplicationPrimary;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the ReplicationPrimary class, whose backups must end up with the same sessions
+ * whether they receive events as they happen or catch up later, in this JVM or in others.
+ */
+public class ReplicationPrimaryTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  /**
+   * Run a backup in its own JVM: connect to the primary at the host and port given as the first
+   * two arguments, wait for the sequence number given as the third, and print every session as
+   * its id, an equals sign and its screen, one per line.
+   */
+  public static final class BackupMain {
+    public static void main(String[] args) throws Exception {
+      try (ReplicationBackup backup = new ReplicationBackup(new SmartCalculator())) {
+        backup.connect(args[0], Integer.parseInt(args[1]));
+        if (!backup.awaitSequence(Long.parseLong(args[2]), 60, TimeUnit.SECONDS)) {
+          System.exit(1);
+        }
+        for (Map.Entry<Long, String> entry : backup.getResults().entrySet()) {
+          System.out.println(entry.getKey() + "=" + entry.getValue());
+        }
+      }
+    }
+  }
+
+  private static void inputRandomly(ReplicationPrimary primary, long seed, int count) {
+    Random random = new Random(seed);
+    for (int i = 0; i < count; i++) {
+      primary.input(random.nextInt(300) - 150, KEYS.charAt(random.nextInt(KEYS.length())));
+    }
+  }
+
+  private static void assertReplicated(ReplicationPrimary primary, ReplicationBackup backup)
+          throws InterruptedException {
+    assertTrue(backup.awaitSequence(primary.getSequence(), 30, TimeUnit.SECONDS));
+    assertEquals(primary.getSequence(), backup.getSequence());
+    assertEquals(primary.getResults(), backup.getResults());
+  }
+
+  @Test
+  public void backupsReceiveEvents() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+         ReplicationBackup first = new ReplicationBackup(new SmartCalculator());
+         ReplicationBackup second = new ReplicationBackup(new SmartCalculator())) {
+      first.connect("localhost", primary.getPort());
+      second.connect("localhost", primary.getPort());
+      inputRandomly(primary, 1, 50000);
+      assertTrue(primary.awaitReplicated(primary.getSequence(), 30, TimeUnit.SECONDS));
+      assertEquals(2, primary.getBackupCount());
+      assertReplicated(primary, first);
+      assertReplicated(primary, second);
+      assertEquals(primary.toCalculator(7), first.toCalculator(7));
+      assertEquals(primary.size(), second.size());
+    }
+  }
+
+  @Test
+  public void newBackupCatchesUpWithSnapshot() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SimpleCalculator(), 0, 16);
+         ReplicationBackup backup = new ReplicationBackup(new SimpleCalculator())) {
+      inputRandomly(primary, 2, 1000);
+      backup.connect("localhost", primary.getPort());
+      assertReplicated(primary, backup);
+      inputRandomly(primary, 3, 1000);
+      assertReplicated(primary, backup);
+    }
+  }
+
+  @Test
+  public void reconnectedBackupCatchesUp() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0, 16);
+         ReplicationBackup backup = new ReplicationBackup(new SmartCalculator())) {
+      backup.connect("localhost", primary.getPort());
+      inputRandomly(primary, 4, 200);
+      assertReplicated(primary, backup);
+      backup.disconnect();
+      assertFalse(backup.isConnected());
+      /* within the backlog, so only the missing events are shipped */
+      inputRandomly(primary, 5, 10);
+      backup.connect("localhost", primary.getPort());
+      assertReplicated(primary, backup);
+      backup.disconnect();
+      /* beyond the backlog, so a snapshot is shipped first */
+      inputRandomly(primary, 6, 500);
+      backup.connect("localhost", primary.getPort());
+      assertReplicated(primary, backup);
+    }
+  }
+
+  @Test
+  public void backupWithOtherRulesIsRefused() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+         ReplicationBackup backup = new ReplicationBackup(new SimpleCalculator())) {
+      backup.connect("localhost", primary.getPort());
+      fail("A backup following other rules was accepted");
+    } catch (IOException e) {
+      /* expected */
+    }
+  }
+
+  @Test
+  public void backupAheadOfPrimaryIsRefused() throws Exception {
+    try (ReplicationPrimary old = new ReplicationPrimary(new SmartCalculator(), 0);
+         ReplicationPrimary fresh = new ReplicationPrimary(new SmartCalculator(), 0);
+         ReplicationBackup backup = new ReplicationBackup(new SmartCalculator())) {
+      backup.connect("localhost", old.getPort());
+      inputRandomly(old, 7, 100);
+      assertReplicated(old, backup);
+      backup.disconnect();
+      try {
+        backup.connect("localhost", fresh.getPort());
+        fail("A backup ahead of the primary was accepted");
+      } catch (IOException e) {
+        assertFalse(backup.isConnected());
+      }
+    }
+  }
+
+  @Test
+  public void rejectedButtonsAreNotShipped() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SimpleCalculator(), 0)) {
+      assertFalse(primary.input(3, '='));
+      assertEquals(0, primary.size());
+      assertEquals(0, primary.getSequence());
+      assertTrue(primary.input(3, '9'));
+      assertEquals(1, primary.getSequence());
+      assertTrue(primary.awaitReplicated(1, 0, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void inputAfterClose() throws IOException {
+    ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0);
+    primary.close();
+    primary.input(1, '1');
+  }
+
+  @Test
+  public void backupsInOtherJvms() throws Exception {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new SmartCalculator(), 0)) {
+      inputRandomly(primary, 8, 20000);
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+              + "java";
+      long target = primary.getSequence() + 5000;
+      List<Process> processes = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                BackupMain.class.getName(), "localhost", String.valueOf(primary.getPort()),
+                String.valueOf(target)).redirectErrorStream(true).start());
+      }
+      /* events keep flowing while the backups catch up */
+      Random random = new Random(9);
+      while (primary.getSequence() < target) {
+        primary.input(random.nextInt(300) - 150, KEYS.charAt(random.nextInt(KEYS.length())));
+      }
+      Map<Long, String> expected = primary.getResults();
+      for (Process process : processes) {
+        Map<Long, String> results = new HashMap<>();
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = out.readLine()) != null) {
+            int separator = line.indexOf('=');
+            results.put(Long.parseLong(line.substring(0, separator)),
+                    line.substring(separator + 1));
+          }
+        }
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+        assertEquals(expected, results);
+      }
+    }
+  }
+}
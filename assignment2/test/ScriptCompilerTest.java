@@ -0,0 +1,181 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import calculator.Calculator;
+import calculator.CalculatorSession;
+import calculator.ScriptCompiler;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the ScriptCompiler class, whose compiled scripts must leave calculators in the
+ * same state as inputting the buttons one by one, skipping the rejected ones.
+ */
+public class ScriptCompilerTest {
+  private static final String KEYS = "0123456789+-*=";
+
+  /* Inputs the script one button at a time, skipping the buttons the calculator rejects */
+  private Calculator interpret(Calculator calc, CharSequence script) {
+    for (int i = 0; i < script.length(); i++) {
+      try {
+        calc = calc.input(script.charAt(i));
+      } catch (IllegalArgumentException e) {
+        doNothing();
+      }
+    }
+    return calc;
+  }
+
+  /* for style reasons - put in catch blocks that would otherwise be empty */
+  private void doNothing() {
+    return;
+  }
+
+  private String randomScript(Random random, int length, String keys) {
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      script.append(keys.charAt(random.nextInt(keys.length())));
+    }
+    return script.toString();
+  }
+
+  /* Runs random scripts from random starting states, and compares them with the interpreter */
+  private void checkScripts(Calculator empty, String keys, long seed) {
+    ScriptCompiler compiler = new ScriptCompiler(64, 1);
+    Random random = new Random(seed);
+    for (int i = 0; i < 300; i++) {
+      String script = randomScript(random, 1 + random.nextInt(30), keys);
+      Calculator start = interpret(empty, randomScript(random, random.nextInt(8), KEYS));
+      assertEquals(interpret(start, script), compiler.run(start, script));
+      assertTrue(compiler.isCompiled(script, empty instanceof SmartCalculator));
+    }
+  }
+
+  @Test
+  public void simpleScriptsMatchInterpreter() {
+    checkScripts(new SimpleCalculator(), KEYS, 1);
+  }
+
+  @Test
+  public void smartScriptsMatchInterpreter() {
+    checkScripts(new SmartCalculator(), KEYS, 2);
+  }
+
+  @Test
+  public void scriptsWithClearMatchInterpreter() {
+    checkScripts(new SimpleCalculator(), KEYS + "C", 3);
+    checkScripts(new SmartCalculator(), KEYS + "C", 4);
+  }
+
+  @Test
+  public void coldScriptsStayInterpreted() {
+    ScriptCompiler compiler = new ScriptCompiler(8, 3);
+    Calculator start = new SmartCalculator();
+    for (int i = 0; i < 2; i++) {
+      assertEquals("15", compiler.run(start, "12+3=").getResult());
+      assertFalse(compiler.isCompiled("12+3=", true));
+    }
+    assertEquals("15", compiler.run(start, "12+3=").getResult());
+    assertTrue(compiler.isCompiled("12+3=", true));
+    assertFalse(compiler.isCompiled("12+3=", false));
+  }
+
+  @Test
+  public void sessionRunsInPlace() {
+    ScriptCompiler compiler = new ScriptCompiler(8, 1);
+    CalculatorSession session = new CalculatorSession(new SimpleCalculator());
+    compiler.run(session, "7*6");
+    assertEquals("7*6", session.getResult());
+    compiler.run(session, "=+1");
+    assertEquals("42+1", session.getResult());
+    assertTrue(session.toCalculator() instanceof SimpleCalculator);
+  }
+
+  @Test
+  public void threadsRunScriptsGivenAsBuilders() throws InterruptedException {
+    ScriptCompiler compiler = new ScriptCompiler(256, 4);
+    Random random = new Random(11);
+    String[] scripts = new String[100];
+    for (int i = 0; i < scripts.length; i++) {
+      scripts[i] = randomScript(random, 1 + random.nextInt(20), KEYS);
+    }
+    Calculator start = new SmartCalculator();
+    List<Thread> threads = new ArrayList<>();
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    for (int t = 0; t < 8; t++) {
+      long seed = t;
+      Thread thread = new Thread(() -> {
+        Random own = new Random(seed);
+        StringBuilder script = new StringBuilder();
+        try {
+          for (int i = 0; i < 5000; i++) {
+            script.setLength(0);
+            script.append(scripts[own.nextInt(scripts.length)]);
+            assertEquals(interpret(start, script), compiler.run(start, script));
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(null, error.get());
+    for (String script : scripts) {
+      assertTrue(compiler.isCompiled(new StringBuilder(script), true));
+    }
+  }
+
+  @Test
+  public void leastRecentlyRunScriptEvicted() {
+    ScriptCompiler compiler = new ScriptCompiler(2, 1);
+    Calculator start = new SimpleCalculator();
+    compiler.run(start, "1+1");
+    compiler.run(start, "2+2");
+    compiler.run(start, "1+1");
+    compiler.run(start, "3+3");
+    assertTrue(compiler.isCompiled("1+1", false));
+    assertFalse(compiler.isCompiled("2+2", false));
+    assertTrue(compiler.isCompiled("3+3", false));
+  }
+
+  @Test
+  public void longScriptsWithoutClearInterpreted() {
+    ScriptCompiler compiler = new ScriptCompiler(8, 1);
+    String script = randomScript(new Random(5), 5000, "+-*=1");
+    Calculator start = new SmartCalculator();
+    assertFalse(compiler.compile(script, true));
+    assertEquals(interpret(start, script), compiler.run(start, script));
+    assertFalse(compiler.isCompiled(script, true));
+  }
+
+  @Test
+  public void longScriptsWithClearCompiled() {
+    ScriptCompiler compiler = new ScriptCompiler(8, 1);
+    String script = randomScript(new Random(6), 5000, KEYS) + "C12*3";
+    Calculator start = new SimpleCalculator();
+    assertTrue(compiler.compile(script, false));
+    assertEquals("12*3", compiler.run(start, script).getResult());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badCapacityRejected() {
+    new ScriptCompiler(0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badThresholdRejected() {
+    new ScriptCompiler(1, -1);
+  }
+}
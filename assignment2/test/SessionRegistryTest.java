@@ -0,0 +1,219 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.InputStatus;
+import calculator.NumericBackend;
+import calculator.SessionRegistry;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.StateCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the SessionRegistry class, whose sessions must follow the same rules as
+ * immutable calculators held in an ordinary map, through growing and removals.
+ */
+public class SessionRegistryTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  /* Inputs random buttons to random sessions, removing some of them along the way, and compares
+   * the registry with a HashMap of calculators after every step */
+  private void checkAgainstMap(Calculator start, long seed) {
+    Random random = new Random(seed);
+    SessionRegistry registry = new SessionRegistry(start);
+    Map<Long, Calculator> calcs = new HashMap<>();
+    for (int i = 0; i < 100000; i++) {
+      long sessionId = random.nextInt(5000) * 0x100000001L - 77;
+      if (random.nextInt(50) == 0) {
+        assertEquals(calcs.remove(sessionId) != null, registry.remove(sessionId));
+        continue;
+      }
+      char button = KEYS.charAt(random.nextInt(KEYS.length()));
+      Calculator calc = calcs.getOrDefault(sessionId, start);
+      InputStatus expected = calc.tryInput(button).getStatus();
+      assertEquals(expected, registry.tryInput(sessionId, button));
+      calcs.put(sessionId, calc.tryInput(button).getCalculator());
+      assertEquals(calcs.get(sessionId).getResult(), registry.getResult(sessionId));
+    }
+    assertEquals(calcs.size(), registry.size());
+    Map<Long, String> screens = new HashMap<>();
+    for (Map.Entry<Long, Calculator> entry : calcs.entrySet()) {
+      screens.put(entry.getKey(), entry.getValue().getResult());
+      assertEquals(entry.getValue(), registry.toCalculator(entry.getKey()));
+    }
+    assertEquals(screens, registry.getResults());
+  }
+
+  @Test
+  public void simpleSessionsMatchCalculators() {
+    checkAgainstMap(new SimpleCalculator(), 1);
+  }
+
+  @Test
+  public void smartSessionsMatchCalculators() {
+    checkAgainstMap(new SmartCalculator().input("4*").getCalculator(), 2);
+  }
+
+  @Test
+  public void extremeIdsAreSessions() {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator(), 2);
+    long[] ids = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+    for (int i = 0; i < ids.length; i++) {
+      assertTrue(registry.input(ids[i], (char) ('1' + i)));
+    }
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(String.valueOf(1 + i), registry.getResult(ids[i]));
+    }
+    assertEquals(4, registry.size());
+  }
+
+  @Test
+  public void rejectedButtonAddsSession() {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    assertFalse(registry.input(5, '+'));
+    assertTrue(registry.contains(5));
+    assertEquals("", registry.getResult(5));
+    assertEquals(InputStatus.INVALID_KEY, registry.tryInput(5, '/'));
+  }
+
+  @Test
+  public void missingSessions() {
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    assertNull(registry.getResult(3));
+    assertNull(registry.toCalculator(3));
+    assertFalse(registry.render(3, new StringBuilder()));
+    assertFalse(registry.remove(3));
+  }
+
+  @Test
+  public void removedSessionStartsOver() {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    registry.input(9, '7');
+    assertTrue(registry.remove(9));
+    assertFalse(registry.contains(9));
+    registry.input(9, '2');
+    assertEquals("2", registry.getResult(9));
+    registry.clear();
+    assertEquals(0, registry.size());
+    assertNull(registry.getResult(9));
+  }
+
+  @Test
+  public void visitPackedStates() {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    for (long id = 0; id < 1000; id++) {
+      registry.input(id, (char) ('0' + id % 10));
+    }
+    long[] total = new long[1];
+    registry.forEach((sessionId, operands, meta) -> {
+      assertEquals(sessionId % 10, StateCodec.firstOperand(operands));
+      total[0] += sessionId;
+    });
+    assertEquals(999 * 1000 / 2, total[0]);
+  }
+
+  /* Inputs random buttons to random sessions, removing some of them along the way */
+  private void inputRandomly(SessionRegistry registry, Random random, int events) {
+    for (int i = 0; i < events; i++) {
+      long sessionId = random.nextInt(2000) - 1000;
+      if (random.nextInt(30) == 0) {
+        registry.remove(sessionId);
+      } else {
+        registry.input(sessionId, KEYS.charAt(random.nextInt(KEYS.length())));
+      }
+    }
+  }
+
+  private byte[] fullSnapshot(SessionRegistry registry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    registry.writeSnapshot(out);
+    return out.toByteArray();
+  }
+
+  private byte[] incrementalSnapshot(SessionRegistry registry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    registry.writeIncrementalSnapshot(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void snapshotsRestoreSessions() throws IOException {
+    Random random = new Random(4);
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    inputRandomly(registry, random, 20000);
+    byte[] full = fullSnapshot(registry);
+    byte[][] increments = new byte[4][];
+    for (int i = 0; i < increments.length; i++) {
+      inputRandomly(registry, random, 3000);
+      if (i == 2) {
+        registry.clear();
+        inputRandomly(registry, random, 100);
+      }
+      increments[i] = incrementalSnapshot(registry);
+      assertTrue(increments[i].length < full.length);
+    }
+    SessionRegistry restored = new SessionRegistry(new SmartCalculator());
+    restored.input(5000, '7');
+    restored.restore(new ByteArrayInputStream(full));
+    for (byte[] increment : increments) {
+      restored.restore(new ByteArrayInputStream(increment));
+    }
+    assertEquals(registry.getResults(), restored.getResults());
+
+    /* nothing changed since the last increment, so the next one is empty */
+    assertEquals(0, restored.restore(new ByteArrayInputStream(incrementalSnapshot(registry))));
+    assertEquals(0, new SessionRegistry(new SmartCalculator()).restore(
+            new ByteArrayInputStream(incrementalSnapshot(restored))));
+  }
+
+  @Test
+  public void damagedSnapshotLeavesRegistryAlone() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    inputRandomly(registry, new Random(5), 5000);
+    byte[] full = fullSnapshot(registry);
+    SessionRegistry other = new SessionRegistry(new SimpleCalculator());
+    other.input(1, '1');
+    try {
+      other.restore(new ByteArrayInputStream(Arrays.copyOf(full, full.length - 2)));
+      fail("A truncated snapshot was restored");
+    } catch (IOException e) {
+      assertEquals(Map.of(1L, "1"), other.getResults());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void snapshotOfOtherRulesRejected() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    registry.input(1, '1');
+    new SessionRegistry(new SmartCalculator()).restore(
+            new ByteArrayInputStream(fullSnapshot(registry)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void incrementalSnapshotNeedsFullOne() throws IOException {
+    incrementalSnapshot(new SessionRegistry(new SimpleCalculator()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wideCalculatorRejected() {
+    new SessionRegistry(new SmartCalculator(NumericBackend.BIG));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeSizeRejected() {
+    new SessionRegistry(new SimpleCalculator(), -1);
+  }
+}
@@ -1,6 +1,8 @@
 import org.junit.Test;
 
 import calculator.Calculator;
+import calculator.InputResult;
+import calculator.InputStatus;
 import calculator.SimpleCalculator;
 
 import static org.junit.Assert.assertEquals;
@@ -33,6 +35,21 @@ public class SimpleCalculatorTest extends AbstractCalculatorTest {
     assertEquals(success, true);
   }
 
+  @Test
+  public void tryInputRejectsOperatorFirst() {
+    Calculator calc = new SimpleCalculator();
+    InputResult tried = calc.tryInput('-');
+    assertEquals(InputStatus.REJECTED_IN_STATE, tried.getStatus());
+    assertEquals(calc, tried.getCalculator());
+    assertEquals(InputStatus.OK, calc.tryInput('C').getStatus());
+  }
+
+  @Test
+  public void heldEqualsKeepsResult() {
+    Calculator calc = new SimpleCalculator().input("12+3=").getCalculator();
+    assertEquals("15", calc.input('=', Long.MAX_VALUE).getResult());
+  }
+
   @Test
   public void testClearedCalcInputs() {
     boolean success = true;
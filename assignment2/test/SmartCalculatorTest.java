@@ -804,4 +804,76 @@ public class SmartCalculatorTest extends AbstractCalculatorTest {
     oneOperand = oneOperand.input('C');
     assertEquals("", oneOperand.getResult());
   }
-}
\ No newline at end of file
+
+  /* Performs the operation count times on ints, one at a time, with overflow giving 0 */
+  private int repeatOneByOne(char operator, int firstOp, int operand, long count) {
+    long newNum = firstOp;
+    for (long i = 0; i < count; i++) {
+      switch (operator) {
+        case '+':
+          newNum += operand;
+          break;
+        case '-':
+          newNum -= operand;
+          break;
+        default:
+          newNum *= operand;
+      }
+      if (newNum != (int) newNum) {
+        newNum = 0;
+      }
+    }
+    return (int) newNum;
+  }
+
+  /* Checks held '=' after the tape, which leaves the given operator and operand to repeat */
+  private void checkHeldEquals(String tape, char operator, int operand) {
+    Calculator calc = new SmartCalculator().input(tape).getCalculator();
+    int firstOp = Integer.parseInt(calc.getResult());
+    long[] counts = {0, 1, 2, 3, 30, 31, 32, 1000, 65536, 1000003};
+    for (long count : counts) {
+      Calculator held = calc.input('=', count);
+      assertEquals(tape + " held " + count,
+              String.valueOf(repeatOneByOne(operator, firstOp, operand, count)),
+              held.getResult());
+      if (count <= 1000) {
+        Calculator pressed = calc;
+        for (int i = 0; i < count; i++) {
+          pressed = pressed.input('=');
+        }
+        assertEquals(pressed, held);
+      }
+    }
+  }
+
+  @Test
+  public void heldEqualsMatchesOneByOne() {
+    checkHeldEquals("1+100000=", '+', 100000);
+    checkHeldEquals("2147483000+7=", '+', 7);
+    checkHeldEquals("5-99999=", '-', 99999);
+    checkHeldEquals("0-2147483647=", '-', 2147483647);
+    checkHeldEquals("1+2147483647=", '+', 2147483647);
+    checkHeldEquals("123456+=", '+', 123456);
+    checkHeldEquals("3*7=", '*', 7);
+    checkHeldEquals("1*2=", '*', 2);
+    checkHeldEquals("2*=", '*', 2);
+    checkHeldEquals("0-1*46341=", '*', 46341);
+  }
+
+  @Test
+  public void heldOperatorCollapses() {
+    Calculator calc = new SmartCalculator().input("12").getCalculator();
+    assertEquals("12*", calc.input('*', 1L << 40).getResult());
+    assertEquals("15-", calc.input("+3").getCalculator().input('-', 1L << 40).getResult());
+  }
+
+  @Test
+  public void heldEqualsCyclesThroughOverflow() {
+    Calculator calc = new SmartCalculator().input("1073741824+1073741824=").getCalculator();
+    assertEquals("0", calc.getResult());
+    assertEquals("1073741824", calc.input('=', 1000000000000001L).getResult());
+    assertEquals("0", calc.input('=', 1000000000000000L).getResult());
+    assertEquals("0", new SmartCalculator().input("2*=").getCalculator()
+            .input('=', Long.MAX_VALUE).getResult());
+  }
+}
@@ -0,0 +1,96 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import calculator.SimpleCalculator;
+import calculator.SnapshotReader;
+import calculator.SnapshotWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * A test class for the SnapshotReader class, which must refuse every snapshot that is not
+ * exactly as it was written.
+ */
+public class SnapshotReaderTest {
+  private static final SnapshotReader.Sink IGNORE = new SnapshotReader.Sink() {
+    @Override
+    public void session(long sessionId, long operands, int meta) {
+      return;
+    }
+
+    @Override
+    public void removed(long sessionId) {
+      return;
+    }
+  };
+
+  private byte[] snapshot(int sessions) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SnapshotWriter writer = new SnapshotWriter(out, false, sessions);
+    for (int i = 0; i < sessions; i++) {
+      writer.write(i, new SimpleCalculator().input(String.valueOf(i)).getCalculator());
+    }
+    writer.finish();
+    return out.toByteArray();
+  }
+
+  private void assertRejected(byte[] bytes) {
+    try {
+      new SnapshotReader(new ByteArrayInputStream(bytes)).read(IGNORE);
+      fail("A damaged snapshot was read");
+    } catch (IOException e) {
+      return;
+    }
+  }
+
+  @Test
+  public void truncatedSnapshotsRejected() throws IOException {
+    byte[] bytes = snapshot(3000);
+    for (int length = 0; length < bytes.length; length += 997) {
+      assertRejected(Arrays.copyOf(bytes, length));
+    }
+    assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  @Test
+  public void flippedBitsRejected() throws IOException {
+    byte[] bytes = snapshot(3000);
+    for (int position = 0; position < bytes.length; position += 331) {
+      byte[] damaged = bytes.clone();
+      damaged[position] ^= 0x10;
+      assertRejected(damaged);
+    }
+  }
+
+  @Test
+  public void readsFromSlowStream() throws IOException {
+    byte[] bytes = snapshot(5000);
+    InputStream slow = new ByteArrayInputStream(bytes) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 3));
+      }
+    };
+    assertEquals(5000, new SnapshotReader(slow).read(IGNORE));
+  }
+
+  @Test(expected = IOException.class)
+  public void otherVersionRejected() throws IOException {
+    byte[] bytes = snapshot(1);
+    bytes[4] = 2;
+    new SnapshotReader(new ByteArrayInputStream(bytes));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void snapshotReadOnce() throws IOException {
+    SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(snapshot(2)));
+    reader.read(IGNORE);
+    reader.read(IGNORE);
+  }
+}
@@ -0,0 +1,119 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import calculator.Calculator;
+import calculator.NumericBackend;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.SnapshotReader;
+import calculator.SnapshotWriter;
+import calculator.StateCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the SnapshotWriter class, whose snapshots must be read back by a
+ * SnapshotReader exactly as they were written.
+ */
+public class SnapshotWriterTest {
+  /* Reads the snapshot back as "session id screen" and "removed id" strings */
+  static List<String> readBack(byte[] snapshot) throws IOException {
+    List<String> records = new ArrayList<>();
+    SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(snapshot));
+    long count = reader.read(new SnapshotReader.Sink() {
+      @Override
+      public void session(long sessionId, long operands, int meta) {
+        records.add("session " + sessionId + " " + StateCodec.decode(operands, meta).getResult());
+      }
+
+      @Override
+      public void removed(long sessionId) {
+        records.add("removed " + sessionId);
+      }
+    });
+    assertEquals(records.size(), count);
+    return records;
+  }
+
+  @Test
+  public void fullSnapshotRoundTrip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Calculator calc = new SmartCalculator().input("12-345=").getCalculator();
+    try (SnapshotWriter writer = new SnapshotWriter(out, false, 3)) {
+      writer.write(Long.MIN_VALUE, calc);
+      writer.write(0, new SimpleCalculator());
+      writer.write(Long.MAX_VALUE, StateCodec.operands(-2147483648, 2147483647),
+              StateCodec.meta(new SmartCalculator().input("5+6").getCalculator()));
+      assertEquals(3, writer.count());
+    }
+    assertEquals(List.of("session " + Long.MIN_VALUE + " -333", "session 0 ",
+            "session " + Long.MAX_VALUE + " -2147483648+2147483647"), readBack(out.toByteArray()));
+    SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(out.toByteArray()));
+    assertFalse(reader.isIncremental());
+    assertEquals(3, reader.expectedSessions());
+  }
+
+  @Test
+  public void incrementalSnapshotHoldsRemovals() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SnapshotWriter writer = new SnapshotWriter(out, true, 0);
+    writer.writeRemoved(7);
+    writer.write(8, new SimpleCalculator().input("4*").getCalculator());
+    writer.finish();
+    assertEquals(List.of("removed 7", "session 8 4*"), readBack(out.toByteArray()));
+    assertTrue(new SnapshotReader(new ByteArrayInputStream(out.toByteArray())).isIncremental());
+  }
+
+  @Test
+  public void sessionsAreCompact() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SnapshotWriter writer = new SnapshotWriter(out, false, 0);
+    Calculator calc = new SimpleCalculator().input("123+45").getCalculator();
+    for (long id = 0; id < 100000; id++) {
+      writer.write(id, calc);
+    }
+    writer.finish();
+    assertTrue(out.size() < 100000 * 9);
+    assertEquals(100000, readBack(out.toByteArray()).size());
+  }
+
+  @Test
+  public void largeSnapshotRoundTrip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SnapshotWriter writer = new SnapshotWriter(out, false, 0);
+    List<String> expected = new ArrayList<>();
+    Calculator calc = new SmartCalculator();
+    for (int i = 0; i < 20000; i++) {
+      calc = calc.tryInput("1234567890+-*=C".charAt(i * 7 % 15)).getCalculator();
+      writer.write(i * 1000003L, calc);
+      expected.add("session " + (i * 1000003L) + " " + calc.getResult());
+    }
+    writer.finish();
+    assertEquals(expected, readBack(out.toByteArray()));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void fullSnapshotHasNoRemovals() throws IOException {
+    new SnapshotWriter(new ByteArrayOutputStream(), false, 0).writeRemoved(1);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void nothingWrittenAfterFinish() throws IOException {
+    SnapshotWriter writer = new SnapshotWriter(new ByteArrayOutputStream(), false, 0);
+    writer.finish();
+    writer.write(1, new SimpleCalculator());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wideCalculatorRejected() throws IOException {
+    new SnapshotWriter(new ByteArrayOutputStream(), false, 0).write(1,
+            new SimpleCalculator(NumericBackend.LONG));
+  }
+}
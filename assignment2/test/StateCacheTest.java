@@ -0,0 +1,128 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.StateCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A test class for the StateCache class and the equality of calculator states it relies on.
+ */
+public class StateCacheTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  /* feeds every key into the calculator, skipping over the ones it rejects */
+  private Calculator feed(Calculator calc, String keys) {
+    for (int i = 0; i < keys.length(); i++) {
+      try {
+        calc = calc.input(keys.charAt(i));
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+    }
+    return calc;
+  }
+
+  @Test
+  public void capacityRoundsUpToPowerOfTwo() {
+    assertEquals(1, new StateCache(1).capacity());
+    assertEquals(64, new StateCache(64).capacity());
+    assertEquals(128, new StateCache(65).capacity());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void zeroCapacityRejected() {
+    new StateCache(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeCapacityRejected() {
+    new StateCache(-4);
+  }
+
+  @Test
+  public void equalStatesAreEqual() {
+    Calculator first = feed(new SimpleCalculator(), "12+7");
+    Calculator second = feed(new SimpleCalculator(), "3C12+7");
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+    assertNotEquals(first, feed(new SimpleCalculator(), "12+8"));
+    assertNotEquals(first, feed(new SmartCalculator(), "12+7"));
+  }
+
+  @Test
+  public void hiddenValuesAreCompared() {
+    /* all three print "14", but only the first two will add 7 again on the next '=' */
+    Calculator doubled = feed(new SmartCalculator(), "7+7=");
+    Calculator selfAdded = feed(new SmartCalculator(), "7+=");
+    assertEquals(doubled.getResult(), selfAdded.getResult());
+    assertEquals(doubled, selfAdded);
+    Calculator added = feed(new SmartCalculator(), "10+4=");
+    assertEquals("14", added.getResult());
+    assertNotEquals(doubled, added);
+  }
+
+  @Test
+  public void repeatedStatesAreShared() {
+    StateCache cache = new StateCache(256);
+    Calculator calc = new SimpleCalculator(cache);
+    Calculator five = calc.input('5');
+    assertSame(five, five.input('C').input('5'));
+    assertSame(five.input('+'), calc.input('5').input('+'));
+  }
+
+  @Test
+  public void calculatorsShareOneCache() {
+    StateCache cache = new StateCache(256);
+    Calculator one = feed(new SmartCalculator(cache), "42*3");
+    Calculator two = feed(new SmartCalculator(cache), "9C42*3");
+    assertSame(one, two);
+  }
+
+  @Test
+  public void classesAreNotMixed() {
+    StateCache cache = new StateCache(256);
+    Calculator simple = new SimpleCalculator(cache).input('8');
+    Calculator smart = new SmartCalculator(cache).input('8');
+    assertNotSame(simple, smart);
+    assertEquals("8+", simple.input('+').getResult());
+    assertEquals("8+", smart.input('+').getResult());
+    assertEquals("8", new SmartCalculator(cache).input('+').input('8').getResult());
+  }
+
+  @Test
+  public void evictedStatesAreRecreated() {
+    StateCache cache = new StateCache(1);
+    Calculator calc = new SimpleCalculator(cache);
+    Calculator three = calc.input('3');
+    calc.input('4');
+    Calculator again = calc.input('3');
+    assertEquals(three, again);
+    assertSame(again, calc.input('3'));
+  }
+
+  @Test
+  public void cachedCalculatorsBehaveLikeUncached() {
+    Random random = new Random(17);
+    StateCache cache = new StateCache(16);
+    for (int tape = 0; tape < 500; tape++) {
+      boolean smart = random.nextBoolean();
+      Calculator plain = smart ? new SmartCalculator() : new SimpleCalculator();
+      Calculator cached = smart ? new SmartCalculator(cache) : new SimpleCalculator(cache);
+      for (int i = 0; i < 40; i++) {
+        char key = KEYS.charAt(random.nextInt(KEYS.length()));
+        plain = feed(plain, String.valueOf(key));
+        cached = feed(cached, String.valueOf(key));
+        assertEquals(plain, cached);
+        assertEquals(plain.getResult(), cached.getResult());
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import calculator.Calculator;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.StateCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the StateCodec class, which packs calculator states into a long and an int.
+ */
+public class StateCodecTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  @Test
+  public void emptyCalculatorsPack() {
+    assertEquals(0L, StateCodec.operands(new SimpleCalculator()));
+    assertEquals(StateCodec.emptyMeta(false), StateCodec.meta(new SimpleCalculator()));
+    assertEquals(StateCodec.emptyMeta(true), StateCodec.meta(new SmartCalculator()));
+    assertTrue(StateCodec.isSmart(StateCodec.emptyMeta(true)));
+    assertFalse(StateCodec.isSmart(StateCodec.emptyMeta(false)));
+  }
+
+  @Test
+  public void operandsPackBothHalves() {
+    long operands = StateCodec.operands(-7, Integer.MIN_VALUE);
+    assertEquals(-7, StateCodec.firstOperand(operands));
+    assertEquals(Integer.MIN_VALUE, StateCodec.secondOperand(operands));
+    operands = StateCodec.operands(Integer.MAX_VALUE, -1);
+    assertEquals(Integer.MAX_VALUE, StateCodec.firstOperand(operands));
+    assertEquals(-1, StateCodec.secondOperand(operands));
+  }
+
+  @Test
+  public void decodeRestoresState() {
+    Calculator calc = new SmartCalculator().input("12*4=").getCalculator();
+    Calculator decoded = StateCodec.decode(StateCodec.operands(calc), StateCodec.meta(calc));
+    assertTrue(decoded instanceof SmartCalculator);
+    assertEquals(calc, decoded);
+    assertEquals("192", decoded.input('=').getResult());
+    assertEquals('*', StateCodec.operator(StateCodec.meta(calc)));
+  }
+
+  @Test
+  public void stepMatchesCalculators() {
+    Random random = new Random(11);
+    for (int tape = 0; tape < 400; tape++) {
+      boolean smart = random.nextBoolean();
+      Calculator calc = smart ? new SmartCalculator() : new SimpleCalculator();
+      long operands = 0L;
+      int meta = StateCodec.emptyMeta(smart);
+      for (int i = 0; i < 50; i++) {
+        char key = KEYS.charAt(random.nextInt(KEYS.length()));
+        boolean accepted = true;
+        try {
+          calc = calc.input(key);
+        } catch (IllegalArgumentException e) {
+          accepted = false;
+        }
+        int nextMeta = StateCodec.nextMeta(operands, meta, key);
+        long nextOperands = StateCodec.nextOperands(operands, meta, key);
+        assertEquals(!accepted, StateCodec.isRejected(nextMeta));
+        if (accepted) {
+          operands = nextOperands;
+          meta = nextMeta;
+        } else {
+          assertEquals(operands, nextOperands);
+        }
+        assertEquals(StateCodec.operands(calc), operands);
+        assertEquals(StateCodec.meta(calc), meta);
+        StringBuilder screen = new StringBuilder();
+        StateCodec.render(operands, meta, screen);
+        assertEquals(calc.getResult(), screen.toString());
+      }
+    }
+  }
+
+  @Test
+  public void rejectedButtonKeepsState() {
+    Calculator calc = new SimpleCalculator().input("2147483647").getCalculator();
+    long operands = StateCodec.operands(calc);
+    int meta = StateCodec.meta(calc);
+    int rejected = StateCodec.nextMeta(operands, meta, '1');
+    assertTrue(StateCodec.isRejected(rejected));
+    assertEquals(operands, StateCodec.nextOperands(operands, meta, '1'));
+    assertEquals(calc, StateCodec.decode(operands, rejected));
+    int cleared = StateCodec.nextMeta(operands, rejected, 'C');
+    assertFalse(StateCodec.isRejected(cleared));
+    assertEquals(StateCodec.emptyMeta(false), cleared);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void otherCalculatorsRejected() {
+    StateCodec.meta(new Calculator() {
+      @Override
+      public Calculator input(char button) {
+        return this;
+      }
+
+      @Override
+      public String getResult() {
+        return "";
+      }
+    });
+  }
+}
@@ -0,0 +1,135 @@
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import calculator.Calculator;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.TapeEvaluator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A test class for the TapeEvaluator class, whose parallel evaluation must give the same final
+ * calculator and checkpoint screens as inputting the tape one button at a time.
+ */
+public class TapeEvaluatorTest {
+  /* Makes a random tape, where roughly one button in every clearEvery is a 'C' */
+  private String makeTape(int length, int clearEvery, long seed) {
+    String keys = "0123456789+-*=";
+    Random random = new Random(seed);
+    StringBuilder tape = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      if ((clearEvery > 0) && (random.nextInt(clearEvery) == 0)) {
+        tape.append('C');
+      } else {
+        tape.append(keys.charAt(random.nextInt(keys.length())));
+      }
+    }
+    return tape.toString();
+  }
+
+  /* Evaluates the tape one button at a time, skipping rejected buttons, and records the screen
+   * at every checkpoint */
+  private Calculator evaluateSequentially(Calculator calc, String tape, int[] checkpoints,
+                                          String[] screens) {
+    int next = 0;
+    for (int i = 0; i <= tape.length(); i++) {
+      while ((next < checkpoints.length) && (checkpoints[next] == i)) {
+        screens[next++] = calc.getResult();
+      }
+      if (i < tape.length()) {
+        try {
+          calc = calc.input(tape.charAt(i));
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+      }
+    }
+    return calc;
+  }
+
+  private void compare(TapeEvaluator evaluator, Calculator start, String tape, long seed) {
+    Random random = new Random(seed);
+    int[] checkpoints = new int[200];
+    for (int i = 0; i < checkpoints.length; i++) {
+      checkpoints[i] = random.nextInt(tape.length() + 1);
+    }
+    checkpoints[0] = 0;
+    checkpoints[1] = tape.length();
+    java.util.Arrays.sort(checkpoints);
+    String[] expectedScreens = new String[checkpoints.length];
+    String[] screens = new String[checkpoints.length];
+    Calculator expected = evaluateSequentially(start, tape, checkpoints, expectedScreens);
+    assertEquals(expected, evaluator.evaluate(start, tape, checkpoints, screens));
+    for (int i = 0; i < checkpoints.length; i++) {
+      assertEquals("checkpoint " + checkpoints[i], expectedScreens[i], screens[i]);
+    }
+  }
+
+  @Test
+  public void simpleTapeWithClears() {
+    compare(new TapeEvaluator(), new SimpleCalculator(), makeTape(300000, 50, 1), 2);
+  }
+
+  @Test
+  public void smartTapeWithClears() {
+    compare(new TapeEvaluator(), new SmartCalculator(), makeTape(300000, 50, 3), 4);
+  }
+
+  @Test
+  public void tapeWithRareClears() {
+    compare(new TapeEvaluator(), new SmartCalculator(), makeTape(300000, 20000, 5), 6);
+  }
+
+  @Test
+  public void tapeWithoutClears() {
+    compare(new TapeEvaluator(), new SimpleCalculator().input("12+").getCalculator(),
+            makeTape(100000, 0, 7), 8);
+  }
+
+  @Test
+  public void checkpointsRightAfterClears() {
+    String tape = "12+3C4*5C=C6";
+    int[] checkpoints = {0, 4, 5, 9, 10, 12};
+    String[] screens = new String[checkpoints.length];
+    Calculator calc = new TapeEvaluator(4, Runnable::run).evaluate(new SimpleCalculator(), tape,
+            checkpoints, screens);
+    assertEquals("6", calc.getResult());
+    assertEquals("", screens[0]);
+    assertEquals("12+3", screens[1]);
+    assertEquals("", screens[2]);
+    assertEquals("", screens[3]);
+    assertEquals("", screens[4]);
+    assertEquals("6", screens[5]);
+  }
+
+  @Test
+  public void evaluateOnOwnExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      TapeEvaluator evaluator = new TapeEvaluator(64, executor);
+      compare(evaluator, new SmartCalculator(), makeTape(500000, 100, 9), 10);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void emptyTape() {
+    Calculator start = new SmartCalculator().input("4*").getCalculator();
+    assertEquals(start, new TapeEvaluator().evaluate(start, ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unsortedCheckpointsRejected() {
+    new TapeEvaluator().evaluate(new SimpleCalculator(), "123", new int[] {2, 1}, new String[2]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void checkpointPastEndRejected() {
+    new TapeEvaluator().evaluate(new SimpleCalculator(), "123", new int[] {4}, new String[1]);
+  }
+}
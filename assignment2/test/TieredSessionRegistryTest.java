@@ -0,0 +1,244 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import calculator.InputStatus;
+import calculator.SessionRegistry;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+import calculator.TieredSessionRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class for the TieredSessionRegistry class, whose sessions must follow the same rules as
+ * those of a SessionRegistry while they are spilled to the store and paged back in.
+ */
+public class TieredSessionRegistryTest {
+  private static final String KEYS = "0123456789+-*=C";
+
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("sessions", ".store");
+    Files.delete(file);
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void spilledSessionsFollowTheRules() throws IOException {
+    SessionRegistry registry = new SessionRegistry(new SmartCalculator());
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SmartCalculator(), 1,
+            TimeUnit.HOURS, 256, null, 10000)) {
+      Random random = new Random(1);
+      for (int i = 0; i < 100000; i++) {
+        long sessionId = random.nextInt(3000) - 1000;
+        if (random.nextInt(50) == 0) {
+          assertEquals(registry.remove(sessionId), tiered.remove(sessionId));
+          continue;
+        }
+        char button = KEYS.charAt(random.nextInt(KEYS.length()));
+        InputStatus expected = registry.tryInput(sessionId, button);
+        assertEquals(expected, tiered.tryInput(sessionId, button));
+        assertEquals(registry.getResult(sessionId), tiered.getResult(sessionId));
+      }
+      assertTrue(tiered.getHotSize() <= 256);
+      assertTrue(tiered.getColdSize() > 0);
+      assertEquals(registry.size(), tiered.size());
+      for (long sessionId = -1000; sessionId < 2000; sessionId++) {
+        assertEquals(registry.contains(sessionId), tiered.contains(sessionId));
+        assertEquals(registry.getResult(sessionId), tiered.getResult(sessionId));
+        assertEquals(registry.toCalculator(sessionId), tiered.toCalculator(sessionId));
+      }
+    }
+  }
+
+  @Test
+  public void idleSessionsAreSpilledAndPagedIn() throws Exception {
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SimpleCalculator(), 20,
+            TimeUnit.MILLISECONDS, null, 1000)) {
+      for (long sessionId = 0; sessionId < 100; sessionId++) {
+        assertTrue(tiered.input(sessionId, '5'));
+      }
+      assertEquals(100, tiered.size());
+      for (int i = 0; (i < 500) && (tiered.getHotSize() > 0); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, tiered.getHotSize());
+      assertEquals(100, tiered.getColdSize());
+      assertEquals("5", tiered.getResult(7));
+      assertEquals(0, tiered.getHotSize());
+      assertTrue(tiered.input(7, '+'));
+      assertEquals(1, tiered.getHotSize());
+      assertEquals(99, tiered.getColdSize());
+      assertEquals("5+", tiered.getResult(7));
+    }
+  }
+
+  @Test
+  public void busySessionsStayOnTheHeap() throws Exception {
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SimpleCalculator(), 200,
+            TimeUnit.MILLISECONDS, null, 1000)) {
+      tiered.input(1, '1');
+      tiered.input(2, '2');
+      long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+      while (System.nanoTime() < end) {
+        tiered.input(1, 'C');
+        Thread.sleep(5);
+      }
+      tiered.evictIdle();
+      assertEquals(1, tiered.getHotSize());
+      assertEquals(1, tiered.getColdSize());
+      assertEquals("", tiered.getResult(1));
+      assertEquals("2", tiered.getResult(2));
+    }
+  }
+
+  @Test
+  public void closedRegistryKeepsSessionsInItsFile() throws IOException {
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SmartCalculator(), 1,
+            TimeUnit.HOURS, file, 1000)) {
+      assertTrue(tiered.input(3, '4'));
+      assertTrue(tiered.input(3, '*'));
+      assertTrue(tiered.input(4, '9'));
+    }
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SmartCalculator(), 1,
+            TimeUnit.HOURS, file, 1000)) {
+      assertEquals(0, tiered.getHotSize());
+      assertEquals(2, tiered.size());
+      assertTrue(tiered.input(3, '='));
+      assertEquals("16", tiered.getResult(3));
+      assertEquals("9", tiered.getResult(4));
+      assertNull(tiered.getResult(5));
+    }
+  }
+
+  @Test
+  public void threadsOnSeparateSessions() throws Exception {
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SimpleCalculator(), 5,
+            TimeUnit.MILLISECONDS, 128, null, 20000)) {
+      List<Thread> threads = new ArrayList<>();
+      List<Throwable> errors = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        long first = t * 1000L;
+        Thread thread = new Thread(() -> {
+          try {
+            SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+            Random random = new Random(first);
+            for (int i = 0; i < 20000; i++) {
+              long sessionId = first + random.nextInt(1000);
+              char button = KEYS.charAt(random.nextInt(KEYS.length()));
+              assertEquals(registry.input(sessionId, button), tiered.input(sessionId, button));
+            }
+            for (long sessionId = first; sessionId < first + 1000; sessionId++) {
+              assertEquals(registry.getResult(sessionId), tiered.getResult(sessionId));
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        });
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertTrue(errors.toString(), errors.isEmpty());
+    }
+  }
+
+  @Test
+  public void manySessionsTakeAboutAsLongAsInARegistry() throws IOException {
+    int count = 500000;
+    SessionRegistry registry = new SessionRegistry(new SimpleCalculator());
+    long begin = System.nanoTime();
+    for (long sessionId = 0; sessionId < count; sessionId++) {
+      registry.input(sessionId, '7');
+    }
+    long registryNanos = System.nanoTime() - begin;
+    try (TieredSessionRegistry tiered = new TieredSessionRegistry(new SimpleCalculator(), 1,
+            TimeUnit.HOURS, null, count)) {
+      begin = System.nanoTime();
+      for (long sessionId = 0; sessionId < count; sessionId++) {
+        tiered.input(sessionId, '7');
+      }
+      long tieredNanos = System.nanoTime() - begin;
+      assertEquals(count, tiered.getHotSize());
+      /* sessions crowded into part of their stripe's table take time growing with their number */
+      assertTrue(tieredNanos + " against " + registryNanos,
+              tieredNanos < 5 * registryNanos + TimeUnit.SECONDS.toNanos(1));
+      for (long sessionId = 0; sessionId < count; sessionId += 997) {
+        assertTrue(tiered.input(sessionId, '+'));
+        assertEquals("7+", tiered.getResult(sessionId));
+      }
+    }
+  }
+
+  @Test
+  public void closeWithoutRoomKeepsTheRegistryOpen() throws IOException {
+    TieredSessionRegistry tiered = new TieredSessionRegistry(new SmartCalculator(), 1,
+            TimeUnit.HOURS, file, 10);
+    for (long id = 0; id < 100; id++) {
+      assertTrue(tiered.input(id, '7'));
+    }
+    try {
+      tiered.close();
+      throw new AssertionError("A store too small for the sessions was written");
+    } catch (IllegalStateException e) {
+      assertEquals(100, tiered.size());
+    }
+    assertTrue(tiered.input(3, '+'));
+    for (long id = 10; id < 100; id++) {
+      assertTrue(tiered.remove(id));
+    }
+    tiered.close();
+    tiered = new TieredSessionRegistry(new SmartCalculator(), 1, TimeUnit.HOURS, file, 10);
+    assertEquals(10, tiered.size());
+    assertEquals("7+", tiered.getResult(3));
+    assertEquals("7", tiered.getResult(9));
+    tiered.close();
+  }
+
+  @Test
+  public void inputAfterCloseFails() throws IOException {
+    TieredSessionRegistry tiered = new TieredSessionRegistry(new SimpleCalculator(), 1,
+            TimeUnit.SECONDS, null, 100);
+    tiered.input(1, '1');
+    tiered.close();
+    tiered.close();
+    try {
+      tiered.input(1, '2');
+      throw new AssertionError("A closed registry accepted input");
+    } catch (IllegalStateException e) {
+      assertFalse(tiered.toString().isEmpty());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidTimeout() throws IOException {
+    new TieredSessionRegistry(new SimpleCalculator(), 0, TimeUnit.SECONDS, null, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidLimit() throws IOException {
+    new TieredSessionRegistry(new SimpleCalculator(), 1, TimeUnit.SECONDS, 0, null, 100);
+  }
+}
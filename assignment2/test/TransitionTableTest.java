@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+import calculator.Calculator;
+import calculator.CalculatorSession;
+import calculator.SimpleCalculator;
+import calculator.SmartCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A conformance test for the table-driven rules used by CalculatorSession: every state the
+ * calculators can reach with a small set of buttons is visited, and for every button the session
+ * must end up exactly where the calculator's own handle methods do.
+ */
+public class TransitionTableTest {
+  /* a few digits, every operator, '=', 'C' and a couple of invalid buttons */
+  private static final String KEYS = "0159+-*=Cx/";
+
+  /* tapes that lead to states near the limits of an int operand */
+  private static final String[] SEEDS = {"", "2147483647", "214748364+214748364", "99999*99999",
+    "2147483647+1=", "1-2147483647-9=", "65536*65536", "7-9=", "0+0-", "5+0="};
+
+  private static final int MAX_STATES = 20000;
+
+  /* Checks one button on one state, and returns the calculator it leads to (or null) */
+  private Calculator checkTransition(Calculator calc, char key) {
+    Calculator expected;
+    try {
+      expected = calc.input(key);
+    } catch (IllegalArgumentException e) {
+      expected = null;
+    }
+    CalculatorSession session = new CalculatorSession(calc);
+    boolean accepted = session.input(key);
+    String where = "'" + key + "' after " + calc.getResult();
+    assertEquals(where, expected != null, accepted);
+    if (expected != null) {
+      assertEquals(where, expected, session.toCalculator());
+      assertEquals(where, expected.getResult(), session.getResult());
+    } else {
+      assertEquals(where, calc, session.toCalculator());
+    }
+    return expected;
+  }
+
+  /* Visits every state reachable from the seeds, checking every button on each of them */
+  private int exploreFrom(Calculator empty) {
+    Set<Calculator> seen = new HashSet<>();
+    Queue<Calculator> queue = new ArrayDeque<>();
+    for (String seed : SEEDS) {
+      Calculator start = empty.input(seed).getCalculator();
+      if (seen.add(start)) {
+        queue.add(start);
+      }
+    }
+    while (!queue.isEmpty() && (seen.size() < MAX_STATES)) {
+      Calculator calc = queue.remove();
+      for (int i = 0; i < KEYS.length(); i++) {
+        Calculator next = checkTransition(calc, KEYS.charAt(i));
+        if ((next != null) && seen.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    return seen.size();
+  }
+
+  @Test
+  public void simpleRulesMatchSimpleCalculator() {
+    assertTrue(exploreFrom(new SimpleCalculator()) > 1000);
+  }
+
+  @Test
+  public void smartRulesMatchSmartCalculator() {
+    assertTrue(exploreFrom(new SmartCalculator()) > 1000);
+  }
+
+  @Test
+  public void everyCharacterMatches() {
+    Calculator[] states = {new SimpleCalculator(), new SmartCalculator(),
+      new SimpleCalculator().input("3+4").getCalculator(),
+      new SmartCalculator().input("3+4=").getCalculator()};
+    for (Calculator calc : states) {
+      for (int c = 0; c <= Character.MAX_VALUE; c++) {
+        checkTransition(calc, (char) c);
+      }
+    }
+  }
+}